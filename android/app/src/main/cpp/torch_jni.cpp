@@ -1,9 +1,25 @@
 #include <jni.h>
 #include <string>
 #include <android/log.h>
+#include <android/asset_manager_jni.h>
 #include <filesystem>
 #include <fstream>
+#include <optional>
+#include <algorithm>
+#include <atomic>
+#include <mutex>
+#include <unordered_set>
+#include <unistd.h>
+#include <sys/stat.h>
 #include "Companion.h"
+#include "utils/TorchUtils.h"
+#include "preprocess/RomCache.h"
+#include "preprocess/RomIndex.h"
+#include "utils/Sha1.h"
+#include "utils/Decompressor.h"
+#include "archive/ArchivePacker.h"
+#include "archive/SWrapper.h"
+#include "archive/ZWrapper.h"
 #include "factories/TextureFactory.h"
 #include "factories/BlobFactory.h"
 #include "factories/VtxFactory.h"
@@ -26,445 +42,543 @@
 // Define the static member variable
 Companion* Companion::Instance = nullptr;
 
-// Custom factory registration function since RegisterFactory is private
-void RegisterFactoriesManually(Companion* companion) {
-    // We can't access RegisterFactory directly since it's private
-    // But we can use reflection or friend functions, or modify the Companion class
-    // For now, let's try calling Init() which registers factories, then Process() separately
+// Lets the service cancel or throttle the conversion that is running on another thread
+static std::atomic<bool> sCancelRequested = false;
+static std::mutex sActiveMutex;
+static Companion* sActiveCompanion = nullptr;
+static size_t sJobLimit = 0;
+
+// Sessions and staged roms handed to Java, a zero, stale or foreign handle is rejected instead of dereferenced
+static std::mutex sHandleMutex;
+static std::unordered_set<jlong> sHandles;
+
+static jlong AddHandle(void* pointer) {
+    std::lock_guard<std::mutex> lock(sHandleMutex);
+    sHandles.insert(reinterpret_cast<jlong>(pointer));
+    return reinterpret_cast<jlong>(pointer);
 }
 
-extern "C" JNIEXPORT jstring JNICALL
-Java_com_torch_converter_MainActivity_convertRomToO2R(JNIEnv *env, jobject thiz, 
-                                                       jstring romPath, jstring outputPath, jstring configPath) {
-    
-    const char *romPathStr = env->GetStringUTFChars(romPath, nullptr);
-    const char *outputPathStr = env->GetStringUTFChars(outputPath, nullptr);
-    const char *configPathStr = env->GetStringUTFChars(configPath, nullptr);
-    
-    LOGI("Starting ROM conversion: %s -> %s", romPathStr, outputPathStr);
-    
-    try {
-        // Check if ROM file exists
-        if (!std::filesystem::exists(romPathStr)) {
-            LOGE("ROM file does not exist: %s", romPathStr);
-            env->ReleaseStringUTFChars(romPath, romPathStr);
-            env->ReleaseStringUTFChars(outputPath, outputPathStr);
-            return env->NewStringUTF("ROM file not found");
+static bool HasHandle(jlong handle) {
+    std::lock_guard<std::mutex> lock(sHandleMutex);
+    return handle != 0 && sHandles.contains(handle);
+}
+
+// False when the handle was not live, the caller then must not free it
+static bool RemoveHandle(jlong handle) {
+    std::lock_guard<std::mutex> lock(sHandleMutex);
+    return handle != 0 && sHandles.erase(handle) > 0;
+}
+
+static void ThrowInvalidHandle(JNIEnv* env, const char* kind, jlong handle) {
+    LOGE("Invalid %s handle %lld", kind, static_cast<long long>(handle));
+    const std::string message = std::string("Invalid ") + kind + " handle";
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), message.c_str());
+}
+
+// Holds the UTF-8 chars of a jstring for the lifetime of the scope
+class JniString {
+public:
+    // A null str reads as an empty string
+    JniString(JNIEnv* env, jstring str) : mEnv(env), mStr(str), mChars(str != nullptr ? env->GetStringUTFChars(str, nullptr) : nullptr) {}
+    ~JniString() {
+        if (mChars != nullptr) {
+            mEnv->ReleaseStringUTFChars(mStr, mChars);
         }
-        
-        // Create output directory if it doesn't exist
-        std::filesystem::path outputDir = std::filesystem::path(outputPathStr).parent_path();
-        if (!std::filesystem::exists(outputDir)) {
-            std::filesystem::create_directories(outputDir);
+    }
+    JniString(const JniString&) = delete;
+    JniString& operator=(const JniString&) = delete;
+
+    const char* c_str() const { return mChars != nullptr ? mChars : ""; }
+    std::string str() const { return this->c_str(); }
+private:
+    JNIEnv* mEnv;
+    jstring mStr;
+    const char* mChars;
+};
+
+// Reads the rom straight from a descriptor handed over by the ContentResolver, takes ownership of fd
+static std::vector<uint8_t> ReadRomDescriptor(int fd) {
+    struct stat st {};
+    if (fstat(fd, &st) != 0 || st.st_size <= 0) {
+        close(fd);
+        throw std::runtime_error("Cannot stat ROM file descriptor");
+    }
+
+    std::vector<uint8_t> data(static_cast<size_t>(st.st_size));
+    size_t offset = 0;
+
+    while (offset < data.size()) {
+        const ssize_t read = pread(fd, data.data() + offset, data.size() - offset, static_cast<off_t>(offset));
+        if (read <= 0) {
+            close(fd);
+            throw std::runtime_error("Failed to read ROM file descriptor");
         }
-        
-        // Initialize Companion with O2R mode and config directory
-        std::filesystem::path romFilePath(romPathStr);
-        std::string configDir(configPathStr);
-        
-        LOGI("Config directory: %s", configDir.c_str());
-        
-        // List contents of config directory for debugging
-        try {
-            LOGI("Contents of config directory:");
-            for (const auto& entry : std::filesystem::directory_iterator(configDir)) {
-                LOGI("  %s", entry.path().filename().string().c_str());
-            }
-        } catch (const std::exception& e) {
-            LOGE("Error listing config directory: %s", e.what());
+        offset += static_cast<size_t>(read);
+    }
+
+    close(fd);
+    return data;
+}
+
+// Mirrors the counters of a ProgressTracker into a direct ByteBuffer the ui polls, no JNI calls are made from the
+// worker threads. Layout (native byte order): phase, files done, files total as int32 at 0/4/8, assets at 16 and
+// bytes at 24 as int64.
+static ProgressTracker::Listener MakeProgressWriter(void* buffer) {
+    auto* base = static_cast<uint8_t*>(buffer);
+
+    return [base](const ProgressSnapshot& snapshot) {
+        __atomic_store_n(reinterpret_cast<uint32_t*>(base + 0), static_cast<uint32_t>(snapshot.phase), __ATOMIC_RELAXED);
+        __atomic_store_n(reinterpret_cast<uint32_t*>(base + 4), snapshot.filesDone, __ATOMIC_RELAXED);
+        __atomic_store_n(reinterpret_cast<uint32_t*>(base + 8), snapshot.filesTotal, __ATOMIC_RELAXED);
+        __atomic_store_n(reinterpret_cast<uint64_t*>(base + 16), snapshot.assetsExported, __ATOMIC_RELAXED);
+        __atomic_store_n(reinterpret_cast<uint64_t*>(base + 24), snapshot.bytesWritten, __ATOMIC_RELAXED);
+    };
+}
+
+static constexpr jlong kProgressBufferSize = 32;
+
+// Streams the rom through sha1 without loading it, the descriptor stays owned by the caller
+static std::string HashRomDescriptor(int fd) {
+    std::vector<uint8_t> buffer(1024 * 1024);
+    Sha1 sha1;
+    off_t offset = 0;
+
+    while (true) {
+        const ssize_t read = pread(fd, buffer.data(), buffer.size(), offset);
+        if (read < 0) {
+            throw std::runtime_error("Failed to read ROM file descriptor");
         }
-        
-        // Check if config.yml exists
-        std::string configFile = configDir + "/config.yml";
-        if (!std::filesystem::exists(configFile)) {
-            LOGE("config.yml not found at: %s", configFile.c_str());
-            env->ReleaseStringUTFChars(romPath, romPathStr);
-            env->ReleaseStringUTFChars(outputPath, outputPathStr);
-            env->ReleaseStringUTFChars(configPath, configPathStr);
-            return env->NewStringUTF("config.yml not found in selected folder");
+        if (read == 0) {
+            break;
         }
-        
-        // Check if assets directory exists
-        std::string assetsDir = configDir + "/assets";
-        if (!std::filesystem::exists(assetsDir)) {
-            LOGE("assets directory not found at: %s", assetsDir.c_str());
-            env->ReleaseStringUTFChars(romPath, romPathStr);
-            env->ReleaseStringUTFChars(outputPath, outputPathStr);
-            env->ReleaseStringUTFChars(configPath, configPathStr);
-            return env->NewStringUTF("assets directory not found in selected folder");
+        sha1.Update(std::span(buffer.data(), static_cast<size_t>(read)));
+        offset += read;
+    }
+
+    return sha1.Finalize();
+}
+
+/**
+ * Everything a conversion sets up that does not depend on the rom: the Companion with its factories, the parsed
+ * config.yml and asset yaml, and the rom index. Kept alive by the app between conversions of the same config.
+ */
+struct EngineSession {
+    std::string configDir;
+    std::unique_ptr<Companion> companion;
+    RomIndex roms;
+    std::filesystem::file_time_type romsTime;
+    // PerfReport of the last conversion as JSON, also kept when it failed
+    std::string report;
+};
+
+static std::unique_ptr<EngineSession> CreateSession(const std::string& configDir, const std::string& cacheDir) {
+    LOGI("Config directory: %s", configDir.c_str());
+
+    if (!std::filesystem::exists(configDir + "/config.yml")) {
+        LOGE("config.yml not found in: %s", configDir.c_str());
+        throw std::runtime_error("config.yml not found in selected folder");
+    }
+
+    if (!std::filesystem::exists(configDir + "/assets")) {
+        LOGE("assets directory not found in: %s", configDir.c_str());
+        throw std::runtime_error("assets directory not found in selected folder");
+    }
+
+    auto session = std::make_unique<EngineSession>();
+    session->configDir = configDir;
+
+    // Output goes next to the config files, the rom of each conversion is handed over with SetRom
+    session->companion = std::make_unique<Companion>(std::vector<uint8_t>(), ArchiveType::O2R, false, false, configDir, configDir);
+    auto& companion = *session->companion;
+
+    if (!cacheDir.empty()) {
+        companion.SetRomCache(cacheDir);
+    }
+
+    // Re-conversions after a config update only export the yaml files that changed
+    companion.SetIncremental(true);
+
+    // Skips running yaml-cpp over every asset file when the bundled config has not changed
+    companion.SetCompiledManifest(true);
+
+    // Later conversions in this session copy the parsed asset trees instead of decoding them again
+    companion.SetKeepParsedAssets(true);
+
+    companion.SetCancelFlag(&sCancelRequested);
+    companion.InitFactoriesOnly(ExportType::Binary);
+    LOGI("Session created for %s", configDir.c_str());
+    return session;
+}
+
+static std::optional<RomInfo> IdentifyRom(EngineSession& session, const std::string& romHash) {
+    const auto configFile = session.configDir + "/config.yml";
+    const auto time = std::filesystem::last_write_time(configFile);
+
+    if (session.roms.Size() == 0 || time != session.romsTime) {
+        session.roms = RomIndex(YAML::LoadFile(configFile));
+        session.romsTime = time;
+    }
+
+    auto info = session.roms.Find(romHash);
+
+    if (!info.has_value()) {
+        LOGE("Unknown ROM hash: %s - This ROM is not listed in %s", romHash.c_str(), configFile.c_str());
+    }
+
+    return info;
+}
+
+static void ReleaseActiveCompanion() {
+    std::lock_guard<std::mutex> lock(sActiveMutex);
+    sActiveCompanion = nullptr;
+    Companion::Instance = nullptr;
+}
+
+// Runs a full conversion, romData is moved into the Companion so the rom is only held in memory once
+// romHash is the sha1 of romData when the caller already has it, empty to compute it here
+// outputFd is an open document the archive is written into, -1 writes it to outputPath instead
+// progress is the address of a direct buffer that receives the counters of the run, see MakeProgressWriter
+// jobs is the number of files processed at once (0 for every big core), cacheBudget the bytes of decompressed chunks kept
+static jstring ConvertRom(JNIEnv* env, jobject thiz, EngineSession& session, std::vector<uint8_t> romData, std::string romHash,
+                          const std::string& outputPath, int outputFd, void* progress = nullptr, size_t jobs = 0,
+                          size_t cacheBudget = 96 * 1024 * 1024, const std::string& compression = "") {
+    jclass clazz = env->GetObjectClass(thiz);
+    jmethodID updateProgressMethod = env->GetMethodID(clazz, "updateProgress", "(Ljava/lang/String;)V");
+
+    auto updateProgress = [&](const char* message) {
+        jstring jmsg = env->NewStringUTF(message);
+        env->CallVoidMethod(thiz, updateProgressMethod, jmsg);
+        env->DeleteLocalRef(jmsg);
+    };
+
+    // miniz seeks back to patch every local header, pipes and sockets can not be written to
+    if (outputFd >= 0 && lseek(outputFd, 0, SEEK_SET) != 0) {
+        LOGE("Output descriptor %d is not seekable", outputFd);
+        return env->NewStringUTF("Output location does not support seeking");
+    }
+
+    // Create output directory if it doesn't exist
+    std::filesystem::path outputDirPath = std::filesystem::path(outputPath).parent_path();
+    if (outputFd < 0 && !std::filesystem::exists(outputDirPath)) {
+        LOGI("Creating output directory: %s", outputDirPath.string().c_str());
+        std::filesystem::create_directories(outputDirPath);
+    }
+
+    updateProgress("Analyzing ROM file...");
+    LOGI("ROM data size: %zu bytes", romData.size());
+
+    if (romHash.empty()) {
+        romHash = Companion::CalculateHash(romData);
+    }
+
+    const auto romInfo = IdentifyRom(session, romHash);
+    const bool isCompressed = romInfo.has_value() && romInfo->compressed;
+
+    LOGI("Detected: %s", romInfo.has_value() ? romInfo->name.c_str() : "Unknown");
+    if (isCompressed) {
+        LOGI("⚠️  This ROM is compressed and will need to be decompressed during processing");
+        LOGI("⚠️  This may take a couple of minutes on mobile devices, repeat conversions reuse the cached result");
+    }
+
+    // Change working directory to where config files are located
+    std::filesystem::current_path(session.configDir);
+    LOGI("Changed working directory to: %s", std::filesystem::current_path().string().c_str());
+
+    auto& companion = *session.companion;
+    session.report.clear();
+    try {
+        companion.SetRom(std::move(romData), romHash);
+        companion.SetOutputDescriptor(outputFd);
+        companion.Progress().SetListener(progress != nullptr ? MakeProgressWriter(progress) : nullptr);
+
+        // Set singleton (if used downstream)
+        Companion::Instance = &companion;
+
+        // The service picks both from the thermal status and the memory class of the device
+        companion.SetJobs(jobs);
+        Decompressor::SetCacheBudget(cacheBudget);
+        companion.SetCompression(compression);
+
+        {
+            std::lock_guard<std::mutex> lock(sActiveMutex);
+            companion.LimitJobs(sJobLimit);
+            sActiveCompanion = &companion;
         }
-        
-        LOGI("Found config.yml and assets directory");
-        
-        // Check if output directory exists
-        std::filesystem::path outputFilePath(outputPathStr);
-        std::filesystem::path outputDirPath = outputFilePath.parent_path();
-        if (!std::filesystem::exists(outputDirPath)) {
-            LOGI("Creating output directory: %s", outputDirPath.string().c_str());
-            std::filesystem::create_directories(outputDirPath);
+
+        if (isCompressed) {
+            LOGI("⏳ ROM decompression is the slow part...");
         }
-        
-        // Update progress
-        jclass clazz = env->GetObjectClass(thiz);
-        jmethodID updateProgressMethod = env->GetMethodID(clazz, "updateProgress", "(Ljava/lang/String;)V");
-        
-        auto updateProgress = [&](const char* message) {
-            jstring jmsg = env->NewStringUTF(message);
-            env->CallVoidMethod(thiz, updateProgressMethod, jmsg);
-            env->DeleteLocalRef(jmsg);
-        };
-        
-        updateProgress("Analyzing ROM file...");
-        LOGI("Creating Companion instance...");
-        LOGI("ROM file path: %s", romFilePath.string().c_str());
-        LOGI("Config directory (working dir): %s", configDir.c_str());
-        LOGI("Output path: %s", outputPathStr);
-        
-        // Declare variables at broader scope
-        bool isCompressed = false;
-        std::string romVersion = "Unknown";
-        
-        // Check ROM file and calculate SHA1 hash
-        if (std::filesystem::exists(romFilePath)) {
-            auto romSize = std::filesystem::file_size(romFilePath);
-            LOGI("ROM file size: %zu bytes", romSize);
-            
-            // Calculate SHA1 hash of the ROM
-            std::ifstream romFile(romFilePath, std::ios::binary);
-            if (romFile.is_open()) {
-                // Read entire file for hash calculation
-                std::vector<uint8_t> romData((std::istreambuf_iterator<char>(romFile)),
-                                           std::istreambuf_iterator<char>());
-                romFile.close();
-                
-                // Calculate SHA1 hash using Torch's method
-                std::string romHash = Companion::CalculateHash(romData);
-                LOGI("ROM SHA1 hash: %s", romHash.c_str());
-                
-                // Check if this hash is in the Starship config
-                // Both compressed and decompressed versions are supported
-                
-                // US 1.1 (decompressed)
-                if (romHash == "f7475fb11e7e6830f82883412638e8390791ab87") {
-                    romVersion = "Star Fox 64 (U) (V1.1) - Decompressed";
-                    isCompressed = false;
-                // US 1.1 (compressed)
-                } else if (romHash == "09f0d105f476b00efa5303a3ebc42e60a7753b7a") {
-                    romVersion = "Star Fox 64 (U) (V1.1) - Compressed";
-                    isCompressed = true;
-                // US 1.0 (decompressed)
-                } else if (romHash == "63b69f0ef36306257481afc250f9bc304c7162b2") {
-                    romVersion = "Star Fox 64 (U) (V1.0) - Decompressed";
-                    isCompressed = false;
-                // US 1.0 (compressed)
-                } else if (romHash == "d8b1088520f7c5f81433292a9258c1184afa1457") {
-                    romVersion = "Star Fox 64 (U) (V1.0) - Compressed";
-                    isCompressed = true;
-                // JP 1.0 (decompressed)
-                } else if (romHash == "d064229a32cc05ab85e2381ce07744eb3ffaf530") {
-                    romVersion = "Star Fox 64 (JP) (V1.0) - Decompressed";
-                    isCompressed = false;
-                // JP 1.0 (compressed)
-                } else if (romHash == "9bd71afbecf4d0a43146e4e7a893395e19bf3220") {
-                    romVersion = "Star Fox 64 (JP) (V1.0) - Compressed";
-                    isCompressed = true;
-                // EU 1.0 (decompressed)
-                } else if (romHash == "09f5d5c14219fc77a36c5a6ad5e63f7abd8b3385") {
-                    romVersion = "Star Fox 64 (EU) (V1.0) - Decompressed";
-                    isCompressed = false;
-                // EU 1.0 (compressed)
-                } else if (romHash == "05b307b8804f992af1a1e2fbafbd588501fdf799") {
-                    romVersion = "Star Fox 64 (EU) (V1.0) - Compressed";
-                    isCompressed = true;
-                // CN 1.1 (decompressed)
-                } else if (romHash == "3a05aba5549fa71e8b16a0c6e2c8481b070818a9") {
-                    romVersion = "Star Fox 64 (CN) (V1.1) - Decompressed";
-                    isCompressed = false;
-                // CN 1.1 (compressed)
-                } else if (romHash == "c8a10699dea52f4bb2e2311935c1376dfb352e7a") {
-                    romVersion = "Star Fox 64 (CN) (V1.1) - Compressed";
-                    isCompressed = true;
-                // Mario Kart 64 (US)
-                } else if (romHash == "579c48e211ae952530ffc8738709f078d5dd215e") {
-                    romVersion = "Mario Kart 64 (US)";
-                    isCompressed = false;
-                } else {
-                    LOGE("Unknown ROM hash: %s - This ROM may not be supported", romHash.c_str());
-                    LOGE("Supported versions:");
-                    LOGE("  Star Fox 64: US 1.0/1.1, JP 1.0, EU 1.0, CN 1.1 (compressed or decompressed)");
-                    LOGE("  Mario Kart 64: US (decompressed)");
-                }
-                
-                LOGI("Detected: %s", romVersion.c_str());
-                if (isCompressed) {
-                    LOGI("⚠️  This ROM is compressed and will need to be decompressed during processing");
-                    LOGI("⚠️  This may take a couple of minutes on mobile devices");
-                    LOGI("⚠️  For faster processing, use a pre-decompressed ROM");
-                }
-            } else {
-                LOGE("Cannot open ROM file for reading");
-            }
-        } else {
-            LOGE("ROM file does not exist at: %s", romFilePath.string().c_str());
+
+        // From here on progress is reported through the shared buffer
+        companion.Process();
+        LOGI("*** SUCCESS: Companion Process completed! ***");
+    } catch (const std::exception& e) {
+        LOGE("Exception during Torch processing: %s", e.what());
+        session.report = companion.Perf().ToJson();
+        ReleaseActiveCompanion();
+        companion.SetRom({});
+        return env->NewStringUTF(sCancelRequested ? "cancelled" : e.what());
+    } catch (...) {
+        LOGE("Unknown exception during Torch processing");
+        session.report = companion.Perf().ToJson();
+        ReleaseActiveCompanion();
+        companion.SetRom({});
+        return env->NewStringUTF("Unknown exception during Torch processing");
+    }
+
+    // The session outlives the conversion, the rom does not
+    session.report = companion.Perf().ToJson();
+    ReleaseActiveCompanion();
+    companion.SetRom({});
+
+    // Check output file
+    struct stat st {};
+    const bool created = outputFd >= 0 ? fstat(outputFd, &st) == 0 && st.st_size > 0 : stat(outputPath.c_str(), &st) == 0;
+    if (!created) {
+        LOGE("O2R file was not created at: %s", outputPath.c_str());
+        return env->NewStringUTF("O2R file was not created");
+    }
+
+    LOGI("O2R file created successfully: %s (size: %zu bytes)", outputPath.c_str(), (size_t) st.st_size);
+    LOGI("ROM conversion completed successfully");
+    return env->NewStringUTF("success");
+}
+
+// Packs every file below folderPath into an archive, named by their path relative to it. outputFd is an open document
+// the archive is written into, -1 writes it to outputPath instead. progress is laid out as for convertStagedRom
+// Stops between two files once setConversionCancelled is set and then returns "cancelled"
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_torch_converter_ConversionService_packFolder(JNIEnv *env, jobject thiz, jstring folderPath, jstring outputPath,
+                                                      jint outputFd, jboolean otr, jobject progress) {
+    JniString folderPathStr(env, folderPath);
+    JniString outputPathStr(env, outputPath);
+
+    LOGI("Packing %s -> %s", folderPathStr.c_str(), outputPathStr.c_str());
+
+    try {
+        if (!std::filesystem::is_directory(folderPathStr.str())) {
+            LOGE("Folder does not exist: %s", folderPathStr.c_str());
+            return env->NewStringUTF("Folder not found");
         }
-        
-        updateProgress("Setting up working directory...");
-        
-        // Change working directory to where config files are located
-        std::filesystem::current_path(configDir);
-        LOGI("Changed working directory to: %s", std::filesystem::current_path().string().c_str());
-        
-        // Check if we can write to the working directory
-        std::string testFile = configDir + "/test_write.tmp";
-        try {
-            std::ofstream test(testFile);
-            if (test.is_open()) {
-                test << "test";
-                test.close();
-                std::filesystem::remove(testFile);
-                LOGI("Working directory is writable");
-            } else {
-                LOGE("Cannot write to working directory");
+
+        std::unique_ptr<BinaryWrapper> wrapper;
+        if (otr == JNI_TRUE) {
+            if (outputFd >= 0) {
+                return env->NewStringUTF("OTR archives can only be written to a path");
             }
-        } catch (const std::exception& e) {
-            LOGE("Write test failed: %s", e.what());
-        }
-        
-        updateProgress("Creating Torch instance...");
-        
-        // Use the same directory as ROM and config files for output
-        std::string outputDirectory = configDir;
-        
-        LOGI("Creating Companion with:");
-        LOGI("  ROM path: %s", romFilePath.string().c_str());
-        LOGI("  Archive type: O2R");
-        LOGI("  Debug: false");
-        LOGI("  Modding: false");
-        LOGI("  Source dir: %s", configDir.c_str());
-        LOGI("  Dest dir: %s", outputDirectory.c_str());
-        
-        // Use the correct constructor signature
-        LOGI("Creating Companion with correct constructor...");
-        
-        // Add more detailed logging before constructor
-        LOGI("Final check before Companion creation:");
-        LOGI("  ROM file path: %s", romFilePath.string().c_str());
-        LOGI("  ROM file exists: %s", std::filesystem::exists(romFilePath) ? "YES" : "NO");
-        if (std::filesystem::exists(romFilePath)) {
-            LOGI("  ROM file size: %zu bytes", std::filesystem::file_size(romFilePath));
-            LOGI("  ROM file is regular file: %s", std::filesystem::is_regular_file(romFilePath) ? "YES" : "NO");
+            wrapper = std::make_unique<SWrapper>(outputPathStr.str());
+        } else {
+            wrapper = outputFd >= 0 ? std::make_unique<ZWrapper>(outputPathStr.str(), outputFd) : std::make_unique<ZWrapper>(outputPathStr.str());
         }
-        LOGI("  Config dir: %s", configDir.c_str());
-        LOGI("  Output dir: %s", outputDirectory.c_str());
-        
-        // Try loading ROM data manually first (for logging/verification)
-        LOGI("Attempting to load ROM data manually...");
-        std::vector<uint8_t> romData;
-        try {
-            std::ifstream romFile(romFilePath, std::ios::binary);
-            if (!romFile.is_open()) {
-                LOGE("Failed to open ROM file for reading");
-                env->ReleaseStringUTFChars(romPath, romPathStr);
-                env->ReleaseStringUTFChars(outputPath, outputPathStr);
-                env->ReleaseStringUTFChars(configPath, configPathStr);
-                return env->NewStringUTF("Cannot open ROM file");
-            }
-            romFile.seekg(0, std::ios::end);
-            size_t fileSize = romFile.tellg();
-            romFile.seekg(0, std::ios::beg);
-            romData.resize(fileSize);
-            romFile.read(reinterpret_cast<char*>(romData.data()), fileSize);
-            romFile.close();
-            LOGI("ROM data loaded successfully: %zu bytes", romData.size());
-            if (romData.size() >= 16) {
-                LOGI("ROM data first 16 bytes: %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X",
-                     romData[0], romData[1], romData[2], romData[3], romData[4], romData[5], romData[6], romData[7],
-                     romData[8], romData[9], romData[10], romData[11], romData[12], romData[13], romData[14], romData[15]);
-            }
-        } catch (const std::exception& e) {
-            LOGE("Exception loading ROM data for logging: %s", e.what());
+
+        void* progressBuffer = progress != nullptr ? env->GetDirectBufferAddress(progress) : nullptr;
+        if (progressBuffer != nullptr && env->GetDirectBufferCapacity(progress) < kProgressBufferSize) {
+            LOGE("Progress buffer is too small, progress will not be reported");
+            progressBuffer = nullptr;
         }
 
-        // Create Companion with absolute ROM path and proper directories
-        Companion* companion = nullptr;
-        try {
-            LOGI("Using vector constructor since filesystem path failed");
-            companion = new Companion(romData, ArchiveType::O2R, false, false, configDir, outputDirectory);
-            
-            LOGI("Companion constructor completed");
-            
-            // Check ROM hash immediately after construction
-            if (companion != nullptr) {
-                try {
-                    auto& companionRomData = companion->GetRomData();
-                    std::string companionHash = Companion::CalculateHash(companionRomData);
-                    LOGI("ROM hash from Companion: %s", companionHash.c_str());
-                    LOGI("ROM data size from Companion: %zu bytes", companionRomData.size());
-                    
-                    // Compare with our manually loaded ROM data
-                    std::string manualHash = Companion::CalculateHash(romData);
-                    LOGI("ROM hash from manual load: %s", manualHash.c_str());
-                    LOGI("ROM data size from manual load: %zu bytes", romData.size());
-                    
-                    if (companionHash == manualHash) {
-                        LOGI("✓ ROM hashes match - data is consistent");
-                    } else {
-                        LOGE("✗ ROM hashes DON'T match - Companion has different data!");
-                        LOGE("This suggests Companion is reading from a different file or getting corrupted data");
-                        
-                        // Compare first few bytes
-                        if (companionRomData.size() >= 16 && romData.size() >= 16) {
-                            LOGI("Companion ROM first 16 bytes: %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X",
-                                 companionRomData[0], companionRomData[1], companionRomData[2], companionRomData[3],
-                                 companionRomData[4], companionRomData[5], companionRomData[6], companionRomData[7],
-                                 companionRomData[8], companionRomData[9], companionRomData[10], companionRomData[11],
-                                 companionRomData[12], companionRomData[13], companionRomData[14], companionRomData[15]);
-                            
-                            LOGI("Manual ROM first 16 bytes:    %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X",
-                                 romData[0], romData[1], romData[2], romData[3],
-                                 romData[4], romData[5], romData[6], romData[7],
-                                 romData[8], romData[9], romData[10], romData[11],
-                                 romData[12], romData[13], romData[14], romData[15]);
-                        }
-                    }
-                    
-                } catch (const std::exception& e) {
-                    LOGE("Exception checking ROM hash: %s", e.what());
-                }
-            }
+        ArchivePacker packer(*wrapper);
+        packer.SetCancelFlag(&sCancelRequested);
+        packer.Progress().SetListener(progressBuffer != nullptr ? MakeProgressWriter(progressBuffer) : nullptr);
+        const size_t count = packer.Pack(folderPathStr.str());
 
-            if (companion == nullptr) {
-                LOGE("Failed to create Companion instance");
-                env->ReleaseStringUTFChars(romPath, romPathStr);
-                env->ReleaseStringUTFChars(outputPath, outputPathStr);
-                env->ReleaseStringUTFChars(configPath, configPathStr);
-                return env->NewStringUTF("Failed to create Companion instance");
-            }
+        LOGI("Packed %zu files into %s", count, outputPathStr.c_str());
+        return env->NewStringUTF("success");
+    } catch (const std::exception& e) {
+        LOGE("Exception while packing: %s", e.what());
+        return env->NewStringUTF(sCancelRequested ? "cancelled" : e.what());
+    } catch (...) {
+        LOGE("Unknown exception while packing");
+        return env->NewStringUTF("Unknown error occurred");
+    }
+}
 
-            // Set singleton (if used downstream)
-            Companion::Instance = companion;
-
-            // Initialize (this calls Companion::Process() internally)
-            updateProgress("Processing ROM with Torch...");
-            LOGI("About to try Torch processing...");
-            LOGI("Trying Process() first, then Init() as fallback...");
-            
-            try {
-                // Use our new method to register factories only, then call Process separately
-                LOGI("Calling companion->InitFactoriesOnly() to register factories...");
-                companion->InitFactoriesOnly(ExportType::Binary);
-                LOGI("Factories registered successfully");
-                
-                // Check if cartridge is created properly before calling Process
-                auto cartridge = companion->GetCartridge();
-                LOGI("Cartridge before Process(): %p", cartridge);
-                if (cartridge != nullptr) {
-                    LOGI("Cartridge hash: %s", cartridge->GetHash().c_str());
-                    LOGI("Cartridge title: %s", cartridge->GetGameTitle().c_str());
-                } else {
-                    LOGI("Cartridge is null - this is expected before Process()");
-                }
-                
-                LOGI("Now calling companion->Process() to convert ROM...");
-                if (isCompressed) {
-                    updateProgress("Decompressing ROM - this may take a couple of minutes...");
-                    LOGI("⏳ Starting ROM decompression - this is the slow part...");
-                } else {
-                    updateProgress("Processing ROM assets...");
-                }
-                
-                // Set a longer timeout for the process
-                companion->Process();
-                LOGI("*** SUCCESS: Companion Process completed! ***");
-                
-                // Check if cartridge was created during Process
-                cartridge = companion->GetCartridge();
-                LOGI("Cartridge after Process(): %p", cartridge);
-                if (cartridge != nullptr) {
-                    LOGI("Final cartridge hash: %s", cartridge->GetHash().c_str());
-                    LOGI("Final cartridge title: %s", cartridge->GetGameTitle().c_str());
-                }
-                
-            } catch (const std::exception& e) {
-                LOGE("Exception during Torch processing: %s", e.what());
-                env->ReleaseStringUTFChars(romPath, romPathStr);
-                env->ReleaseStringUTFChars(outputPath, outputPathStr);
-                env->ReleaseStringUTFChars(configPath, configPathStr);
-                return env->NewStringUTF(e.what());
-            } catch (...) {
-                LOGE("Unknown exception during Torch processing");
-                env->ReleaseStringUTFChars(romPath, romPathStr);
-                env->ReleaseStringUTFChars(outputPath, outputPathStr);
-                env->ReleaseStringUTFChars(configPath, configPathStr);
-                return env->NewStringUTF("Unknown exception during Torch processing");
-            }
+// Returns a handle for convertStagedRom and destroySession, throws a RuntimeException when the config can not be used
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_torch_converter_ConversionService_createSession(JNIEnv *env, jclass clazz, jstring configPath, jstring cacheDir) {
+    JniString configPathStr(env, configPath);
+    JniString cacheDirStr(env, cacheDir);
 
-            // Verify cartridge after Init
-            auto cartridge = companion->GetCartridge();
-            LOGI("Post-Init GetCartridge() returned: %p", cartridge);
-            if (cartridge == nullptr) {
-                LOGE("Cartridge is null after Init. Ensure ROM is supported and config has an entry for its SHA1.");
-            }
+    try {
+        return AddHandle(CreateSession(configPathStr.str(), cacheDirStr.str()).release());
+    } catch (const std::exception& e) {
+        LOGE("Failed to create session: %s", e.what());
+        env->ThrowNew(env->FindClass("java/lang/RuntimeException"), e.what());
+        return 0;
+    }
+}
 
-            updateProgress("Generating O2R file...");
+extern "C" JNIEXPORT void JNICALL
+Java_com_torch_converter_ConversionService_destroySession(JNIEnv *env, jclass clazz, jlong session) {
+    if (!RemoveHandle(session)) {
+        ThrowInvalidHandle(env, "session", session);
+        return;
+    }
+    delete reinterpret_cast<EngineSession*>(session);
+}
 
-            // Check if torch.hash.yml was created
-            std::string hashFile = configDir + "/torch.hash.yml";
-            if (std::filesystem::exists(hashFile)) {
-                LOGI("torch.hash.yml was created successfully");
-            } else {
-                LOGI("torch.hash.yml was not created (this might be normal)");
-            }
+// A rom read into memory ahead of its conversion, so a batch can load the next rom while the current one converts
+struct StagedRom {
+    std::vector<uint8_t> data;
+    std::string hash;
+};
 
-            // Check output file
-            if (std::filesystem::exists(outputPathStr)) {
-                auto outSize = std::filesystem::file_size(outputPathStr);
-                LOGI("O2R file created successfully: %s (size: %zu bytes)", outputPathStr, outSize);
-            } else {
-                LOGE("O2R file was not created at: %s", outputPathStr);
-                delete companion;
-                Companion::Instance = nullptr;
-                env->ReleaseStringUTFChars(romPath, romPathStr);
-                env->ReleaseStringUTFChars(outputPath, outputPathStr);
-                env->ReleaseStringUTFChars(configPath, configPathStr);
-                return env->NewStringUTF("O2R file was not created");
-            }
+// Takes ownership of romFd, romHash is computed when empty. Returns a handle for convertStagedRom or releaseStagedRom
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_torch_converter_ConversionService_stageRom(JNIEnv *env, jclass clazz, jint romFd, jstring romHash) {
+    JniString romHashStr(env, romHash);
 
-        } catch (const std::exception& e) {
-            LOGE("Exception during Torch processing: %s", e.what());
-            if (companion) {
-                delete companion;
-                Companion::Instance = nullptr;
-            }
-            env->ReleaseStringUTFChars(romPath, romPathStr);
-            env->ReleaseStringUTFChars(outputPath, outputPathStr);
-            env->ReleaseStringUTFChars(configPath, configPathStr);
-            return env->NewStringUTF(e.what());
-        }
+    try {
+        auto staged = std::make_unique<StagedRom>();
+        staged->data = ReadRomDescriptor(romFd);
+        staged->hash = romHashStr.str().empty() ? Companion::CalculateHash(staged->data) : romHashStr.str();
+        LOGI("Staged ROM %s (%zu bytes)", staged->hash.c_str(), staged->data.size());
+        return AddHandle(staged.release());
+    } catch (const std::exception& e) {
+        LOGE("Failed to stage ROM: %s", e.what());
+        env->ThrowNew(env->FindClass("java/io/IOException"), e.what());
+        return 0;
+    }
+}
 
-        LOGI("Torch processing completed successfully");
-        LOGI("ROM conversion completed successfully");
+extern "C" JNIEXPORT void JNICALL
+Java_com_torch_converter_ConversionService_releaseStagedRom(JNIEnv *env, jclass clazz, jlong staged) {
+    if (!RemoveHandle(staged)) {
+        ThrowInvalidHandle(env, "staged rom", staged);
+        return;
+    }
+    delete reinterpret_cast<StagedRom*>(staged);
+}
 
-        // Clean up
-        delete companion;
-        Companion::Instance = nullptr;
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_torch_converter_ConversionService_convertStagedRom(JNIEnv *env, jobject thiz, jlong session, jlong staged,
+                                                             jstring outputPath, jint outputFd, jobject progress,
+                                                             jint jobs, jlong cacheBudget, jstring compression) {
+    if (!RemoveHandle(staged)) {
+        ThrowInvalidHandle(env, "staged rom", staged);
+        return nullptr;
+    }
 
-        env->ReleaseStringUTFChars(romPath, romPathStr);
-        env->ReleaseStringUTFChars(outputPath, outputPathStr);
-        env->ReleaseStringUTFChars(configPath, configPathStr);
-        return env->NewStringUTF("success");
-        
+    // Owned from here on, the rom is freed even when the session turns out to be invalid
+    std::unique_ptr<StagedRom> rom(reinterpret_cast<StagedRom*>(staged));
+    if (!HasHandle(session)) {
+        ThrowInvalidHandle(env, "session", session);
+        return nullptr;
+    }
+
+    JniString outputPathStr(env, outputPath);
+    JniString compressionStr(env, compression);
+
+    LOGI("Starting conversion of staged ROM %s -> %s", rom->hash.c_str(), outputPathStr.c_str());
+
+    try {
+        void* progressBuffer = progress != nullptr ? env->GetDirectBufferAddress(progress) : nullptr;
+        if (progressBuffer != nullptr && env->GetDirectBufferCapacity(progress) < kProgressBufferSize) {
+            LOGE("Progress buffer is too small, progress will not be reported");
+            progressBuffer = nullptr;
+        }
+
+        return ConvertRom(env, thiz, *reinterpret_cast<EngineSession*>(session), std::move(rom->data), rom->hash,
+                          outputPathStr.str(), outputFd, progressBuffer, static_cast<size_t>(std::max(jobs, 0)),
+                          static_cast<size_t>(std::max<jlong>(cacheBudget, 0)), compressionStr.str());
     } catch (const std::exception& e) {
         LOGE("Exception during conversion: %s", e.what());
-        env->ReleaseStringUTFChars(romPath, romPathStr);
-        env->ReleaseStringUTFChars(outputPath, outputPathStr);
-        env->ReleaseStringUTFChars(configPath, configPathStr);
         return env->NewStringUTF(e.what());
     } catch (...) {
         LOGE("Unknown exception during conversion");
-        env->ReleaseStringUTFChars(romPath, romPathStr);
-        env->ReleaseStringUTFChars(outputPath, outputPathStr);
-        env->ReleaseStringUTFChars(configPath, configPathStr);
         return env->NewStringUTF("Unknown error occurred");
     }
-}
\ No newline at end of file
+}
+
+// JSON timings of the last conversion on the session, null before the first one. See PerfReport::ToJson
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_torch_converter_ConversionService_lastReport(JNIEnv *env, jclass clazz, jlong session) {
+    if (!HasHandle(session)) {
+        ThrowInvalidHandle(env, "session", session);
+        return nullptr;
+    }
+
+    const auto& report = reinterpret_cast<EngineSession*>(session)->report;
+    return report.empty() ? nullptr : env->NewStringUTF(report.c_str());
+}
+
+// Set to stop the running conversion between two assets, it then returns "cancelled". Cleared before each run
+extern "C" JNIEXPORT void JNICALL
+Java_com_torch_converter_ConversionService_setConversionCancelled(JNIEnv *env, jclass clazz, jboolean cancelled) {
+    sCancelRequested = cancelled == JNI_TRUE;
+}
+
+// Caps the files processed at once by the running and the following conversions, 0 removes the cap
+extern "C" JNIEXPORT void JNICALL
+Java_com_torch_converter_ConversionService_limitConversionJobs(JNIEnv *env, jclass clazz, jint jobs) {
+    std::lock_guard<std::mutex> lock(sActiveMutex);
+    sJobLimit = static_cast<size_t>(std::max(jobs, 0));
+
+    if (sActiveCompanion != nullptr) {
+        sActiveCompanion->LimitJobs(sJobLimit);
+    }
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_torch_converter_MainActivity_hashRomFd(JNIEnv *env, jobject thiz, jint romFd) {
+    try {
+        return env->NewStringUTF(HashRomDescriptor(romFd).c_str());
+    } catch (const std::exception& e) {
+        LOGE("Failed to hash ROM: %s", e.what());
+        return nullptr;
+    }
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_torch_converter_MainActivity_identifyRom(JNIEnv *env, jobject thiz, jobject assetManager, jobjectArray configs,
+                                                   jstring romHash) {
+    JniString romHashStr(env, romHash);
+    AAssetManager* manager = AAssetManager_fromJava(env, assetManager);
+
+    for (jsize i = 0; i < env->GetArrayLength(configs); i++) {
+        auto configName = static_cast<jstring>(env->GetObjectArrayElement(configs, i));
+        JniString configStr(env, configName);
+
+        // Read from the apk so the rom can be identified before the config has been synced
+        const std::string assetPath = configStr.str() + "/config.yml";
+        AAsset* asset = AAssetManager_open(manager, assetPath.c_str(), AASSET_MODE_BUFFER);
+        if (asset == nullptr) {
+            LOGE("Bundled config not found: %s", assetPath.c_str());
+            continue;
+        }
+
+        std::optional<RomInfo> info;
+        try {
+            const std::string yaml(static_cast<const char*>(AAsset_getBuffer(asset)), AAsset_getLength(asset));
+            info = RomIndex(YAML::Load(yaml)).Find(romHashStr.str());
+        } catch (const std::exception& e) {
+            LOGE("Failed to read %s: %s", assetPath.c_str(), e.what());
+        }
+        AAsset_close(asset);
+
+        if (info.has_value()) {
+            jobjectArray result = env->NewObjectArray(2, env->FindClass("java/lang/String"), nullptr);
+            env->SetObjectArrayElement(result, 0, configName);
+            jstring name = env->NewStringUTF(info->name.c_str());
+            env->SetObjectArrayElement(result, 1, name);
+            env->DeleteLocalRef(name);
+            return result;
+        }
+    }
+
+    LOGI("No bundled config lists ROM %s", romHashStr.c_str());
+    return nullptr;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_torch_converter_MainActivity_getRomCacheSize(JNIEnv *env, jobject thiz, jstring cacheDir) {
+    JniString cacheDirStr(env, cacheDir);
+    return static_cast<jlong>(RomCache(cacheDirStr.str()).GetSize());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_torch_converter_MainActivity_clearRomCache(JNIEnv *env, jobject thiz, jstring cacheDir) {
+    JniString cacheDirStr(env, cacheDir);
+    RomCache(cacheDirStr.str()).Clear();
+    LOGI("Cleared ROM cache at %s", cacheDirStr.c_str());
+}
@@ -0,0 +1,180 @@
+package com.torch.converter;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import androidx.core.content.pm.PackageInfoCompat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mirrors a bundled config (starship or spaghetti) from the APK into a directory Torch can read.
+ * The build writes an asset_manifest.txt with the SHA-1 of every file, only files whose hash changed since the
+ * last sync are copied. When the app version and config match the last sync nothing is touched at all.
+ */
+final class BundledAssetSync {
+    private static final String TAG = "TorchConverter";
+    private static final String MANIFEST = "asset_manifest.txt";
+    private static final String STATE = ".torch_asset_sync";
+
+    private BundledAssetSync() {}
+
+    // Each config is synced into its own directory so a batch can use both, returns that directory.
+    // Synchronized as the activity and a running batch can sync the same config at once
+    static synchronized File syncConfig(Context context, String config) throws IOException {
+        File root = context.getExternalFilesDir(null);
+
+        // Older versions synced the selected config straight into the root, archives saved there are kept
+        if (new File(root, STATE).isFile()) {
+            for (String name : new String[] { "config.yml", "assets", "yamls", "include", "torch.hash.yml",
+                    "torch.manifest.bin", STATE }) {
+                FileCopy.deleteRecursively(new File(root, name));
+            }
+        }
+
+        File destDir = new File(root, config);
+        if (!destDir.isDirectory() && !destDir.mkdirs()) {
+            throw new IOException("Cannot create " + destDir);
+        }
+
+        sync(context, config, destDir);
+        return destDir;
+    }
+
+    // Returns the number of files copied, 0 when the directory was already up to date
+    static int sync(Context context, String config, File destDir) throws IOException {
+        File stateFile = new File(destDir, STATE);
+        String key = config + ":" + getVersionKey(context);
+
+        Map<String, String> previous = new LinkedHashMap<>();
+        String previousKey = readState(stateFile, previous);
+
+        if (key.equals(previousKey)) {
+            Log.i(TAG, "Bundled " + config + " assets are up to date");
+            return 0;
+        }
+
+        if (previousKey == null) {
+            // Left by versions that copied the whole tree without keeping track of it
+            for (String name : new String[] { "config.yml", "assets", "yamls", "include" }) {
+                FileCopy.deleteRecursively(new File(destDir, name));
+            }
+        }
+
+        Map<String, String> current = readManifest(context, config);
+        int copied = 0;
+
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            File destFile = new File(destDir, entry.getKey());
+
+            if (entry.getValue().equals(previous.get(entry.getKey())) && destFile.isFile()) {
+                continue;
+            }
+
+            copyAsset(context, config + "/" + entry.getKey(), destFile);
+            copied++;
+        }
+
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path)) {
+                new File(destDir, path).delete();
+            }
+        }
+
+        writeState(stateFile, key, current);
+        Log.i(TAG, "Synced bundled " + config + " assets, " + copied + " of " + current.size() + " files copied");
+        return copied;
+    }
+
+    private static String getVersionKey(Context context) throws IOException {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            // lastUpdateTime also catches reinstalls of development builds that keep the same version code
+            return PackageInfoCompat.getLongVersionCode(info) + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("Cannot read package info", e);
+        }
+    }
+
+    private static Map<String, String> readManifest(Context context, String config) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                context.getAssets().open(config + "/" + MANIFEST), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.indexOf(' ');
+                if (split > 0) {
+                    entries.put(line.substring(split + 1), line.substring(0, split));
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    // State file: the sync key on the first line, then one "<sha1> <path>" line per synced file
+    private static String readState(File stateFile, Map<String, String> entries) {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(stateFile))) {
+            String key = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.indexOf(' ');
+                if (split > 0) {
+                    entries.put(line.substring(split + 1), line.substring(0, split));
+                }
+            }
+            return key;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable asset sync state", e);
+            entries.clear();
+            return null;
+        }
+    }
+
+    private static void writeState(File stateFile, String key, Map<String, String> entries) throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            writer.write(key);
+            writer.newLine();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.write(entry.getValue() + " " + entry.getKey());
+                writer.newLine();
+            }
+        }
+
+        if (!temp.renameTo(stateFile)) {
+            throw new IOException("Cannot write " + stateFile);
+        }
+    }
+
+    private static void copyAsset(Context context, String assetPath, File destFile) throws IOException {
+        File parent = destFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+
+        try (InputStream inputStream = context.getAssets().open(assetPath);
+             FileOutputStream outputStream = new FileOutputStream(destFile)) {
+            FileCopy.copy(inputStream, outputStream, FileCopy.ASSET_BUFFER_SIZE);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.torch.converter;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One ROM of a conversion batch with the bundled config (starship or spaghetti) it is converted with.
+ */
+final class ConversionJob {
+    final Uri romUri;
+    // SHA-1 of the ROM, empty when it has not been hashed yet
+    final String romHash;
+    final String config;
+    // Name listed for the ROM in config.yml, or the file name when the ROM was not identified
+    final String romName;
+    String outputName;
+
+    ConversionJob(Uri romUri, String romHash, String config, String romName) {
+        this.romUri = romUri;
+        this.romHash = romHash != null ? romHash : "";
+        this.config = config;
+        this.romName = romName;
+        this.outputName = baseName(config) + ".o2r";
+    }
+
+    String configName() {
+        return config.equals("starship") ? "Starship" : "Spaghetti Kart";
+    }
+
+    static String baseName(String config) {
+        return config.equals("starship") ? "sf64" : "mk64";
+    }
+
+    // Jobs sharing a config get the region and version of their ROM in the name, e.g. sf64-jp-v1.0.o2r,
+    // a lone job keeps the name the ports look for
+    static void assignOutputNames(List<ConversionJob> jobs) {
+        Map<String, Integer> perConfig = new HashMap<>();
+        for (ConversionJob job : jobs) {
+            Integer count = perConfig.get(job.config);
+            perConfig.put(job.config, count == null ? 1 : count + 1);
+        }
+
+        List<String> taken = new ArrayList<>();
+        for (ConversionJob job : jobs) {
+            String base = baseName(job.config);
+            if (perConfig.get(job.config) > 1) {
+                String tags = romTags(job.romName);
+                if (!tags.isEmpty()) {
+                    base += "-" + tags;
+                }
+            }
+
+            String name = base + ".o2r";
+            for (int i = 2; taken.contains(name); i++) {
+                name = base + "-" + i + ".o2r";
+            }
+            taken.add(name);
+            job.outputName = name;
+        }
+    }
+
+    // "Star Fox 64 (JP) (V1.0) (Compressed)" -> "jp-v1.0"
+    private static String romTags(String romName) {
+        StringBuilder tags = new StringBuilder();
+        int start = -1;
+
+        for (int i = 0; romName != null && i < romName.length(); i++) {
+            char c = romName.charAt(i);
+            if (c == '(' || c == '[') {
+                start = i + 1;
+            } else if ((c == ')' || c == ']') && start >= 0) {
+                String tag = romName.substring(start, i).trim().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9.]+", "-");
+                if (!tag.isEmpty() && !tag.equals("compressed")) {
+                    tags.append(tags.length() > 0 ? "-" : "").append(tag);
+                }
+                start = -1;
+            }
+        }
+
+        return tags.toString();
+    }
+}
@@ -0,0 +1,1023 @@
+package com.torch.converter;
+
+import android.app.ActivityManager;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+import androidx.documentfile.provider.DocumentFile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs conversions in a foreground service, so they keep going while the app is in the background and outlive the
+ * activity that started them. A batch of jobs runs at a time, the activity follows it through a Listener.
+ * Extraction runs one job at a time on its own thread, the I/O around it (config sync, reading the ROM, creating and
+ * copying the output) runs on a second thread so the next job is staged while the current one extracts.
+ * Packing a folder into an O2R runs here too, in place of a batch, so it shares the progress buffer and cancellation.
+ */
+public class ConversionService extends Service {
+    private static final String TAG = "TorchConversion";
+    private static final String CHANNEL_ID = "conversion";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int RESULT_NOTIFICATION_ID = 2;
+
+    private static final String ACTION_CANCEL = "com.torch.converter.action.CANCEL_CONVERSION";
+    private static final String EXTRA_CACHE_DIR = "cache_dir";
+    private static final String EXTRA_OUTPUT_URI = "output_uri";
+    private static final String EXTRA_PACK_TREE = "pack_tree";
+
+    // Appended to archives while they are written into the selected folder
+    static final String PARTIAL_SUFFIX = ".part";
+
+    // Decompressed chunks kept by native, low RAM devices get a third of it
+    private static final long CACHE_BUDGET = 96L * 1024 * 1024;
+    private static final long LOW_RAM_CACHE_BUDGET = 32L * 1024 * 1024;
+    private static final int LOW_RAM_JOBS = 2;
+
+    // Applied over the compression node of config.yml while battery saver is on, see CompressionPolicy in native
+    private static final String POWER_SAVE_COMPRESSION = "{default: fast, min_gain: 5}";
+
+    // Native writes the counters of the running conversion here from its worker threads, see MainActivity.showProgress
+    // Layout: phase, files done, files total as int at 0/4/8, assets at 16 and bytes at 24 as long
+    static final ByteBuffer PROGRESS = ByteBuffer.allocateDirect(32).order(ByteOrder.nativeOrder());
+
+    // Position of the job PROGRESS is counting in the running batch, written by the extraction thread
+    static volatile int batchIndex;
+    static volatile int batchSize;
+    static volatile String batchRomName;
+
+    static final class Result {
+        final boolean success;
+        final boolean cancelled;
+        final String message;
+        final String fileName;
+        final String configName;
+        final String romName;
+        final long size;
+        final String savedTo;
+        final boolean copyFailed;
+        // Timings native recorded for the job, set once the report has been saved
+        String reportFile;
+        String perfSummary;
+
+        Result(ConversionJob job, boolean success, boolean cancelled, String message, long size, String savedTo,
+               boolean copyFailed) {
+            this.success = success;
+            this.cancelled = cancelled;
+            this.message = message;
+            this.fileName = job.outputName;
+            this.configName = job.configName();
+            this.romName = job.romName;
+            this.size = size;
+            this.savedTo = savedTo;
+            this.copyFailed = copyFailed;
+        }
+    }
+
+    // Outcome of a whole batch, results are in the order the jobs ran
+    static final class Report {
+        final List<Result> results;
+        final boolean cancelled;
+
+        Report(List<Result> results, boolean cancelled) {
+            this.results = results;
+            this.cancelled = cancelled;
+        }
+
+        int succeeded() {
+            int count = 0;
+            for (Result result : results) {
+                if (result.success) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    // Outcome of packing a folder
+    static final class PackResult {
+        final boolean success;
+        final boolean cancelled;
+        final String message;
+        final String fileName;
+        final long size;
+        final String savedTo;
+
+        PackResult(String fileName, boolean success, boolean cancelled, String message, long size, String savedTo) {
+            this.success = success;
+            this.cancelled = cancelled;
+            this.message = message;
+            this.fileName = fileName;
+            this.size = size;
+            this.savedTo = savedTo;
+        }
+    }
+
+    interface Listener {
+        void onConversionMessage(String message);
+        void onConversionFinished(Report report);
+        void onPackFinished(PackResult result);
+    }
+
+    // Everything a job needs before extraction, prepared on the I/O thread
+    private static final class StagedJob {
+        final ConversionJob job;
+        final File outputFile;
+        String configDir;
+        DocumentFile outputDocument;
+        ParcelFileDescriptor outputDescriptor;
+        // Native handle from stageRom, 0 once handed to convertStagedRom
+        long rom;
+        Exception error;
+        // JSON from lastReport, null when the conversion never started
+        String report;
+
+        StagedJob(ConversionJob job, File outputFile) {
+            this.job = job;
+            this.outputFile = outputFile;
+        }
+    }
+
+    // Only touched on the main thread
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static Listener listener;
+    private static Report pendingResult;
+    private static PackResult pendingPack;
+    // Handed from start to the service, the service runs in the same process
+    private static List<ConversionJob> queuedJobs;
+    private static boolean running;
+    // Set with running while the work is a pack rather than a batch of conversions
+    private static boolean packing;
+    private static volatile boolean cancelRequested;
+
+    // Native engine kept between conversions of the same config, only touched under sessionLock
+    private static final Object sessionLock = new Object();
+    private static long session;
+    private static String sessionConfigDir;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+    private Object thermalListener;
+    private boolean lowRam;
+
+    static {
+        System.loadLibrary("torch");
+    }
+
+    // Loads the config and registers the factories once, throws a RuntimeException when the config can not be used
+    // The handle taking natives throw an IllegalArgumentException for a handle that is 0 or already released
+    static native long createSession(String configPath, String cacheDir);
+    static native void destroySession(long session);
+    // Reads the ROM into native memory and hashes it when romHash is empty, takes ownership of romFd
+    static native long stageRom(int romFd, String romHash) throws IOException;
+    static native void releaseStagedRom(long rom);
+    // Takes ownership of rom, outputFd stays owned by the caller. progress must be laid out as PROGRESS
+    // jobs is the number of files processed at once, 0 uses every big core
+    // compression is yaml applied over the compression node of config.yml, null keeps config.yml as is
+    private native String convertStagedRom(long session, long rom, String outputPath, int outputFd, ByteBuffer progress,
+                                           int jobs, long cacheBudget, String compression);
+    private static native void setConversionCancelled(boolean cancelled);
+    // Packs every file below folderPath, outputFd stays owned by the caller and -1 writes to outputPath instead
+    // progress must be laid out as PROGRESS. Returns "success", "cancelled" or the error
+    private native String packFolder(String folderPath, String outputPath, int outputFd, boolean otr, ByteBuffer progress);
+    // Caps the files processed at once by the running conversion, 0 removes the cap
+    private static native void limitConversionJobs(int jobs);
+    // Timings of the last conversion on the session as JSON, null before the first one
+    private static native String lastReport(long session);
+
+    // Converts every job into outputUri, or the app directory when it is null
+    static void start(Context context, List<ConversionJob> jobs, String cacheDir, Uri outputUri) {
+        if (running || jobs.isEmpty()) {
+            return;
+        }
+        running = true;
+        packing = false;
+        pendingResult = null;
+        pendingPack = null;
+        queuedJobs = new ArrayList<>(jobs);
+        cancelRequested = false;
+        setConversionCancelled(false);
+
+        batchIndex = 0;
+        batchSize = jobs.size();
+        batchRomName = jobs.get(0).romName;
+        clearProgress();
+
+        Intent intent = new Intent(context, ConversionService.class)
+            .putExtra(EXTRA_CACHE_DIR, cacheDir)
+            .putExtra(EXTRA_OUTPUT_URI, outputUri);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    // Packs the folder behind treeUri into <folder>.o2r in outputUri, or the app directory when it is null
+    static void startPack(Context context, Uri treeUri, String name, Uri outputUri) {
+        if (running) {
+            return;
+        }
+        running = true;
+        packing = true;
+        pendingResult = null;
+        pendingPack = null;
+        cancelRequested = false;
+        setConversionCancelled(false);
+
+        batchIndex = 0;
+        batchSize = 1;
+        batchRomName = name;
+        clearProgress();
+
+        Intent intent = new Intent(context, ConversionService.class)
+            .putExtra(EXTRA_PACK_TREE, treeUri)
+            .putExtra(EXTRA_OUTPUT_URI, outputUri);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    static void clearProgress() {
+        for (int i = 0; i < PROGRESS.capacity(); i++) {
+            PROGRESS.put(i, (byte) 0);
+        }
+    }
+
+    // The running job stops between two assets, the jobs after it are not started
+    static void cancel() {
+        if (running) {
+            cancelRequested = true;
+            setConversionCancelled(true);
+        }
+    }
+
+    static boolean isRunning() {
+        return running;
+    }
+
+    static boolean isPacking() {
+        return running && packing;
+    }
+
+    // Frees the parsed config kept for the next conversion, the next one loads it again. Does nothing while converting
+    static void releaseSession() {
+        synchronized (sessionLock) {
+            if (running || session == 0) {
+                return;
+            }
+            destroySession(session);
+            session = 0;
+            sessionConfigDir = null;
+        }
+    }
+
+    // Called on the conversion thread, a different config replaces the session of the previous one
+    private static long obtainSession(String configDir, String cacheDir) {
+        synchronized (sessionLock) {
+            if (session != 0 && !configDir.equals(sessionConfigDir)) {
+                destroySession(session);
+                session = 0;
+                sessionConfigDir = null;
+            }
+            if (session == 0) {
+                session = createSession(configDir, cacheDir);
+                sessionConfigDir = configDir;
+            }
+            return session;
+        }
+    }
+
+    // Main thread only. A batch that finished while nobody was listening is handed to the next listener
+    static void setListener(Listener newListener) {
+        listener = newListener;
+        if (listener != null && pendingResult != null) {
+            Report result = pendingResult;
+            pendingResult = null;
+            listener.onConversionFinished(result);
+        }
+        if (listener != null && pendingPack != null) {
+            PackResult result = pendingPack;
+            pendingPack = null;
+            listener.onPackFinished(result);
+        }
+    }
+
+    // Called from native code with coarse status messages before the conversion starts reporting through PROGRESS
+    public void updateProgress(String message) {
+        Log.i(TAG, "Progress: " + message);
+        mainHandler.post(() -> {
+            if (listener != null) {
+                listener.onConversionMessage(message);
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+            cancel();
+            return START_NOT_STICKY;
+        }
+
+        startInForeground();
+
+        Uri packTree = intent != null ? intent.getParcelableExtra(EXTRA_PACK_TREE) : null;
+        if (packTree != null) {
+            Uri outputUri = intent.getParcelableExtra(EXTRA_OUTPUT_URI);
+            String name = batchRomName;
+            executor.execute(() -> {
+                PackResult result;
+                try {
+                    result = pack(packTree, name, outputUri);
+                } catch (RuntimeException | Error e) {
+                    // Whatever went wrong, finishPack has to run or the app never leaves the packing state
+                    Log.e(TAG, "Packing " + name + " failed", e);
+                    result = new PackResult(name + ".o2r", false, false, String.valueOf(e), 0, null);
+                }
+                PackResult finished = result;
+                mainHandler.post(() -> finishPack(finished));
+            });
+            return START_NOT_STICKY;
+        }
+
+        List<ConversionJob> jobs = queuedJobs;
+        queuedJobs = null;
+        if (intent == null || jobs == null) {
+            // Restarted after the process died, the batch it was running is gone
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        lowRam = activityManager != null && activityManager.isLowRamDevice();
+        watchThermalStatus();
+
+        String cacheDir = intent.getStringExtra(EXTRA_CACHE_DIR);
+        Uri outputUri = intent.getParcelableExtra(EXTRA_OUTPUT_URI);
+        executor.execute(() -> {
+            Report report = runBatch(jobs, cacheDir, outputUri);
+            mainHandler.post(() -> finish(report));
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unwatchThermalStatus();
+        executor.shutdown();
+        ioExecutor.shutdown();
+    }
+
+    private void startInForeground() {
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "Conversion", NotificationManager.IMPORTANCE_LOW));
+        }
+
+        NotificationCompat.Builder builder = progressNotification("Converting ROM to O2R");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, builder.build(), ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, builder.build());
+        }
+    }
+
+    private NotificationCompat.Builder progressNotification(String title) {
+        PendingIntent cancelIntent = PendingIntent.getService(this, 0,
+            new Intent(this, ConversionService.class).setAction(ACTION_CANCEL), PendingIntent.FLAG_IMMUTABLE);
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(R.mipmap.ic_launcher)
+            .setContentTitle(title)
+            .setOngoing(true)
+            .setProgress(0, 0, true)
+            .setContentIntent(openAppIntent())
+            .addAction(0, "Cancel", cancelIntent);
+    }
+
+    private PendingIntent openAppIntent() {
+        Intent intent = new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        return PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private void finish(Report report) {
+        running = false;
+        stopForeground(true);
+
+        if (listener != null) {
+            listener.onConversionFinished(report);
+        } else {
+            // Nobody is looking, keep the report for the activity and tell the user through a notification
+            pendingResult = report;
+            String title;
+            String text;
+            if (report.results.size() == 1) {
+                Result result = report.results.get(0);
+                title = result.success ? result.fileName + " created" : "Conversion did not finish";
+                text = result.success ? "Saved to " + result.savedTo : result.message;
+            } else {
+                title = report.succeeded() + " of " + report.results.size() + " ROMs converted";
+                text = report.cancelled ? "Batch cancelled" : "Open Torch for details";
+            }
+
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.notify(RESULT_NOTIFICATION_ID, new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setContentIntent(openAppIntent())
+                .setAutoCancel(true)
+                .build());
+        }
+
+        stopSelf();
+    }
+
+    private void finishPack(PackResult result) {
+        running = false;
+        packing = false;
+        stopForeground(true);
+
+        if (listener != null) {
+            listener.onPackFinished(result);
+        } else {
+            pendingPack = result;
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.notify(RESULT_NOTIFICATION_ID, new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(result.success ? result.fileName + " created" : "Packing did not finish")
+                .setContentText(result.success ? "Saved to " + result.savedTo : result.message)
+                .setContentIntent(openAppIntent())
+                .setAutoCancel(true)
+                .build());
+        }
+
+        stopSelf();
+    }
+
+    // Battery saver trades a slightly larger archive for less cpu time
+    private String compressionPolicy() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode() ? POWER_SAVE_COMPRESSION : null;
+    }
+
+    // Files processed at once for a thermal status, a hot device gets slower but steady work instead of being throttled
+    private int jobsForThermalStatus(int status) {
+        int jobs;
+        if (status >= PowerManager.THERMAL_STATUS_SEVERE) {
+            jobs = 1;
+        } else if (status >= PowerManager.THERMAL_STATUS_MODERATE) {
+            jobs = 2;
+        } else {
+            jobs = 0;
+        }
+
+        if (lowRam && (jobs == 0 || jobs > LOW_RAM_JOBS)) {
+            jobs = LOW_RAM_JOBS;
+        }
+        return jobs;
+    }
+
+    private void watchThermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            limitConversionJobs(lowRam ? LOW_RAM_JOBS : 0);
+            return;
+        }
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        limitConversionJobs(jobsForThermalStatus(powerManager.getCurrentThermalStatus()));
+
+        PowerManager.OnThermalStatusChangedListener thermal = status -> {
+            Log.i(TAG, "Thermal status " + status + ", limiting conversion to " + jobsForThermalStatus(status) + " jobs");
+            limitConversionJobs(jobsForThermalStatus(status));
+        };
+        powerManager.addThermalStatusListener(thermal);
+        thermalListener = thermal;
+    }
+
+    private void unwatchThermalStatus() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalListener != null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            powerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) thermalListener);
+            thermalListener = null;
+        }
+    }
+
+    private Report runBatch(List<ConversionJob> jobs, String cacheDir, Uri outputUri) {
+        List<ConversionJob> ordered = groupByConfig(jobs);
+        List<Future<Result>> results = new ArrayList<>();
+        Future<StagedJob> next = ioExecutor.submit(() -> stage(ordered.get(0), outputUri));
+
+        for (int i = 0; i < ordered.size(); i++) {
+            StagedJob staged = await(next, ordered.get(i));
+            next = null;
+
+            // Low RAM devices only ever hold one ROM, everyone else reads the next one while this one extracts
+            if (!lowRam && i + 1 < ordered.size()) {
+                ConversionJob following = ordered.get(i + 1);
+                next = ioExecutor.submit(() -> stage(following, outputUri));
+            }
+
+            batchIndex = i;
+            batchRomName = staged.job.romName;
+            clearProgress();
+            updateNotification(ordered.size() > 1 ? "Converting " + (i + 1) + " of " + ordered.size() + ": "
+                + staged.job.romName : "Converting ROM to O2R");
+
+            String result = extract(staged, cacheDir);
+            // Copying the archive out, if needed, overlaps the extraction of the next job
+            results.add(ioExecutor.submit(() -> attachReport(finishJob(staged, result, outputUri), staged)));
+
+            if (next == null && i + 1 < ordered.size()) {
+                ConversionJob following = ordered.get(i + 1);
+                next = ioExecutor.submit(() -> stage(following, outputUri));
+            }
+        }
+
+        List<Result> report = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                report.add(results.get(i).get());
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e(TAG, "Finishing " + ordered.get(i).outputName + " failed", e);
+                report.add(new Result(ordered.get(i), false, false, e.getMessage(), 0, null, false));
+            }
+        }
+        return new Report(report, cancelRequested);
+    }
+
+    // Jobs of the same config run back to back so each engine session is built once per batch
+    private static List<ConversionJob> groupByConfig(List<ConversionJob> jobs) {
+        Map<String, List<ConversionJob>> groups = new LinkedHashMap<>();
+        for (ConversionJob job : jobs) {
+            List<ConversionJob> group = groups.get(job.config);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(job.config, group);
+            }
+            group.add(job);
+        }
+
+        List<ConversionJob> ordered = new ArrayList<>();
+        for (List<ConversionJob> group : groups.values()) {
+            ordered.addAll(group);
+        }
+        return Collections.unmodifiableList(ordered);
+    }
+
+    private StagedJob await(Future<StagedJob> future, ConversionJob job) {
+        try {
+            return future.get();
+        } catch (ExecutionException | InterruptedException e) {
+            StagedJob staged = new StagedJob(job, new File(getExternalFilesDir(null), job.outputName));
+            staged.error = e;
+            return staged;
+        }
+    }
+
+    // I/O thread: syncs the config, creates the output and reads the ROM into native memory
+    private StagedJob stage(ConversionJob job, Uri outputUri) {
+        StagedJob staged = new StagedJob(job, new File(getExternalFilesDir(null), job.outputName));
+        if (cancelRequested) {
+            return staged;
+        }
+
+        try {
+            staged.configDir = BundledAssetSync.syncConfig(this, job.config).getAbsolutePath();
+
+            // Write straight into the selected folder when the provider allows it, otherwise to the app directory
+            staged.outputDocument = outputUri != null ? createOutputDocument(outputUri, job.outputName) : null;
+            staged.outputDescriptor = openSeekableDescriptor(staged.outputDocument);
+            if (staged.outputDescriptor == null && staged.outputDocument != null) {
+                staged.outputDocument.delete();
+                staged.outputDocument = null;
+            }
+
+            staged.rom = stageRom(openRomDescriptor(job.romUri), job.romHash);
+        } catch (Exception e) {
+            Log.e(TAG, "Staging " + job.outputName + " failed", e);
+            staged.error = e;
+        }
+        return staged;
+    }
+
+    // Extraction thread: returns the native result, null when the job could not be staged
+    private String extract(StagedJob staged, String cacheDir) {
+        if (cancelRequested) {
+            return "cancelled";
+        }
+        if (staged.error != null) {
+            return null;
+        }
+
+        Log.i(TAG, "ROM uri: " + staged.job.romUri);
+        Log.i(TAG, "Output: " + (staged.outputDocument != null ? staged.outputDocument.getUri() : staged.outputFile));
+        Log.i(TAG, "Config path: " + staged.configDir);
+
+        try {
+            long engine = obtainSession(staged.configDir, cacheDir);
+            int outputFd = staged.outputDescriptor != null ? staged.outputDescriptor.getFd() : -1;
+            long rom = staged.rom;
+            staged.rom = 0;
+
+            String result = convertStagedRom(engine, rom, staged.outputFile.getAbsolutePath(), outputFd, PROGRESS,
+                lowRam ? LOW_RAM_JOBS : 0, lowRam ? LOW_RAM_CACHE_BUDGET : CACHE_BUDGET, compressionPolicy());
+            staged.report = lastReport(engine);
+            Log.i(TAG, "Native conversion returned: " + result);
+            return result;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Conversion error", e);
+            staged.error = e;
+            return null;
+        }
+    }
+
+    // I/O thread: releases what the job still holds and reports where its archive ended up
+    private Result finishJob(StagedJob staged, String result, Uri outputUri) throws IOException {
+        ConversionJob job = staged.job;
+        if (staged.rom != 0) {
+            releaseStagedRom(staged.rom);
+            staged.rom = 0;
+        }
+        if (staged.outputDescriptor != null) {
+            staged.outputDescriptor.close();
+        }
+
+        boolean success = "success".equals(result);
+
+        if (!success) {
+            if (staged.outputDocument != null) {
+                // Only the partial document goes, an archive from an earlier run stays in the user's folder
+                staged.outputDocument.delete();
+            }
+            String message = staged.error != null ? staged.error.getMessage() : result;
+            return new Result(job, false, "cancelled".equals(result), message != null ? message : "Unknown error", 0,
+                null, false);
+        }
+
+        if (staged.outputDocument != null) {
+            try {
+                staged.outputDocument = replaceOutputDocument(outputUri, staged.outputDocument, job.outputName);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to replace " + job.outputName, e);
+                return new Result(job, false, false, e.getMessage() + ", the new archive is left as "
+                    + job.outputName + PARTIAL_SUFFIX, 0, null, false);
+            }
+            return new Result(job, true, false, result, staged.outputDocument.length(),
+                MainActivity.getDisplayPathFromUri(outputUri), false);
+        }
+
+        long size = staged.outputFile.exists() ? staged.outputFile.length() : 0;
+        String savedTo = "app directory";
+        boolean copyFailed = false;
+
+        // If user selected a custom output directory, copy the file there
+        if (outputUri != null && size > 0) {
+            try {
+                copyFileToSelectedDirectory(outputUri, staged.outputFile, job.outputName);
+                savedTo = MainActivity.getDisplayPathFromUri(outputUri);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to copy to selected directory", e);
+                copyFailed = true;
+            }
+        }
+
+        return new Result(job, true, false, result, size, savedTo, copyFailed);
+    }
+
+    // I/O thread: saves the timings of the job to reports/<name>.json and puts a one line summary on the result
+    private Result attachReport(Result result, StagedJob staged) {
+        if (staged.report == null) {
+            return result;
+        }
+
+        String name = staged.job.outputName.endsWith(".o2r")
+            ? staged.job.outputName.substring(0, staged.job.outputName.length() - 4) : staged.job.outputName;
+        File file = new File(getExternalFilesDir("reports"), name + ".json");
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(staged.report.getBytes(StandardCharsets.UTF_8));
+            result.reportFile = file.getAbsolutePath();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save report " + file, e);
+        }
+
+        try {
+            result.perfSummary = summarizeReport(new JSONObject(staged.report));
+        } catch (JSONException e) {
+            Log.e(TAG, "Unreadable report for " + staged.job.outputName, e);
+        }
+        return result;
+    }
+
+    // Seconds per phase in the order they run, then the factory type that took the longest
+    static String summarizeReport(JSONObject report) throws JSONException {
+        JSONObject phases = report.getJSONObject("phases");
+        StringBuilder summary = new StringBuilder();
+        for (String phase : new String[] { "preprocess", "yaml", "parse", "export", "archive" }) {
+            JSONObject stats = phases.optJSONObject(phase);
+            if (stats != null) {
+                summary.append(summary.length() > 0 ? ", " : "").append(phase).append(' ')
+                    .append(String.format(Locale.US, "%.1fs", stats.getDouble("wallMs") / 1000));
+            }
+        }
+
+        JSONObject factories = report.getJSONObject("factories");
+        String slowest = null;
+        double slowestMs = 0;
+        for (Iterator<String> types = factories.keys(); types.hasNext(); ) {
+            String type = types.next();
+            JSONObject factory = factories.getJSONObject(type);
+            double ms = factory.getJSONObject("parse").getDouble("wallMs")
+                + factory.getJSONObject("export").getDouble("wallMs");
+            if (ms > slowestMs) {
+                slowest = type;
+                slowestMs = ms;
+            }
+        }
+        if (slowest != null) {
+            summary.append(String.format(Locale.US, "; slowest %s %.1fs", slowest, slowestMs / 1000));
+        }
+        return summary.toString();
+    }
+
+    // Copies the picked folder to the cache, native needs real paths and the picked tree only has content uris. The
+    // archive is then written straight into the selected folder like a conversion, or to the app directory
+    private PackResult pack(Uri treeUri, String name, Uri outputUri) {
+        String fileName = name + ".o2r";
+        File staging = new File(getCacheDir(), "pack");
+        File outputFile = new File(getExternalFilesDir(null), fileName);
+        DocumentFile outputDocument = null;
+        String result;
+
+        updateNotification("Packing " + fileName);
+        try {
+            FileCopy.deleteRecursively(staging);
+            File folder = new File(staging, name);
+            folder.mkdirs();
+            copyDirectoryFromUri(treeUri, DocumentsContract.getTreeDocumentId(treeUri), folder);
+
+            outputDocument = outputUri != null && !cancelRequested ? createOutputDocument(outputUri, fileName) : null;
+            ParcelFileDescriptor outputDescriptor = openSeekableDescriptor(outputDocument);
+            if (outputDescriptor == null && outputDocument != null) {
+                outputDocument.delete();
+                outputDocument = null;
+            }
+
+            if (cancelRequested) {
+                result = "cancelled";
+            } else {
+                try {
+                    int outputFd = outputDescriptor != null ? outputDescriptor.getFd() : -1;
+                    result = packFolder(folder.getAbsolutePath(), outputFile.getAbsolutePath(), outputFd, false, PROGRESS);
+                } finally {
+                    if (outputDescriptor != null) {
+                        outputDescriptor.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Packing " + fileName + " failed", e);
+            result = e.getMessage();
+        } finally {
+            FileCopy.deleteRecursively(staging);
+        }
+        Log.i(TAG, "Native packing returned: " + result);
+
+        if (!"success".equals(result)) {
+            if (outputDocument != null) {
+                outputDocument.delete();
+            }
+            return new PackResult(fileName, false, "cancelled".equals(result), result != null ? result : "Unknown error",
+                0, null);
+        }
+
+        try {
+            if (outputDocument != null) {
+                outputDocument = replaceOutputDocument(outputUri, outputDocument, fileName);
+                return new PackResult(fileName, true, false, result, outputDocument.length(),
+                    MainActivity.getDisplayPathFromUri(outputUri) + "/" + fileName);
+            }
+            if (outputUri != null) {
+                copyFileToSelectedDirectory(outputUri, outputFile, fileName);
+                return new PackResult(fileName, true, false, result, outputFile.length(),
+                    MainActivity.getDisplayPathFromUri(outputUri) + "/" + fileName);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save " + fileName + " to the selected directory", e);
+            String left = outputDocument != null ? fileName + PARTIAL_SUFFIX : outputFile.getAbsolutePath();
+            return new PackResult(fileName, false, false, e.getMessage() + ", the archive is left as " + left, 0, null);
+        }
+        return new PackResult(fileName, true, false, result, outputFile.length(), outputFile.getAbsolutePath());
+    }
+
+    // Copies the children of documentId below treeUri into destDir, stops early once the pack is cancelled
+    private void copyDirectoryFromUri(Uri treeUri, String documentId, File destDir) throws IOException {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        String[] columns = { DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE };
+
+        try (Cursor cursor = getContentResolver().query(children, columns, null, null, null)) {
+            if (cursor == null) {
+                throw new IOException("Cannot list " + destDir.getName());
+            }
+
+            while (cursor.moveToNext() && !cancelRequested) {
+                String childId = cursor.getString(0);
+                String displayName = cursor.getString(1);
+                File dest = new File(destDir, displayName);
+
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                    dest.mkdirs();
+                    copyDirectoryFromUri(treeUri, childId, dest);
+                } else {
+                    copyFileFromUri(DocumentsContract.buildDocumentUriUsingTree(treeUri, childId), dest);
+                }
+            }
+        }
+    }
+
+    private void copyFileFromUri(Uri fileUri, File destFile) throws IOException {
+        try (InputStream inputStream = getContentResolver().openInputStream(fileUri);
+             FileOutputStream outputStream = new FileOutputStream(destFile)) {
+            if (inputStream == null) {
+                throw new IOException("Cannot open " + destFile.getName());
+            }
+            FileCopy.copy(inputStream, outputStream, FileCopy.ASSET_BUFFER_SIZE);
+        }
+    }
+
+    private void updateNotification(String title) {
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, progressNotification(title).build());
+    }
+
+    private int openRomDescriptor(Uri romUri) throws IOException {
+        ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(romUri, "r");
+        if (pfd == null) {
+            throw new IOException("Cannot open ROM file");
+        }
+        // Native closes the descriptor once the ROM has been read
+        return pfd.detachFd();
+    }
+
+    // Creates the archive in the selected folder up front so the native writer streams straight into it. It is written
+    // under a partial name, an archive already in the folder is only replaced by replaceOutputDocument once it succeeded
+    DocumentFile createOutputDocument(Uri outputUri, String fileName) {
+        DocumentFile outputDir = DocumentFile.fromTreeUri(this, outputUri);
+        if (outputDir == null || !outputDir.canWrite()) {
+            return null;
+        }
+
+        String partialName = fileName + PARTIAL_SUFFIX;
+        DocumentFile stale = outputDir.findFile(partialName);
+        if (stale != null) {
+            stale.delete();
+        }
+
+        return outputDir.createFile("application/octet-stream", partialName);
+    }
+
+    // Swaps a finished partial document in for fileName, returns the document now holding the archive
+    DocumentFile replaceOutputDocument(Uri outputUri, DocumentFile partial, String fileName) throws IOException {
+        DocumentFile outputDir = DocumentFile.fromTreeUri(this, outputUri);
+        if (outputDir == null) {
+            throw new IOException("Cannot write to selected directory");
+        }
+
+        DocumentFile existingFile = outputDir.findFile(fileName);
+        if (existingFile != null && !existingFile.delete()) {
+            throw new IOException("Cannot replace " + fileName);
+        }
+
+        if (partial.renameTo(fileName)) {
+            return partial;
+        }
+
+        // Not every provider supports renaming, copy the archive over instead
+        DocumentFile newFile = outputDir.createFile("application/octet-stream", fileName);
+        if (newFile == null) {
+            throw new IOException("Failed to create file in selected directory");
+        }
+
+        try (InputStream inputStream = getContentResolver().openInputStream(partial.getUri());
+             OutputStream outputStream = getContentResolver().openOutputStream(newFile.getUri())) {
+            if (inputStream == null || outputStream == null) {
+                throw new IOException("Cannot open " + fileName);
+            }
+            FileCopy.copy(inputStream, outputStream, FileCopy.LARGE_BUFFER_SIZE);
+        }
+        partial.delete();
+        return newFile;
+    }
+
+    // The zip writer seeks back to patch headers, so providers that only hand out pipes can not be written to directly
+    private ParcelFileDescriptor openSeekableDescriptor(DocumentFile document) {
+        if (document == null) {
+            return null;
+        }
+
+        try {
+            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(document.getUri(), "rw");
+            if (pfd == null) {
+                return null;
+            }
+
+            try {
+                Os.lseek(pfd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+                return pfd;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Selected output is not seekable", e);
+                pfd.close();
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open selected output", e);
+            return null;
+        }
+    }
+
+    // Fallback for providers without seekable descriptors
+    private void copyFileToSelectedDirectory(Uri outputUri, File sourceFile, String fileName) throws IOException {
+        DocumentFile outputDir = DocumentFile.fromTreeUri(this, outputUri);
+
+        if (outputDir == null || !outputDir.canWrite()) {
+            throw new IOException("Cannot write to selected directory");
+        }
+
+        // Delete existing file if it exists
+        DocumentFile existingFile = outputDir.findFile(fileName);
+        if (existingFile != null) {
+            existingFile.delete();
+        }
+
+        DocumentFile newFile = outputDir.createFile("application/octet-stream", fileName);
+        if (newFile == null) {
+            throw new IOException("Failed to create file in selected directory");
+        }
+
+        try (FileInputStream inputStream = new FileInputStream(sourceFile);
+             OutputStream outputStream = getContentResolver().openOutputStream(newFile.getUri())) {
+
+            if (outputStream == null) {
+                throw new IOException("Cannot open output stream");
+            }
+
+            FileCopy.copy(inputStream, outputStream, FileCopy.LARGE_BUFFER_SIZE);
+        }
+
+        Log.i(TAG, "File copied to selected directory: " + fileName);
+    }
+}
@@ -0,0 +1,44 @@
+package com.torch.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream copies and tree deletes shared by the asset sync, the config import and the output fallback.
+ * Kept free of Android classes so the benchmark module and plain JVM runs can measure it.
+ */
+final class FileCopy {
+    // Bundled assets are small yaml and binary files, archives and ROMs are megabytes
+    static final int ASSET_BUFFER_SIZE = 64 * 1024;
+    static final int LARGE_BUFFER_SIZE = 1024 * 1024;
+
+    private FileCopy() {}
+
+    // Copies until the end of input, neither stream is closed. Returns the number of bytes copied
+    static long copy(InputStream input, OutputStream output, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        int bytesRead;
+
+        while ((bytesRead = input.read(buffer)) != -1) {
+            output.write(buffer, 0, bytesRead);
+            total += bytesRead;
+        }
+
+        return total;
+    }
+
+    static void deleteRecursively(File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,11 +1,19 @@
 package com.torch.converter;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.Manifest;
+import android.content.ClipData;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Environment;
-import android.provider.DocumentsContract;
+import android.os.ParcelFileDescriptor;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -26,42 +34,71 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.documentfile.provider.DocumentFile;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements ConversionService.Listener {
     private static final String TAG = "TorchConverter";
     
     private Button selectRomButton;
+    private Button batchButton;
     private Button selectOutputButton;
     private Button convertButton;
+    private Button packButton;
     private TextView statusText;
     private TextView configStatusText;
     private TextView outputStatusText;
+    private TextView batchStatusText;
     private TextView progressText;
     private ProgressBar progressBar;
     private RadioGroup configRadioGroup;
     private ImageView torchIcon;
     
     private Uri selectedRomUri;
+    // SHA-1 of the selected ROM once it has been identified, null while hashing
+    private String selectedRomHash;
+    // Name of the selected ROM in config.yml once identified, its file name until then
+    private String selectedRomName;
+    // ROMs queued with Add ROMs to Batch, converted together in place of the selected ROM
+    private final List<ConversionJob> batch = new ArrayList<>();
     private Uri selectedConfigUri;
     private Uri selectedOutputUri;
-    private String romFilePath;
     private String configDirPath;
-    private String outputDirPath;
     private String selectedConfigType = "starship"; // Default to starship
+    // Config syncs run one at a time off the UI thread
+    private final ExecutorService configExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService romExecutor = Executors.newSingleThreadExecutor();
     
-    // Native method declarations
-    public native String convertRomToO2R(String romPath, String outputPath, String configPath);
+    // The running conversion writes its counters to ConversionService.PROGRESS, the UI polls it at a fixed rate
+    private final Handler progressHandler = new Handler(Looper.getMainLooper());
+    private static final long PROGRESS_POLL_MS = 100;
+    private static final String[] PROGRESS_PHASES = {
+        "Initializing Torch...", "Loading configuration...", "Decompressing ROM - this may take a couple of minutes...",
+        "Exporting assets", "Writing O2R file...", "Done"
+    };
+    private static final String[] PACK_PHASES = {
+        "Initializing Torch...", "Scanning folder...", "", "Packing files", "Writing O2R file...", "Done"
+    };
+    private final Runnable progressPoller = new Runnable() {
+        @Override
+        public void run() {
+            showProgress();
+            progressHandler.postDelayed(this, PROGRESS_POLL_MS);
+        }
+    };
     
-    // Callback method called from native code to update progress
-    public void updateProgress(String message) {
-        runOnUiThread(() -> {
-            progressText.setText(message);
-            Log.i(TAG, "Progress: " + message);
-        });
-    }
+    // Native method declarations
+    // Streams the ROM through SHA-1, romFd stays owned by the caller. Returns null when it can not be read
+    public native String hashRomFd(int romFd);
+    // Looks the hash up in the bundled config.yml of each config, returns { config, name } or null
+    public native String[] identifyRom(android.content.res.AssetManager assets, String[] configs, String romHash);
+    public native long getRomCacheSize(String cacheDir);
+    public native void clearRomCache(String cacheDir);
     
     static {
         System.loadLibrary("torch");
@@ -77,6 +114,22 @@ public class MainActivity extends AppCompatActivity {
             }
         });
     
+    private final ActivityResultLauncher<Intent> batchPickerLauncher =
+        registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+            if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
+                List<Uri> uris = new ArrayList<>();
+                ClipData clip = result.getData().getClipData();
+                if (clip != null) {
+                    for (int i = 0; i < clip.getItemCount(); i++) {
+                        uris.add(clip.getItemAt(i).getUri());
+                    }
+                } else if (result.getData().getData() != null) {
+                    uris.add(result.getData().getData());
+                }
+                addToBatch(uris);
+            }
+        });
+    
     private final ActivityResultLauncher<Intent> configPickerLauncher = 
         registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
             if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
@@ -87,6 +140,13 @@ public class MainActivity extends AppCompatActivity {
             }
         });
     
+    private final ActivityResultLauncher<Intent> packPickerLauncher =
+        registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+            if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null && result.getData().getData() != null) {
+                packFolder(result.getData().getData());
+            }
+        });
+    
     private final ActivityResultLauncher<Intent> outputPickerLauncher = 
         registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
             if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
@@ -113,13 +173,100 @@ public class MainActivity extends AppCompatActivity {
         setupClickListeners();
     }
     
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Picks up a conversion that kept running while the activity was gone, or the result it left behind
+        if (ConversionService.isPacking()) {
+            showPackRunning();
+        } else if (ConversionService.isRunning()) {
+            showConversionRunning();
+        }
+        ConversionService.setListener(this);
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        ConversionService.setListener(null);
+        stopProgressPolling();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The parsed config is only kept to speed up the next conversion, give it back once we are in the background
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            ConversionService.releaseSession();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        configExecutor.shutdown();
+        romExecutor.shutdownNow();
+    }
+    
+    private void startProgressPolling() {
+        progressBar.setIndeterminate(true);
+        progressHandler.removeCallbacks(progressPoller);
+        progressHandler.post(progressPoller);
+    }
+    
+    private void stopProgressPolling() {
+        progressHandler.removeCallbacks(progressPoller);
+    }
+    
+    private void showProgress() {
+        ByteBuffer progress = ConversionService.PROGRESS;
+        int phase = progress.getInt(0);
+        int filesDone = progress.getInt(4);
+        int filesTotal = progress.getInt(8);
+        long assets = progress.getLong(16);
+        long bytes = progress.getLong(24);
+        
+        // Phase 0 is idle, native has not started processing yet and the last conversion message stays
+        if (phase <= 0 || phase >= PROGRESS_PHASES.length) {
+            return;
+        }
+        
+        // A batch fills the bar once over all of its ROMs, each ROM gets an equal share
+        boolean packing = ConversionService.isPacking();
+        int batchSize = ConversionService.batchSize;
+        int batchIndex = ConversionService.batchIndex;
+        if (batchSize > 1) {
+            progressBar.setIndeterminate(false);
+            progressBar.setMax(batchSize * 1000);
+            progressBar.setProgress(batchIndex * 1000 + (filesTotal > 0 ? Math.min(filesDone, filesTotal) * 1000 / filesTotal : 0));
+        } else if (filesTotal > 0) {
+            progressBar.setIndeterminate(false);
+            progressBar.setMax(filesTotal);
+            progressBar.setProgress(Math.min(filesDone, filesTotal));
+        }
+        
+        String text = (packing ? PACK_PHASES : PROGRESS_PHASES)[phase];
+        if (packing && phase == 3) {
+            text += ": " + filesDone + "/" + filesTotal + " files, " + Formatter.formatShortFileSize(this, bytes);
+        } else if (phase == 3) {
+            text += ": " + filesDone + "/" + filesTotal + " files, " + assets + " assets, " + Formatter.formatShortFileSize(this, bytes);
+        }
+        if (batchSize > 1) {
+            text = "ROM " + (batchIndex + 1) + "/" + batchSize + " - " + ConversionService.batchRomName + "\n" + text;
+        }
+        progressText.setText(text);
+    }
+    
     private void initViews() {
         selectRomButton = findViewById(R.id.selectRomButton);
+        batchButton = findViewById(R.id.batchButton);
         selectOutputButton = findViewById(R.id.selectOutputButton);
         convertButton = findViewById(R.id.convertButton);
+        packButton = findViewById(R.id.packButton);
         statusText = findViewById(R.id.statusText);
         configStatusText = findViewById(R.id.configStatusText);
         outputStatusText = findViewById(R.id.outputStatusText);
+        batchStatusText = findViewById(R.id.batchStatusText);
         progressText = findViewById(R.id.progressText);
         progressBar = findViewById(R.id.progressBar);
         configRadioGroup = findViewById(R.id.configRadioGroup);
@@ -148,8 +295,49 @@ public class MainActivity extends AppCompatActivity {
     
     private void setupClickListeners() {
         selectRomButton.setOnClickListener(v -> openRomPicker());
+        batchButton.setOnClickListener(v -> openBatchPicker());
+        batchButton.setOnLongClickListener(v -> {
+            if (!batch.isEmpty() && !ConversionService.isRunning()) {
+                batch.clear();
+                updateBatchStatus();
+                Toast.makeText(this, "Batch cleared", Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        });
         selectOutputButton.setOnClickListener(v -> openOutputPicker());
-        convertButton.setOnClickListener(v -> convertRom());
+        packButton.setOnClickListener(v -> openPackPicker());
+        convertButton.setOnClickListener(v -> {
+            if (ConversionService.isRunning()) {
+                ConversionService.cancel();
+                convertButton.setEnabled(false);
+                statusText.setText("Cancelling...");
+            } else {
+                convertRom();
+            }
+        });
+        torchIcon.setOnLongClickListener(v -> {
+            showRomCacheDialog();
+            return true;
+        });
+    }
+    
+    private String getRomCacheDirPath() {
+        return new File(getFilesDir(), "romcache").getAbsolutePath();
+    }
+    
+    private void showRomCacheDialog() {
+        String cacheDir = getRomCacheDirPath();
+        String size = Formatter.formatFileSize(this, getRomCacheSize(cacheDir));
+        
+        new AlertDialog.Builder(this)
+            .setTitle("ROM cache")
+            .setMessage("Decompressed ROMs cached: " + size)
+            .setPositiveButton("Clear", (dialog, which) -> {
+                clearRomCache(cacheDir);
+                Toast.makeText(this, "ROM cache cleared", Toast.LENGTH_SHORT).show();
+            })
+            .setNegativeButton("Close", null)
+            .show();
     }
     
     private void openRomPicker() {
@@ -161,23 +349,121 @@ public class MainActivity extends AppCompatActivity {
         romPickerLauncher.launch(intent);
     }
     
-    private void autoLoadSelectedConfig() {
-        // Automatically load the selected configuration (starship or spaghetti)
-        try {
-            configDirPath = copyBundledAssetsToInternalStorage();
-            
-            String configName = selectedConfigType.equals("starship") ? 
-                "Starship (Star Fox 64)" : "Spaghetti Kart (Mario Kart 64)";
-            configStatusText.setText("Config: " + configName + " (auto-loaded)");
-            updateConvertButtonState();
+    private void openBatchPicker() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"application/octet-stream", "*/*"});
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        batchPickerLauncher.launch(intent);
+    }
+    
+    // Each ROM is identified to pick its config, ROMs no bundled config lists are left out
+    private void addToBatch(List<Uri> uris) {
+        Toast.makeText(this, "Identifying " + uris.size() + " ROM(s)...", Toast.LENGTH_SHORT).show();
+        
+        romExecutor.execute(() -> {
+            List<ConversionJob> jobs = new ArrayList<>();
+            List<String> skipped = new ArrayList<>();
             
-            Log.i(TAG, "Auto-loaded configuration: " + configName);
+            for (Uri uri : uris) {
+                String fileName = getFileName(uri);
+                String hash = fileName.toLowerCase().endsWith(".z64") ? hashRom(uri) : null;
+                String[] match = hash != null ?
+                    identifyRom(getAssets(), new String[] { "starship", "spaghetti" }, hash) : null;
+                
+                if (match == null) {
+                    skipped.add(fileName);
+                    continue;
+                }
+                jobs.add(new ConversionJob(uri, hash, match[0], match[1]));
+            }
             
-        } catch (IOException e) {
-            Log.e(TAG, "Error auto-loading config", e);
-            configStatusText.setText("Config: Failed to load");
-            Toast.makeText(this, "Error loading configuration", Toast.LENGTH_SHORT).show();
+            runOnUiThread(() -> {
+                int added = 0;
+                for (ConversionJob job : jobs) {
+                    if (!batchContains(job.romHash)) {
+                        batch.add(job);
+                        added++;
+                    }
+                }
+                updateBatchStatus();
+                
+                String message = added + " ROM(s) added to batch";
+                if (!skipped.isEmpty()) {
+                    message += "\nNot supported: " + android.text.TextUtils.join(", ", skipped);
+                }
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            });
+        });
+    }
+    
+    private boolean batchContains(String romHash) {
+        for (ConversionJob job : batch) {
+            if (job.romHash.equals(romHash)) {
+                return true;
+            }
         }
+        return false;
+    }
+    
+    private void updateBatchStatus() {
+        if (batch.isEmpty()) {
+            batchStatusText.setVisibility(View.GONE);
+        } else {
+            StringBuilder text = new StringBuilder("Batch (hold to clear):");
+            for (ConversionJob job : batch) {
+                text.append("\n").append(job.romName).append(" - ").append(job.configName());
+            }
+            batchStatusText.setText(text);
+            batchStatusText.setVisibility(View.VISIBLE);
+        }
+        
+        if (!ConversionService.isRunning()) {
+            convertButton.setText(batch.isEmpty() ? "Generate O2R" : "Generate " + batch.size() + " O2R files");
+        }
+        updateConvertButtonState();
+    }
+    
+    private void autoLoadSelectedConfig() {
+        // Automatically load the selected configuration (starship or spaghetti)
+        loadBundledConfig(" (auto-loaded)");
+    }
+    
+    private void loadBundledConfig(String suffix) {
+        final String configType = selectedConfigType;
+        final String configName = configType.equals("starship") ? 
+            "Starship (Star Fox 64)" : "Spaghetti Kart (Mario Kart 64)";
+        
+        configDirPath = null;
+        configStatusText.setText("Config: Loading " + configName + "...");
+        updateConvertButtonState();
+        
+        configExecutor.execute(() -> {
+            try {
+                String path = syncBundledAssets(configType);
+                
+                runOnUiThread(() -> {
+                    // Another config was picked while this one was syncing, its own load updates the UI
+                    if (!configType.equals(selectedConfigType)) {
+                        return;
+                    }
+                    configDirPath = path;
+                    configStatusText.setText("Config: " + configName + suffix);
+                    updateConvertButtonState();
+                    Log.i(TAG, "Loaded configuration: " + configName);
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading config", e);
+                runOnUiThread(() -> {
+                    if (!configType.equals(selectedConfigType)) {
+                        return;
+                    }
+                    configStatusText.setText("Config: Failed to load");
+                    Toast.makeText(this, "Error loading configuration", Toast.LENGTH_SHORT).show();
+                });
+            }
+        });
     }
     
     private void openOutputPicker() {
@@ -195,47 +481,73 @@ public class MainActivity extends AppCompatActivity {
                 statusText.setText("Error: Only .z64 format ROMs are supported");
                 String gameType = selectedConfigType.equals("starship") ? "Star Fox 64" : "Mario Kart 64";
                 Toast.makeText(this, "Please select a .z64 format " + gameType + " ROM", Toast.LENGTH_LONG).show();
+                selectedRomUri = null;
+                updateConvertButtonState();
                 return;
             }
             
-            // Copy ROM to internal storage for processing
-            romFilePath = copyRomToInternalStorage();
-            
-            statusText.setText("ROM: " + fileName);
+            // Only the hash is read here, ConversionService stages the ROM from the document when the job starts
+            statusText.setText("ROM: " + fileName + " (identifying...)");
+            selectedRomHash = null;
+            selectedRomName = fileName;
             updateConvertButtonState();
+            identifySelectedRom(selectedRomUri, fileName);
             
-        } catch (IOException e) {
+        } catch (Exception e) {
             Log.e(TAG, "Error handling selected ROM", e);
             Toast.makeText(this, "Error reading ROM file", Toast.LENGTH_SHORT).show();
+            selectedRomUri = null;
+            updateConvertButtonState();
         }
     }
     
-    private String copyRomToInternalStorage() throws IOException {
-        InputStream inputStream = getContentResolver().openInputStream(selectedRomUri);
-        if (inputStream == null) {
-            throw new IOException("Cannot open ROM file");
-        }
-        
-        // Put ROM in the app root directory alongside config files
-        File appRootDir = getExternalFilesDir(null);
-        
-        String fileName = getFileName(selectedRomUri);
-        // Use a standard name for the ROM file
-        File romFile = new File(appRootDir, "baserom.z64");
-        
-        FileOutputStream outputStream = new FileOutputStream(romFile);
-        byte[] buffer = new byte[8192];
-        int bytesRead;
+    private void identifySelectedRom(Uri uri, String fileName) {
+        romExecutor.execute(() -> {
+            final String romHash = hashRom(uri);
+            final String[] match = romHash != null ?
+                identifyRom(getAssets(), new String[] { "starship", "spaghetti" }, romHash) : null;
+            
+            runOnUiThread(() -> {
+                // Another ROM was picked while this one was hashing
+                if (!uri.equals(selectedRomUri)) {
+                    return;
+                }
+                selectedRomHash = romHash;
+                
+                if (match == null) {
+                    statusText.setText("ROM: " + fileName + "\nUnrecognized ROM, it may not be supported");
+                    return;
+                }
+                
+                selectedRomName = match[1];
+                statusText.setText("ROM: " + fileName + "\nDetected: " + match[1]);
+                if (!match[0].equals(selectedConfigType)) {
+                    // Switching the radio button loads the matching config
+                    configRadioGroup.check(match[0].equals("starship") ? R.id.starshipRadio : R.id.spaghettiRadio);
+                }
+            });
+        });
+    }
+    
+    // Background thread only. Returns null when the ROM can not be read
+    private String hashRom(Uri uri) {
+        String key = RomFingerprints.key(this, uri);
+        String hash = RomFingerprints.get(this, key);
         
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
+        if (hash != null) {
+            Log.i(TAG, "ROM fingerprint cache hit: " + hash);
+            return hash;
         }
         
-        inputStream.close();
-        outputStream.close();
-        
-        Log.i(TAG, "ROM copied to app root: " + romFile.getAbsolutePath());
-        return romFile.getAbsolutePath();
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r")) {
+            hash = pfd != null ? hashRomFd(pfd.getFd()) : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error hashing ROM", e);
+        }
+        if (hash != null) {
+            RomFingerprints.put(this, key, hash);
+        }
+        return hash;
     }
     
     private String getFileName(Uri uri) {
@@ -261,32 +573,19 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void handleSelectedConfig() {
-        try {
-            // Copy bundled assets to internal storage based on selected configuration
-            configDirPath = copyBundledAssetsToInternalStorage();
-            
-            String configName = selectedConfigType.equals("starship") ? 
-                "Starship (Star Fox 64)" : "Spaghetti Kart (Mario Kart 64)";
-            configStatusText.setText("Config: " + configName + " assets loaded");
-            updateConvertButtonState();
-            
-        } catch (IOException e) {
-            Log.e(TAG, "Error loading bundled config", e);
-            Toast.makeText(this, "Error loading bundled config", Toast.LENGTH_SHORT).show();
-        }
+        // Sync bundled assets to internal storage based on selected configuration
+        loadBundledConfig(" assets loaded");
     }
     
     private void handleSelectedOutput() {
         try {
             // Get the selected directory path for display
             String displayPath = getDisplayPathFromUri(selectedOutputUri);
-            outputDirPath = getWritablePathFromUri(selectedOutputUri);
             
             outputStatusText.setText("Output: " + displayPath);
             updateConvertButtonState();
             
             Log.i(TAG, "Output directory selected: " + displayPath);
-            Log.i(TAG, "Writable path: " + outputDirPath);
             
         } catch (Exception e) {
             Log.e(TAG, "Error handling selected output directory", e);
@@ -294,7 +593,7 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private String getDisplayPathFromUri(Uri uri) {
+    static String getDisplayPathFromUri(Uri uri) {
         // Extract a user-friendly display path from the URI
         String path = uri.toString();
         if (path.contains("primary:")) {
@@ -308,344 +607,208 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private String getWritablePathFromUri(Uri uri) {
-        // For now, we'll still copy to app directory but remember the user's choice
-        // In the future, we could use DocumentFile to write directly to the selected location
-        return getExternalFilesDir(null).getAbsolutePath();
+    private String syncBundledAssets(String configType) throws IOException {
+        // Only files that changed since the last sync are copied, torch.hash.yml is left for Torch to manage
+        return BundledAssetSync.syncConfig(this, configType).getAbsolutePath();
     }
     
-
+    private void updateConvertButtonState() {
+        // Convert button is enabled when ROM is selected (config auto-loads) or ROMs are queued in the batch
+        // Output directory is optional (defaults to app directory), a running conversion can always be cancelled
+        convertButton.setEnabled(ConversionService.isRunning() || !batch.isEmpty()
+            || (selectedRomUri != null && configDirPath != null));
+        packButton.setEnabled(!ConversionService.isRunning());
+    }
     
-    private void copyFileToSelectedDirectory(File sourceFile, String fileName) throws IOException {
-        if (selectedOutputUri == null) return;
-        
-        try {
-            // Use DocumentFile to create and write to the selected directory
-            androidx.documentfile.provider.DocumentFile outputDir = 
-                androidx.documentfile.provider.DocumentFile.fromTreeUri(this, selectedOutputUri);
-            
-            if (outputDir == null || !outputDir.canWrite()) {
-                throw new IOException("Cannot write to selected directory");
-            }
-            
-            // Delete existing file if it exists
-            androidx.documentfile.provider.DocumentFile existingFile = outputDir.findFile(fileName);
-            if (existingFile != null) {
-                existingFile.delete();
-            }
-            
-            // Create new file
-            androidx.documentfile.provider.DocumentFile newFile = 
-                outputDir.createFile("application/octet-stream", fileName);
-            
-            if (newFile == null) {
-                throw new IOException("Failed to create file in selected directory");
-            }
-            
-            // Copy file content
-            try (java.io.FileInputStream inputStream = new java.io.FileInputStream(sourceFile);
-                 java.io.OutputStream outputStream = getContentResolver().openOutputStream(newFile.getUri())) {
-                
-                if (outputStream == null) {
-                    throw new IOException("Cannot open output stream");
-                }
-                
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
-            }
-            
-            Log.i(TAG, "File copied to selected directory: " + fileName);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error copying file to selected directory", e);
-            throw new IOException("Failed to copy file: " + e.getMessage());
-        }
+    private void openPackPicker() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        packPickerLauncher.launch(intent);
     }
     
-    private String copyBundledAssetsToInternalStorage() throws IOException {
-        // Use the app's external files directory as the root (not a subfolder)
-        File appRootDir = getExternalFilesDir(null);
-        
-        // Clean up any existing config files
-        File existingConfig = new File(appRootDir, "config.yml");
-        if (existingConfig.exists()) {
-            existingConfig.delete();
-        }
-        File existingAssets = new File(appRootDir, "assets");
-        if (existingAssets.exists()) {
-            deleteRecursively(existingAssets);
-        }
-        File existingYamls = new File(appRootDir, "yamls");
-        if (existingYamls.exists()) {
-            deleteRecursively(existingYamls);
-        }
-        File existingInclude = new File(appRootDir, "include");
-        if (existingInclude.exists()) {
-            deleteRecursively(existingInclude);
+    // The service packs the folder, so the pack survives the activity and can be cancelled like a conversion
+    private void packFolder(Uri treeUri) {
+        if (ConversionService.isRunning()) {
+            Toast.makeText(this, "Wait for the running conversion to finish", Toast.LENGTH_SHORT).show();
+            return;
         }
         
-        // Copy bundled assets based on selected configuration
-        copyAssetDirectory(selectedConfigType, appRootDir);
-        
-        Log.i(TAG, "Config copied to app root: " + appRootDir.getAbsolutePath());
-        
-        // Don't create torch.hash.yml - let Torch generate it automatically
+        DocumentFile tree = DocumentFile.fromTreeUri(this, treeUri);
+        String name = tree != null && tree.getName() != null ? tree.getName() : "mod";
         
-        // Debug: List the structure that was created
-        listDirectoryContents(appRootDir, "");
-        
-        return appRootDir.getAbsolutePath();
+        requestNotificationPermission();
+        ConversionService.startPack(this, treeUri, name, selectedOutputUri);
+        showPackRunning();
     }
     
-    private void listDirectoryContents(File dir, String indent) {
-        if (!dir.exists() || !dir.isDirectory()) return;
-        
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    Log.i(TAG, indent + "📁 " + file.getName() + "/");
-                    listDirectoryContents(file, indent + "  ");
-                } else {
-                    Log.i(TAG, indent + "📄 " + file.getName() + " (" + file.length() + " bytes)");
-                }
-            }
-        }
+    private void showPackRunning() {
+        progressBar.setVisibility(View.VISIBLE);
+        progressText.setVisibility(View.VISIBLE);
+        convertButton.setText("Cancel");
+        convertButton.setEnabled(true);
+        packButton.setEnabled(false);
+        progressText.setText("Copying " + ConversionService.batchRomName + "...");
+        statusText.setText("Packing " + ConversionService.batchRomName + " to O2R...");
+        startProgressPolling();
+        startTorchAnimation();
     }
     
-    private void copyAssetDirectory(String assetPath, File destDir) throws IOException {
-        String[] assets = getAssets().list(assetPath);
-        if (assets == null) return;
+    @Override
+    public void onPackFinished(ConversionService.PackResult result) {
+        stopProgressPolling();
+        stopTorchAnimation();
+        progressBar.setVisibility(View.GONE);
+        progressText.setVisibility(View.GONE);
+        updateBatchStatus();
         
-        for (String asset : assets) {
-            String fullAssetPath = assetPath + "/" + asset;
-            File destFile = new File(destDir, asset);
-            
-            try {
-                // Try to list contents - if it succeeds, it's a directory
-                String[] subAssets = getAssets().list(fullAssetPath);
-                if (subAssets != null && subAssets.length > 0) {
-                    // It's a directory
-                    destFile.mkdirs();
-                    copyAssetDirectory(fullAssetPath, destFile);
-                } else {
-                    // It's a file
-                    copyAssetFile(fullAssetPath, destFile);
-                }
-            } catch (IOException e) {
-                // If listing fails, assume it's a file
-                copyAssetFile(fullAssetPath, destFile);
-            }
+        if (result.success) {
+            statusText.setText("Packing complete! " + result.fileName + " saved to " + result.savedTo + " (" + (result.size / 1024) + " KB)");
+            Toast.makeText(this, result.fileName + " created successfully!", Toast.LENGTH_LONG).show();
+        } else if (result.cancelled) {
+            statusText.setText("Packing cancelled");
+        } else {
+            statusText.setText("Packing failed: " + result.message);
+            Toast.makeText(this, "Packing failed", Toast.LENGTH_SHORT).show();
         }
-        
-        Log.i(TAG, "Copied asset directory: " + assetPath + " -> " + destDir.getAbsolutePath());
     }
     
-    private void copyAssetFile(String assetPath, File destFile) throws IOException {
-        try (InputStream inputStream = getAssets().open(assetPath);
-             FileOutputStream outputStream = new FileOutputStream(destFile)) {
+    private void convertRom() {
+        List<ConversionJob> jobs = new ArrayList<>(batch);
+        
+        if (jobs.isEmpty()) {
+            if (selectedRomUri == null) {
+                Toast.makeText(this, "Please select a ROM first", Toast.LENGTH_SHORT).show();
+                return;
+            }
             
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+            if (configDirPath == null) {
+                Toast.makeText(this, "Please select config directory first", Toast.LENGTH_SHORT).show();
+                return;
             }
             
-            Log.i(TAG, "Copied asset: " + assetPath + " -> " + destFile.getName());
+            // Skips hashing the ROM again when it was identified on pick
+            jobs = Collections.singletonList(new ConversionJob(selectedRomUri, selectedRomHash, selectedConfigType,
+                selectedRomName));
         }
-    }
-    
-    private void copyDirectoryFromUri(Uri treeUri, File destDir) throws IOException {
-        Log.i(TAG, "Copying config directory from: " + treeUri.toString());
         
-        try {
-            // Use DocumentsContract to traverse the directory tree
-            android.database.Cursor cursor = getContentResolver().query(
-                DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri)),
-                new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_DISPLAY_NAME, DocumentsContract.Document.COLUMN_MIME_TYPE},
-                null, null, null
-            );
-            
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    String documentId = cursor.getString(0);
-                    String displayName = cursor.getString(1);
-                    String mimeType = cursor.getString(2);
-                    
-                    Log.i(TAG, "Found: " + displayName + " (type: " + mimeType + ")");
-                    
-                    Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
-                    
-                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
-                        // It's a directory - create it and recurse
-                        File subDir = new File(destDir, displayName);
-                        subDir.mkdirs();
-                        copyDirectoryFromUri(documentUri, subDir);
-                    } else {
-                        // It's a file - copy it
-                        copyFileFromUri(documentUri, new File(destDir, displayName));
-                    }
-                }
-                cursor.close();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error copying directory", e);
-            throw new IOException("Failed to copy config directory: " + e.getMessage());
-        }
+        // sf64.o2r / mk64.o2r, with the region of the ROM added when a batch holds several ROMs of one game
+        ConversionJob.assignOutputNames(jobs);
+        batch.clear();
+        updateBatchStatus();
+        
+        requestNotificationPermission();
+        
+        // The service keeps the conversion alive in the background and lets it be cancelled
+        ConversionService.start(this, jobs, getRomCacheDirPath(), selectedOutputUri);
+        showConversionRunning();
     }
     
-    private void copyFileFromUri(Uri fileUri, File destFile) throws IOException {
-        try (InputStream inputStream = getContentResolver().openInputStream(fileUri);
-             FileOutputStream outputStream = new FileOutputStream(destFile)) {
-            
-            if (inputStream == null) {
-                throw new IOException("Cannot open file: " + fileUri);
-            }
-            
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
-            
-            Log.i(TAG, "Copied file: " + destFile.getName());
+    // The conversion notification and its cancel action are hidden without this on Android 13+
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[] { Manifest.permission.POST_NOTIFICATIONS }, 0);
         }
     }
     
-    private void deleteRecursively(File file) {
-        if (file.isDirectory()) {
-            File[] children = file.listFiles();
-            if (children != null) {
-                for (File child : children) {
-                    deleteRecursively(child);
-                }
-            }
-        }
-        file.delete();
+    private void showConversionRunning() {
+        // Show progress and start torch animation
+        progressBar.setVisibility(View.VISIBLE);
+        progressText.setVisibility(View.VISIBLE);
+        convertButton.setText("Cancel");
+        convertButton.setEnabled(true);
+        packButton.setEnabled(false);
+        int batchSize = ConversionService.batchSize;
+        statusText.setText(batchSize > 1 ? "Converting " + batchSize + " ROMs to O2R..." : "Converting ROM to O2R...");
+        progressText.setText(PROGRESS_PHASES[0]);
+        startProgressPolling();
+        
+        // Start the cool torch animation! 🔥
+        startTorchAnimation();
     }
     
-    private void updateConvertButtonState() {
-        // Convert button is enabled when ROM is selected (config auto-loads)
-        // Output directory is optional (defaults to app directory)
-        convertButton.setEnabled(romFilePath != null && configDirPath != null);
+    @Override
+    public void onConversionMessage(String message) {
+        progressText.setText(message);
     }
     
-    private void convertRom() {
-        if (romFilePath == null) {
-            Toast.makeText(this, "Please select a ROM first", Toast.LENGTH_SHORT).show();
-            return;
-        }
+    @Override
+    public void onConversionFinished(ConversionService.Report report) {
+        stopProgressPolling();
+        progressBar.setVisibility(View.GONE);
+        updateBatchStatus();
+        
+        // Stop the torch animation
+        stopTorchAnimation();
         
-        if (configDirPath == null) {
-            Toast.makeText(this, "Please select config directory first", Toast.LENGTH_SHORT).show();
+        if (report.results.size() == 1) {
+            showResult(report.results.get(0));
             return;
         }
         
-        // Show progress and start torch animation
-        progressBar.setVisibility(View.VISIBLE);
-        progressText.setVisibility(View.VISIBLE);
-        convertButton.setEnabled(false);
-        statusText.setText("Converting ROM to O2R...");
-        progressText.setText("Initializing Torch...");
-        
-        // Start the cool torch animation! 🔥
-        startTorchAnimation();
+        // One line per ROM, in the order they ran
+        StringBuilder summary = new StringBuilder();
+        for (ConversionService.Result result : report.results) {
+            summary.append(summary.length() > 0 ? "\n" : "").append(result.romName).append(": ");
+            if (result.success && result.size > 0) {
+                summary.append(result.fileName).append(" (").append(result.size / 1024).append(" KB)");
+                if (result.copyFailed) {
+                    summary.append(" in app directory");
+                }
+                if (result.perfSummary != null) {
+                    summary.append("\n  ").append(result.perfSummary);
+                }
+            } else if (result.cancelled) {
+                summary.append("cancelled");
+            } else {
+                summary.append("failed - ").append(result.message != null ? result.message : "Unknown error");
+            }
+        }
         
-        // Run conversion in background thread with timeout
-        new Thread(() -> {
-            try {
-                // Use selected output directory or default to app directory
-                File outputDir = outputDirPath != null ? new File(outputDirPath) : getExternalFilesDir(null);
-                // Use appropriate filename based on selected configuration
-                String outputFileName = selectedConfigType.equals("starship") ? "sf64.o2r" : "mk64.o2r";
-                String outputPath = new File(outputDir, outputFileName).getAbsolutePath();
-                Log.i(TAG, "ROM path: " + romFilePath);
-                Log.i(TAG, "Output path: " + outputPath);
-                Log.i(TAG, "Config path: " + configDirPath);
-                
-                // Check if files exist before conversion
-                File romFile = new File(romFilePath);
-                File configDir = new File(configDirPath);
-                Log.i(TAG, "ROM file exists: " + romFile.exists() + " (size: " + romFile.length() + " bytes)");
-                Log.i(TAG, "Config dir exists: " + configDir.exists());
-                
-                if (configDir.exists()) {
-                    File configYml = new File(configDir, "config.yml");
-                    Log.i(TAG, "config.yml exists: " + configYml.exists());
+        int succeeded = report.succeeded();
+        progressText.setVisibility(View.GONE);
+        statusText.setText((report.cancelled ? "Batch cancelled, " : "Batch complete, ") + succeeded + " of "
+            + report.results.size() + " converted\n" + summary);
+        Toast.makeText(this, succeeded + " of " + report.results.size() + " O2R files created", Toast.LENGTH_LONG).show();
+        Log.i(TAG, "Batch finished:\n" + summary);
+        if (!report.results.isEmpty() && report.results.get(0).reportFile != null) {
+            Log.i(TAG, "Timings saved to " + new File(report.results.get(0).reportFile).getParent());
+        }
+    }
+    
+    private void showResult(ConversionService.Result result) {
+        if (result.cancelled) {
+            progressText.setVisibility(View.GONE);
+            statusText.setText("Conversion cancelled");
+        } else if (result.success) {
+            // Double-check if the file was actually created
+            if (result.size > 0) {
+                String status = "Conversion complete! " + result.fileName + " saved to " + result.savedTo + " (" + (result.size / 1024) + " KB)";
+                if (result.perfSummary != null) {
+                    status += "\n" + result.perfSummary;
                 }
+                if (result.reportFile != null) {
+                    status += "\nTimings saved to " + result.reportFile;
+                }
+                statusText.setText(status);
                 
-                // Update progress during conversion
-                runOnUiThread(() -> progressText.setText("Reading ROM file..."));
-                Thread.sleep(500); // Brief pause to show progress
-                
-                runOnUiThread(() -> progressText.setText("Loading configuration..."));
-                Thread.sleep(500);
-                
-                runOnUiThread(() -> progressText.setText("Processing assets..."));
-                Log.i(TAG, "Starting native conversion...");
-                String result = convertRomToO2R(romFilePath, outputPath, configDirPath);
-                Log.i(TAG, "Native conversion returned: " + result);
-                
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE);
-                    convertButton.setEnabled(true);
-                    
-                    // Stop the torch animation
-                    stopTorchAnimation();
-                    
-                    if (result != null && result.equals("success")) {
-                        // Double-check if the file was actually created
-                        File outputFile = new File(outputPath);
-                        if (outputFile.exists() && outputFile.length() > 0) {
-                            String configName = selectedConfigType.equals("starship") ? "Starship" : "Spaghetti Kart";
-                            
-                            // If user selected a custom output directory, copy the file there
-                            if (selectedOutputUri != null) {
-                                try {
-                                    copyFileToSelectedDirectory(outputFile, outputFileName);
-                                    String displayPath = getDisplayPathFromUri(selectedOutputUri);
-                                    statusText.setText("Conversion complete! " + outputFileName + " saved to " + displayPath + " (" + (outputFile.length() / 1024) + " KB)");
-                                    Toast.makeText(this, outputFileName + " created successfully for " + configName + "!\nSaved to: " + displayPath, Toast.LENGTH_LONG).show();
-                                } catch (Exception e) {
-                                    Log.e(TAG, "Failed to copy to selected directory", e);
-                                    statusText.setText("Conversion complete! " + outputFileName + " saved to app directory (" + (outputFile.length() / 1024) + " KB)");
-                                    Toast.makeText(this, outputFileName + " created successfully for " + configName + "!\nSaved to app directory (failed to copy to selected location)", Toast.LENGTH_LONG).show();
-                                }
-                            } else {
-                                statusText.setText("Conversion complete! " + outputFileName + " saved to app directory (" + (outputFile.length() / 1024) + " KB)");
-                                Toast.makeText(this, outputFileName + " created successfully for " + configName + "!\nLocation: " + outputFile.getParent(), Toast.LENGTH_LONG).show();
-                            }
-                            
-                            Log.i(TAG, "Output file confirmed: " + outputFile.getAbsolutePath() + " (" + outputFile.length() + " bytes)");
-                        } else {
-                            statusText.setText("Conversion reported success but no output file found");
-                            Toast.makeText(this, "No output file created", Toast.LENGTH_SHORT).show();
-                            Log.e(TAG, "No output file found at: " + outputPath);
-                        }
-                    } else {
-                        statusText.setText("Conversion failed: " + (result != null ? result : "Unknown error"));
-                        Toast.makeText(this, "Conversion failed", Toast.LENGTH_SHORT).show();
-                        Log.e(TAG, "Conversion failed with result: " + result);
-                    }
-                });
+                if (result.copyFailed) {
+                    Toast.makeText(this, result.fileName + " created successfully for " + result.configName + "!\nSaved to app directory (failed to copy to selected location)", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, result.fileName + " created successfully for " + result.configName + "!\nSaved to: " + result.savedTo, Toast.LENGTH_LONG).show();
+                }
                 
-            } catch (Exception e) {
-                Log.e(TAG, "Conversion error", e);
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE);
-                    progressText.setVisibility(View.GONE);
-                    convertButton.setEnabled(true);
-                    statusText.setText("Conversion failed: " + e.getMessage());
-                    Toast.makeText(this, "Conversion failed", Toast.LENGTH_SHORT).show();
-                    
-                    // Stop the torch animation on error
-                    stopTorchAnimation();
-                });
+                Log.i(TAG, "Output file confirmed: " + result.savedTo + " (" + result.size + " bytes)");
+            } else {
+                statusText.setText("Conversion reported success but no output file found");
+                Toast.makeText(this, "No output file created", Toast.LENGTH_SHORT).show();
+                Log.e(TAG, "No output file found for " + result.fileName);
             }
-        }).start();
+        } else {
+            statusText.setText("Conversion failed: " + (result.message != null ? result.message : "Unknown error"));
+            Toast.makeText(this, "Conversion failed", Toast.LENGTH_SHORT).show();
+            Log.e(TAG, "Conversion failed with result: " + result.message);
+        }
     }
 
     private void startTorchAnimation() {
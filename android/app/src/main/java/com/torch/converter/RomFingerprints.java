@@ -0,0 +1,62 @@
+package com.torch.converter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+/**
+ * Remembers the SHA-1 of picked ROMs so picking the same file again does not hash it again.
+ * Entries are keyed by uri, size and modification time, any change to the file gives it a new key.
+ */
+final class RomFingerprints {
+    private static final String PREFS = "rom_fingerprints";
+    // Fingerprints are tiny but never expire on their own, start over once this many have piled up
+    private static final int MAX_ENTRIES = 32;
+
+    private RomFingerprints() {}
+
+    // Returns null when the provider reports no size, the file can not be told apart from a changed copy then
+    static String key(Context context, Uri uri) {
+        long size = -1;
+        long lastModified = -1;
+
+        try (Cursor cursor = context.getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+                    size = cursor.getLong(sizeIndex);
+                }
+                int modifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (modifiedIndex >= 0 && !cursor.isNull(modifiedIndex)) {
+                    lastModified = cursor.getLong(modifiedIndex);
+                }
+            }
+        }
+
+        return size > 0 ? uri + "|" + size + "|" + lastModified : null;
+    }
+
+    static String get(Context context, String key) {
+        return key != null ? getPrefs(context).getString(key, null) : null;
+    }
+
+    static void put(Context context, String key, String hash) {
+        if (key == null) {
+            return;
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (prefs.getAll().size() >= MAX_ENTRIES) {
+            editor.clear();
+        }
+        editor.putString(key, hash).apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+}
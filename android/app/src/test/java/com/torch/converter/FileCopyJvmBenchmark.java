@@ -0,0 +1,122 @@
+package com.torch.converter;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The pure Java parts of the :benchmark module, run on the desktop JVM for quick numbers without a device:
+ *   ./gradlew :app:testDebugUnitTest --tests '*JvmBenchmark*' -Pbenchmark -i
+ * Without -Pbenchmark every test is skipped, so a plain test run does not pay for the copies.
+ * Reports the median of a few timed runs after warming up, desktop disks and JITs only show relative changes.
+ */
+public class FileCopyJvmBenchmark {
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+    private static final int ROM_SIZE = 12 * 1024 * 1024;
+
+    private interface Body {
+        void run() throws IOException;
+    }
+
+    private static File scratch;
+    private static File rom;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+
+        scratch = Files.createTempDirectory("torch-benchmark").toFile();
+        rom = new File(scratch, "rom.z64");
+
+        byte[] data = new byte[ROM_SIZE];
+        new Random(ROM_SIZE).nextBytes(data);
+        Files.write(rom.toPath(), data);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        // Still called when setUp skipped the class
+        if (scratch != null) {
+            FileCopy.deleteRecursively(scratch);
+        }
+    }
+
+    @Test
+    public void copyRom() throws IOException {
+        File dest = new File(scratch, "copy.o2r");
+        for (int bufferSize : new int[] { 8 * 1024, FileCopy.ASSET_BUFFER_SIZE, FileCopy.LARGE_BUFFER_SIZE }) {
+            measure("copy 12 MB rom, " + (bufferSize / 1024) + " KB buffer", () -> copyFile(rom, dest, bufferSize));
+        }
+    }
+
+    @Test
+    public void stageBundledTrees() throws IOException {
+        for (String config : new String[] { "starship", "spaghetti" }) {
+            // Unit tests run from the module directory
+            File source = new File("src/main/assets/" + config);
+            File dest = new File(scratch, config);
+            if (!source.isDirectory()) {
+                System.out.println("Skipping " + config + ", the bundled assets are not in " + source.getAbsolutePath());
+                continue;
+            }
+
+            measure("copy " + config + " tree", () -> {
+                FileCopy.deleteRecursively(dest);
+                copyTree(source, dest);
+            });
+            measure("delete " + config + " tree", () -> {
+                copyTree(source, dest);
+                FileCopy.deleteRecursively(dest);
+            });
+        }
+    }
+
+    private static void copyTree(File source, File dest) throws IOException {
+        File[] children = source.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        dest.mkdirs();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                copyTree(child, new File(dest, child.getName()));
+            } else {
+                copyFile(child, new File(dest, child.getName()), FileCopy.ASSET_BUFFER_SIZE);
+            }
+        }
+    }
+
+    private static void copyFile(File source, File dest, int bufferSize) throws IOException {
+        try (FileInputStream input = new FileInputStream(source);
+             FileOutputStream output = new FileOutputStream(dest)) {
+            FileCopy.copy(input, output, bufferSize);
+        }
+    }
+
+    private static void measure(String name, Body body) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            body.run();
+        }
+
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            times[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(times);
+        System.out.printf("%-40s median %8.2f ms, min %8.2f ms%n", name, times[RUNS / 2] / 1e6, times[0] / 1e6);
+    }
+}
@@ -0,0 +1,83 @@
+package com.torch.converter;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Startup config staging: mirroring the bundled starship and spaghetti trees out of the APK into a scratch directory.
+ * Cold syncs copy every file, warm ones find the directory up to date.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AssetSyncBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void syncStarshipCold() throws IOException {
+        syncCold("starship");
+    }
+
+    @Test
+    public void syncSpaghettiCold() throws IOException {
+        syncCold("spaghetti");
+    }
+
+    @Test
+    public void syncStarshipWarm() throws IOException {
+        syncWarm("starship");
+    }
+
+    @Test
+    public void syncSpaghettiWarm() throws IOException {
+        syncWarm("spaghetti");
+    }
+
+    @Test
+    public void deleteStarshipTree() throws IOException {
+        File dir = BenchmarkFiles.scratch("starship");
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            BundledAssetSync.sync(BenchmarkFiles.context(), "starship", dir);
+            state.resumeTiming();
+
+            FileCopy.deleteRecursively(dir);
+        }
+    }
+
+    private void syncCold(String config) throws IOException {
+        File dir = BenchmarkFiles.scratch(config);
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            FileCopy.deleteRecursively(dir);
+            dir.mkdirs();
+            state.resumeTiming();
+
+            BundledAssetSync.sync(BenchmarkFiles.context(), config, dir);
+        }
+        FileCopy.deleteRecursively(dir);
+    }
+
+    private void syncWarm(String config) throws IOException {
+        File dir = BenchmarkFiles.scratch(config);
+        dir.mkdirs();
+        BundledAssetSync.sync(BenchmarkFiles.context(), config, dir);
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            BundledAssetSync.sync(BenchmarkFiles.context(), config, dir);
+        }
+        FileCopy.deleteRecursively(dir);
+    }
+}
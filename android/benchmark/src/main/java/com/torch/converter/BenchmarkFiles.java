@@ -0,0 +1,49 @@
+package com.torch.converter;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by the benchmarks, written once per process into the app's cache directory.
+ */
+final class BenchmarkFiles {
+    // Star Fox 64 and Mario Kart 64 are 12 MB, the largest N64 carts 64 MB
+    static final int ROM_SIZE = 12 * 1024 * 1024;
+    static final int LARGE_ROM_SIZE = 64 * 1024 * 1024;
+
+    private BenchmarkFiles() {}
+
+    static Context context() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    static File scratch(String name) {
+        File dir = new File(context().getCacheDir(), "benchmark");
+        dir.mkdirs();
+        return new File(dir, name);
+    }
+
+    // Random content, like a compressed cart nothing along the way can shortcut it
+    static File rom(int size) throws IOException {
+        File file = scratch("rom-" + size + ".z64");
+        if (file.length() == size) {
+            return file;
+        }
+
+        Random random = new Random(size);
+        byte[] chunk = new byte[1024 * 1024];
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                output.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,58 @@
+package com.torch.converter;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * ROM sized copies through FileCopy, the loop behind the output fallback copy and the config import.
+ * Each buffer size the app has used is measured so a change of FileCopy shows up against all of them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileCopyBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void copyRom8k() throws IOException {
+        copy(BenchmarkFiles.ROM_SIZE, 8 * 1024);
+    }
+
+    @Test
+    public void copyRomAssetBuffer() throws IOException {
+        copy(BenchmarkFiles.ROM_SIZE, FileCopy.ASSET_BUFFER_SIZE);
+    }
+
+    @Test
+    public void copyRomLargeBuffer() throws IOException {
+        copy(BenchmarkFiles.ROM_SIZE, FileCopy.LARGE_BUFFER_SIZE);
+    }
+
+    @Test
+    public void copyLargeRomLargeBuffer() throws IOException {
+        copy(BenchmarkFiles.LARGE_ROM_SIZE, FileCopy.LARGE_BUFFER_SIZE);
+    }
+
+    private void copy(int size, int bufferSize) throws IOException {
+        File source = BenchmarkFiles.rom(size);
+        File dest = BenchmarkFiles.scratch("copy.o2r");
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            try (FileInputStream input = new FileInputStream(source);
+                 FileOutputStream output = new FileOutputStream(dest)) {
+                FileCopy.copy(input, output, bufferSize);
+            }
+        }
+        dest.delete();
+    }
+}
@@ -0,0 +1,82 @@
+package com.torch.converter;
+
+import android.os.ParcelFileDescriptor;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Crossings into libtorch around a conversion: staging a ROM into native memory, with and without hashing it,
+ * and building the engine session of a config.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JniBenchmark {
+    // Any 40 character hash skips hashing, staging does not check it against the data
+    private static final String KNOWN_HASH = "0000000000000000000000000000000000000000";
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void stageRom() throws IOException {
+        stage(BenchmarkFiles.ROM_SIZE, KNOWN_HASH);
+    }
+
+    @Test
+    public void stageAndHashRom() throws IOException {
+        stage(BenchmarkFiles.ROM_SIZE, "");
+    }
+
+    @Test
+    public void stageAndHashLargeRom() throws IOException {
+        stage(BenchmarkFiles.LARGE_ROM_SIZE, "");
+    }
+
+    @Test
+    public void createStarshipSession() throws IOException {
+        createSession("starship");
+    }
+
+    @Test
+    public void createSpaghettiSession() throws IOException {
+        createSession("spaghetti");
+    }
+
+    private void stage(int size, String hash) throws IOException {
+        File rom = BenchmarkFiles.rom(size);
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            // Native takes the descriptor over and closes it
+            int fd = ParcelFileDescriptor.open(rom, ParcelFileDescriptor.MODE_READ_ONLY).detachFd();
+            long staged = ConversionService.stageRom(fd, hash);
+
+            state.pauseTiming();
+            ConversionService.releaseStagedRom(staged);
+            state.resumeTiming();
+        }
+    }
+
+    private void createSession(String config) throws IOException {
+        File dir = BenchmarkFiles.scratch(config);
+        dir.mkdirs();
+        BundledAssetSync.sync(BenchmarkFiles.context(), config, dir);
+        BenchmarkState state = benchmarkRule.getState();
+
+        while (state.keepRunning()) {
+            long session = ConversionService.createSession(dir.getAbsolutePath(), "");
+
+            state.pauseTiming();
+            ConversionService.destroySession(session);
+            state.resumeTiming();
+        }
+    }
+}
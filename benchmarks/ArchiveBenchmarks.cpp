@@ -0,0 +1,52 @@
+#include <benchmark/benchmark.h>
+
+#include <filesystem>
+#include "Fixtures.h"
+#include "archive/ZWrapper.h"
+#include "archive/SWrapper.h"
+
+namespace fs = std::filesystem;
+
+// Exported resources are mostly small, a few textures and blobs are much larger
+static std::vector<std::vector<char>> ArchiveEntries(const size_t count, const size_t size) {
+    std::vector<std::vector<char>> entries;
+
+    for (size_t i = 0; i < count; i++) {
+        const auto data = Fixtures::AssetData(i % 16 == 0 ? size * 8 : size, 0x4F325200 + i);
+        entries.emplace_back(data.begin(), data.end());
+    }
+
+    return entries;
+}
+
+template<typename T>
+static void BM_ArchiveWrite(benchmark::State& state, const std::string& extension) {
+    const auto entries = ArchiveEntries(state.range(0), state.range(1));
+    const auto path = (fs::temp_directory_path() / ("torch-bench" + extension)).string();
+    size_t total = 0;
+
+    for (const auto& entry : entries) {
+        total += entry.size();
+    }
+
+    for (auto _ : state) {
+        T wrapper(path);
+        wrapper.CreateArchive();
+
+        for (size_t i = 0; i < entries.size(); i++) {
+            wrapper.AddFile("bench/entry_" + std::to_string(i), entries[i]);
+        }
+
+        wrapper.Close();
+    }
+
+    state.SetBytesProcessed(state.iterations() * total);
+    state.counters["archive"] = fs::file_size(path);
+    fs::remove(path);
+}
+
+BENCHMARK_TEMPLATE1_CAPTURE(BM_ArchiveWrite, ZWrapper, o2r, ".o2r")->Args({ 2048, 4 << 10 })->UseRealTime()->Unit(benchmark::kMillisecond);
+
+#ifdef USE_STORMLIB
+BENCHMARK_TEMPLATE1_CAPTURE(BM_ArchiveWrite, SWrapper, otr, ".otr")->Args({ 2048, 4 << 10 })->UseRealTime()->Unit(benchmark::kMillisecond);
+#endif
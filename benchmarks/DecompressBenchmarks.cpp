@@ -0,0 +1,99 @@
+#include <benchmark/benchmark.h>
+
+#include <map>
+#include <stdexcept>
+#include "Fixtures.h"
+#include "preprocess/CompTool.h"
+#include "utils/Decompressor.h"
+
+struct EncodedFixture {
+    std::vector<uint8_t> raw;
+    std::vector<uint8_t> encoded;
+};
+
+// Encoding is far slower than decoding, each blob is only built the first time a size is benchmarked
+static const EncodedFixture& GetEncoded(const CompressionType type, const size_t size) {
+    static std::map<std::pair<CompressionType, size_t>, EncodedFixture> fixtures;
+    const auto key = std::make_pair(type, size);
+
+    if(!fixtures.contains(key)) {
+        auto raw = Fixtures::AssetData(size, 0x4D494F30);
+        std::vector<uint8_t> encoded;
+
+        switch (type) {
+            case CompressionType::MIO0:
+                encoded = Fixtures::EncodeMIO0(raw);
+                break;
+            case CompressionType::YAY0:
+                encoded = Fixtures::EncodeYay0(raw);
+                break;
+            case CompressionType::YAY1:
+                encoded = Fixtures::EncodeYay1(raw);
+                break;
+            default:
+                throw std::runtime_error("No encoder for this compression type");
+        }
+
+        fixtures[key] = { std::move(raw), std::move(encoded) };
+    }
+
+    return fixtures.at(key);
+}
+
+static void BM_Decode(benchmark::State& state, const CompressionType type) {
+    const auto& fixture = GetEncoded(type, state.range(0));
+
+    for (auto _ : state) {
+        auto chunk = Decompressor::Decode(fixture.encoded, 0, type, true);
+        benchmark::DoNotOptimize(chunk->data);
+    }
+
+    state.SetBytesProcessed(state.iterations() * fixture.raw.size());
+    state.counters["ratio"] = (double) fixture.raw.size() / fixture.encoded.size();
+}
+
+BENCHMARK_CAPTURE(BM_Decode, mio0, CompressionType::MIO0)->Arg(4 << 10)->Arg(64 << 10)->Arg(1 << 20);
+BENCHMARK_CAPTURE(BM_Decode, yay0, CompressionType::YAY0)->Arg(4 << 10)->Arg(64 << 10)->Arg(1 << 20);
+BENCHMARK_CAPTURE(BM_Decode, yay1, CompressionType::YAY1)->Arg(4 << 10)->Arg(64 << 10)->Arg(1 << 20);
+
+// Assets sharing a compressed segment only pay for the cache lookup after the first one
+static void BM_DecodeCached(benchmark::State& state) {
+    const auto& fixture = GetEncoded(CompressionType::MIO0, 64 << 10);
+
+    Decompressor::ClearCache();
+    Decompressor::Decode(fixture.encoded, 0, CompressionType::MIO0);
+
+    for (auto _ : state) {
+        auto chunk = Decompressor::Decode(fixture.encoded, 0, CompressionType::MIO0);
+        benchmark::DoNotOptimize(chunk->data);
+    }
+
+    Decompressor::ClearCache();
+}
+
+BENCHMARK(BM_DecodeCached);
+
+static void BM_CompToolDecompress(benchmark::State& state) {
+    // Building a rom takes seconds, the runner calls this once per repetition
+    static std::map<std::pair<int64_t, int64_t>, std::vector<uint8_t>> roms;
+    const auto key = std::make_pair(state.range(0), state.range(1));
+
+    if(!roms.contains(key)) {
+        roms[key] = Fixtures::CompressedRom(key.first, key.second, 0x53463634);
+    }
+
+    const auto& rom = roms.at(key);
+    size_t outSize = 0;
+
+    for (auto _ : state) {
+        auto decompressed = CompTool::Decompress(rom);
+        outSize = decompressed.size();
+        benchmark::DoNotOptimize(decompressed.data());
+    }
+
+    state.SetBytesProcessed(state.iterations() * outSize);
+    state.counters["rom"] = rom.size();
+}
+
+// About the layout of a compressed Star Fox 64 rom, then a few large segments
+BENCHMARK(BM_CompToolDecompress)->Args({ 256, 48 << 10 })->Args({ 16, 512 << 10 })->UseRealTime()->Unit(benchmark::kMillisecond);
@@ -0,0 +1,117 @@
+#include <benchmark/benchmark.h>
+
+#include <sstream>
+#include "Fixtures.h"
+#include "factories/TextureFactory.h"
+#include "factories/DisplayListFactory.h"
+
+// Assets start past the header like they would in a rom
+#define ASSET_OFFSET 0x1000
+
+static YAML::Node TextureNode(const std::string& format, const uint32_t width, const uint32_t height) {
+    YAML::Node node;
+    node["type"] = "TEXTURE";
+    node["symbol"] = "bench_tex";
+    node["offset"] = ASSET_OFFSET;
+    node["format"] = format;
+    node["width"] = width;
+    node["height"] = height;
+    return node;
+}
+
+static void BM_TextureParse(benchmark::State& state, const std::string& format, const uint32_t width, const uint32_t height) {
+    auto buffer = Fixtures::AssetData(ASSET_OFFSET + width * height * 4, 0x54455854);
+    auto node = TextureNode(format, width, height);
+    TextureFactory factory;
+
+    for (auto _ : state) {
+        auto data = factory.parse(buffer, node);
+        benchmark::DoNotOptimize(data);
+    }
+}
+
+static void BM_TextureExport(benchmark::State& state, const ExportType type, const std::string& format, const uint32_t width, const uint32_t height) {
+    auto buffer = Fixtures::AssetData(ASSET_OFFSET + width * height * 4, 0x54455854);
+    auto node = TextureNode(format, width, height);
+    TextureFactory factory;
+
+    const auto data = factory.parse(buffer, node).value();
+    const auto exporter = factory.GetExporter(type).value();
+    std::string entryName = "bench_tex";
+    size_t written = 0;
+
+    for (auto _ : state) {
+        std::stringstream stream;
+        std::string replacement = "textures/bench_tex";
+        exporter->Export(stream, data, entryName, node, &replacement);
+        written = stream.tellp();
+    }
+
+    state.counters["output"] = written;
+}
+
+BENCHMARK_CAPTURE(BM_TextureParse, rgba16, "RGBA16", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureParse, i4, "I4", 64, 64);
+
+BENCHMARK_CAPTURE(BM_TextureExport, binary_rgba16, ExportType::Binary, "RGBA16", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureExport, binary_rgba32, ExportType::Binary, "RGBA32", 64, 64);
+
+// Modding exports go through the png encoder, the slowest of the texture paths
+BENCHMARK_CAPTURE(BM_TextureExport, png_rgba16, ExportType::Modding, "RGBA16", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureExport, png_rgba32, ExportType::Modding, "RGBA32", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureExport, png_ia8, ExportType::Modding, "IA8", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureExport, png_ia16, ExportType::Modding, "IA16", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureExport, png_i4, ExportType::Modding, "I4", 64, 64);
+BENCHMARK_CAPTURE(BM_TextureExport, png_i8, ExportType::Modding, "I8", 64, 64);
+
+static YAML::Node DisplayListNode() {
+    YAML::Node node;
+    node["type"] = "GFX";
+    node["symbol"] = "bench_dl";
+    node["offset"] = ASSET_OFFSET;
+    return node;
+}
+
+static std::vector<uint8_t> DisplayListBuffer(const uint32_t triangles) {
+    auto buffer = Fixtures::AssetData(ASSET_OFFSET, 0x47465831);
+    const auto gfx = Fixtures::DisplayList(triangles, 0x47465831);
+    buffer.insert(buffer.end(), gfx.begin(), gfx.end());
+    return buffer;
+}
+
+static void BM_DisplayListParse(benchmark::State& state) {
+    auto buffer = DisplayListBuffer(state.range(0));
+    auto node = DisplayListNode();
+    DListFactory factory;
+    size_t commands = 0;
+
+    for (auto _ : state) {
+        auto data = factory.parse(buffer, node);
+        commands = std::static_pointer_cast<DListData>(data.value())->mGfxs.size() / 2;
+    }
+
+    state.SetItemsProcessed(state.iterations() * commands);
+}
+
+static void BM_DisplayListExport(benchmark::State& state) {
+    auto buffer = DisplayListBuffer(state.range(0));
+    auto node = DisplayListNode();
+    DListFactory factory;
+
+    const auto data = factory.parse(buffer, node).value();
+    const auto exporter = factory.GetExporter(ExportType::Binary).value();
+    const auto commands = std::static_pointer_cast<DListData>(data)->mGfxs.size() / 2;
+    std::string entryName = "bench_dl";
+
+    for (auto _ : state) {
+        std::stringstream stream;
+        std::string replacement = "gfx/bench_dl";
+        exporter->Export(stream, data, entryName, node, &replacement);
+        benchmark::DoNotOptimize(stream);
+    }
+
+    state.SetItemsProcessed(state.iterations() * commands);
+}
+
+BENCHMARK(BM_DisplayListParse)->Arg(64)->Arg(4096);
+BENCHMARK(BM_DisplayListExport)->Arg(64)->Arg(4096);
@@ -0,0 +1,221 @@
+#include "Fixtures.h"
+
+#include <algorithm>
+#include <cstring>
+#include <random>
+#include <stdexcept>
+
+extern "C" {
+#include <libmio0/mio0.h>
+}
+
+// Smallest decompressed rom CompTool can calculate the CRCs of
+#define CRC_END 0x101000
+#define ALIGN16(val) (((val) + 0xF) & ~0xF)
+
+static void WriteU32(std::vector<uint8_t>& buffer, size_t offset, uint32_t value) {
+    buffer[offset + 0] = (value >> 24) & 0xFF;
+    buffer[offset + 1] = (value >> 16) & 0xFF;
+    buffer[offset + 2] = (value >> 8) & 0xFF;
+    buffer[offset + 3] = value & 0xFF;
+}
+
+std::vector<uint8_t> Fixtures::AssetData(const size_t size, const uint32_t seed) {
+    // Only raw engine output is used, the distributions are not guaranteed to match between standard libraries
+    std::mt19937 random(seed);
+    std::vector<uint8_t> data(size);
+    size_t i = 0;
+
+    while (i < size) {
+        const size_t length = std::min<size_t>(16 + random() % 240, size - i);
+
+        switch (random() % 4) {
+            case 0: // Padding and transparent texels
+                std::fill_n(data.begin() + i, length, 0);
+                break;
+            case 1: { // Repeated geometry and palette data
+                const size_t distance = 1 + random() % 1024;
+                for (size_t j = 0; j < length; j++) {
+                    data[i + j] = i + j >= distance ? data[i + j - distance] : random();
+                }
+                break;
+            }
+            case 2: { // Gradients
+                const uint8_t start = random();
+                const uint8_t step = random() % 4;
+                for (size_t j = 0; j < length; j++) {
+                    data[i + j] = start + step * (j / 2);
+                }
+                break;
+            }
+            default:
+                for (size_t j = 0; j < length; j++) {
+                    data[i + j] = random();
+                }
+                break;
+        }
+
+        i += length;
+    }
+
+    return data;
+}
+
+template<typename T>
+static std::vector<uint8_t> Encode(T encode, const std::vector<uint8_t>& data) {
+    // Literals and back references never take more room than the bytes they stand for, the control bits add one
+    // bit per byte on top of the header
+    std::vector<uint8_t> out(data.size() + data.size() / 4 + 64);
+    const auto size = encode(data.data(), data.size(), out.data());
+
+    if(size <= 0 || (size_t) size > out.size()) {
+        throw std::runtime_error("Failed to encode benchmark fixture");
+    }
+
+    out.resize(size);
+    return out;
+}
+
+std::vector<uint8_t> Fixtures::EncodeMIO0(const std::vector<uint8_t>& data) {
+    return Encode(&mio0_encode, data);
+}
+
+// The Yay encoders in libyay0 write MIO0 style back references the Yay decoders can not read, so the blobs are
+// converted from MIO0 instead. The control bits match, only the links and the chunk stream need rewriting.
+static std::vector<uint8_t> TranscodeMIO0(const std::vector<uint8_t>& mio0, const char* magic) {
+    mio0_header_t head;
+    if(!mio0_decode_header(mio0.data(), &head)) {
+        throw std::runtime_error("Failed to decode MIO0 fixture");
+    }
+
+    std::vector<uint8_t> links;
+    std::vector<uint8_t> chunks;
+    size_t comp = head.comp_offset;
+    size_t uncomp = head.uncomp_offset;
+    uint32_t bit = 0;
+
+    for (uint32_t written = 0; written < head.dest_size; bit++) {
+        if(mio0[MIO0_HEADER_LENGTH + bit / 8] & (0x80 >> (bit % 8))) {
+            chunks.push_back(mio0[uncomp++]);
+            written++;
+            continue;
+        }
+
+        const uint32_t length = (mio0[comp] >> 4) + 3;
+
+        // Yay links store the length minus two, 18 bytes need the extended form with the length in the chunk stream
+        if(length <= 17) {
+            links.push_back(((length - 2) << 4) | (mio0[comp] & 0x0F));
+        } else {
+            links.push_back(mio0[comp] & 0x0F);
+            chunks.push_back(length - 18);
+        }
+        links.push_back(mio0[comp + 1]);
+        comp += 2;
+        written += length;
+    }
+
+    const uint32_t linkOffset = head.comp_offset;
+    const uint32_t chunkOffset = linkOffset + links.size();
+    std::vector<uint8_t> out(mio0.begin(), mio0.begin() + linkOffset);
+
+    memcpy(out.data(), magic, 4);
+    WriteU32(out, 12, chunkOffset);
+    out.insert(out.end(), links.begin(), links.end());
+    out.insert(out.end(), chunks.begin(), chunks.end());
+    return out;
+}
+
+std::vector<uint8_t> Fixtures::EncodeYay0(const std::vector<uint8_t>& data) {
+    return TranscodeMIO0(Fixtures::EncodeMIO0(data), "Yay0");
+}
+
+std::vector<uint8_t> Fixtures::EncodeYay1(const std::vector<uint8_t>& data) {
+    return TranscodeMIO0(Fixtures::EncodeMIO0(data), "Yay1");
+}
+
+std::vector<uint8_t> Fixtures::CompressedRom(uint32_t files, uint32_t fileSize, const uint32_t seed) {
+    constexpr uint32_t bootSize = 0x1050;
+
+    fileSize = ALIGN16(fileSize);
+    files = std::max(files, CRC_END / fileSize + 1);
+
+    // Boot segment, the file table and the table terminator
+    const uint32_t tableSize = (files + 3) * 0x10;
+    const uint32_t dataStart = ALIGN16(bootSize + tableSize);
+
+    std::vector<uint8_t> rom(dataStart, 0);
+    std::mt19937 random(seed);
+
+    // Plain noise, without any 0x10 byte the table search could mistake for the start of the table
+    for (uint32_t i = 0x40; i < bootSize; i++) {
+        const uint8_t value = random();
+        rom[i] = value == 0x10 ? 0x11 : value;
+    }
+    WriteU32(rom, 0, 0x80371240);
+
+    const uint32_t table = bootSize;
+    WriteU32(rom, table + 0x08, bootSize);
+    WriteU32(rom, table + 0x10, table);
+    WriteU32(rom, table + 0x14, table);
+    WriteU32(rom, table + 0x18, table + tableSize);
+
+    uint32_t virtualAddr = dataStart;
+    for (uint32_t i = 0; i < files; i++) {
+        const auto data = Fixtures::AssetData(fileSize, seed + i + 1);
+        const bool compressed = i % 2 == 1;
+        const auto payload = compressed ? Fixtures::EncodeMIO0(data) : data;
+        const uint32_t physicalAddr = rom.size();
+        const uint32_t entry = table + (i + 2) * 0x10;
+
+        rom.insert(rom.end(), payload.begin(), payload.end());
+        rom.resize(ALIGN16(rom.size()), 0);
+
+        WriteU32(rom, entry, virtualAddr);
+        WriteU32(rom, entry + 4, physicalAddr);
+        WriteU32(rom, entry + 8, physicalAddr + payload.size());
+        WriteU32(rom, entry + 12, compressed ? 1 : 0);
+        virtualAddr += fileSize;
+    }
+
+    return rom;
+}
+
+std::vector<uint8_t> Fixtures::DisplayList(const uint32_t triangles, const uint32_t seed) {
+    std::mt19937 random(seed);
+    std::vector<uint32_t> gfxs = {
+        0xE7000000, 0x00000000, // gsDPPipeSync
+        0xB7000000, 0x00022000, // gsSPSetGeometryMode
+        0xFC121824, 0xFF33FFFF, // gsDPSetCombineMode
+        0xB900031D, 0x00552078, // gsDPSetRenderMode
+        0xBB000001, 0xFFFFFFFF, // gsSPTexture
+        0xF5100000, 0x07000000, // gsDPSetTile
+        0xF2000000, 0x0007C07C, // gsDPSetTileSize
+    };
+
+    for (uint32_t i = 0; i < triangles; i++) {
+        // A vertex batch holds 16 vertices, state changes between batches like a real model
+        if(i % 16 == 15) {
+            gfxs.insert(gfxs.end(), {
+                0xE7000000, 0x00000000,
+                0xF2000000, 0x0007C07C | ((random() % 4) << 12),
+            });
+        }
+
+        const uint32_t v0 = random() % 16;
+        const uint32_t v1 = random() % 16;
+        const uint32_t v2 = random() % 16;
+        gfxs.push_back(0xBF000000);
+        gfxs.push_back((v0 * 10) << 16 | (v1 * 10) << 8 | v2 * 10);
+    }
+
+    gfxs.push_back(0xB8000000); // gsSPEndDisplayList
+    gfxs.push_back(0x00000000);
+
+    std::vector<uint8_t> data(gfxs.size() * sizeof(uint32_t));
+    for (size_t i = 0; i < gfxs.size(); i++) {
+        WriteU32(data, i * sizeof(uint32_t), gfxs[i]);
+    }
+
+    return data;
+}
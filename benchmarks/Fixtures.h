@@ -0,0 +1,26 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+/**
+ * Generated inputs for the benchmarks, so they run without any ROM. Every fixture is deterministic for a given seed,
+ * results of two builds are only comparable when they ran on the same data.
+ */
+namespace Fixtures {
+    // Mix of zero runs, repeated blocks, gradients and noise, compresses about as well as real N64 asset data
+    std::vector<uint8_t> AssetData(size_t size, uint32_t seed);
+
+    std::vector<uint8_t> EncodeMIO0(const std::vector<uint8_t>& data);
+    std::vector<uint8_t> EncodeYay0(const std::vector<uint8_t>& data);
+    std::vector<uint8_t> EncodeYay1(const std::vector<uint8_t>& data);
+
+    // Big endian rom with a file table in the layout CompTool::Decompress looks for, every other file is MIO0
+    // compressed. The decompressed rom is always large enough for the CRC pass.
+    std::vector<uint8_t> CompressedRom(uint32_t files, uint32_t fileSize, uint32_t seed);
+
+    // F3D display list of triangles and render state commands, ends with G_ENDDL. It has no G_VTX, G_DL, G_MOVEMEM,
+    // G_SETTIMG or G_MTX so the factory never has to look up other assets.
+    std::vector<uint8_t> DisplayList(uint32_t triangles, uint32_t seed);
+}
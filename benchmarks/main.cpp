@@ -0,0 +1,28 @@
+#include <benchmark/benchmark.h>
+
+#include "Companion.h"
+#include "spdlog/spdlog.h"
+
+Companion* Companion::Instance;
+
+int main(int argc, char** argv) {
+    benchmark::Initialize(&argc, argv);
+
+    if(benchmark::ReportUnrecognizedArguments(argc, argv)) {
+        return 1;
+    }
+
+    // Factories read the gbi version, the compression type and the segments of the current file from the companion,
+    // an empty one behaves like an uncompressed f3d file
+    Companion::Instance = new Companion(std::vector<uint8_t>(), ArchiveType::O2R, false, false);
+    Companion::Instance->InitFactoriesOnly(ExportType::Binary);
+
+    // Measure the conversion code, not the console
+    spdlog::set_level(spdlog::level::off);
+
+    benchmark::RunSpecifiedBenchmarks();
+    benchmark::Shutdown();
+
+    delete Companion::Instance;
+    return 0;
+}
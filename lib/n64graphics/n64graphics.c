@@ -25,6 +25,12 @@ extern unsigned char *stbi_write_plte_png_to_mem(const unsigned char *pixels, in
 
 unsigned short magicFiller = 0x07FE;
 
+// RGBA32, IA16 and CI8 are copied straight into and out of the intermediate formats
+_Static_assert(sizeof(rgba) == 4 && sizeof(ia) == 2 && sizeof(ci) == 1, "intermediate formats must be packed");
+
+// The pixel loops below avoid branches and per pixel nibble and bit lookups so the compiler can turn them into
+// NEON or SSE2 code, the 4 bit formats are handled two pixels per byte and the 1 bit format eight
+
 typedef struct {
     enum {
         IMG_FORMAT_RGBA,
@@ -52,18 +58,14 @@ rgba* raw2rgba(const uint8_t* raw, int width, int height, int depth) {
 
     if (depth == 16) {
         for (int i = 0; i < width * height; i++) {
-            img[i].red = SCALE_5_8((raw[i * 2] & 0xF8) >> 3);
-            img[i].green = SCALE_5_8(((raw[i * 2] & 0x07) << 2) | ((raw[i * 2 + 1] & 0xC0) >> 6));
-            img[i].blue = SCALE_5_8((raw[i * 2 + 1] & 0x3E) >> 1);
-            img[i].alpha = (raw[i * 2 + 1] & 0x01) ? 0xFF : 0x00;
+            const unsigned px = (raw[i * 2] << 8) | raw[i * 2 + 1];
+            img[i].red = SCALE_5_8(px >> 11);
+            img[i].green = SCALE_5_8((px >> 6) & 0x1F);
+            img[i].blue = SCALE_5_8((px >> 1) & 0x1F);
+            img[i].alpha = (px & 0x01) ? 0xFF : 0x00;
         }
     } else if (depth == 32) {
-        for (int i = 0; i < width * height; i++) {
-            img[i].red = raw[i * 4];
-            img[i].green = raw[i * 4 + 1];
-            img[i].blue = raw[i * 4 + 2];
-            img[i].alpha = raw[i * 4 + 3];
-        }
+        memcpy(img, raw, img_size);
     }
 
     return img;
@@ -82,37 +84,33 @@ ia* raw2ia(const uint8_t* raw, int width, int height, int depth) {
 
     switch (depth) {
         case 16:
-            for (int i = 0; i < width * height; i++) {
-                img[i].intensity = raw[i * 2];
-                img[i].alpha = raw[i * 2 + 1];
-            }
+            memcpy(img, raw, img_size);
             break;
         case 8:
             for (int i = 0; i < width * height; i++) {
-                img[i].intensity = SCALE_4_8((raw[i] & 0xF0) >> 4);
+                img[i].intensity = SCALE_4_8(raw[i] >> 4);
                 img[i].alpha = SCALE_4_8(raw[i] & 0x0F);
             }
             break;
-        case 4:
-            for (int i = 0; i < width * height; i++) {
-                uint8_t bits;
-                bits = raw[i / 2];
-                if (i % 2) {
-                    bits &= 0xF;
-                } else {
-                    bits >>= 4;
-                }
-                img[i].intensity = SCALE_3_8((bits >> 1) & 0x07);
-                img[i].alpha = (bits & 0x01) ? 0xFF : 0x00;
+        case 4: {
+            const int pairs = width * height / 2;
+            for (int i = 0; i < pairs; i++) {
+                const uint8_t bits = raw[i];
+                img[i * 2].intensity = SCALE_3_8(bits >> 5);
+                img[i * 2].alpha = (bits & 0x10) ? 0xFF : 0x00;
+                img[i * 2 + 1].intensity = SCALE_3_8((bits >> 1) & 0x07);
+                img[i * 2 + 1].alpha = (bits & 0x01) ? 0xFF : 0x00;
+            }
+            if ((width * height) % 2) {
+                const uint8_t bits = raw[pairs];
+                img[pairs * 2].intensity = SCALE_3_8(bits >> 5);
+                img[pairs * 2].alpha = (bits & 0x10) ? 0xFF : 0x00;
             }
             break;
+        }
         case 1:
             for (int i = 0; i < width * height; i++) {
-                uint8_t bits;
-                uint8_t mask;
-                bits = raw[i / 8];
-                mask = 1 << (7 - (i % 8)); // MSb->LSb
-                bits = (bits & mask) ? 0xFF : 0x00;
+                const uint8_t bits = ((raw[i / 8] << (i % 8)) & 0x80) ? 0xFF : 0x00; // MSb->LSb
                 img[i].intensity = bits;
                 img[i].alpha = bits;
             }
@@ -138,16 +136,19 @@ ci *raw2ci_torch(const uint8_t* raw, int width, int height, int depth) {
 
     switch (depth) {
         case 8:
-            for (int i = 0; i < width * height; i++) {
-                img[i].index = raw[i];
-            }
+            memcpy(img, raw, img_size);
         break;
-        case 4:
-            for (int i = 0; i < width * height; i++) {
-                int pos = i / 2;
-                img[i].index = i % 2 ? raw[pos] & 0xF : raw[pos] >> 4;
+        case 4: {
+            const int pairs = width * height / 2;
+            for (int i = 0; i < pairs; i++) {
+                img[i * 2].index = raw[i] >> 4;
+                img[i * 2 + 1].index = raw[i] & 0xF;
+            }
+            if ((width * height) % 2) {
+                img[pairs * 2].index = raw[pairs] >> 4;
             }
         break;
+        }
         default:
             ERROR("Error invalid depth %d\n", depth);
         break;
@@ -174,19 +175,20 @@ ia* raw2i(const uint8_t* raw, int width, int height, int depth) {
                 img[i].alpha = 0xFF;
             }
             break;
-        case 4:
-            for (int i = 0; i < width * height; i++) {
-                uint8_t bits;
-                bits = raw[i / 2];
-                if (i % 2) {
-                    bits &= 0xF;
-                } else {
-                    bits >>= 4;
-                }
-                img[i].intensity = SCALE_4_8(bits);
-                img[i].alpha = 0xFF;
+        case 4: {
+            const int pairs = width * height / 2;
+            for (int i = 0; i < pairs; i++) {
+                img[i * 2].intensity = SCALE_4_8(raw[i] >> 4);
+                img[i * 2].alpha = 0xFF;
+                img[i * 2 + 1].intensity = SCALE_4_8(raw[i] & 0x0F);
+                img[i * 2 + 1].alpha = 0xFF;
+            }
+            if ((width * height) % 2) {
+                img[pairs * 2].intensity = SCALE_4_8(raw[pairs] >> 4);
+                img[pairs * 2].alpha = 0xFF;
             }
             break;
+        }
         default:
             ERROR("Error invalid depth %d\n", depth);
             break;
@@ -208,16 +210,10 @@ uint8_t* ci2raw(const uint8_t* rawci, const uint8_t* palette, int width, int hei
         return NULL;
     }
 
+    // Palette lookups do not vectorise, only keep the depth check out of the loop
     for (int i = 0; i < width * height; i++) {
-        int pal_idx = rawci[i];
-        if (ci_depth == 4) {
-            int byte_idx = i / 2;
-            int nibble = 1 - (i % 2);
-            int shift = 4 * nibble;
-            pal_idx = (rawci[byte_idx] >> shift) & 0xF;
-        }
-        raw[2 * i] = palette[2 * pal_idx];
-        raw[2 * i + 1] = palette[2 * pal_idx + 1];
+        const int pal_idx = ci_depth == 4 ? (rawci[i / 2] >> (i % 2 ? 0 : 4)) & 0xF : rawci[i];
+        memcpy(&raw[2 * i], &palette[2 * pal_idx], 2);
     }
 
     return raw;
@@ -234,21 +230,13 @@ int rgba2raw(uint8_t* raw, const rgba* img, int width, int height, int depth) {
 
     if (depth == 16) {
         for (int i = 0; i < width * height; i++) {
-            uint8_t r, g, b, a;
-            r = SCALE_8_5(img[i].red);
-            g = SCALE_8_5(img[i].green);
-            b = SCALE_8_5(img[i].blue);
-            a = img[i].alpha ? 0x1 : 0x0;
-            raw[i * 2] = (r << 3) | (g >> 2);
-            raw[i * 2 + 1] = ((g & 0x3) << 6) | (b << 1) | a;
+            const unsigned px = (SCALE_8_5(img[i].red) << 11) | (SCALE_8_5(img[i].green) << 6) |
+                                (SCALE_8_5(img[i].blue) << 1) | (img[i].alpha ? 0x1 : 0x0);
+            raw[i * 2] = px >> 8;
+            raw[i * 2 + 1] = px & 0xFF;
         }
     } else if (depth == 32) {
-        for (int i = 0; i < width * height; i++) {
-            raw[i * 4] = img[i].red;
-            raw[i * 4 + 1] = img[i].green;
-            raw[i * 4 + 2] = img[i].blue;
-            raw[i * 4 + 3] = img[i].alpha;
-        }
+        memcpy(raw, img, size);
     } else {
         ERROR("Error invalid depth %d\n", depth);
         size = -1;
@@ -263,10 +251,7 @@ int ia2raw(uint8_t* raw, const ia* img, int width, int height, int depth) {
 
     switch (depth) {
         case 16:
-            for (int i = 0; i < width * height; i++) {
-                raw[i * 2] = img[i].intensity;
-                raw[i * 2 + 1] = img[i].alpha;
-            }
+            memcpy(raw, img, size);
             break;
         case 8:
             for (int i = 0; i < width * height; i++) {
@@ -275,20 +260,28 @@ int ia2raw(uint8_t* raw, const ia* img, int width, int height, int depth) {
                 raw[i] = (val << 4) | alpha;
             }
             break;
-        case 4:
-            for (int i = 0; i < width * height; i++) {
-                uint8_t val = SCALE_8_3(img[i].intensity);
-                uint8_t alpha = img[i].alpha ? 0x01 : 0x00;
-                uint8_t old = raw[i / 2];
-                if (i % 2) {
-                    raw[i / 2] = (old & 0xF0) | (val << 1) | alpha;
-                } else {
-                    raw[i / 2] = (old & 0x0F) | (((val << 1) | alpha) << 4);
-                }
+        case 4: {
+            const int pairs = width * height / 2;
+            for (int i = 0; i < pairs; i++) {
+                const uint8_t hi = (SCALE_8_3(img[i * 2].intensity) << 1) | (img[i * 2].alpha ? 0x01 : 0x00);
+                const uint8_t lo = (SCALE_8_3(img[i * 2 + 1].intensity) << 1) | (img[i * 2 + 1].alpha ? 0x01 : 0x00);
+                raw[i] = (hi << 4) | lo;
+            }
+            if ((width * height) % 2) {
+                const uint8_t hi = (SCALE_8_3(img[pairs * 2].intensity) << 1) | (img[pairs * 2].alpha ? 0x01 : 0x00);
+                raw[pairs] = (raw[pairs] & 0x0F) | (hi << 4);
             }
             break;
+        }
         case 1:
-            for (int i = 0; i < width * height; i++) {
+            for (int i = 0; i < width * height / 8 * 8; i += 8) {
+                uint8_t bits = 0;
+                for (int j = 0; j < 8; j++) {
+                    bits |= (img[i + j].intensity ? 0x80 : 0x00) >> j;
+                }
+                raw[i / 8] = bits;
+            }
+            for (int i = width * height / 8 * 8; i < width * height; i++) {
                 uint8_t val = img[i].intensity;
                 uint8_t old = raw[i / 8];
                 uint8_t bit = 1 << (7 - (i % 8));
@@ -391,17 +384,16 @@ int i2raw(uint8_t* raw, const ia* img, int width, int height, int depth) {
                 raw[i] = img[i].intensity;
             }
             break;
-        case 4:
-            for (int i = 0; i < width * height; i++) {
-                uint8_t val = SCALE_8_4(img[i].intensity);
-                uint8_t old = raw[i / 2];
-                if (i % 2) {
-                    raw[i / 2] = (old & 0xF0) | val;
-                } else {
-                    raw[i / 2] = (old & 0x0F) | (val << 4);
-                }
+        case 4: {
+            const int pairs = width * height / 2;
+            for (int i = 0; i < pairs; i++) {
+                raw[i] = (SCALE_8_4(img[i * 2].intensity) << 4) | SCALE_8_4(img[i * 2 + 1].intensity);
+            }
+            if ((width * height) % 2) {
+                raw[pairs] = (raw[pairs] & 0x0F) | (SCALE_8_4(img[pairs * 2].intensity) << 4);
             }
             break;
+        }
         default:
             ERROR("Error invalid depth %d\n", depth);
             size = -1;
@@ -417,9 +409,7 @@ int ci2raw_torch(uint8_t *raw, const ci *img, int width, int height, int depth)
 
     switch (depth) {
         case 8:
-            for (int i = 0; i < width * height; i++) {
-                raw[i] = img[i].index;
-            }
+            memcpy(raw, img, size);
         break;
         case 4:
             for(int y = 0; y < height; y++) {
@@ -449,24 +439,8 @@ int ci2raw_torch(uint8_t *raw, const ci *img, int width, int height, int depth)
 int rgba2png(unsigned char** png_output, int* size_output, const rgba* img, int width, int height) {
     int ret = 0;
 
-    // convert to format stb_image_write expects
-    uint8_t* data = malloc(4 * width * height);
-    if (data) {
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                int idx = j * width + i;
-                data[4 * idx] = img[idx].red;
-                data[4 * idx + 1] = img[idx].green;
-                data[4 * idx + 2] = img[idx].blue;
-                data[4 * idx + 3] = img[idx].alpha;
-            }
-        }
-
-
-        *png_output = stbi_write_png_to_mem(data, 0, width, height, 4, size_output);
-
-        free(data);
-    }
+    // Already laid out the way stb_image_write expects
+    *png_output = stbi_write_png_to_mem((const unsigned char*) img, 0, width, height, 4, size_output);
 
     return ret;
 }
@@ -474,21 +448,8 @@ int rgba2png(unsigned char** png_output, int* size_output, const rgba* img, int
 int ia2png(unsigned char** png_output, int* size_output, const ia* img, int width, int height) {
     int ret = 0;
 
-    // convert to format stb_image_write expects
-    uint8_t* data = malloc(2 * width * height);
-    if (data) {
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                int idx = j * width + i;
-                data[2 * idx] = img[idx].intensity;
-                data[2 * idx + 1] = img[idx].alpha;
-            }
-        }
-
-        (*png_output) = stbi_write_png_to_mem(data, 0, width, height, 2, size_output);
-
-        free(data);
-    }
+    // Already laid out the way stb_image_write expects
+    (*png_output) = stbi_write_png_to_mem((const unsigned char*) img, 0, width, height, 2, size_output);
 
     return ret;
 }
@@ -496,20 +457,8 @@ int ia2png(unsigned char** png_output, int* size_output, const ia* img, int widt
 int ci2png(unsigned char **png_output, int *size_output, const ci *img, int width, int height) {
     int ret = 0;
 
-    // convert to format stb_image_write expects
-    uint8_t* data = malloc(width * height);
-    if (data) {
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                int idx = j * width + i;
-                data[idx] = img[idx].index;
-            }
-        }
-
-        (*png_output) = stbi_write_plte_png_to_mem(data, 0, width, height, 1, NULL, 0, size_output);
-
-        free(data);
-    }
+    // Already laid out the way stb_image_write expects
+    (*png_output) = stbi_write_plte_png_to_mem((const unsigned char*) img, 0, width, height, 1, NULL, 0, size_output);
 
     return ret;
 }
@@ -541,30 +490,22 @@ rgba* png2rgba(unsigned char* png_input, int size_input, int* width, int* height
 
     switch (channels) {
         case 3: // red, green, blue
-        case 4: // red, green, blue, alpha
-            for (int j = 0; j < h; j++) {
-                for (int i = 0; i < w; i++) {
-                    int idx = j * w + i;
-                    img[idx].red = data[channels * idx];
-                    img[idx].green = data[channels * idx + 1];
-                    img[idx].blue = data[channels * idx + 2];
-                    if (channels == 4) {
-                        img[idx].alpha = data[channels * idx + 3];
-                    } else {
-                        img[idx].alpha = 0xFF;
-                    }
-                }
+            for (int idx = 0; idx < w * h; idx++) {
+                img[idx].red = data[3 * idx];
+                img[idx].green = data[3 * idx + 1];
+                img[idx].blue = data[3 * idx + 2];
+                img[idx].alpha = 0xFF;
             }
             break;
+        case 4: // red, green, blue, alpha
+            memcpy(img, data, img_size);
+            break;
         case 2: // grey, alpha
-            for (int j = 0; j < h; j++) {
-                for (int i = 0; i < w; i++) {
-                    int idx = j * w + i;
-                    img[idx].red = data[2 * idx];
-                    img[idx].green = data[2 * idx];
-                    img[idx].blue = data[2 * idx];
-                    img[idx].alpha = data[2 * idx + 1];
-                }
+            for (int idx = 0; idx < w * h; idx++) {
+                img[idx].red = data[2 * idx];
+                img[idx].green = data[2 * idx];
+                img[idx].blue = data[2 * idx];
+                img[idx].alpha = data[2 * idx + 1];
             }
             break;
         default:
@@ -662,27 +603,23 @@ ia* png2ia(unsigned char* png_input, int size_input, int* width, int* height) {
         case 3: // red, green, blue
         case 4: // red, green, blue, alpha
             ERROR("Warning: averaging RGB PNG to create IA\n");
-            for (int j = 0; j < h; j++) {
-                for (int i = 0; i < w; i++) {
-                    int idx = j * w + i;
-                    int sum = data[channels * idx] + data[channels * idx + 1] + data[channels * idx + 2];
+            // Separate loops so each one has a fixed stride
+            if (channels == 4) {
+                for (int idx = 0; idx < w * h; idx++) {
+                    int sum = data[4 * idx] + data[4 * idx + 1] + data[4 * idx + 2];
+                    img[idx].intensity = (sum + 1) / 3; // add 1 to round up where appropriate
+                    img[idx].alpha = data[4 * idx + 3];
+                }
+            } else {
+                for (int idx = 0; idx < w * h; idx++) {
+                    int sum = data[3 * idx] + data[3 * idx + 1] + data[3 * idx + 2];
                     img[idx].intensity = (sum + 1) / 3; // add 1 to round up where appropriate
-                    if (channels == 4) {
-                        img[idx].alpha = data[channels * idx + 3];
-                    } else {
-                        img[idx].alpha = 0xFF;
-                    }
+                    img[idx].alpha = 0xFF;
                 }
             }
             break;
         case 2: // grey, alpha
-            for (int j = 0; j < h; j++) {
-                for (int i = 0; i < w; i++) {
-                    int idx = j * w + i;
-                    img[idx].intensity = data[2 * idx];
-                    img[idx].alpha = data[2 * idx + 1];
-                }
-            }
+            memcpy(img, data, img_size);
             break;
         default:
             ERROR("Don't know how to read channels: %d\n", channels);
@@ -2,11 +2,14 @@
 
 #include "utils/Decompressor.h"
 #include "utils/TorchUtils.h"
+#include "utils/ThreadPool.h"
 #include "archive/SWrapper.h"
 #include "archive/ZWrapper.h"
+#include "archive/ArchivePacker.h"
 #include "spdlog/spdlog.h"
-#include "hj/sha1.h"
+#include "utils/Sha1.h"
 
+#include <deque>
 #include <regex>
 #include <fstream>
 #include <iostream>
@@ -121,6 +124,144 @@ static std::string GetTypeNode(YAML::Node& node) {
     return type;
 }
 
+static thread_local FileContext* sCurrentContext = nullptr;
+
+// Makes a file context current on this thread until the scope ends
+class FileContextScope {
+public:
+    explicit FileContextScope(FileContext& context) : mPrevious(sCurrentContext) {
+        sCurrentContext = &context;
+    }
+
+    ~FileContextScope() {
+        sCurrentContext = mPrevious;
+    }
+private:
+    FileContext* mPrevious;
+};
+
+// Keeps the archive moved aside for an incremental build, it goes back to the output path unless the build finished
+class PreviousArchive {
+public:
+    explicit PreviousArchive(std::string output) : mOutput(std::move(output)) {}
+
+    ~PreviousArchive() {
+        if(!this->mPath.has_value()) {
+            return;
+        }
+
+        std::error_code error;
+        fs::rename(this->mPath.value(), this->mOutput, error);
+        if(error) {
+            SPDLOG_ERROR("Failed to restore {}: {}", this->mOutput, error.message());
+        }
+    }
+
+    void MoveAside() {
+        this->mPath = this->mOutput + ".prev";
+        fs::rename(this->mOutput, this->mPath.value());
+    }
+
+    // Called once the new archive is complete
+    void Discard() {
+        if(this->mPath.has_value()) {
+            fs::remove(this->mPath.value());
+            this->mPath = std::nullopt;
+        }
+    }
+
+    const std::optional<std::string>& Path() const { return this->mPath; }
+private:
+    std::string mOutput;
+    std::optional<std::string> mPath;
+};
+
+// Holds the archive entries of a file processed on a worker, so they can be added in a stable order
+class BufferedWrapper : public BinaryWrapper {
+public:
+    explicit BufferedWrapper(BinaryWrapper* target) : mTarget(target) {}
+
+    int32_t CreateArchive(void) override {
+        return 0;
+    }
+
+    using BinaryWrapper::AddFile;
+
+    bool AddFile(const std::string& path, std::vector<char>&& data) override {
+        this->mFiles.push_back({ path, std::move(data), false });
+        return true;
+    }
+
+    int32_t Close(void) override {
+        return 0;
+    }
+
+    bool CanReuse(const std::string& path) override {
+        return this->mTarget->CanReuse(path);
+    }
+
+    bool ReuseFile(const std::string& path) override {
+        this->mFiles.push_back({ path, {}, true });
+        return true;
+    }
+
+    void Flush() {
+        for (auto& file : this->mFiles) {
+            if(file.reused) {
+                this->mTarget->ReuseFile(file.path);
+            } else {
+                this->mTarget->AddFile(file.path, std::move(file.data));
+            }
+        }
+        this->mFiles.clear();
+    }
+private:
+    struct File {
+        std::string path;
+        std::vector<char> data;
+        bool reused;
+    };
+
+    BinaryWrapper* mTarget;
+    std::vector<File> mFiles;
+};
+
+// Remembers the archive entries written for a file, so an incremental build can carry them over
+class TrackingWrapper : public BinaryWrapper {
+public:
+    explicit TrackingWrapper(BinaryWrapper* target) : mTarget(target) {}
+
+    int32_t CreateArchive(void) override {
+        return 0;
+    }
+
+    using BinaryWrapper::AddFile;
+
+    bool AddFile(const std::string& path, std::vector<char>&& data) override {
+        this->mPaths.push_back(path);
+        return this->mTarget->AddFile(path, std::move(data));
+    }
+
+    int32_t Close(void) override {
+        return 0;
+    }
+
+    BinaryWrapper* GetTarget() const {
+        return this->mTarget;
+    }
+
+    const std::vector<std::string>& GetPaths() const {
+        return this->mPaths;
+    }
+private:
+    BinaryWrapper* mTarget;
+    std::vector<std::string> mPaths;
+};
+
+static std::string NormalizePath(const fs::path& path) {
+    return path.lexically_normal().generic_string();
+}
+
 void Companion::Init(const ExportType type) {
 
     spdlog::set_level(spdlog::level::debug);
@@ -358,14 +499,12 @@ void Companion::ParseEnums(std::string& header) {
 std::optional<ParseResultData> Companion::ParseNode(YAML::Node& node, std::string& name) {
     auto type = GetTypeNode(node);
 
-    spdlog::set_pattern(regular);
     if(node["offset"]) {
         auto offset = node["offset"].as<uint32_t>();
         SPDLOG_INFO("- [{}] Processing {} at 0x{:X}", type, name, offset);
     } else {
         SPDLOG_INFO("- [{}] Processing {}", type, name);
     }
-    spdlog::set_pattern(line);
     node["vpath"] = name;
 
     auto factory = this->GetFactory(type);
@@ -381,12 +520,14 @@ std::optional<ParseResultData> Companion::ParseNode(YAML::Node& node, std::strin
         return std::nullopt;
     }
 
+    PerfScope perf(this->gPerf, PerfSection::Parse, type);
     bool executeDef = true;
     std::optional<std::shared_ptr<IParsedData>> result;
-    if(this->gConfig.modding && impl->SupportModdedAssets() && this->gModdedAssetPaths.contains(name)) {
-        auto path = fs::path(this->gConfig.moddingPath) / this->gModdedAssetPaths[name];
+    auto modded = this->gConfig.modding ? this->gModdedAssetPaths.find(name) : this->gModdedAssetPaths.end();
+    if(modded != this->gModdedAssetPaths.end() && impl->SupportModdedAssets()) {
+        auto path = fs::path(this->gConfig.moddingPath) / modded->second;
         if(!exists(path)) {
-            SPDLOG_ERROR("Modded asset {} not found", this->gModdedAssetPaths[name]);
+            SPDLOG_ERROR("Modded asset {} not found", modded->second);
         } else {
             std::ifstream input(path, std::ios::binary);
             std::vector<uint8_t> data = std::vector<uint8_t>( std::istreambuf_iterator( input ), {});
@@ -436,13 +577,15 @@ void Companion::ParseModdingConfig() {
 
 
 void Companion::ParseCurrentFileConfig(YAML::Node node) {
+    auto& context = this->Context();
+
     if (node["external_files"]) {
         auto externalFiles = node["external_files"];
         if (externalFiles.IsSequence() && externalFiles.size()) {
             for(size_t i = 0; i < externalFiles.size(); i++) {
                 auto externalFile = externalFiles[i];
                 if (externalFile.size() == 0) {
-                    this->gCurrentExternalFiles.push_back((this->gSourceDirectory / externalFile.as<std::string>()).string());
+                    context.externalFiles.push_back((this->gSourceDirectory / externalFile.as<std::string>()).string());
                 } else {
                     SPDLOG_INFO("External File size {}", externalFile.size());
                     throw std::runtime_error("Incorrect yaml syntax for external files.\n\nThe yaml expects:\n:config:\n  external_files:\n  - <external_files>\n\ne.g.:\nexternal_files:\n  - actors/actor1.yaml");
@@ -455,28 +598,21 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
                     throw std::runtime_error("External File " + externalFileName + " Not In Asset Directory " + this->gAssetPath);
                 }
 
-                if (!this->gAddrMap.contains(externalFileName)) {
+                if (!this->gProcessedFiles.contains(externalFileName)) {
                     SPDLOG_INFO("Dependency on external file {}. Now processing {}", externalFileName, externalFileName);
-                    auto currentFile = this->gCurrentFile;
-                    auto currentDirectory = this->gCurrentDirectory;
-                    auto currentExternalFiles = this->gCurrentExternalFiles;
-
-                    this->gCurrentFile = externalFileName;
-                    this->gCurrentDirectory = std::filesystem::relative(externalFileName, this->gAssetPath).replace_extension("");
+                    this->gProcessedFiles.insert(externalFileName);
 
-                    YAML::Node root = YAML::LoadFile(externalFileName);
+                    FileContext external;
+                    external.file = externalFileName;
+                    external.directory = std::filesystem::relative(externalFileName, this->gAssetPath).replace_extension("");
+                    external.wrapper = context.wrapper;
 
-                    if (!this->gProcessedFiles.contains(this->gCurrentFile)) {
-                        ProcessFile(root);
-                        this->gProcessedFiles.insert(this->gCurrentFile);
+                    {
+                        FileContextScope scope(external);
+                        ProcessFile(this->LoadAssetFile(externalFileName).root);
                     }
 
-                    SPDLOG_INFO("Finishing processing of file: {}", currentFile);
-
-                    this->gCurrentFile = currentFile;
-                    this->gCurrentDirectory = currentDirectory;
-                    this->gCurrentExternalFiles = currentExternalFiles;
-                    this->gFileHeader.clear();
+                    SPDLOG_INFO("Finishing processing of file: {}", context.file);
                 } else {
                     SPDLOG_INFO("Skipping external file {} as it has already been processed", externalFileName);
                 }
@@ -490,11 +626,11 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
         // Set global variables for segmented data
         if (segments.IsSequence() && segments.size()) {
             if (segments[0].IsSequence() && segments[0].size() == 2) {
-                gCurrentSegmentNumber = segments[0][0].as<uint32_t>();
-                gCurrentFileOffset = segments[0][1].as<uint32_t>();
-                gCurrentCompressionType = Decompressor::GetCompressionType(this->gRomData, gCurrentFileOffset);
+                context.segmentNumber = segments[0][0].as<uint32_t>();
+                context.fileOffset = segments[0][1].as<uint32_t>();
+                context.compressionType = Decompressor::GetCompressionType(this->gRomData, context.fileOffset);
                 if(node["no_compression"]) {
-                    gCurrentCompressionType = CompressionType::None;
+                    context.compressionType = CompressionType::None;
                 }
             } else {
                 throw std::runtime_error("Incorrect yaml syntax for segments.\n\nThe yaml expects:\n:config:\n  segments:\n  - [<segment>, <file_offset>]\n\nLike so:\nsegments:\n  - [0x06, 0x821D10]");
@@ -507,7 +643,7 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
             if (segment.IsSequence() && segment.size() == 2) {
                 const auto id = segment[0].as<uint32_t>();
                 const auto replacement = segment[1].as<uint32_t>();
-                this->gConfig.segment.local[id] = replacement;
+                context.localSegments[id] = replacement;
                 SPDLOG_DEBUG("Segment {} replaced with 0x{:X}", id, replacement);
             } else {
                 throw std::runtime_error("Incorrect yaml syntax for segments.\n\nThe yaml expects:\n:config:\n  segments:\n  - [<segment>, <file_offset>]\n\nLike so:\nsegments:\n  - [0x06, 0x821D10]");
@@ -517,7 +653,7 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
 
     if (node["virtual"]) {
         auto virtualAddrMap = node["virtual"];
-        gVirtualAddrMap[gCurrentFile] = std::make_tuple<uint32_t, uint32_t>(virtualAddrMap[0].as<uint32_t>(), virtualAddrMap[1].as<uint32_t>());
+        context.virtualAddr = std::make_tuple<uint32_t, uint32_t>(virtualAddrMap[0].as<uint32_t>(), virtualAddrMap[1].as<uint32_t>());
     }
 
     if(node["header"]) {
@@ -526,7 +662,7 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
             case ExportType::Header: {
                 if(header["header"].IsSequence()) {
                     for(auto line = header["header"].begin(); line != header["header"].end(); ++line) {
-                        this->gFileHeader += line->as<std::string>() + "\n";
+                        context.header += line->as<std::string>() + "\n";
                     }
                 }
                 break;
@@ -534,7 +670,7 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
             case ExportType::Code: {
                 if(header["code"].IsSequence()) {
                     for(auto line = header["code"].begin(); line != header["code"].end(); ++line) {
-                        this->gFileHeader += line->as<std::string>() + "\n";
+                        context.header += line->as<std::string>() + "\n";
                     }
                 }
                 break;
@@ -547,12 +683,12 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
         for(auto table = node["tables"].begin(); table != node["tables"].end(); ++table){
             auto name = table->first.as<std::string>();
             auto range = table->second["range"].as<std::vector<uint32_t>>();
-            auto start = gCurrentSegmentNumber ? gCurrentSegmentNumber << 24 | range[0] : range[0];
-            auto end = gCurrentSegmentNumber ? gCurrentSegmentNumber << 24 | range[1] : range[1];
+            auto start = context.segmentNumber ? context.segmentNumber << 24 | range[0] : range[0];
+            auto end = context.segmentNumber ? context.segmentNumber << 24 | range[1] : range[1];
             auto mode = GetSafeNode<std::string>(table->second, "mode", "APPEND");
             TableMode tMode = mode == "REFERENCE" ? TableMode::Reference : TableMode::Append;
             auto index_size = GetSafeNode<int32_t>(table->second, "index_size", -1);
-            this->gTables.push_back({name, start, end, tMode, index_size});
+            context.tables.push_back({name, start, end, tMode, index_size});
         }
     }
 
@@ -560,13 +696,13 @@ void Companion::ParseCurrentFileConfig(YAML::Node node) {
         auto vram = node["vram"];
         const auto addr = GetSafeNode<uint32_t>(vram, "addr");
         const auto offset = GetSafeNode<uint32_t>(vram, "offset");
-        this->gCurrentVram = { addr, offset };
+        context.vram = { addr, offset };
     }
 
-    this->gEnablePadGen = GetSafeNode<bool>(node, "autopads", true);
-    this->gNodeForceProcessing = GetSafeNode<bool>(node, "force", false);
-    this->gIndividualIncludes = GetSafeNode<bool>(node, "individual_data_incs", false);
-    this->gCurrentVirtualPath = GetSafeNode<std::string>(node, "path", "");
+    context.enablePadGen = GetSafeNode<bool>(node, "autopads", true);
+    context.forceProcessing = GetSafeNode<bool>(node, "force", false);
+    context.individualIncludes = GetSafeNode<bool>(node, "individual_data_incs", false);
+    context.virtualPath = GetSafeNode<std::string>(node, "path", "");
 }
 
 void Companion::ParseHash() {
@@ -597,30 +733,38 @@ bool Companion::NodeHasChanges(const std::string& path) {
         return true;
     }
 
-    std::ifstream yaml(path);
-    const std::vector<uint8_t> data = std::vector<uint8_t>(std::istreambuf_iterator( yaml ), {});
-    this->gCurrentHash = CalculateHash(data);
+    auto& context = this->Context();
+    context.hash = this->LoadAssetFile(path).hash;
     bool needsInit = true;
     auto srcRelativePath = RelativePathToSrcDir(path);
 
+    std::lock_guard<std::mutex> lock(this->gHashMutex);
+
     if(this->gHashNode[srcRelativePath]) {
         auto entry = GetSafeNode<YAML::Node>(this->gHashNode, srcRelativePath);
         const auto hash = GetSafeNode<std::string>(entry, "hash", "no-hash");
         auto modes = GetSafeNode<YAML::Node>(entry, "extracted");
         auto extracted = GetSafeNode<bool>(modes, ExportTypeToString(this->gConfig.exporterType));
 
-        if(hash == this->gCurrentHash) {
+        if(hash == context.hash) {
             needsInit = false;
-            if(extracted) {
+            if(extracted && this->gConfig.exporterType != ExportType::Binary) {
                 SPDLOG_INFO("Skipping {} as it has not changed", srcRelativePath);
                 return false;
             }
+
+            // A shared file is parsed on every run, its results feed other files or its own come from them
+            if(extracted && !context.forceProcessing && !this->gSharedFiles.contains(NormalizePath(path))
+               && this->ReuseArchiveEntries(entry)) {
+                SPDLOG_INFO("Reusing archive entries of {} as it has not changed", srcRelativePath);
+                return false;
+            }
         }
     }
 
     if(needsInit) {
         this->gHashNode[srcRelativePath] = YAML::Node();
-        this->gHashNode[srcRelativePath]["hash"] = this->gCurrentHash;
+        this->gHashNode[srcRelativePath]["hash"] = context.hash;
         this->gHashNode[srcRelativePath]["extracted"] = YAML::Node();
         for(size_t m = 0; m <= static_cast<size_t>(ExportType::Modding); m++) {
             this->gHashNode[srcRelativePath]["extracted"][ExportTypeToString(static_cast<ExportType>(m))] = false;
@@ -630,6 +774,164 @@ bool Companion::NodeHasChanges(const std::string& path) {
     return true;
 }
 
+bool Companion::ReuseArchiveEntries(YAML::Node entry) {
+    auto* wrapper = this->Context().wrapper;
+
+    if(wrapper == nullptr || !entry["entries"]) {
+        return false;
+    }
+
+    const auto entries = entry["entries"].as<std::vector<std::string>>();
+
+    for (const auto& path : entries) {
+        if(!wrapper->CanReuse(path)) {
+            return false;
+        }
+    }
+
+    for (const auto& path : entries) {
+        wrapper->ReuseFile(path);
+    }
+
+    return true;
+}
+
+bool Companion::CanReusePreviousArchive() {
+    const auto previous = this->gHashNode[":archive"];
+
+    // Archives written into a descriptor leave nothing behind at the output path to copy entries from
+    if(!this->gIncremental || !previous || this->gOutputFd.has_value() || this->gConfig.parseMode != ParseMode::Default || !fs::exists(this->gConfig.outputPath)) {
+        return false;
+    }
+
+    const auto type = this->gConfig.otrMode == ArchiveType::OTR ? "OTR" : "O2R";
+    return GetSafeNode<std::string>(previous, "type", "") == type && GetSafeNode<std::string>(previous, "rom", "") == this->gCartridge->GetHash()
+        && GetSafeNode<std::string>(previous, "compression", "") == this->gConfig.compression.Describe();
+}
+
+void Companion::ThrowIfCancelled() const {
+    if(this->gCancelFlag != nullptr && this->gCancelFlag->load(std::memory_order_relaxed)) {
+        throw std::runtime_error("Cancelled");
+    }
+}
+
+bool Companion::DeferExport(std::function<std::vector<char>()> encode) {
+    if(this->gModdingWriter == nullptr) {
+        return false;
+    }
+
+    this->Context().deferredExport = std::move(encode);
+    return true;
+}
+
+void Companion::WriteModdingFile(const fs::path& path, std::vector<char> data) {
+    if(this->gModdingWriter != nullptr) {
+        this->gModdingWriter->Write(path, std::move(data));
+        return;
+    }
+
+    if(!exists(path.parent_path())){
+        create_directories(path.parent_path());
+    }
+
+    std::ofstream file(path, std::ios::binary);
+    file.write(data.data(), data.size());
+    file.close();
+}
+
+void Companion::SetRomCache(const std::string& directory, const uintmax_t maxSize) {
+    this->gRomCache = RomCache(directory, maxSize);
+}
+
+FileContext& Companion::Context() {
+    return sCurrentContext != nullptr ? *sCurrentContext : this->gDefaultContext;
+}
+
+const FileContext& Companion::Context() const {
+    return sCurrentContext != nullptr ? *sCurrentContext : this->gDefaultContext;
+}
+
+void AssetRegistry::AddAsset(const uint32_t addr, const std::tuple<std::string, YAML::Node>& entry) {
+    auto typeOf = [](YAML::Node node) {
+        return node["type"] ? GetTypeNode(node) : std::string();
+    };
+
+    auto type = typeOf(std::get<1>(entry));
+    const auto existing = this->assets.find(addr);
+
+    if(existing != this->assets.end()) {
+        const auto previous = typeOf(std::get<1>(existing->second));
+        if(previous == type) {
+            existing->second = entry;
+            return;
+        }
+
+        auto& addrs = this->addrsByType[previous];
+        addrs.erase(std::remove(addrs.begin(), addrs.end(), addr), addrs.end());
+        existing->second = entry;
+    } else {
+        this->assets.emplace(addr, entry);
+    }
+
+    this->addrsByType[type].push_back(addr);
+}
+
+void AssetRegistry::AddResult(const ParseResultData& result) {
+    const auto index = this->results.size();
+    this->results.push_back(result);
+
+    if(!result.data.has_value()) {
+        return;
+    }
+
+    auto node = result.node;
+    if(node["offset"]) {
+        this->resultsByAddr.emplace(node["offset"].as<uint32_t>(), index);
+    }
+
+    if(auto symbol = GetNode<std::string>(node, "symbol")) {
+        this->resultsBySymbol.emplace(symbol.value(), index);
+    }
+}
+
+AssetRegistry* Companion::FindRegistry(const std::string& file) {
+    std::lock_guard<std::mutex> lock(this->gRegistryMutex);
+    const auto entry = this->gRegistries.find(file);
+    return entry != this->gRegistries.end() ? &entry->second : nullptr;
+}
+
+AssetRegistry& Companion::GetRegistry(const std::string& file) {
+    std::lock_guard<std::mutex> lock(this->gRegistryMutex);
+    return this->gRegistries[file];
+}
+
+AssetRegistry& Companion::Registry() {
+    auto& context = this->Context();
+    if(context.registry == nullptr) {
+        context.registry = &this->GetRegistry(context.file);
+    }
+    return *context.registry;
+}
+
+const std::vector<AssetRegistry*>& Companion::ExternalRegistries() {
+    auto& context = this->Context();
+
+    // External files are only ever appended to, or cleared along with the resolved registries
+    for(size_t i = context.externalRegistries.size(); i < context.externalFiles.size(); i++) {
+        const auto& file = context.externalFiles[i];
+        auto* registry = this->FindRegistry(file);
+
+        if(registry == nullptr) {
+            SPDLOG_WARN("External File {} Not Found.", file);
+            registry = &this->GetRegistry(file);
+        }
+
+        context.externalRegistries.push_back(registry);
+    }
+
+    return context.externalRegistries;
+}
+
 void Companion::LoadYAMLRecursively(const std::string &dirPath, std::vector<YAML::Node> &result, bool skipRoot) {
     for (const auto &entry : std::filesystem::directory_iterator(dirPath)) {
         if (entry.is_directory()) {
@@ -641,8 +943,8 @@ void Companion::LoadYAMLRecursively(const std::string &dirPath, std::vector<YAML
             // Recursive call for subdirectories
             LoadYAMLRecursively(entry.path().generic_string(), result, false);
         } else if (entry.path().extension() == ".yaml" || entry.path().extension() == ".yml") {
-            // Load YAML file and add it to the result vector
-            result.push_back(YAML::LoadFile(entry.path().generic_string()));
+            // Load YAML file and add it to the result vector, cloned as asset processing modifies the nodes it loads
+            result.push_back(YAML::Clone(this->LoadAssetFile(entry.path().generic_string()).root));
         }
     }
 }
@@ -671,16 +973,98 @@ void Companion::ProcessTables(YAML::Node& rom) {
     }
 }
 
+const AssetFile& Companion::LoadAssetFile(const std::string& path) {
+    {
+        std::lock_guard<std::mutex> lock(this->gAssetFilesMutex);
+        const auto entry = this->gAssetFiles.find(path);
+        if(entry != this->gAssetFiles.end()) {
+            return entry->second;
+        }
+    }
+
+    PerfScope perf(this->gPerf, PerfSection::Phase, "yaml");
+    const auto data = Torch::readFile(path);
+    AssetFile file;
+    file.hash = CalculateHash(data);
+    perf.BytesIn(data.size());
+
+    if(this->gKeepParsedAssets) {
+        std::lock_guard<std::mutex> lock(this->gAssetFilesMutex);
+        const auto parsed = this->gParsedAssets.find(file.hash);
+        if(parsed != this->gParsedAssets.end()) {
+            // Processing writes into the nodes it is handed, the kept tree has to stay untouched
+            file.root = YAML::Clone(parsed->second);
+            return this->gAssetFiles.emplace(path, std::move(file)).first->second;
+        }
+    }
+
+    auto compiled = this->gManifest.has_value() ? this->gManifest->Find(file.hash) : std::nullopt;
+    if(compiled.has_value()) {
+        file.root = compiled.value();
+    } else {
+        file.root = YAML::Load(std::string(data.begin(), data.end()));
+        if(this->gManifest.has_value()) {
+            this->gManifest->Add(file.hash, file.root);
+        }
+    }
+
+    std::lock_guard<std::mutex> lock(this->gAssetFilesMutex);
+    if(this->gKeepParsedAssets) {
+        this->gParsedAssets.emplace(file.hash, YAML::Clone(file.root));
+    }
+    return this->gAssetFiles.emplace(path, std::move(file)).first->second;
+}
+
+YAML::Node Companion::LoadRootConfig(const fs::path& path) {
+    const auto time = fs::last_write_time(path);
+
+    if(!this->gRootConfig.has_value() || time != this->gRootConfigTime) {
+        PerfScope perf(this->gPerf, PerfSection::Phase, "yaml");
+        perf.BytesIn(fs::file_size(path));
+        this->gRootConfig = YAML::LoadFile(path.string());
+        this->gRootConfigTime = time;
+    }
+
+    // Lookups through operator[] can add keys to the tree they are made on
+    return YAML::Clone(this->gRootConfig.value());
+}
+
+void Companion::SetRom(std::vector<uint8_t> rom, const std::string& hash) {
+    this->gCartridge = nullptr;
+    this->gRomPath = std::nullopt;
+    this->gRomData = std::move(rom);
+    this->gRomHash = hash;
+}
+
+void Companion::ResetRunState() {
+    this->gRegistries.clear();
+    this->gProcessedFiles.clear();
+    this->gSharedFiles.clear();
+    this->gCourseMetadata.clear();
+    this->gModdedAssetPaths.clear();
+    this->gModdingWriter = nullptr;
+    this->gAssetFiles.clear();
+    this->gDefaultContext = FileContext();
+    this->gConfig.segment.global.clear();
+    this->gConfig.gbi = GBIConfig();
+}
+
 void Companion::ProcessFile(YAML::Node root) {
+    auto& context = this->Context();
+    auto& registry = this->Registry();
+    PerfScope filePerf(this->gPerf, PerfSection::File, this->RelativePathToSrcDir(context.file));
+    // Registering the assets modifies their nodes, parsing starts over from an untouched copy
+    const auto pristine = YAML::Clone(root);
+
     // Set compressed file offsets and compression type
     if (auto segments = root[":config"]["segments"]) {
         if (segments.IsSequence() && segments.size() > 0) {
             if (segments[0].IsSequence() && segments[0].size() == 2) {
-                gCurrentSegmentNumber = segments[0][0].as<uint32_t>();
-                gCurrentFileOffset = segments[0][1].as<uint32_t>();
-                gCurrentCompressionType = Decompressor::GetCompressionType(this->gRomData, gCurrentFileOffset);
+                context.segmentNumber = segments[0][0].as<uint32_t>();
+                context.fileOffset = segments[0][1].as<uint32_t>();
+                context.compressionType = Decompressor::GetCompressionType(this->gRomData, context.fileOffset);
                 if(root[":config"]["no_compression"]) {
-                    gCurrentCompressionType = CompressionType::None;
+                    context.compressionType = CompressionType::None;
                 }
             } else {
                 throw std::runtime_error("Incorrect yaml syntax for segments.\n\nThe yaml expects:\n:config:\n  segments:\n  - [<segment>, <file_offset>]\n\nLike so:\nsegments:\n  - [0x06, 0x821D10]");
@@ -691,7 +1075,7 @@ void Companion::ProcessFile(YAML::Node root) {
     for(auto asset = root.begin(); asset != root.end(); ++asset){
         auto node = asset->second;
         auto entryName = asset->first.as<std::string>();
-        auto output = (this->gCurrentDirectory / entryName).string();
+        auto output = (context.directory / entryName).string();
         std::replace(output.begin(), output.end(), '\\', '/');
 
         if(node["type"]){
@@ -705,46 +1089,45 @@ void Companion::ProcessFile(YAML::Node root) {
             continue;
         }
 
-        if(gCurrentSegmentNumber) {
+        if(context.segmentNumber) {
             if (IS_SEGMENTED(node["offset"].as<uint32_t>()) == false) {
-                node["offset"] = (gCurrentSegmentNumber << 24) | node["offset"].as<uint32_t>();
+                node["offset"] = (context.segmentNumber << 24) | node["offset"].as<uint32_t>();
             }
         }
 
-        if(!gCurrentVirtualPath.empty()) {
-            node["path"] = gCurrentVirtualPath;
+        if(!context.virtualPath.empty()) {
+            node["path"] = context.virtualPath;
         }
 
-        this->gAddrMap[this->gCurrentFile][node["offset"].as<uint32_t>()] = std::make_tuple(output, node);
-    }
-
-    // Stupid hack because the iteration broke the assets
-    root = YAML::LoadFile(this->gCurrentFile);
-    this->gConfig.segment.local.clear();
-    this->gFileHeader.clear();
-    this->gCurrentPad = 0;
-    this->gCurrentVram = std::nullopt;
-    this->gCurrentVirtualPath = "";
-    this->gCurrentSegmentNumber = 0;
-    this->gCurrentCompressionType = CompressionType::None;
-    this->gCurrentFileOffset = 0;
-    this->gTables.clear();
-    this->gCurrentExternalFiles.clear();
+        registry.AddAsset(node["offset"].as<uint32_t>(), std::make_tuple(output, node));
+    }
+
+    root = pristine;
+    context.localSegments.clear();
+    context.header.clear();
+    context.pad = 0;
+    context.vram = std::nullopt;
+    context.virtualPath = "";
+    context.segmentNumber = 0;
+    context.compressionType = CompressionType::None;
+    context.fileOffset = 0;
+    context.tables.clear();
+    context.externalFiles.clear();
+    context.externalRegistries.clear();
     GFXDOverride::ClearVtx();
 
     if(root[":config"]) {
         this->ParseCurrentFileConfig(root[":config"]);
     }
 
-    if(!this->NodeHasChanges(this->gCurrentFile) && !this->gNodeForceProcessing) {
+    if(!this->NodeHasChanges(context.file) && !context.forceProcessing) {
         return;
     }
 
-    spdlog::set_pattern(regular);
     SPDLOG_INFO("------------------------------------------------");
-    spdlog::set_pattern(line);
 
     for(auto asset = root.begin(); asset != root.end(); ++asset){
+        this->ThrowIfCancelled();
 
         auto entryName = asset->first.as<std::string>();
         auto assetNode = asset->second;
@@ -753,31 +1136,36 @@ void Companion::ProcessFile(YAML::Node root) {
             continue;
         }
 
-        if(gCurrentFileOffset && assetNode["offset"]) {
+        if(context.fileOffset && assetNode["offset"]) {
             const auto offset = assetNode["offset"].as<uint32_t>();
             if (!IS_SEGMENTED(offset)) {
-                assetNode["offset"] = (gCurrentSegmentNumber << 24) | offset;
+                assetNode["offset"] = (context.segmentNumber << 24) | offset;
             }
         }
 
-        if(!gCurrentVirtualPath.empty()) {
-            assetNode["path"] = gCurrentVirtualPath;
+        if(!context.virtualPath.empty()) {
+            assetNode["path"] = context.virtualPath;
         }
 
-        std::string output = (this->gCurrentDirectory / entryName).string();
+        std::string output = (context.directory / entryName).string();
         std::replace(output.begin(), output.end(), '\\', '/');
-        this->gConfig.segment.temporal.clear();
+        context.temporalSegments.clear();
         auto result = this->ParseNode(assetNode, output);
         if(result.has_value()) {
-            this->gParseResults[this->gCurrentFile].push_back(result.value());
+            registry.AddResult(result.value());
         }
 
-        spdlog::set_pattern(regular);
         SPDLOG_INFO("------------------------------------------------");
-        spdlog::set_pattern(line);
     }
 
-    for(auto& result : this->gParseResults[this->gCurrentFile]){
+    std::optional<TrackingWrapper> tracker;
+    if(this->gConfig.exporterType == ExportType::Binary && context.wrapper != nullptr) {
+        tracker.emplace(context.wrapper);
+        context.wrapper = &tracker.value();
+    }
+
+    for(auto& result : registry.results){
+        this->ThrowIfCancelled();
         std::ostringstream stream;
         ExportResult endptr = std::nullopt;
         WriteEntry wEntry;
@@ -790,20 +1178,28 @@ void Companion::ProcessFile(YAML::Node root) {
             continue;
         }
 
+        PerfScope perf(this->gPerf, PerfSection::Export, result.type);
+        uint64_t exported = 0;
+
         switch (this->gConfig.exporterType) {
             case ExportType::Binary: {
                 stream.str("");
                 stream.clear();
                 exporter->get()->Export(stream, data, result.name, result.node, &result.name);
                 auto data = stream.str();
-                this->gCurrentWrapper->AddFile(result.name, std::vector(data.begin(), data.end()));
+                context.wrapper->AddFile(result.name, std::vector(data.begin(), data.end()));
+                uint64_t bytes = data.size();
 
-                for(auto& entry : this->gCompanionFiles){
-                    auto output = (this->gCurrentDirectory / entry.first).string();
+                for(auto& entry : context.companionFiles){
+                    auto output = (context.directory / entry.first).string();
                     std::replace(output.begin(), output.end(), '\\', '/');
-                    this->gCurrentWrapper->AddFile(output, entry.second);
+                    context.wrapper->AddFile(output, entry.second);
+                    bytes += entry.second.size();
                 }
 
+                this->gProgress.AssetExported(bytes);
+                exported = bytes;
+
                 break;
             }
             case ExportType::XML:
@@ -812,44 +1208,52 @@ void Companion::ProcessFile(YAML::Node root) {
                 stream.clear();
                 std::string ogname = result.name;
                 exporter->get()->Export(stream, data, result.name, result.node, &result.name);
+                auto deferred = std::exchange(context.deferredExport, nullptr);
 
                 auto data = stream.str();
-                if(data.empty()) {
+                if(data.empty() && !deferred) {
                     break;
                 }
 
-                std::string dpath = Instance->GetOutputPath() + "/" + result.name;
-                if(!exists(fs::path(dpath).parent_path())){
-                    create_directories(fs::path(dpath).parent_path());
+                const auto dpath = fs::path(Instance->GetOutputPath()) / result.name;
+                if(deferred) {
+                    // Registered once the encode has produced the file, an asset it could not convert is left out
+                    this->gModdingWriter->Encode(dpath, [this, ogname, name = result.name, deferred = std::move(deferred)] {
+                        auto output = deferred();
+                        if(!output.empty()) {
+                            std::lock_guard<std::mutex> lock(this->gModdedMutex);
+                            this->gModdedAssetPaths[ogname] = name;
+                        }
+                        return output;
+                    });
+                } else {
+                    {
+                        std::lock_guard<std::mutex> lock(this->gModdedMutex);
+                        this->gModdedAssetPaths[ogname] = result.name;
+                    }
+                    this->WriteModdingFile(dpath, std::vector(data.begin(), data.end()));
+                    exported += data.size();
                 }
 
-                this->gModdedAssetPaths[ogname] = result.name;
-
-                std::ofstream file(dpath, std::ios::binary);
-                file.write(data.c_str(), data.size());
-                file.close();
-
-                for(auto& entry : this->gCompanionFiles){
-                    auto cpath = (Instance->GetOutputPath() / this->gCurrentDirectory / entry.first).string();
+                for(auto& entry : context.companionFiles){
+                    auto cpath = (Instance->GetOutputPath() / context.directory / entry.first).string();
                     std::replace(cpath.begin(), cpath.end(), '\\', '/');
-                    if(!exists(fs::path(cpath).parent_path())){
-                        create_directories(fs::path(cpath).parent_path());
-                    }
-
-                    std::ofstream cfile(cpath, std::ios::binary);
-                    cfile.write(entry.second.data(), entry.second.size());
-                    cfile.close();
+                    exported += entry.second.size();
+                    this->WriteModdingFile(cpath, std::move(entry.second));
                 }
 
                 break;
             }
             default: {
                 endptr = exporter->get()->Export(stream, data, result.name, result.node, &result.name);
+                exported = stream.tellp();
                 break;
             }
         }
 
-        this->gCompanionFiles.clear();
+        perf.BytesOut(exported);
+        filePerf.BytesOut(exported);
+        context.companionFiles.clear();
 
         if(result.node["offset"]) {
             auto alignment = GetSafeNode<uint32_t>(result.node, "alignment", impl->GetAlignment());
@@ -894,32 +1298,25 @@ void Companion::ProcessFile(YAML::Node root) {
             }
         }
 
-        this->gWriteMap[this->gCurrentFile][result.type].push_back(wEntry);
+        context.writeMap[result.type].push_back(wEntry);
     }
 
-    auto fsout = fs::path(this->gConfig.outputPath);
-
-    if(this->gConfig.exporterType == ExportType::Modding || this->gConfig.exporterType == ExportType::XML) {
-        fsout /= "modding.yml";
-        YAML::Node modding;
+    if(tracker.has_value()) {
+        context.wrapper = tracker->GetTarget();
+    }
 
-        for (const auto& [key, value] : this->gModdedAssetPaths) {
-            modding["assets"][key] = value;
-        }
+    auto fsout = fs::path(this->gConfig.outputPath);
 
-        std::ofstream file(fsout.string(), std::ios::binary);
-        file << modding;
-        file.close();
-    } else if(this->gConfig.exporterType != ExportType::Binary){
-        std::string filename = this->gCurrentDirectory.filename().string();
+    if(this->gConfig.exporterType != ExportType::Binary && this->gConfig.exporterType != ExportType::Modding && this->gConfig.exporterType != ExportType::XML){
+        std::string filename = context.directory.filename().string();
 
         switch (this->gConfig.exporterType) {
             case ExportType::Header: {
-                fsout /= this->gCurrentDirectory.parent_path() / (filename + ".h");
+                fsout /= context.directory.parent_path() / (filename + ".h");
                 break;
             }
             case ExportType::Code: {
-                fsout /= this->gCurrentDirectory / (filename + ".c");
+                fsout /= context.directory / (filename + ".c");
                 break;
             }
             default: break;
@@ -931,7 +1328,7 @@ void Companion::ProcessFile(YAML::Node root) {
 
         if(std::holds_alternative<std::string>(this->gWriteOrder)) {
             auto sort = std::get<std::string>(this->gWriteOrder);
-            for (const auto& [type, raw] : this->gWriteMap[this->gCurrentFile]) {
+            for (const auto& [type, raw] : context.writeMap) {
                 entries.insert(entries.end(), raw.begin(), raw.end());
             }
 
@@ -948,7 +1345,7 @@ void Companion::ProcessFile(YAML::Node root) {
             }
         } else {
             for (const auto& type : std::get<std::vector<std::string>>(this->gWriteOrder)) {
-                entries = this->gWriteMap[this->gCurrentFile][type];
+                entries = context.writeMap[type];
 
                 std::sort(entries.begin(), entries.end(), [](const auto& a, const auto& b) {
                     return a.addr > b.addr;
@@ -974,7 +1371,7 @@ void Companion::ProcessFile(YAML::Node root) {
                 stream << "// 0x" << std::hex << std::uppercase << ASSET_PTR(result.endptr.value()) << "\n\n";
             }
 
-            if(hasSize && i < entries.size() - 1 && this->gConfig.exporterType == ExportType::Code && !this->gIndividualIncludes){
+            if(hasSize && i < entries.size() - 1 && this->gConfig.exporterType == ExportType::Code && !context.individualIncludes){
                 int32_t startptr = ASSET_PTR(result.endptr.value());
                 int32_t end = ASSET_PTR(entries[i + 1].addr);
 
@@ -983,15 +1380,15 @@ void Companion::ProcessFile(YAML::Node root) {
 
                 if(gap < 0) {
                     stream << "// WARNING: Overlap detected between 0x" << std::hex << startptr << " and 0x" << end << " with size 0x" << std::abs(gap) << "\n";
-                    SPDLOG_WARN("Overlap detected between 0x{:X} and 0x{:X} with size 0x{:X} on file {}", startptr, end, gap, this->gCurrentFile);
-                } else if(gap < 0x10 && gap >= alignment && end % alignment == 0 && this->gEnablePadGen) {
-                    SPDLOG_WARN("Gap detected between 0x{:X} and 0x{:X} with size 0x{:X} on file {}", startptr, end, gap, this->gCurrentFile);
+                    SPDLOG_WARN("Overlap detected between 0x{:X} and 0x{:X} with size 0x{:X} on file {}", startptr, end, gap, context.file);
+                } else if(gap < 0x10 && gap >= alignment && end % alignment == 0 && context.enablePadGen) {
+                    SPDLOG_WARN("Gap detected between 0x{:X} and 0x{:X} with size 0x{:X} on file {}", startptr, end, gap, context.file);
                     SPDLOG_WARN("Creating pad of 0x{:X} bytes", gap);
-                    const auto padfile = this->gCurrentDirectory.filename().string();
+                    const auto padfile = context.directory.filename().string();
                     if(this->IsDebug()){
                         stream << "// 0x" << std::hex << std::uppercase << startptr << "\n";
                     }
-                    stream << "char pad_" << padfile << "_" << std::to_string(gCurrentPad++) << "[] = {\n" << tab_t;
+                    stream << "char pad_" << padfile << "_" << std::to_string(context.pad++) << "[] = {\n" << tab_t;
                     auto gapSize = gap & ~3;
                     for(size_t j = 0; j < gapSize; j++){
                         stream << "0x00, ";
@@ -1007,9 +1404,9 @@ void Companion::ProcessFile(YAML::Node root) {
                 }
             }
 
-            if (this->gConfig.exporterType == ExportType::Code && this->gIndividualIncludes) {
-                fs::path outinc = fs::path(this->gConfig.outputPath) / this->gCurrentDirectory.parent_path() /
-                    fs::relative(fs::path(result.name + ".inc.c"), this->gCurrentDirectory.parent_path());
+            if (this->gConfig.exporterType == ExportType::Code && context.individualIncludes) {
+                fs::path outinc = fs::path(this->gConfig.outputPath) / context.directory.parent_path() /
+                    fs::relative(fs::path(result.name + ".inc.c"), context.directory.parent_path());
 
                 if(!exists(outinc.parent_path())){
                     create_directories(outinc.parent_path());
@@ -1017,8 +1414,8 @@ void Companion::ProcessFile(YAML::Node root) {
 
                 std::ofstream file(outinc, std::ios::binary);
 
-                if(!this->gFileHeader.empty()) {
-                    file << this->gFileHeader << std::endl;
+                if(!context.header.empty()) {
+                    file << context.header << std::endl;
                 }
                 file << stream.str();
                 stream.str("");
@@ -1027,13 +1424,13 @@ void Companion::ProcessFile(YAML::Node root) {
             }
         }
 
-        this->gWriteMap.clear();
+        context.writeMap.clear();
 
-        if (this->gConfig.exporterType != ExportType::Code || !this->gIndividualIncludes) {
+        if (this->gConfig.exporterType != ExportType::Code || !context.individualIncludes) {
             std::string buffer = stream.str();
 
             if(buffer.empty()) {
-                SPDLOG_WARN("No data to write for {}", this->gCurrentFile);
+                SPDLOG_WARN("No data to write for {}", context.file);
                 return;
             }
 
@@ -1044,10 +1441,10 @@ void Companion::ProcessFile(YAML::Node root) {
             }
 
             std::ofstream file(output, std::ios::binary);
-            SPDLOG_INFO("Writing {} to {}", this->gCurrentFile, output);
+            SPDLOG_INFO("Writing {} to {}", context.file, output);
 
             if(this->gConfig.exporterType == ExportType::Header) {
-                fs::path entryPath = this->gCurrentFile;
+                fs::path entryPath = context.file;
                 std::string symbol = entryPath.stem().string();
                 std::transform(symbol.begin(), symbol.end(), symbol.begin(), toupper);
                 if(this->IsOTRMode()){
@@ -1056,16 +1453,16 @@ void Companion::ProcessFile(YAML::Node root) {
                     file << "#ifndef " << symbol << "_H" << std::endl;
                     file << "#define " << symbol << "_H" << std::endl << std::endl;
                 }
-                if(!this->gFileHeader.empty()) {
-                    file << this->gFileHeader << std::endl;
+                if(!context.header.empty()) {
+                    file << context.header << std::endl;
                 }
                 file << buffer;
                 if(!this->IsOTRMode()){
                     file << std::endl << "#endif" << std::endl;
                 }
             } else {
-                if(!this->gFileHeader.empty()) {
-                    file << this->gFileHeader << std::endl;
+                if(!context.header.empty()) {
+                    file << context.header << std::endl;
                 }
                 file << buffer;
             }
@@ -1075,7 +1472,112 @@ void Companion::ProcessFile(YAML::Node root) {
     }
 
     if(this->gConfig.exporterType != ExportType::Binary) {
-        this->gHashNode[RelativePathToSrcDir(this->gCurrentFile)]["extracted"][ExportTypeToString(this->gConfig.exporterType)] = true;
+        std::lock_guard<std::mutex> lock(this->gHashMutex);
+        this->gHashNode[RelativePathToSrcDir(context.file)]["extracted"][ExportTypeToString(this->gConfig.exporterType)] = true;
+    } else if(tracker.has_value()) {
+        std::lock_guard<std::mutex> lock(this->gHashMutex);
+        auto node = this->gHashNode[RelativePathToSrcDir(context.file)];
+        node["entries"] = YAML::Node(YAML::NodeType::Sequence);
+        for (const auto& path : tracker->GetPaths()) {
+            node["entries"].push_back(path);
+        }
+        node["extracted"][ExportTypeToString(ExportType::Binary)] = true;
+    }
+}
+
+/**
+ * Collects the yamls that take part in external_files lookups, from either side, and the audio files, which share
+ * AudioManager state. Their results are needed by other files, so they are always parsed and processed in order.
+ */
+void Companion::FindSharedFiles(const std::vector<std::string>& files) {
+    this->gSharedFiles.clear();
+
+    for (const auto& yamlPath : files) {
+        // Looked up through a const root, chained operator[] on a mutable node can add the keys it looks up
+        const YAML::Node root = this->LoadAssetFile(yamlPath).root;
+        bool shared = false;
+
+        if (auto externalFiles = root[":config"]["external_files"]) {
+            for (size_t i = 0; i < externalFiles.size(); i++) {
+                this->gSharedFiles.insert(NormalizePath(this->gSourceDirectory / externalFiles[i].as<std::string>()));
+                shared = true;
+            }
+        }
+
+        for (auto asset = root.begin(); asset != root.end() && !shared; ++asset) {
+            auto node = asset->second;
+            if (node.IsMap() && node["type"] && GetTypeNode(node).starts_with("NAUDIO")) {
+                shared = true;
+            }
+        }
+
+        if (shared) {
+            this->gSharedFiles.insert(NormalizePath(yamlPath));
+        }
+    }
+}
+
+/**
+ * Processes every yaml that is not shared, see FindSharedFiles, on a worker pool. The shared ones are left to the
+ * serial pass.
+ */
+void Companion::ProcessFilesParallel(const std::vector<std::string>& files, BinaryWrapper* wrapper) {
+    std::vector<std::pair<std::string, YAML::Node>> independent;
+
+    for (const auto& yamlPath : files) {
+        if (!this->gSharedFiles.contains(NormalizePath(yamlPath))) {
+            independent.emplace_back(yamlPath, this->LoadAssetFile(yamlPath).root);
+        }
+    }
+
+    struct Job {
+        explicit Job(BinaryWrapper* target) : buffer(target) {}
+
+        FileContext context;
+        BufferedWrapper buffer;
+        std::future<void> result;
+    };
+
+    const auto threads = std::min(this->gJobs == 0 ? ThreadPool::GetDefaultThreadCount() : this->gJobs, independent.size());
+
+    if (threads <= 1) {
+        return;
+    }
+
+    SPDLOG_INFO("Processing {} of {} files on {} threads", independent.size(), files.size(), threads);
+
+    // Declared before the pool so the contexts outlive any worker still running when an error unwinds
+    std::deque<std::unique_ptr<Job>> jobs;
+    ThreadPool pool(threads);
+
+    // Finished files wait in their buffers until every file before them is committed, so only a few files run ahead
+    // of the oldest one and the buffered output stays bounded whatever the size of the archive
+    const size_t maxInFlight = threads * 2;
+    size_t next = 0;
+
+    while (next < independent.size() || !jobs.empty()) {
+        while (next < independent.size() && jobs.size() < maxInFlight) {
+            auto& [yamlPath, root] = independent[next++];
+            this->gProcessedFiles.insert(yamlPath);
+
+            auto job = std::make_unique<Job>(wrapper);
+            job->context.file = yamlPath;
+            job->context.directory = relative(fs::path(yamlPath), this->gAssetPath).replace_extension("");
+            job->context.wrapper = &job->buffer;
+            job->result = pool.Submit([this, context = &job->context, root = root] {
+                ConcurrencyLimit::Slot slot(this->gJobLimit);
+                this->ThrowIfCancelled();
+                FileContextScope scope(*context);
+                this->ProcessFile(root);
+                this->gProgress.FileDone();
+            });
+            jobs.push_back(std::move(job));
+        }
+
+        // Commit in file order so the archive does not depend on scheduling
+        jobs.front()->result.get();
+        jobs.front()->buffer.Flush();
+        jobs.pop_front();
     }
 }
 
@@ -1089,18 +1591,29 @@ void Companion::Process() {
     }
 
     auto start = duration_cast<milliseconds>(system_clock::now().time_since_epoch());
-    YAML::Node config = YAML::LoadFile(configPath.string());
+    this->gProgress.Reset();
+    this->gProgress.SetPhase(ProgressPhase::Preparing);
+    this->gPerf.Reset();
+    this->ResetRunState();
+    YAML::Node config = this->LoadRootConfig(configPath);
+
+    if(this->gUseManifest && !this->gConfig.modding) {
+        this->gManifest.emplace(this->gDestinationDirectory / "torch.manifest.bin");
+    }
 
     bool isDirectoryMode = config["mode"] && config["mode"].as<std::string>() == "directory";
+    // Reading, hashing and decompressing the rom, CompTool runs on several threads
+    std::optional<PerfScope> preprocessPerf;
+    preprocessPerf.emplace(this->gPerf, PerfSection::Phase, "preprocess", PerfClock::Process);
 
     if(!isDirectoryMode) {
         if(this->gRomPath.has_value()){
-            std::ifstream input( this->gRomPath.value(), std::ios::binary );
-            this->gRomData = std::vector<uint8_t>( std::istreambuf_iterator( input ), {} );
-            input.close();
+            this->gRomData = Torch::readFile(this->gRomPath.value());
+            this->gRomHash.clear();
         }
+        preprocessPerf->BytesIn(this->gRomData.size());
 
-        this->gCartridge = std::make_shared<N64::Cartridge>(this->gRomData);
+        this->gCartridge = std::make_shared<N64::Cartridge>(this->gRomData, this->gRomHash);
         this->gCartridge->Initialize();
 
         if(!config[this->gCartridge->GetHash()]){
@@ -1127,13 +1640,41 @@ void Companion::Process() {
                 auto restart = GetSafeNode<bool>(item, "restart");
 
                 if (type == "DECOMPRESS") {
-                    this->gRomData = CompTool::Decompress(this->gRomData);
-                    this->gCartridge = std::make_shared<N64::Cartridge>(this->gRomData);
-                    this->gCartridge->Initialize();
+                    auto source = this->gCartridge->GetHash();
+                    auto cached = this->gRomCache.has_value() ? this->gRomCache->Load(source) : std::nullopt;
+                    std::shared_ptr<N64::Cartridge> cartridge;
+
+                    if(cached.has_value()) {
+                        auto data = std::move(cached.value());
+                        cartridge = std::make_shared<N64::Cartridge>(data);
+                        cartridge->Initialize();
+
+                        if(cartridge->GetHash() == target) {
+                            this->gRomData = std::move(data);
+                        } else {
+                            SPDLOG_WARN("Cached rom for {} does not match {}, discarding it", source, target);
+                            this->gRomCache->Remove(source);
+                            cartridge = nullptr;
+                        }
+                    }
 
+                    if(cartridge == nullptr) {
+                        // Drop the cartridge first, it only holds a view of the compressed rom
+                        this->gCartridge = nullptr;
+                        this->gProgress.SetPhase(ProgressPhase::Decompressing);
+                        this->gRomData = CompTool::Decompress(this->gRomData);
+                        cartridge = std::make_shared<N64::Cartridge>(this->gRomData);
+                        cartridge->Initialize();
+
+                        if(cartridge->GetHash() == target && this->gRomCache.has_value()) {
+                            this->gRomCache->Store(source, this->gRomData);
+                        }
+                    }
+
+                    this->gCartridge = cartridge;
                     auto hash = this->gCartridge->GetHash();
 
-                    SPDLOG_CRITICAL("ROM decompressed to {}", hash);
+                    SPDLOG_INFO("ROM decompressed to {}", hash);
 
                     if (hash != target) {
                         throw std::runtime_error("Hash mismatch");
@@ -1151,6 +1692,9 @@ void Companion::Process() {
         }
     }
 
+    preprocessPerf->BytesOut(this->gRomData.size());
+    preprocessPerf.reset();
+
     auto cfg = rom["config"];
     if(!cfg) {
         SPDLOG_ERROR("No config found for {}", !isDirectoryMode ? this->gCartridge->GetHash() : GetSafeNode<std::string>(config, "folder"));
@@ -1173,6 +1717,10 @@ void Companion::Process() {
     auto gbi_floats = cfg["gbi_floats"];
     auto modding_path = opath && opath["modding"] ? opath["modding"].as<std::string>() : "modding";
 
+    this->gConfig.compression = CompressionPolicy();
+    this->gConfig.compression.Load(cfg["compression"]);
+    this->gConfig.compression.Load(this->gCompressionOverride);
+
     if (!this->gDestinationDirectory.empty() && !fs::exists(this->gDestinationDirectory)) {
         create_directories(this->gDestinationDirectory);
     }
@@ -1318,26 +1866,44 @@ void Companion::Process() {
 
     SPDLOG_CRITICAL("------------------------------------------------");
 
+    delete AudioManager::Instance;
     AudioManager::Instance = new AudioManager();
-    BinaryWrapper* wrapper = nullptr;
+    // Declared before the wrapper so the partial archive is closed before the previous one is put back
+    PreviousArchive previous(this->gConfig.outputPath);
+    std::unique_ptr<BinaryWrapper> wrapper;
 
     if (this->gConfig.exporterType == ExportType::Binary) {
         switch (this->gConfig.otrMode) {
             case ArchiveType::OTR:
-                wrapper = new SWrapper(this->gConfig.outputPath);
+                if (this->gOutputFd.has_value()) {
+                    throw std::runtime_error("OTR archives can only be written to a path");
+                }
+                wrapper = std::make_unique<SWrapper>(this->gConfig.outputPath);
                 break;
             case ArchiveType::O2R:
-                wrapper = new ZWrapper(this->gConfig.outputPath);
+                wrapper = this->gOutputFd.has_value() ? std::make_unique<ZWrapper>(this->gConfig.outputPath, this->gOutputFd.value()) : std::make_unique<ZWrapper>(this->gConfig.outputPath);
                 break;
             default:
                 throw std::runtime_error("Invalid archive type for export type Binary");
         }
+        wrapper->SetCompression(this->gConfig.compression);
+    }
+
+    if (wrapper && this->CanReusePreviousArchive()) {
+        previous.MoveAside();
     }
 
     if (wrapper) {
-        wrapper->CreateArchive();
+        if (wrapper->CreateArchive() != 0) {
+            throw std::runtime_error("Failed to create archive " + this->gConfig.outputPath);
+        }
+
+        // An unreadable previous archive is only not reused, it stays until the new one is complete
+        if (previous.Path().has_value() && !wrapper->OpenPrevious(previous.Path().value())) {
+            SPDLOG_WARN("Could not open {}, exporting everything again", previous.Path().value());
+        }
     }
-    this->gCurrentWrapper = wrapper;
+    this->gDefaultContext.wrapper = wrapper.get();
 
     auto vWriter = LUS::BinaryWriter();
     vWriter.SetEndianness(Torch::Endianness::Big);
@@ -1349,6 +1915,8 @@ void Companion::Process() {
         vWriter.Write((uint32_t) 0);
     }
 
+    std::vector<std::string> files;
+
     for (const auto & entry : Torch::getRecursiveEntries(this->gAssetPath)){
         if(entry.is_directory())  {
             continue;
@@ -1364,21 +1932,87 @@ void Companion::Process() {
             continue;
         }
 
-        YAML::Node root = YAML::LoadFile(yamlPath);
-        this->gCurrentDirectory = relative(entry.path(), this->gAssetPath).replace_extension("");
-        this->gCurrentFile = yamlPath;
+        files.push_back(yamlPath);
+    }
+
+    this->gProgress.SetFilesTotal(files.size());
+    this->gProgress.SetPhase(ProgressPhase::Exporting);
+    this->FindSharedFiles(files);
+
+    if(wrapper != nullptr && this->gJobs != 1) {
+        this->ProcessFilesParallel(files, wrapper.get());
+    }
+
+    const bool moddingExport = this->gConfig.exporterType == ExportType::Modding || this->gConfig.exporterType == ExportType::XML;
+    if(moddingExport) {
+        // Assets are still parsed one file at a time, the pngs are encoded and written behind them
+        const size_t threads = this->gJobs == 0 ? ThreadPool::GetDefaultThreadCount() : this->gJobs;
+        this->gModdingWriter = std::make_unique<AsyncFileWriter>(threads, threads * 4);
+    }
+
+    for (const auto& yamlPath : files) {
+        if (this->gProcessedFiles.contains(yamlPath)) {
+            continue;
+        }
+
+        this->ThrowIfCancelled();
+
+        this->gProcessedFiles.insert(yamlPath);
+
+        FileContext context;
+        context.file = yamlPath;
+        context.directory = relative(fs::path(yamlPath), this->gAssetPath).replace_extension("");
+        context.wrapper = wrapper.get();
+
+        FileContextScope scope(context);
+        ProcessFile(this->LoadAssetFile(yamlPath).root);
+        this->gProgress.FileDone();
+    }
+
+    this->gProgress.SetPhase(ProgressPhase::Finalizing);
+
+    if(moddingExport) {
+        PerfScope perf(this->gPerf, PerfSection::Phase, "write", PerfClock::Process);
+        this->gModdingWriter->Finish();
+        perf.BytesOut(this->gModdingWriter->GetBytesWritten());
+        this->gModdingWriter = nullptr;
 
-        if (!this->gProcessedFiles.contains(this->gCurrentFile)) {
-            ProcessFile(root);
-            this->gProcessedFiles.insert(this->gCurrentFile);
+        YAML::Node manifest;
+        for (const auto& [key, value] : this->gModdedAssetPaths) {
+            manifest["assets"][key] = value;
         }
+
+        std::ofstream file(fs::path(this->gConfig.outputPath) / "modding.yml", std::ios::binary);
+        file << manifest;
+        file.close();
     }
 
     if(wrapper != nullptr) {
         SPDLOG_CRITICAL("Writing version file");
+        PerfScope perf(this->gPerf, PerfSection::Phase, "archive", PerfClock::Process);
+        perf.BytesIn(this->gProgress.Snapshot().bytesWritten);
         wrapper->AddFile("version", vWriter.ToVector());
         vWriter.Close();
-        wrapper->Close();
+
+        // A truncated archive must not replace the previous one, throwing leaves it to PreviousArchive to restore
+        if (wrapper->Close() != 0) {
+            throw std::runtime_error("Failed to finalize archive " + this->gConfig.outputPath);
+        }
+
+        if (!this->gOutputFd.has_value() && fs::exists(this->gConfig.outputPath)) {
+            perf.BytesOut(fs::file_size(this->gConfig.outputPath));
+        }
+
+        previous.Discard();
+
+        if (this->gOutputFd.has_value()) {
+            // Whatever is left at the output path is older than the hashes written below, it must not be reused
+            this->gHashNode.remove(":archive");
+        } else if (this->gConfig.parseMode == ParseMode::Default) {
+            this->gHashNode[":archive"]["type"] = this->gConfig.otrMode == ArchiveType::OTR ? "OTR" : "O2R";
+            this->gHashNode[":archive"]["rom"] = this->gCartridge->GetHash();
+            this->gHashNode[":archive"]["compression"] = this->gConfig.compression.Describe();
+        }
     }
 
     // Write entries hash
@@ -1386,15 +2020,33 @@ void Companion::Process() {
     file << this->gHashNode;
     file.close();
 
+    if(this->gManifest.has_value()) {
+        this->gManifest->Save();
+        this->gManifest.reset();
+    }
+    this->gAssetFiles.clear();
+
     auto end = duration_cast<milliseconds>(system_clock::now().time_since_epoch());
     auto level = spdlog::get_level();
     spdlog::set_level(spdlog::level::info);
     SPDLOG_CRITICAL("Done! Took {}ms", end.count() - start.count());
+    const auto cache = Decompressor::GetCacheStats();
+    SPDLOG_INFO("Chunk cache: {} hits, {} misses, {} evictions, peak {} KB", cache.hits, cache.misses, cache.evictions, cache.peakBytes / 1024);
+    for (const auto& [phase, stats] : this->gPerf.GetPhases()) {
+        SPDLOG_INFO("Phase {}: {}ms wall, {}ms cpu", phase, stats.wallNs / 1000000, stats.cpuNs / 1000000);
+    }
     SPDLOG_CRITICAL("------------------------------------------------");
     spdlog::set_level(level);
     spdlog::set_pattern(regular);
 
+    this->gPerf.SetCounter("chunkCacheHits", cache.hits);
+    this->gPerf.SetCounter("chunkCacheMisses", cache.misses);
+    this->gPerf.SetCounter("chunkCacheEvictions", cache.evictions);
+    this->gPerf.SetCounter("chunkCachePeakBytes", cache.peakBytes);
+    this->gPerf.Finish();
+
     Decompressor::ClearCache();
+    this->gProgress.SetPhase(ProgressPhase::Done);
     this->gCartridge = nullptr;
     Instance = nullptr;
 }
@@ -1410,18 +2062,6 @@ void Companion::Pack(const std::string& folder, const std::string& output, const
     SPDLOG_CRITICAL("Scanning {}", folder);
 
     auto start = duration_cast<milliseconds>(system_clock::now().time_since_epoch());
-    std::unordered_map<std::string, std::vector<char>> files;
-
-    for (const auto & entry : Torch::getRecursiveEntries(folder)){
-        if(entry.is_directory())  {
-            continue;
-        }
-
-        std::ifstream input( entry.path(), std::ios::binary );
-        auto data = std::vector( std::istreambuf_iterator( input ), {} );
-        input.close();
-        files[entry.path().generic_string()] = data;
-    }
 
     std::unique_ptr<BinaryWrapper> wrapper;
     switch (otrMode) {
@@ -1434,24 +2074,15 @@ void Companion::Pack(const std::string& folder, const std::string& output, const
         default:
             throw std::runtime_error("Invalid archive type for export type Binary");
     }
-    wrapper->CreateArchive();
 
-    for(auto& [path, data] : files){
-        std::string normalized = path;
-        std::replace(normalized.begin(), normalized.end(), '\\', '/');
-        // Remove parent folder
-        normalized = normalized.substr(folder.length() + 1);
-        wrapper->AddFile(normalized, data);
-        SPDLOG_CRITICAL("> Added {}", normalized);
-    }
+    ArchivePacker packer(*wrapper);
+    const auto count = packer.Pack(folder);
 
     auto end = duration_cast<milliseconds>(system_clock::now().time_since_epoch());
-    SPDLOG_CRITICAL("Done! Took {}ms", end.count() - start.count());
+    SPDLOG_CRITICAL("Done! Packed {} files in {}ms", count, end.count() - start.count());
     SPDLOG_CRITICAL("Exported to {}", output);
     spdlog::set_pattern("[%Y-%m-%d %H:%M:%S.%e] [%l] %v");
     SPDLOG_CRITICAL("------------------------------------------------");
-
-    wrapper->Close();
 }
 
 std::optional<std::tuple<std::string, YAML::Node>> Companion::RegisterAsset(const std::string& name, YAML::Node& node) {
@@ -1459,18 +2090,17 @@ std::optional<std::tuple<std::string, YAML::Node>> Companion::RegisterAsset(cons
         return std::nullopt;
     }
 
-    auto output = (this->gCurrentDirectory / name).string();
+    auto& context = this->Context();
+    auto output = (context.directory / name).string();
     std::replace(output.begin(), output.end(), '\\', '/');
 
     auto entry = std::make_tuple(output, node);
-    this->gAddrMap[this->gCurrentFile][node["offset"].as<uint32_t>()] = entry;
+    this->Registry().AddAsset(node["offset"].as<uint32_t>(), entry);
     auto dResult = this->ParseNode(node, output);
     if(dResult.has_value()) {
-        this->gParseResults[this->gCurrentFile].push_back(dResult.value());
+        this->Registry().AddResult(dResult.value());
     }
-    spdlog::set_pattern(regular);
     SPDLOG_INFO("------------------------------------------------");
-    spdlog::set_pattern(line);
 
     return entry;
 }
@@ -1481,15 +2111,17 @@ void Companion::RegisterFactory(const std::string& type, const std::shared_ptr<B
 }
 
 std::optional<std::shared_ptr<BaseFactory>> Companion::GetFactory(const std::string &type) {
-    if(!this->gFactories.contains(type)){
+    const auto factory = this->gFactories.find(type);
+
+    if(factory == this->gFactories.end()){
         return std::nullopt;
     }
 
-    return this->gFactories[type];
+    return factory->second;
 }
 
 std::optional<Table> Companion::SearchTable(uint32_t addr){
-    for(auto& table : this->gTables){
+    for(auto& table : this->Context().tables){
         if(addr >= table.start && addr <= table.end){
             return table;
         }
@@ -1499,41 +2131,42 @@ std::optional<Table> Companion::SearchTable(uint32_t addr){
 }
 
 std::optional<std::string> Companion::GetEnumFromValue(const std::string& key, int32_t id) {
-    if(!this->gEnums.contains(key)){
+    const auto values = this->gEnums.find(key);
+
+    if(values == this->gEnums.end()){
         return std::nullopt;
     }
 
-    if(!this->gEnums[key].contains(id)){
+    const auto value = values->second.find(id);
+
+    if(value == values->second.end()){
         return std::nullopt;
     }
 
-    return this->gEnums[key][id];
+    return value->second;
 }
 
 std::optional<std::uint32_t> Companion::GetFileOffsetFromSegmentedAddr(const uint8_t segment) const {
+    const auto& context = this->Context();
 
-    auto segments = this->gConfig.segment;
+    for (const auto* segments : { &context.temporalSegments, &context.localSegments, &this->gConfig.segment.global }) {
+        const auto entry = segments->find(segment);
 
-    if(segments.temporal.contains(segment)) {
-        return segments.temporal[segment];
-    }
-
-    if(segments.local.contains(segment)) {
-        return segments.local[segment];
-    }
-
-    if(segments.global.contains(segment)) {
-        return segments.global[segment];
+        if(entry != segments->end()) {
+            return entry->second;
+        }
     }
 
     return std::nullopt;
 }
 
 uint32_t Companion::PatchVirtualAddr(uint32_t addr) {
+    const auto& virtualAddr = this->Context().virtualAddr;
+
     if (addr & 0x80000000) {
-        if (gVirtualAddrMap.contains(gCurrentFile)) {
-            addr -= std::get<0>(gVirtualAddrMap[gCurrentFile]);
-            addr += std::get<1>(gVirtualAddrMap[gCurrentFile]);
+        if (virtualAddr.has_value()) {
+            addr -= std::get<0>(virtualAddr.value());
+            addr += std::get<1>(virtualAddr.value());
         }
     }
 
@@ -1541,29 +2174,25 @@ uint32_t Companion::PatchVirtualAddr(uint32_t addr) {
 }
 
 std::optional<std::tuple<std::string, YAML::Node>> Companion::GetNodeByAddr(uint32_t addr){
-    if(!this->gAddrMap.contains(this->gCurrentFile)){
-        return std::nullopt;
-    }
+    auto& assets = this->Registry().assets;
 
     // HACK: Adjust address to rom address if virtual address
     addr = PatchVirtualAddr(addr);
 
-    if(!this->gAddrMap[this->gCurrentFile].contains(addr)){
-        for (auto &file : this->gCurrentExternalFiles) {
-            if (!this->gAddrMap.contains(file)) {
-                SPDLOG_WARN("GetNodeByAddr: External File {} Not Found.", file);
-                continue;
-            }
+    const auto node = assets.find(addr);
 
-            if (!this->gAddrMap[file].contains(addr)) {
-                continue;
+    if(node == assets.end()){
+        for (auto* external : this->ExternalRegistries()) {
+            const auto externalNode = external->assets.find(addr);
+
+            if (externalNode != external->assets.end()) {
+                return externalNode->second;
             }
-            return this->gAddrMap[file][addr];
         }
         return std::nullopt;
     }
 
-    return this->gAddrMap[this->gCurrentFile][addr];
+    return node->second;
 }
 
 std::optional<std::tuple<std::string, YAML::Node>> Companion::GetSafeNodeByAddr(const uint32_t addr, std::string type) {
@@ -1602,25 +2231,18 @@ std::string Companion::GetSymbolFromAddr(uint32_t address, bool validZero) {
 }
 
 std::optional<ParseResultData> Companion::GetParseDataByAddr(uint32_t addr) {
-    if(!this->gParseResults.contains(this->gCurrentFile)){
-        for (auto &file : this->gCurrentExternalFiles) {
-            if (!this->gParseResults.contains(file)) {
-                SPDLOG_INFO("GetParseDataByAddr: External File {} Not Found.", file);
-                continue;
-            }
+    auto& registry = this->Registry();
+    const auto result = registry.resultsByAddr.find(addr);
 
-            for (auto& result : this->gParseResults[file]){
-                if (result.data.has_value() && result.GetOffset() == addr){
-                    return result;
-                }
-            }
-        }
-        return std::nullopt;
+    if(result != registry.resultsByAddr.end()){
+        return registry.results[result->second];
     }
 
-    for(auto& result : this->gParseResults[this->gCurrentFile]){
-        if(result.data.has_value() && result.GetOffset() == addr){
-            return result;
+    for (auto* external : this->ExternalRegistries()) {
+        const auto externalResult = external->resultsByAddr.find(addr);
+
+        if (externalResult != external->resultsByAddr.end()) {
+            return external->results[externalResult->second];
         }
     }
 
@@ -1628,39 +2250,34 @@ std::optional<ParseResultData> Companion::GetParseDataByAddr(uint32_t addr) {
 }
 
 std::optional<ParseResultData> Companion::GetParseDataBySymbol(const std::string& symbol) {
-    if(!this->gParseResults.contains(this->gCurrentFile)){
-        return std::nullopt;
-    }
-
-    for(auto& result : this->gParseResults[this->gCurrentFile]){
-        auto sym = GetNode<std::string>(result.node, "symbol");
+    auto& registry = this->Registry();
+    const auto result = registry.resultsBySymbol.find(symbol);
 
-        if(result.data.has_value() && sym.has_value() && sym.value() == symbol){
-            return result;
-        }
+    if(result == registry.resultsBySymbol.end()){
+        return std::nullopt;
     }
 
-    return std::nullopt;
-
+    return registry.results[result->second];
 }
 
 std::optional<std::vector<std::tuple<std::string, YAML::Node>>> Companion::GetNodesByType(const std::string& type){
     std::vector<std::tuple<std::string, YAML::Node>> nodes;
 
-    if(!this->gAddrMap.contains(this->gCurrentFile)){
+    auto& registry = this->Registry();
+    const auto addrs = registry.addrsByType.find(type);
+
+    if(addrs == registry.addrsByType.end()){
         return nodes;
     }
 
-    for(auto& [addr, tpl] : this->gAddrMap[this->gCurrentFile]){
+    for(const auto addr : addrs->second){
+        const auto& tpl = registry.assets.at(addr);
         auto [name, node] = tpl;
-        const auto n_type = GetTypeNode(node);
         if(node["autogen"]){
             SPDLOG_DEBUG("Skipping autogenerated asset {}", name);
             continue;
         }
-        if(n_type == type){
-            nodes.push_back(tpl);
-        }
+        nodes.push_back(tpl);
     }
 
     return nodes;
@@ -1668,12 +2285,12 @@ std::optional<std::vector<std::tuple<std::string, YAML::Node>>> Companion::GetNo
 }
 
 void Companion::RegisterCompanionFile(const std::string path, std::vector<char> data) {
-    this->gCompanionFiles[path] = data;
+    this->Context().companionFiles[path] = data;
     SPDLOG_TRACE("Registered companion file {}", path);
 }
 
 std::string Companion::NormalizeAsset(const std::string& name) const {
-    auto path = fs::path(this->gCurrentFile).stem().string() + "_" + name;
+    auto path = fs::path(this->Context().file).stem().string() + "_" + name;
     return path;
 }
 
@@ -1683,7 +2300,7 @@ static std::string& ConvertWinToUnixSlash(std::string& path) {
 }
 
 std::string Companion::RelativePath(const std::string& path) const {
-    std::string doutput = (this->gCurrentDirectory / path).string();
+    std::string doutput = (this->Context().directory / path).string();
     ConvertWinToUnixSlash(doutput);
     return doutput;
 }
@@ -1700,8 +2317,8 @@ std::string Companion::RelativePathToSrcDir(const std::string& path) const {
     return doutput;
 }
 
-std::string Companion::CalculateHash(const std::vector<uint8_t>& data) {
-    return Chocobo1::SHA1().addData(data).finalize().toString();
+std::string Companion::CalculateHash(std::span<const uint8_t> data) {
+    return Sha1::Hash(data);
 }
 
 std::optional<YAML::Node> Companion::AddAsset(YAML::Node asset) {
@@ -1722,7 +2339,6 @@ std::optional<YAML::Node> Companion::AddAsset(YAML::Node asset) {
         }
     }
 
-    auto rom = this->GetRomData();
     auto factory = this->GetFactory(type);
 
     if(!factory.has_value()) {
@@ -1747,8 +2363,8 @@ std::optional<YAML::Node> Companion::AddAsset(YAML::Node asset) {
 
     auto result = this->RegisterAsset(output, asset);
 
-    if(!gCurrentVirtualPath.empty()) {
-        asset["path"] = gCurrentVirtualPath;
+    if(!this->Context().virtualPath.empty()) {
+        asset["path"] = this->Context().virtualPath;
     }
 
     if(result.has_value()){
@@ -1,9 +1,13 @@
 #pragma once
 
+#include <span>
+#include <atomic>
 #include <string>
 #include <optional>
 #include <filesystem>
 #include <vector>
+#include <map>
+#include <mutex>
 #include <fstream>
 #include <unordered_map>
 #include <unordered_set>
@@ -12,10 +16,20 @@
 #include "n64/Cartridge.h"
 #include "utils/Decompressor.h"
 #include "factories/TextureFactory.h"
+#include "preprocess/RomCache.h"
+#include "utils/YamlManifest.h"
+#include "utils/Progress.h"
+#include "utils/PerfReport.h"
+#include "utils/ThreadPool.h"
+#include "utils/AsyncFileWriter.h"
+#include "archive/CompressionPolicy.h"
 
 class BinaryWrapper;
+struct AssetRegistry;
 namespace fs = std::filesystem;
 
+using AssetMap = std::unordered_map<uint32_t, std::tuple<std::string, YAML::Node>>;
+
 enum class ParseMode {
     Default,
     Directory
@@ -48,8 +62,6 @@ enum class ArchiveType {
 
 struct SegmentConfig {
     std::unordered_map<uint32_t, uint32_t> global;
-    std::unordered_map<uint32_t, uint32_t> local;
-    std::unordered_map<uint32_t, uint32_t> temporal;
 };
 
 struct Table {
@@ -91,6 +103,40 @@ struct TorchConfig {
     bool debug;
     bool modding;
     bool textureDefines;
+    CompressionPolicy compression;
+};
+
+/**
+ * State of the yaml file currently being processed, files processed in parallel each get their own context.
+ */
+struct FileContext {
+    std::string file;
+    fs::path directory;
+    BinaryWrapper* wrapper = nullptr;
+
+    std::string hash;
+    std::string virtualPath;
+    std::string header;
+    bool enablePadGen = false;
+    bool forceProcessing = false;
+    bool individualIncludes = false;
+    uint32_t pad = 0;
+    uint32_t fileOffset = 0;
+    uint32_t segmentNumber = 0;
+    std::optional<VRAMEntry> vram;
+    std::optional<std::tuple<uint32_t, uint32_t>> virtualAddr;
+    CompressionType compressionType = CompressionType::None;
+    std::vector<Table> tables;
+    std::vector<std::string> externalFiles;
+    std::unordered_map<uint32_t, uint32_t> localSegments;
+    std::unordered_map<uint32_t, uint32_t> temporalSegments;
+    std::unordered_map<std::string, std::vector<char>> companionFiles;
+    std::map<std::string, std::vector<WriteEntry>> writeMap;
+    // Png a modding exporter handed to Companion::DeferExport, written once the export returns
+    std::function<std::vector<char>()> deferredExport;
+    // Resolved on first lookup so the file path is not hashed on every query, see Companion::Registry()
+    AssetRegistry* registry = nullptr;
+    std::vector<AssetRegistry*> externalRegistries;
 };
 
 struct ParseResultData {
@@ -108,6 +154,29 @@ struct ParseResultData {
     }
 };
 
+/**
+ * Assets registered by a yaml file. The lookup tables are filled in as assets are added, so the queries the
+ * factories run for every pointer they follow never scan the whole file.
+ */
+struct AssetRegistry {
+    AssetMap assets;
+    std::vector<ParseResultData> results;
+    // Indices into results, only results with parsed data are indexed and the first one registered wins
+    std::unordered_map<uint32_t, size_t> resultsByAddr;
+    std::unordered_map<std::string, size_t> resultsBySymbol;
+    // Addresses in assets grouped by their upper case type
+    std::unordered_map<std::string, std::vector<uint32_t>> addrsByType;
+
+    void AddAsset(uint32_t addr, const std::tuple<std::string, YAML::Node>& entry);
+    void AddResult(const ParseResultData& result);
+};
+
+// An asset yaml as read from disk, hash is the sha1 of its contents
+struct AssetFile {
+    std::string hash;
+    YAML::Node root;
+};
+
 class Companion {
 public:
     static Companion* Instance;
@@ -125,7 +194,7 @@ public:
     explicit Companion(std::vector<uint8_t> rom, const ArchiveType otr, const bool debug, const bool modding = false,
                        const std::string& srcDir = "", const std::string& destPath = "") : gCartridge(nullptr),
                        gSourceDirectory(srcDir), gDestinationDirectory(destPath) {
-        this->gRomData = rom;
+        this->gRomData = std::move(rom);
         this->gConfig.otrMode = otr;
         this->gConfig.debug = debug;
         this->gConfig.modding = modding;
@@ -136,12 +205,40 @@ public:
                        Companion(rom, otr, debug, false, srcDir, destPath) {}
     
     explicit Companion(std::vector<uint8_t> rom, const ArchiveType otr, const bool debug, const std::string& srcDir = "", const std::string& destPath = "") :
-                       Companion(rom, otr, debug, false, srcDir, destPath) {}
+                       Companion(std::move(rom), otr, debug, false, srcDir, destPath) {}
 
     void Init(ExportType type);
     void InitFactoriesOnly(ExportType type);  // New method to only register factories
 
     bool NodeHasChanges(const std::string& string);
+    void SetRomCache(const std::string& directory, uintmax_t maxSize = RomCache::sDefaultMaxSize);
+    // Number of yaml files processed at once on binary exports, 0 uses every big core
+    void SetJobs(size_t jobs) { this->gJobs = jobs; }
+    // Lowers the number of files processed at once while a run is going, 0 goes back to SetJobs. Safe from any thread
+    void LimitJobs(size_t jobs) { this->gJobLimit.Set(jobs); }
+    // Process stops between assets and throws once the flag is set, the flag must outlive the run
+    void SetCancelFlag(const std::atomic<bool>* flag) { this->gCancelFlag = flag; }
+    // Binary exports copy the entries of unchanged yaml files from the archive left by the previous run
+    void SetIncremental(bool incremental) { this->gIncremental = incremental; }
+    // Keeps a compiled copy of every asset yaml next to torch.hash.yml, unchanged files are not parsed again
+    void SetCompiledManifest(bool enabled) { this->gUseManifest = enabled; }
+    // SHA-1 of the rom data passed in by the caller when it is already known, saves hashing the rom again
+    void SetRomHash(const std::string& hash) { this->gRomHash = hash; }
+    // O2R archives are written into this descriptor instead of the output path, it stays owned by the caller
+    // A negative descriptor goes back to writing the output path
+    void SetOutputDescriptor(int fd) { this->gOutputFd = fd >= 0 ? std::optional<int>(fd) : std::nullopt; }
+    // Compression node in yaml applied on top of the one in config.yml, see CompressionPolicy. Empty keeps config.yml
+    void SetCompression(const std::string& yaml) { this->gCompressionOverride = yaml; }
+    // Replaces the rom of the next run, everything else set up on this Companion is kept
+    void SetRom(std::vector<uint8_t> rom, const std::string& hash = "");
+    // Keeps every parsed asset yaml between runs of this Companion, later runs copy the trees instead of parsing again
+    void SetKeepParsedAssets(bool keep) { this->gKeepParsedAssets = keep; }
+    // Counters of the current run, a listener can be attached before calling Process
+    ProgressTracker& Progress() { return this->gProgress; }
+    // Timings of the current or last run, see PerfReport
+    PerfReport& Perf() { return this->gPerf; }
+    // Lets a modding exporter encode its file on the writer threads, false when there are none and it has to write it itself
+    bool DeferExport(std::function<std::vector<char>()> encode);
 
     void Process();
 
@@ -158,7 +255,7 @@ public:
     GBIMinorVersion GetGBIMinorVersion() const { return  this->gConfig.gbi.subversion; }
     std::unordered_map<std::string, std::vector<YAML::Node>> GetCourseMetadata() { return this->gCourseMetadata; }
     std::optional<std::string> GetEnumFromValue(const std::string& key, int id);
-    bool IsUsingIndividualIncludes() const { return this->gIndividualIncludes; }
+    bool IsUsingIndividualIncludes() const { return this->Context().individualIncludes; }
 
     std::optional<ParseResultData> GetParseDataByAddr(uint32_t addr);
     std::optional<ParseResultData> GetParseDataBySymbol(const std::string& symbol);
@@ -171,13 +268,13 @@ public:
     std::optional<std::vector<std::tuple<std::string, YAML::Node>>> GetNodesByType(const std::string& type);
     std::string GetSymbolFromAddr(uint32_t addr, bool validZero = false);
 
-    std::optional<std::uint32_t> GetFileOffset(void) const { return this->gCurrentFileOffset; };
-    std::optional<std::uint32_t> GetCurrSegmentNumber(void) const { return this->gCurrentSegmentNumber; };
-    CompressionType GetCurrCompressionType(void) const { return this->gCurrentCompressionType; };
-    std::optional<VRAMEntry> GetCurrentVRAM(void) const { return this->gCurrentVram; };
+    std::optional<std::uint32_t> GetFileOffset(void) const { return this->Context().fileOffset; };
+    std::optional<std::uint32_t> GetCurrSegmentNumber(void) const { return this->Context().segmentNumber; };
+    CompressionType GetCurrCompressionType(void) const { return this->Context().compressionType; };
+    std::optional<VRAMEntry> GetCurrentVRAM(void) const { return this->Context().vram; };
     std::optional<Table> SearchTable(uint32_t addr);
 
-    static std::string CalculateHash(const std::vector<uint8_t>& data);
+    static std::string CalculateHash(std::span<const uint8_t> data);
     static void Pack(const std::string& folder, const std::string& output, const ArchiveType otrMode);
     std::string NormalizeAsset(const std::string& name) const;
     std::string RelativePath(const std::string& path) const;
@@ -186,7 +283,7 @@ public:
     void RegisterCompanionFile(const std::string path, std::vector<char> data);
 
     TorchConfig& GetConfig() { return this->gConfig; }
-    BinaryWrapper* GetCurrentWrapper() { return this->gCurrentWrapper; }
+    BinaryWrapper* GetCurrentWrapper() { return this->Context().wrapper; }
 
     std::optional<std::tuple<std::string, YAML::Node>> RegisterAsset(const std::string& name, YAML::Node& node);
     std::optional<YAML::Node> AddAsset(YAML::Node asset);
@@ -195,46 +292,75 @@ private:
     YAML::Node gModdingConfig;
     fs::path gSourceDirectory;
     fs::path gDestinationDirectory;
-    fs::path gCurrentDirectory;
-    std::string gCurrentHash;
     std::string gAssetPath;
     std::vector<uint8_t> gRomData;
     std::optional<std::filesystem::path> gRomPath;
-    bool gNodeForceProcessing = false;
-    bool gIndividualIncludes = false;
+    std::string gRomHash;
+    std::optional<int> gOutputFd;
+    std::string gCompressionOverride;
+    ProgressTracker gProgress;
+    PerfReport gPerf;
+    ConcurrencyLimit gJobLimit;
+    const std::atomic<bool>* gCancelFlag = nullptr;
+    std::optional<RomCache> gRomCache;
+    size_t gJobs = 1;
+    bool gIncremental = false;
+    bool gUseManifest = false;
+    std::optional<YamlManifest> gManifest;
+    std::mutex gAssetFilesMutex;
+    std::unordered_map<std::string, AssetFile> gAssetFiles;
+    // Untouched trees by content hash, see SetKeepParsedAssets
+    bool gKeepParsedAssets = false;
+    std::unordered_map<std::string, YAML::Node> gParsedAssets;
+    std::optional<YAML::Node> gRootConfig;
+    fs::file_time_type gRootConfigTime;
     YAML::Node gHashNode;
+    std::mutex gHashMutex;
     std::shared_ptr<N64::Cartridge> gCartridge;
     std::unordered_map<std::string, std::vector<YAML::Node>> gCourseMetadata;
     std::unordered_map<std::string, std::unordered_map<int32_t, std::string>> gEnums;
-    BinaryWrapper* gCurrentWrapper;
-
-    // Temporal Variables
-    std::string gCurrentFile;
-    std::string gCurrentVirtualPath;
-    std::string gFileHeader;
-    bool gEnablePadGen = false;
-    uint32_t gCurrentPad = 0;
-    uint32_t gCurrentFileOffset;
-    uint32_t gCurrentSegmentNumber;
-    std::optional<VRAMEntry> gCurrentVram;
-    CompressionType gCurrentCompressionType = CompressionType::None;
-    std::vector<Table> gTables;
-    std::vector<std::string> gCurrentExternalFiles;
+
+    // Used when no file is being processed, see Context()
+    FileContext gDefaultContext;
     std::unordered_set<std::string> gProcessedFiles;
+    // Normalized paths of the files FindSharedFiles found, their archive entries are never reused
+    std::unordered_set<std::string> gSharedFiles;
 
-    std::unordered_map<std::string, std::vector<char>> gCompanionFiles;
-    std::unordered_map<std::string, std::vector<ParseResultData>> gParseResults;
+    // Guards the outer map, the registry of a file is only modified by the thread processing that file
+    std::mutex gRegistryMutex;
+    std::unordered_map<std::string, AssetRegistry> gRegistries;
 
+    // Guards gModdedAssetPaths while deferred modding exports register their files from the writer pool
+    std::mutex gModdedMutex;
     std::unordered_map<std::string, std::string> gModdedAssetPaths;
+    // Only set while a modding or xml run is exporting
+    std::unique_ptr<AsyncFileWriter> gModdingWriter;
     std::variant<std::vector<std::string>, std::string> gWriteOrder;
     std::unordered_map<std::string, std::shared_ptr<BaseFactory>> gFactories;
-    std::unordered_map<std::string, std::map<std::string, std::vector<WriteEntry>>> gWriteMap;
-    std::unordered_map<std::string, std::tuple<uint32_t, uint32_t>> gVirtualAddrMap;
-    std::unordered_map<std::string, std::unordered_map<uint32_t, std::tuple<std::string, YAML::Node>>> gAddrMap;
 
+    FileContext& Context();
+    const FileContext& Context() const;
+    AssetRegistry* FindRegistry(const std::string& file);
+    AssetRegistry& GetRegistry(const std::string& file);
+    // Registry of the file being processed and of the external files it depends on
+    AssetRegistry& Registry();
+    const std::vector<AssetRegistry*>& ExternalRegistries();
+
+    // Reads, hashes and parses an asset yaml, each file is only read once per run
+    const AssetFile& LoadAssetFile(const std::string& path);
+    // config.yml is only parsed again when it changed since the last run
+    YAML::Node LoadRootConfig(const fs::path& path);
+    // Drops what a previous Process left behind, so a Companion can run again
+    void ResetRunState();
     void ProcessFile(YAML::Node root);
+    void WriteModdingFile(const fs::path& path, std::vector<char> data);
+    void FindSharedFiles(const std::vector<std::string>& files);
+    void ProcessFilesParallel(const std::vector<std::string>& files, BinaryWrapper* wrapper);
     void ParseEnums(std::string& file);
     void ParseHash();
+    bool ReuseArchiveEntries(YAML::Node entry);
+    bool CanReusePreviousArchive();
+    void ThrowIfCancelled() const;
     void ParseModdingConfig();
     void ParseCurrentFileConfig(YAML::Node node);
     void RegisterFactory(const std::string& type, const std::shared_ptr<BaseFactory>& factory);
@@ -0,0 +1,106 @@
+#include "ArchivePacker.h"
+
+#include <algorithm>
+#include <deque>
+#include <fstream>
+#include <future>
+#include <stdexcept>
+#include <string>
+#include <vector>
+
+#include "spdlog/spdlog.h"
+
+namespace fs = std::filesystem;
+
+struct PackEntry {
+    std::string name;
+    fs::path path;
+    uint64_t size;
+};
+
+static std::vector<char> ReadEntry(const fs::path& path) {
+    std::ifstream input(path, std::ios::binary | std::ios::ate);
+
+    if(!input.is_open()) {
+        throw std::runtime_error("Failed to open " + path.string());
+    }
+
+    std::vector<char> data(static_cast<size_t>(input.tellg()));
+    input.seekg(0);
+    input.read(data.data(), data.size());
+
+    if(!input) {
+        throw std::runtime_error("Failed to read " + path.string());
+    }
+
+    return data;
+}
+
+ArchivePacker::ArchivePacker(BinaryWrapper& wrapper, const size_t threads, const uint64_t maxPending) :
+    mWrapper(wrapper), mThreads(std::max<size_t>(threads, 1)), mMaxPending(maxPending) {}
+
+size_t ArchivePacker::Pack(const fs::path& folder) {
+    this->mProgress.Reset();
+    this->mProgress.SetPhase(ProgressPhase::Preparing);
+
+    std::vector<PackEntry> entries;
+    for (const auto& entry : fs::recursive_directory_iterator(folder)) {
+        if(!entry.is_regular_file()) {
+            continue;
+        }
+
+        entries.push_back({ fs::relative(entry.path(), folder).generic_string(), entry.path(), entry.file_size() });
+    }
+
+    // Directory iteration order depends on the file system, sorting keeps the archive reproducible
+    std::sort(entries.begin(), entries.end(), [](const PackEntry& a, const PackEntry& b) {
+        return a.name < b.name;
+    });
+
+    this->mProgress.SetFilesTotal(entries.size());
+
+    if(this->mWrapper.CreateArchive() != 0) {
+        throw std::runtime_error("Failed to create archive");
+    }
+
+    this->mProgress.SetPhase(ProgressPhase::Exporting);
+
+    {
+        ThreadPool pool(this->mThreads);
+        std::deque<std::future<std::vector<char>>> reads;
+        uint64_t pending = 0;
+        size_t next = 0;
+
+        for (const auto& entry : entries) {
+            // Keep the pool busy without holding more than maxPending bytes that the wrapper has not taken yet
+            while(next < entries.size() && reads.size() < this->mThreads * 2 && (reads.empty() || pending + entries[next].size <= this->mMaxPending)) {
+                pending += entries[next].size;
+                reads.push_back(pool.Submit([path = entries[next].path] { return ReadEntry(path); }));
+                next++;
+            }
+
+            if(this->mCancelFlag != nullptr && this->mCancelFlag->load(std::memory_order_relaxed)) {
+                throw std::runtime_error("Cancelled");
+            }
+
+            auto data = reads.front().get();
+            reads.pop_front();
+            pending -= entry.size;
+
+            const auto size = data.size();
+            this->mWrapper.AddFile(entry.name, std::move(data));
+            this->mProgress.AssetExported(size);
+            this->mProgress.FileDone();
+            SPDLOG_INFO("> Added {}", entry.name);
+        }
+    }
+
+    this->mProgress.SetPhase(ProgressPhase::Finalizing);
+
+    if(this->mWrapper.Close() != 0) {
+        throw std::runtime_error("Failed to finalize archive");
+    }
+
+    this->mProgress.SetPhase(ProgressPhase::Done);
+    return entries.size();
+}
@@ -0,0 +1,32 @@
+#pragma once
+
+#include <atomic>
+#include <cstdint>
+#include <filesystem>
+#include "BinaryWrapper.h"
+#include "utils/Progress.h"
+#include "utils/ThreadPool.h"
+
+/**
+ * Packs a folder into an archive. Files are read on a worker pool a few at a time, the wrapper compresses them on its
+ * own pool, and entries are added sorted by path so packing the same folder always gives the same archive. At most
+ * maxPending bytes of file data are read ahead of the wrapper, files larger than that are read one at a time.
+ */
+class ArchivePacker {
+public:
+    explicit ArchivePacker(BinaryWrapper& wrapper, size_t threads = ThreadPool::GetDefaultThreadCount(), uint64_t maxPending = 64 * 1024 * 1024);
+
+    // Pack stops between files and throws once the flag is set, the flag must outlive the call
+    void SetCancelFlag(const std::atomic<bool>* flag) { this->mCancelFlag = flag; }
+    ProgressTracker& Progress() { return this->mProgress; }
+
+    // Creates the archive, adds every file below folder named by its path relative to folder and closes it.
+    // Returns the number of files added
+    size_t Pack(const std::filesystem::path& folder);
+private:
+    BinaryWrapper& mWrapper;
+    size_t mThreads;
+    uint64_t mMaxPending;
+    const std::atomic<bool>* mCancelFlag = nullptr;
+    ProgressTracker mProgress;
+};
@@ -0,0 +1,108 @@
+#include "ArchivePipeline.h"
+
+#include <algorithm>
+#include <stdexcept>
+
+ArchivePipeline::ArchivePipeline(Stage compress, Stage commit, size_t threads) : mCompress(std::move(compress)), mCommit(std::move(commit)), mPool(threads) {
+    // Enough to keep every worker busy while the writer catches up, without holding the whole archive in memory
+    this->mLimit = std::max<size_t>(this->mPool.GetThreadCount(), 1) * 4;
+    this->mWriter = std::thread(&ArchivePipeline::WriterLoop, this);
+}
+
+ArchivePipeline::~ArchivePipeline() {
+    try {
+        this->Finish();
+    } catch (...) {
+        // Errors are reported by Finish, there is nobody left to report them to here
+    }
+}
+
+void ArchivePipeline::Push(const std::string& path, std::vector<char>&& data) {
+    this->Enqueue(ArchiveEntry { path, std::move(data) });
+}
+
+void ArchivePipeline::Reuse(const std::string& path) {
+    ArchiveEntry entry { path };
+    entry.reused = true;
+    this->Enqueue(std::move(entry));
+}
+
+void ArchivePipeline::Enqueue(ArchiveEntry entry) {
+    std::unique_lock<std::mutex> lock(this->mMutex);
+    this->mCondition.wait(lock, [this] { return this->mError != nullptr || this->mPending.size() < this->mLimit; });
+
+    if(this->mError != nullptr) {
+        std::rethrow_exception(this->mError);
+    }
+
+    if(this->mFinished) {
+        throw std::runtime_error("Cannot add " + entry.path + " to a finished archive");
+    }
+
+    if(entry.reused) {
+        std::promise<ArchiveEntry> ready;
+        ready.set_value(std::move(entry));
+        this->mPending.push_back(ready.get_future());
+    } else {
+        this->mPending.push_back(this->mPool.Submit([this, entry = std::move(entry)]() mutable {
+            this->mCompress(entry);
+            return std::move(entry);
+        }));
+    }
+
+    lock.unlock();
+    this->mCondition.notify_all();
+}
+
+void ArchivePipeline::Finish() {
+    {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mFinished = true;
+    }
+    this->mCondition.notify_all();
+
+    if(this->mWriter.joinable()) {
+        this->mWriter.join();
+    }
+
+    if(this->mError != nullptr) {
+        std::rethrow_exception(this->mError);
+    }
+}
+
+void ArchivePipeline::WriterLoop() {
+    while (true) {
+        std::future<ArchiveEntry> next;
+        bool failed;
+        {
+            std::unique_lock<std::mutex> lock(this->mMutex);
+            this->mCondition.wait(lock, [this] { return this->mFinished || !this->mPending.empty(); });
+
+            if(this->mPending.empty()) {
+                return;
+            }
+
+            next = std::move(this->mPending.front());
+            this->mPending.pop_front();
+            failed = this->mError != nullptr;
+        }
+        this->mCondition.notify_all();
+
+        try {
+            // Entries are still drained after a failure so no worker is left writing into a dead pipeline
+            auto entry = next.get();
+
+            if(!failed) {
+                this->mCommit(entry);
+            }
+        } catch (...) {
+            {
+                std::lock_guard<std::mutex> lock(this->mMutex);
+                if(this->mError == nullptr) {
+                    this->mError = std::current_exception();
+                }
+            }
+            this->mCondition.notify_all();
+        }
+    }
+}
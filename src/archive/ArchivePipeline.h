@@ -0,0 +1,62 @@
+#pragma once
+
+#include <condition_variable>
+#include <cstdint>
+#include <deque>
+#include <exception>
+#include <functional>
+#include <future>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+#include "utils/ThreadPool.h"
+
+struct ArchiveEntry {
+    std::string path;
+    std::vector<char> data;
+    // Size and crc of the raw data, only filled in when data has been compressed
+    size_t size = 0;
+    uint32_t crc = 0;
+    bool compressed = false;
+    // Left uncompressed by the compression policy, for writers that compress on their own (OTR)
+    bool stored = false;
+    // Copied over from the previous archive by the commit stage, data is empty
+    bool reused = false;
+};
+
+/**
+ * Compresses archive entries on a worker pool and hands them to a single writer thread in the order they were pushed,
+ * so the archive contents do not depend on scheduling. Only a bounded number of entries is kept in flight.
+ */
+class ArchivePipeline {
+public:
+    using Stage = std::function<void(ArchiveEntry&)>;
+
+    // compress runs on any worker, commit always runs on the writer thread
+    ArchivePipeline(Stage compress, Stage commit, size_t threads = ThreadPool::GetDefaultThreadCount());
+    ~ArchivePipeline();
+
+    ArchivePipeline(const ArchivePipeline&) = delete;
+    ArchivePipeline& operator=(const ArchivePipeline&) = delete;
+
+    void Push(const std::string& path, std::vector<char>&& data);
+    // Queues an entry the commit stage takes from the previous archive, it skips the compression stage
+    void Reuse(const std::string& path);
+    // Waits until every pushed entry is committed, rethrows the first error raised by either stage
+    void Finish();
+private:
+    void Enqueue(ArchiveEntry entry);
+    void WriterLoop();
+
+    Stage mCompress;
+    Stage mCommit;
+    ThreadPool mPool;
+    std::deque<std::future<ArchiveEntry>> mPending;
+    size_t mLimit;
+    std::mutex mMutex;
+    std::condition_variable mCondition;
+    std::exception_ptr mError;
+    bool mFinished = false;
+    std::thread mWriter;
+};
@@ -3,6 +3,7 @@
 #include <vector>
 #include <string>
 #include <mutex>
+#include "CompressionPolicy.h"
 
 class BinaryWrapper {
 public:
@@ -11,9 +12,20 @@ public:
     virtual ~BinaryWrapper() = default;
 
     virtual int32_t CreateArchive(void) = 0;
-    virtual bool AddFile(const std::string& path, std::vector<char> data) = 0;
+    // Takes over data, resources are moved through to the archive without copying them
+    virtual bool AddFile(const std::string& path, std::vector<char>&& data) = 0;
+    bool AddFile(const std::string& path, const std::vector<char>& data) { return this->AddFile(path, std::vector<char>(data)); }
     virtual int32_t Close(void) = 0;
+
+    // Incremental builds, entries of a previously written archive are carried over without exporting them again
+    virtual bool OpenPrevious(const std::string& path) { return false; }
+    virtual bool CanReuse(const std::string& path) { return false; }
+    virtual bool ReuseFile(const std::string& path) { return false; }
+
+    // Applies to the files added after this call, set it before CreateArchive
+    void SetCompression(const CompressionPolicy& policy) { this->mCompression = policy; }
 protected:
     std::mutex mMutex;
     std::string mPath;
+    CompressionPolicy mCompression;
 };
@@ -0,0 +1,256 @@
+#include "CompressionPolicy.h"
+
+#include <algorithm>
+#include <cstring>
+#include <map>
+#include <sstream>
+#include <stdexcept>
+#include <yaml-cpp/yaml.h>
+
+using Torch::ResourceType;
+
+static const std::unordered_map<std::string, ResourceType> sTypeNames = {
+    { "DisplayList", ResourceType::DisplayList },
+    { "Vertex", ResourceType::Vertex },
+    { "Matrix", ResourceType::Matrix },
+    { "Float", ResourceType::Float },
+    { "Array", ResourceType::Array },
+    { "Blob", ResourceType::Blob },
+    { "Texture", ResourceType::Texture },
+    { "Lights", ResourceType::Lights },
+    { "Vec3f", ResourceType::Vec3f },
+    { "Vec3s", ResourceType::Vec3s },
+    { "GenericArray", ResourceType::GenericArray },
+    { "AssetArray", ResourceType::AssetArray },
+    { "Viewport", ResourceType::Viewport },
+    { "Anim", ResourceType::Anim },
+    { "BehaviorScript", ResourceType::BehaviorScript },
+    { "SDialog", ResourceType::SDialog },
+    { "Dictionary", ResourceType::Dictionary },
+    { "GeoLayout", ResourceType::GeoLayout },
+    { "Collision", ResourceType::Collision },
+    { "LevelScript", ResourceType::LevelScript },
+    { "MacroObject", ResourceType::MacroObject },
+    { "Movtex", ResourceType::Movtex },
+    { "MovtexQuad", ResourceType::MovtexQuad },
+    { "Painting", ResourceType::Painting },
+    { "PaintingData", ResourceType::PaintingData },
+    { "Trajectory", ResourceType::Trajectory },
+    { "WaterDroplet", ResourceType::WaterDroplet },
+    { "CourseProperties", ResourceType::CourseProperties },
+    { "CourseVertex", ResourceType::CourseVertex },
+    { "TrackSection", ResourceType::TrackSection },
+    { "Paths", ResourceType::Paths },
+    { "Metadata", ResourceType::Metadata },
+    { "SpawnData", ResourceType::SpawnData },
+    { "UnkSpawnData", ResourceType::UnkSpawnData },
+    { "DrivingBehaviour", ResourceType::DrivingBehaviour },
+    { "AnimData", ResourceType::AnimData },
+    { "ColPoly", ResourceType::ColPoly },
+    { "Environment", ResourceType::Environment },
+    { "Limb", ResourceType::Limb },
+    { "Message", ResourceType::Message },
+    { "MessageTable", ResourceType::MessageTable },
+    { "Skeleton", ResourceType::Skeleton },
+    { "Script", ResourceType::Script },
+    { "ScriptCmd", ResourceType::ScriptCmd },
+    { "Hitbox", ResourceType::Hitbox },
+    { "ObjectInit", ResourceType::ObjectInit },
+    { "CourseData", ResourceType::CourseData },
+    { "GhostRecord", ResourceType::GhostRecord },
+    { "Bank", ResourceType::Bank },
+    { "Sample", ResourceType::Sample },
+    { "Sequence", ResourceType::Sequence },
+    { "SoundFont", ResourceType::SoundFont },
+    { "Drum", ResourceType::Drum },
+    { "Instrument", ResourceType::Instrument },
+    { "AdpcmLoop", ResourceType::AdpcmLoop },
+    { "AdpcmBook", ResourceType::AdpcmBook },
+    { "Envelope", ResourceType::Envelope },
+    { "AudioTable", ResourceType::AudioTable },
+};
+
+CompressionLevel CompressionPolicy::Resolve(const std::string& path, const std::vector<char>& data) const {
+    for (const auto& [pattern, level] : this->mPaths) {
+        if(MatchesPattern(pattern, path)) {
+            return level;
+        }
+    }
+
+    if(!this->mTypes.empty()) {
+        const auto type = this->mTypes.find((uint32_t) ReadType(data));
+        if(type != this->mTypes.end()) {
+            return type->second;
+        }
+    }
+
+    return this->mDefault;
+}
+
+bool CompressionPolicy::KeepsGain(const size_t raw, const size_t compressed) const {
+    if(compressed >= raw) {
+        return false;
+    }
+
+    return (double) (raw - compressed) * 100.0 >= this->mMinGain * (double) raw;
+}
+
+void CompressionPolicy::Load(const YAML::Node& node) {
+    if(!node) {
+        return;
+    }
+
+    if(node.IsScalar()) {
+        this->mDefault = ParseLevel(node.as<std::string>());
+        return;
+    }
+
+    if(!node.IsMap()) {
+        throw std::runtime_error("compression must be a level or a map");
+    }
+
+    if(node["default"]) {
+        this->mDefault = ParseLevel(node["default"].as<std::string>());
+    }
+
+    if(node["min_gain"]) {
+        this->mMinGain = std::clamp(node["min_gain"].as<double>(), 0.0, 100.0);
+    }
+
+    if(auto paths = node["paths"]) {
+        this->mPaths.clear();
+        for (const auto& entry : paths) {
+            this->mPaths.emplace_back(entry.first.as<std::string>(), ParseLevel(entry.second.as<std::string>()));
+        }
+    }
+
+    if(auto types = node["types"]) {
+        this->mTypes.clear();
+        for (const auto& entry : types) {
+            const auto type = ParseType(entry.first.as<std::string>());
+            this->mTypes[(uint32_t) type] = ParseLevel(entry.second.as<std::string>());
+        }
+    }
+}
+
+void CompressionPolicy::Load(const std::string& yaml) {
+    if(yaml.empty()) {
+        return;
+    }
+
+    this->Load(YAML::Load(yaml));
+}
+
+static const char* LevelName(const CompressionLevel level) {
+    switch (level) {
+        case CompressionLevel::Store: return "store";
+        case CompressionLevel::Fast: return "fast";
+        default: return "max";
+    }
+}
+
+std::string CompressionPolicy::Describe() const {
+    std::ostringstream out;
+    out << LevelName(this->mDefault) << " min_gain=" << this->mMinGain;
+
+    for (const auto& [pattern, level] : this->mPaths) {
+        out << " " << pattern << "=" << LevelName(level);
+    }
+
+    const std::map<uint32_t, CompressionLevel> types(this->mTypes.begin(), this->mTypes.end());
+    for (const auto& [type, level] : types) {
+        out << " " << std::hex << type << std::dec << "=" << LevelName(level);
+    }
+
+    return out.str();
+}
+
+CompressionLevel CompressionPolicy::ParseLevel(const std::string& name) {
+    if(name == "store" || name == "none") {
+        return CompressionLevel::Store;
+    }
+
+    if(name == "fast") {
+        return CompressionLevel::Fast;
+    }
+
+    if(name == "max") {
+        return CompressionLevel::Max;
+    }
+
+    throw std::runtime_error("Invalid compression level " + name + ", expected store, fast or max");
+}
+
+ResourceType CompressionPolicy::ParseType(const std::string& name) {
+    const auto type = sTypeNames.find(name);
+    if(type != sTypeNames.end()) {
+        return type->second;
+    }
+
+    // The tag as it reads in a hex dump of the header, OTEX for textures
+    if(name.size() == 4) {
+        uint32_t tag = 0;
+        for (const char c : name) {
+            tag = tag << 8 | (uint8_t) c;
+        }
+        return (ResourceType) tag;
+    }
+
+    throw std::runtime_error("Unknown resource type " + name);
+}
+
+ResourceType CompressionPolicy::ReadType(const std::vector<char>& data) {
+    // See BaseExporter::WriteHeader, the endianness byte is followed by the type and the 0xDEADBEEF id
+    static const uint8_t little[] = { 0xEF, 0xBE, 0xAD, 0xDE, 0xEF, 0xBE, 0xAD, 0xDE };
+    static const uint8_t big[] = { 0xDE, 0xAD, 0xBE, 0xEF, 0xDE, 0xAD, 0xBE, 0xEF };
+
+    if(data.size() < 0x40 || (data[0] != 0 && data[0] != 1)) {
+        return ResourceType::None;
+    }
+
+    const bool bigEndian = data[0] == 1;
+    if(std::memcmp(data.data() + 0x0C, bigEndian ? big : little, sizeof(little)) != 0) {
+        return ResourceType::None;
+    }
+
+    const auto* bytes = reinterpret_cast<const uint8_t*>(data.data() + 0x04);
+    if(bigEndian) {
+        return (ResourceType) ((uint32_t) bytes[0] << 24 | (uint32_t) bytes[1] << 16 | (uint32_t) bytes[2] << 8 | bytes[3]);
+    }
+
+    return (ResourceType) ((uint32_t) bytes[3] << 24 | (uint32_t) bytes[2] << 16 | (uint32_t) bytes[1] << 8 | bytes[0]);
+}
+
+static bool MatchesFrom(const std::string& pattern, size_t p, const std::string& path, size_t s) {
+    while (p < pattern.size()) {
+        const char c = pattern[p];
+
+        if(c == '*') {
+            const bool any = p + 1 < pattern.size() && pattern[p + 1] == '*';
+            const size_t next = p + (any ? 2 : 1);
+
+            for (size_t end = s; end <= path.size(); end++) {
+                if(MatchesFrom(pattern, next, path, end)) {
+                    return true;
+                }
+                if(end < path.size() && !any && path[end] == '/') {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        if(s >= path.size() || (c == '?' ? path[s] == '/' : c != path[s])) {
+            return false;
+        }
+
+        p++;
+        s++;
+    }
+
+    return s == path.size();
+}
+
+bool MatchesPattern(const std::string& pattern, const std::string& path) {
+    return MatchesFrom(pattern, 0, path, 0);
+}
@@ -0,0 +1,64 @@
+#pragma once
+
+#include <cstdint>
+#include <optional>
+#include <string>
+#include <unordered_map>
+#include <utility>
+#include <vector>
+#include "factories/ResourceType.h"
+
+namespace YAML {
+class Node;
+}
+
+enum class CompressionLevel {
+    // Written as is, loaders can map it without inflating
+    Store,
+    Fast,
+    Max
+};
+
+/**
+ * Picks how each archive entry is compressed, from the compression node of config.yml:
+ *
+ *   compression:
+ *     default: max          # store, fast or max
+ *     min_gain: 5           # percent, entries that shrink less than this are stored
+ *     paths:
+ *       "audio**": store    # * and ? stay within a directory, ** does not
+ *     types:
+ *       Vertex: store
+ *       OMTX: store         # the four letter tag of the header works too
+ *
+ * The first matching path pattern wins, then the resource type of the entry header, then the default.
+ */
+class CompressionPolicy {
+public:
+    CompressionLevel Resolve(const std::string& path, const std::vector<char>& data) const;
+    // Whether compressing raw bytes down to compressed bytes saves enough to keep the compressed data
+    bool KeepsGain(size_t raw, size_t compressed) const;
+    // False when compressed data is kept whatever the gain, saves compressing only to measure it
+    bool ChecksGain() const { return this->mMinGain > 0; }
+
+    // Entries in node replace what is already set, an empty node keeps the policy as is
+    void Load(const YAML::Node& node);
+    // Same as Load for the yaml text handed over by the app, throws on invalid yaml
+    void Load(const std::string& yaml);
+
+    // Same text for the same policy, stored with the archive so a changed policy is not mixed with reused entries
+    std::string Describe() const;
+
+    static CompressionLevel ParseLevel(const std::string& name);
+    static Torch::ResourceType ParseType(const std::string& name);
+    // Type written by BaseExporter::WriteHeader, None for files without a resource header
+    static Torch::ResourceType ReadType(const std::vector<char>& data);
+private:
+    CompressionLevel mDefault = CompressionLevel::Max;
+    double mMinGain = 0;
+    std::vector<std::pair<std::string, CompressionLevel>> mPaths;
+    std::unordered_map<uint32_t, CompressionLevel> mTypes;
+};
+
+// Glob match where * and ? do not cross a '/' and ** does
+bool MatchesPattern(const std::string& pattern, const std::string& path);
@@ -1,10 +1,15 @@
 #include "SWrapper.h"
+#include <cstring>
 #include <filesystem>
 #include <iostream>
 #include <fstream>
 
 #include "spdlog/spdlog.h"
 #include <Companion.h>
+#ifdef USE_STORMLIB
+#define MINIZ_HEADER_FILE_ONLY
+#include <miniz/zip_file.hpp>
+#endif
 
 namespace fs = std::filesystem;
 
@@ -12,6 +17,21 @@ SWrapper::SWrapper(const std::string& path) {
     mPath = path;
 }
 
+// Only reached open when Close was not, the archive is abandoned but both handles have to be let go of
+SWrapper::~SWrapper() {
+#ifdef USE_STORMLIB
+    this->mPipeline.reset();
+
+    if(this->hPrevious != nullptr) {
+        SFileCloseArchive(this->hPrevious);
+    }
+
+    if(this->hMpq != nullptr) {
+        SFileCloseArchive(this->hMpq);
+    }
+#endif
+}
+
 int32_t SWrapper::CreateArchive() {
 #ifndef USE_STORMLIB
     throw std::runtime_error("StormLib is not enabled. Cannot create archive");
@@ -25,11 +45,17 @@ int32_t SWrapper::CreateArchive() {
         return -1;
     }
 
+    this->mPipeline = std::make_unique<ArchivePipeline>([this](ArchiveEntry& entry) {
+        this->ChooseCompression(entry);
+    }, [this](ArchiveEntry& entry) {
+        this->CommitEntry(entry);
+    });
+
     return 0;
 #endif
 }
 
-bool SWrapper::AddFile(const std::string& path, std::vector<char> data) {
+bool SWrapper::AddFile(const std::string& path, std::vector<char>&& data) {
 #ifndef USE_STORMLIB
     throw std::runtime_error("StormLib is not enabled. Cannot create file");
 #else
@@ -40,10 +66,55 @@ bool SWrapper::AddFile(const std::string& path, std::vector<char> data) {
             fs::create_directories(fs::path(dpath).parent_path());
         }
         std::ofstream stream(dpath, std::ios::binary);
-        stream.write((char*)data.data(), data.size());
+        stream.write(data.data(), data.size());
         stream.close();
     }
 
+    const size_t size = data.size();
+
+    if(size == 0){
+        SPDLOG_ERROR("File at path {} is empty", path);
+        return false;
+    }
+
+    if(size >> 32){
+        throw std::runtime_error("File at path " + path + " is too large with size " + std::to_string(size));
+    }
+
+    if(this->mPipeline == nullptr) {
+        throw std::runtime_error("Archive " + mPath + " is not open");
+    }
+
+    this->mPipeline->Push(path, std::move(data));
+    return true;
+#endif
+}
+
+#ifdef USE_STORMLIB
+void SWrapper::ChooseCompression(ArchiveEntry& entry) {
+    if(this->mCompression.Resolve(entry.path, entry.data) == CompressionLevel::Store) {
+        entry.stored = true;
+        return;
+    }
+
+    if(!this->mCompression.ChecksGain()) {
+        return;
+    }
+
+    // StormLib deflates each sector at level 6, compressing the whole file the same way is close enough to decide
+    size_t length = 0;
+    const auto flags = tdefl_create_comp_flags_from_zip_params(MZ_DEFAULT_LEVEL, MZ_DEFAULT_WINDOW_BITS, MZ_DEFAULT_STRATEGY);
+    void* compressed = tdefl_compress_mem_to_heap(entry.data.data(), entry.data.size(), &length, flags);
+
+    if(compressed == nullptr) {
+        throw std::runtime_error("Failed to compress file at path " + entry.path);
+    }
+
+    mz_free(compressed);
+    entry.stored = !this->mCompression.KeepsGain(entry.data.size(), length);
+}
+
+void SWrapper::CommitEntry(ArchiveEntry& entry) {
     HANDLE hFile;
 #ifdef _WIN32
     SYSTEMTIME sysTime;
@@ -56,30 +127,93 @@ bool SWrapper::AddFile(const std::string& path, std::vector<char> data) {
     time(&theTime);
 #endif
 
-    char* raw = data.data();
-    size_t size = data.size();
+    const std::string& path = entry.path;
 
-    if(size == 0){
-        SPDLOG_ERROR("File at path {} is empty", path);
-        return false;
+    if(entry.reused) {
+        // StormLib can only hand out decompressed data, so OTR entries are compressed again
+        HANDLE hPrevious;
+
+        if(!SFileOpenFileEx(this->hPrevious, path.c_str(), SFILE_OPEN_FROM_MPQ, &hPrevious)){
+            throw std::runtime_error("Failed to open file at path " + path + " in previous archive with error " + std::to_string(GetLastError()));
+        }
+
+        DWORD read = 0;
+        entry.data.resize(SFileGetFileSize(hPrevious, nullptr));
+        const bool success = SFileReadFile(hPrevious, entry.data.data(), entry.data.size(), &read, nullptr);
+        SFileCloseFile(hPrevious);
+
+        if(!success || read != entry.data.size()){
+            throw std::runtime_error("Failed to read file at path " + path + " from previous archive with error " + std::to_string(GetLastError()));
+        }
     }
 
-    if(size >> 32){
-        throw std::runtime_error("File at path " + path + " is too large with size " + std::to_string(size));
+    const size_t size = entry.data.size();
+
+    if(entry.reused) {
+        this->ChooseCompression(entry);
     }
 
-    if(!SFileCreateFile(this->hMpq, path.c_str(), theTime, size, 0, MPQ_FILE_COMPRESS, &hFile)){
-        return false;
+    if(!SFileCreateFile(this->hMpq, path.c_str(), theTime, size, 0, entry.stored ? 0 : MPQ_FILE_COMPRESS, &hFile)){
+        throw std::runtime_error("Failed to create file at path " + path + " with error " + std::to_string(GetLastError()));
     }
 
-    if(!SFileWriteFile(hFile, (void*) raw, size, MPQ_COMPRESSION_ZLIB)){
+    // StormLib compresses every sector itself, so for OTR the deflate happens here on the writer thread
+    if(!SFileWriteFile(hFile, entry.data.data(), size, entry.stored ? 0 : MPQ_COMPRESSION_ZLIB)){
         throw std::runtime_error("Failed to write file at path " + path + " with error " + std::to_string(GetLastError()));
     }
 
     if(!SFileCloseFile(hFile)){
         throw std::runtime_error("Failed to close file at path " + path + " with error " + std::to_string(GetLastError()));
     }
+}
+#endif
+
+bool SWrapper::OpenPrevious(const std::string& path) {
+#ifndef USE_STORMLIB
+    throw std::runtime_error("StormLib is not enabled. Cannot open archive");
+#else
+    if(!SFileOpenArchive(path.c_str(), 0, MPQ_OPEN_READ_ONLY, &this->hPrevious)){
+        SPDLOG_WARN("Failed to open previous archive {} with error code {}, every file will be exported", path, GetLastError());
+        this->hPrevious = nullptr;
+        return false;
+    }
+
+    SFILE_FIND_DATA data;
+    HANDLE hFind = SFileFindFirstFile(this->hPrevious, "*", &data, nullptr);
+
+    if(hFind != nullptr) {
+        do {
+            this->mPreviousEntries.insert(data.cFileName);
+        } while(SFileFindNextFile(hFind, &data));
+        SFileFindClose(hFind);
+    }
 
+    SPDLOG_INFO("Reusing unchanged entries from {}", path);
+    return true;
+#endif
+}
+
+bool SWrapper::CanReuse(const std::string& path) {
+#ifndef USE_STORMLIB
+    return false;
+#else
+    return this->mPreviousEntries.contains(path);
+#endif
+}
+
+bool SWrapper::ReuseFile(const std::string& path) {
+#ifndef USE_STORMLIB
+    throw std::runtime_error("StormLib is not enabled. Cannot create file");
+#else
+    if(this->mPipeline == nullptr) {
+        throw std::runtime_error("Archive " + mPath + " is not open");
+    }
+
+    if(!this->CanReuse(path)) {
+        return false;
+    }
+
+    this->mPipeline->Reuse(path);
     return true;
 #endif
 }
@@ -92,8 +226,23 @@ int32_t SWrapper::Close(void) {
         SPDLOG_ERROR("Archive already closed");
         return -1;
     }
-    if (SFileCloseArchive(this->hMpq)) {
-        SPDLOG_ERROR("Error closing archive");
+
+    if(this->mPipeline != nullptr) {
+        this->mPipeline->Finish();
+        this->mPipeline.reset();
+    }
+
+    if(this->hPrevious != nullptr) {
+        SFileCloseArchive(this->hPrevious);
+        this->hPrevious = nullptr;
+        this->mPreviousEntries.clear();
+    }
+
+    const bool closed = SFileCloseArchive(this->hMpq);
+    this->hMpq = nullptr;
+
+    if(!closed) {
+        SPDLOG_ERROR("Error closing archive {} with error code {}", mPath, GetLastError());
         return -1;
     }
     return 0;
@@ -2,7 +2,10 @@
 
 #include <vector>
 #include <string>
+#include <memory>
+#include <unordered_set>
 #include "BinaryWrapper.h"
+#include "ArchivePipeline.h"
 #ifdef USE_STORMLIB
 #include <StormLib/src/StormLib.h>
 #endif
@@ -10,12 +13,24 @@
 class SWrapper : public BinaryWrapper {
 public:
     explicit SWrapper(const std::string& path);
+    ~SWrapper() override;
 
     int32_t CreateArchive(void) override;
-    bool AddFile(const std::string& path, std::vector<char> data) override;
+    using BinaryWrapper::AddFile;
+    bool AddFile(const std::string& path, std::vector<char>&& data) override;
     int32_t Close(void) override;
+
+    bool OpenPrevious(const std::string& path) override;
+    bool CanReuse(const std::string& path) override;
+    bool ReuseFile(const std::string& path) override;
 #ifdef USE_STORMLIB
 private:
+    void ChooseCompression(ArchiveEntry& entry);
+    void CommitEntry(ArchiveEntry& entry);
+
+    std::unique_ptr<ArchivePipeline> mPipeline;
     HANDLE hMpq{};
+    HANDLE hPrevious{};
+    std::unordered_set<std::string> mPreviousEntries;
 #endif
 };
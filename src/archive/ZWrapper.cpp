@@ -3,6 +3,12 @@
 #include <iostream>
 #include <fstream>
 
+#ifdef _WIN32
+#include <io.h>
+#else
+#include <unistd.h>
+#endif
+
 #include "spdlog/spdlog.h"
 #include <Companion.h>
 #include <miniz/zip_file.hpp>
@@ -11,18 +17,134 @@ namespace fs = std::filesystem;
 
 ZWrapper::ZWrapper(const std::string& path) {
     this->mPath = path;
-    this->mZip = new miniz_cpp::zip_file;
+    this->mZip = new mz_zip_archive{};
+}
+
+ZWrapper::ZWrapper(const std::string& path, int fd) : ZWrapper(path) {
+    this->mDescriptor = fd;
+}
+
+ZWrapper::~ZWrapper() {
+    this->mPipeline.reset();
+
+    if(this->mFile != nullptr) {
+        mz_zip_writer_end(this->mZip);
+        fclose(this->mFile);
+    }
+    delete this->mZip;
+
+    if(this->mPrevious != nullptr) {
+        mz_zip_reader_end(this->mPrevious);
+        delete this->mPrevious;
+    }
+}
+
+static size_t WriteArchive(void* opaque, const mz_uint64 offset, const void* buffer, const size_t size) {
+    auto* file = static_cast<std::FILE*>(opaque);
+
+    // miniz appends sequentially and only seeks back to patch the local header of the entry it just wrote
+    if(MZ_FTELL64(file) != (int64_t) offset && MZ_FSEEK64(file, (int64_t) offset, SEEK_SET) != 0) {
+        return 0;
+    }
+
+    return fwrite(buffer, 1, size, file);
+}
+
+void ZWrapper::CompressEntry(ArchiveEntry& entry) {
+    // miniz stores these uncompressed anyway
+    if(entry.data.size() <= 3) {
+        return;
+    }
+
+    const auto level = this->mCompression.Resolve(entry.path, entry.data);
+    if(level == CompressionLevel::Store) {
+        return;
+    }
+
+    size_t length = 0;
+    const auto flags = tdefl_create_comp_flags_from_zip_params(level == CompressionLevel::Fast ? MZ_BEST_SPEED : MZ_BEST_COMPRESSION, -MZ_DEFAULT_WINDOW_BITS, MZ_DEFAULT_STRATEGY);
+    void* compressed = tdefl_compress_mem_to_heap(entry.data.data(), entry.data.size(), &length, flags);
+
+    if(compressed == nullptr) {
+        throw std::runtime_error("Failed to compress file at path " + entry.path);
+    }
+
+    // Not worth inflating on every load
+    if(!this->mCompression.KeepsGain(entry.data.size(), length)) {
+        mz_free(compressed);
+        return;
+    }
+
+    entry.size = entry.data.size();
+    entry.crc = (uint32_t) mz_crc32(MZ_CRC32_INIT, (const mz_uint8*) entry.data.data(), entry.data.size());
+    entry.data.assign((char*) compressed, (char*) compressed + length);
+    entry.compressed = true;
+    mz_free(compressed);
+}
+
+void ZWrapper::CommitEntry(ArchiveEntry& entry) {
+    bool written;
+
+    if(entry.reused) {
+        written = mz_zip_writer_add_from_zip_reader(this->mZip, this->mPrevious, this->mPreviousEntries.at(entry.path));
+    } else if(entry.compressed) {
+        written = mz_zip_writer_add_mem_ex(this->mZip, entry.path.c_str(), entry.data.data(), entry.data.size(), nullptr, 0, MZ_BEST_COMPRESSION | MZ_ZIP_FLAG_COMPRESSED_DATA, entry.size, entry.crc);
+    } else {
+        written = mz_zip_writer_add_mem(this->mZip, entry.path.c_str(), entry.data.data(), entry.data.size(), MZ_NO_COMPRESSION);
+    }
+
+    if(!written) {
+        throw std::runtime_error("Failed to write file at path " + entry.path + " to " + this->mPath);
+    }
+}
+
+static std::FILE* OpenDescriptor(int fd) {
+#ifdef _WIN32
+    const int owned = _dup(fd);
+    auto* file = owned >= 0 ? _fdopen(owned, "wb") : nullptr;
+    if(file == nullptr && owned >= 0) {
+        _close(owned);
+    }
+#else
+    const int owned = dup(fd);
+    auto* file = owned >= 0 ? fdopen(owned, "wb") : nullptr;
+    if(file == nullptr && owned >= 0) {
+        close(owned);
+    }
+#endif
+    return file;
 }
 
 int32_t ZWrapper::CreateArchive() {
-    SPDLOG_INFO("Loaded ZIP (O2R) archive: {}", mPath.c_str());
+    // The descriptor is duplicated so fclose never closes the one the caller owns
+    this->mFile = this->mDescriptor >= 0 ? OpenDescriptor(this->mDescriptor) : MZ_FOPEN(this->mPath.c_str(), "wb");
+
+    if(this->mFile == nullptr) {
+        SPDLOG_ERROR("Failed to create archive {}", this->mPath);
+        return -1;
+    }
+
+    this->mZip->m_pWrite = &WriteArchive;
+    this->mZip->m_pIO_opaque = this->mFile;
+
+    if(!mz_zip_writer_init(this->mZip, 0)) {
+        SPDLOG_ERROR("Failed to initialize archive {}", this->mPath);
+        fclose(this->mFile);
+        this->mFile = nullptr;
+        return -1;
+    }
+
+    this->mPipeline = std::make_unique<ArchivePipeline>([this](ArchiveEntry& entry) {
+        this->CompressEntry(entry);
+    }, [this](ArchiveEntry& entry) {
+        this->CommitEntry(entry);
+    });
+
+    SPDLOG_INFO("Created ZIP (O2R) archive: {}", this->mPath);
     return 0;
 }
 
-bool ZWrapper::AddFile(const std::string& path, std::vector<char> data) {
-    char* fileData = data.data();
-    size_t fileSize = data.size();
-
+bool ZWrapper::AddFile(const std::string& path, std::vector<char>&& data) {
     if(Companion::Instance != nullptr && Companion::Instance->IsDebug()){
         SPDLOG_INFO("Creating debug file: debug/{}", path);
         std::string dpath = "debug/" + path;
@@ -30,15 +152,83 @@ bool ZWrapper::AddFile(const std::string& path, std::vector<char> data) {
             fs::create_directories(fs::path(dpath).parent_path());
         }
         std::ofstream stream(dpath, std::ios::binary);
-        stream.write(fileData, fileSize);
+        stream.write(data.data(), data.size());
         stream.close();
     }
 
-    this->mZip->writebytes(path, data);
+    if(this->mPipeline == nullptr) {
+        throw std::runtime_error("Archive " + this->mPath + " is not open");
+    }
+
+    this->mPipeline->Push(path, std::move(data));
+    return true;
+}
+
+bool ZWrapper::OpenPrevious(const std::string& path) {
+    auto* previous = new mz_zip_archive{};
+
+    if(!mz_zip_reader_init_file(previous, path.c_str(), 0)) {
+        SPDLOG_WARN("Failed to open previous archive {}, every file will be exported", path);
+        delete previous;
+        return false;
+    }
+
+    char name[MZ_ZIP_MAX_ARCHIVE_FILENAME_SIZE];
+    for (mz_uint i = 0; i < mz_zip_reader_get_num_files(previous); i++) {
+        mz_zip_reader_get_filename(previous, i, name, sizeof(name));
+        this->mPreviousEntries[name] = i;
+    }
+
+    this->mPrevious = previous;
+    SPDLOG_INFO("Reusing unchanged entries from {}", path);
+    return true;
+}
+
+bool ZWrapper::CanReuse(const std::string& path) {
+    return this->mPreviousEntries.contains(path);
+}
+
+bool ZWrapper::ReuseFile(const std::string& path) {
+    if(this->mPipeline == nullptr) {
+        throw std::runtime_error("Archive " + this->mPath + " is not open");
+    }
+
+    if(!this->CanReuse(path)) {
+        return false;
+    }
+
+    this->mPipeline->Reuse(path);
     return true;
 }
 
 int32_t ZWrapper::Close(void) {
-    this->mZip->save(this->mPath);
+    std::lock_guard<std::mutex> lock(this->mMutex);
+
+    if(this->mFile == nullptr) {
+        SPDLOG_ERROR("Archive already closed");
+        return -1;
+    }
+
+    // Rethrows anything that failed while compressing or writing the queued entries
+    this->mPipeline->Finish();
+    this->mPipeline.reset();
+
+    const bool finalized = mz_zip_writer_finalize_archive(this->mZip);
+    mz_zip_writer_end(this->mZip);
+    const bool closed = fclose(this->mFile) == 0;
+    this->mFile = nullptr;
+
+    if(this->mPrevious != nullptr) {
+        mz_zip_reader_end(this->mPrevious);
+        delete this->mPrevious;
+        this->mPrevious = nullptr;
+        this->mPreviousEntries.clear();
+    }
+
+    if(!finalized || !closed) {
+        SPDLOG_ERROR("Failed to finalize archive {}", this->mPath);
+        return -1;
+    }
+
     return 0;
 }
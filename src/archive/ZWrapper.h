@@ -1,20 +1,45 @@
 #pragma once
 
+#include <cstdio>
+#include <memory>
 #include <vector>
 #include <string>
+#include <unordered_map>
 #include "BinaryWrapper.h"
+#include "ArchivePipeline.h"
 
-namespace miniz_cpp {
-class zip_file;
-}
+struct mz_zip_archive_tag;
 
+/**
+ * Writes O2R (zip) archives as a stream, entries are deflated on a worker pool and appended to the output in the order
+ * they were added. Only the central directory is kept in memory until the archive is closed.
+ */
 class ZWrapper : public BinaryWrapper {
 public:
     explicit ZWrapper(const std::string& path);
+    // Writes into an already open descriptor, path is only used to name the archive. The descriptor stays owned by the
+    // caller and must be seekable, miniz seeks back to patch local headers.
+    ZWrapper(const std::string& path, int fd);
+    ~ZWrapper() override;
 
     int32_t CreateArchive(void) override;
-    bool AddFile(const std::string& path, std::vector<char> data) override;
+    using BinaryWrapper::AddFile;
+    bool AddFile(const std::string& path, std::vector<char>&& data) override;
     int32_t Close(void) override;
 
-    miniz_cpp::zip_file* mZip;
+    bool OpenPrevious(const std::string& path) override;
+    bool CanReuse(const std::string& path) override;
+    bool ReuseFile(const std::string& path) override;
+private:
+    void CompressEntry(ArchiveEntry& entry);
+    void CommitEntry(ArchiveEntry& entry);
+
+    std::unique_ptr<ArchivePipeline> mPipeline;
+    mz_zip_archive_tag* mZip;
+    std::FILE* mFile = nullptr;
+    int mDescriptor = -1;
+
+    // Entries are copied from here with their compressed data as is
+    mz_zip_archive_tag* mPrevious = nullptr;
+    std::unordered_map<std::string, uint32_t> mPreviousEntries;
 };
@@ -270,79 +270,29 @@ ExportResult CompressedTextureBinaryExporter::Export(std::ostream &write, std::s
 
 ExportResult CompressedTextureModdingExporter::Export(std::ostream&write, std::shared_ptr<IParsedData> data, std::string&entryName, YAML::Node&node, std::string* replacement) {
     auto texture = std::static_pointer_cast<CompressedTextureData>(data);
-    auto format = texture->mFormat;
-    uint8_t* raw = new uint8_t[TextureUtils::CalculateTextureSize(format.type, texture->mWidth, texture->mHeight) * 2];
-    int size = 0;
-
     auto ext = GetSafeNode<std::string>(node, "format");
 
     std::transform(ext.begin(), ext.end(), ext.begin(), tolower);
     *replacement += "." + ext + ".png";
 
-    switch (format.type) {
-        case TextureType::TLUT:
-        case TextureType::RGBA16bpp:
-        case TextureType::RGBA32bpp: {
-            rgba* imgr = raw2rgba(texture->mBuffer.data(), texture->mWidth, texture->mHeight, format.depth);
-            if(rgba2png(&raw, &size, imgr, texture->mWidth, texture->mHeight)) {
-                throw std::runtime_error("Failed to convert texture to PNG");
-            }
-            break;
-        }
-        case TextureType::GrayscaleAlpha16bpp:
-        case TextureType::GrayscaleAlpha8bpp:
-        case TextureType::GrayscaleAlpha4bpp:
-        case TextureType::GrayscaleAlpha1bpp: {
-            ia* imgia = raw2ia(texture->mBuffer.data(), texture->mWidth, texture->mHeight, format.depth);
-            if(ia2png(&raw, &size, imgia, texture->mWidth, texture->mHeight)) {
-                throw std::runtime_error("Failed to convert texture to PNG");
-            }
-            break;
-        }
-        case TextureType::Palette8bpp:
-        case TextureType::Palette4bpp: {
-            if (node["tlut_symbol"]) {
-                auto tlut = GetSafeNode<std::string>(node,"tlut_symbol");
-                auto palette = Companion::Instance->GetParseDataBySymbol(tlut);
-
-                if (palette.has_value()) {
-                    auto palTexture = std::static_pointer_cast<TextureData>(palette.value().data.value());
-                    convert_raw_to_ci8(&raw, &size, texture->mBuffer.data(), (uint8_t *)palTexture->mBuffer.data(), 0, texture->mWidth, texture->mHeight, texture->mFormat.depth, palTexture->mFormat.depth);
-                } else {
-                    auto symbol = GetSafeNode<std::string>(node, "symbol");
-                    throw std::runtime_error("Could not convert ci8 '"+symbol+"' the tlut symbol name is probably wrong for tlut_symbol node");
-                }
-                break;
-            }
-
-            if (node["tlut"]) {
-                auto tlut = GetSafeNode<uint32_t>(node,"tlut");
-                auto palette = Companion::Instance->GetParseDataByAddr(tlut);
+    if (texture->mFormat.type == TextureType::Error) {
+        SPDLOG_ERROR("Unsupported texture format for modding: {}", ext);
+        return std::nullopt;
+    }
 
-                if (palette.has_value()) {
-                    auto palTexture = std::static_pointer_cast<TextureData>(palette.value().data.value());
-                    convert_raw_to_ci8(&raw, &size, texture->mBuffer.data(), (uint8_t *)palTexture->mBuffer.data(), 0, texture->mWidth, texture->mHeight, texture->mFormat.depth, palTexture->mFormat.depth);
-                } else {
-                    auto symbol = GetSafeNode<std::string>(node, "symbol");
-                    throw std::runtime_error("Could not convert ci8 '"+symbol+"' the address is probably wrong for tlut address node");
-                }
-                break;
-            }
-        }
-        case TextureType::Grayscale8bpp:
-        case TextureType::Grayscale4bpp: {
-            ia* imgi = raw2i(texture->mBuffer.data(), texture->mWidth, texture->mHeight, format.depth);
-            if(ia2png(&raw, &size, imgi, texture->mWidth, texture->mHeight)) {
-                throw std::runtime_error("Failed to convert texture to PNG");
-            }
-            break;
-        }
-        default: {
-            SPDLOG_ERROR("Unsupported texture format for modding: {}", ext);
-        }
+    std::shared_ptr<TextureData> palette;
+    if (texture->mFormat.type == TextureType::Palette8bpp || texture->mFormat.type == TextureType::Palette4bpp) {
+        palette = TextureModdingExporter::FindPalette(node);
     }
 
-    write.write(reinterpret_cast<char*>(raw), size);
+    auto encode = [texture, palette] {
+        return TextureModdingExporter::EncodePng(texture->mFormat, texture->mWidth, texture->mHeight, texture->mBuffer, palette);
+    };
+
+    if (!Companion::Instance->DeferExport(encode)) {
+        const auto png = encode();
+        write.write(png.data(), png.size());
+    }
     return std::nullopt;
 }
 
@@ -388,7 +338,7 @@ std::optional<std::shared_ptr<IParsedData>> CompressedTextureFactory::parse(std:
         return std::nullopt;
     }
 
-    DataChunk* uncompressedData = Decompressor::Decode(buffer, Decompressor::TranslateAddr(offset, false), compressionType);
+    auto uncompressedData = Decompressor::Decode(buffer, Decompressor::TranslateAddr(offset, false), compressionType);
 
     std::transform(format.begin(), format.end(), format.begin(), ::toupper);
 
@@ -12,7 +12,8 @@
 
 namespace GFXDOverride {
 
-std::unordered_map<uint32_t, std::tuple<std::string, YAML::Node>> mVtxOverlaps;
+// Overlaps only live for the file being processed, files processed in parallel each keep their own
+thread_local std::unordered_map<uint32_t, std::tuple<std::string, YAML::Node>> mVtxOverlaps;
 
 #ifdef STANDALONE
 void Triangle2(const N64Gfx* gfx) {
@@ -192,80 +192,107 @@ ExportResult TextureBinaryExporter::Export(std::ostream &write, std::shared_ptr<
 
 ExportResult TextureModdingExporter::Export(std::ostream&write, std::shared_ptr<IParsedData> data, std::string&entryName, YAML::Node&node, std::string* replacement) {
     auto texture = std::static_pointer_cast<TextureData>(data);
-    auto format = texture->mFormat;
-    uint8_t* raw = new uint8_t[TextureUtils::CalculateTextureSize(format.type, texture->mWidth, texture->mHeight) * 2];
-    int size = 0;
-
     auto ext = GetSafeNode<std::string>(node, "format");
 
     std::transform(ext.begin(), ext.end(), ext.begin(), tolower);
     *replacement += "." + ext + ".png";
 
+    if (texture->mFormat.type == TextureType::Error) {
+        SPDLOG_ERROR("Unsupported texture format for modding: {}", ext);
+        return std::nullopt;
+    }
+
+    std::shared_ptr<TextureData> palette;
+    if (texture->mFormat.type == TextureType::Palette8bpp || texture->mFormat.type == TextureType::Palette4bpp) {
+        palette = FindPalette(node);
+    }
+
+    auto encode = [texture, palette] {
+        return EncodePng(texture->mFormat, texture->mWidth, texture->mHeight, texture->mBuffer, palette);
+    };
+
+    if (!Companion::Instance->DeferExport(encode)) {
+        const auto png = encode();
+        write.write(png.data(), png.size());
+    }
+    return std::nullopt;
+}
+
+std::shared_ptr<TextureData> TextureModdingExporter::FindPalette(YAML::Node& node) {
+    if (node["tlut_symbol"]) {
+        auto tlut = GetSafeNode<std::string>(node,"tlut_symbol");
+        auto palette = Companion::Instance->GetParseDataBySymbol(tlut);
+
+        if (!palette.has_value()) {
+            auto symbol = GetSafeNode<std::string>(node, "symbol");
+            throw std::runtime_error("Could not convert ci8 '"+symbol+"' the tlut symbol name is probably wrong for tlut_symbol node");
+        }
+        return std::static_pointer_cast<TextureData>(palette.value().data.value());
+    }
+
+    if (node["tlut"]) {
+        auto tlut = GetSafeNode<uint32_t>(node,"tlut");
+        auto palette = Companion::Instance->GetParseDataByAddr(tlut);
+
+        if (!palette.has_value()) {
+            auto symbol = GetSafeNode<std::string>(node, "symbol");
+            throw std::runtime_error("Could not convert ci8 '"+symbol+"' the address is probably wrong for tlut address node");
+        }
+        return std::static_pointer_cast<TextureData>(palette.value().data.value());
+    }
+
+    return nullptr;
+}
+
+std::vector<char> TextureModdingExporter::EncodePng(const TextureFormat format, const uint32_t width, const uint32_t height, const std::vector<uint8_t>& buffer, const std::shared_ptr<TextureData>& palette) {
+    unsigned char* png = nullptr;
+    int size = 0;
+    int failed = 0;
+
     switch (format.type) {
         case TextureType::TLUT:
         case TextureType::RGBA16bpp:
         case TextureType::RGBA32bpp: {
-            rgba* imgr = raw2rgba(texture->mBuffer.data(), texture->mWidth, texture->mHeight, format.depth);
-            if(rgba2png(&raw, &size, imgr, texture->mWidth, texture->mHeight)) {
-                throw std::runtime_error("Failed to convert texture to PNG");
-            }
+            rgba* imgr = raw2rgba(buffer.data(), width, height, format.depth);
+            failed = rgba2png(&png, &size, imgr, width, height);
+            free(imgr);
             break;
         }
         case TextureType::GrayscaleAlpha16bpp:
         case TextureType::GrayscaleAlpha8bpp:
         case TextureType::GrayscaleAlpha4bpp:
         case TextureType::GrayscaleAlpha1bpp: {
-            ia* imgia = raw2ia(texture->mBuffer.data(), texture->mWidth, texture->mHeight, format.depth);
-            if(ia2png(&raw, &size, imgia, texture->mWidth, texture->mHeight)) {
-                throw std::runtime_error("Failed to convert texture to PNG");
-            }
+            ia* imgia = raw2ia(buffer.data(), width, height, format.depth);
+            failed = ia2png(&png, &size, imgia, width, height);
+            free(imgia);
             break;
         }
         case TextureType::Palette8bpp:
         case TextureType::Palette4bpp: {
-            if (node["tlut_symbol"]) {
-                auto tlut = GetSafeNode<std::string>(node,"tlut_symbol");
-                auto palette = Companion::Instance->GetParseDataBySymbol(tlut);
-
-                if (palette.has_value()) {
-                    auto palTexture = std::static_pointer_cast<TextureData>(palette.value().data.value());
-                    convert_raw_to_ci8(&raw, &size, texture->mBuffer.data(), (uint8_t *)palTexture->mBuffer.data(), 0, texture->mWidth, texture->mHeight, texture->mFormat.depth, palTexture->mFormat.depth);
-                } else {
-                    auto symbol = GetSafeNode<std::string>(node, "symbol");
-                    throw std::runtime_error("Could not convert ci8 '"+symbol+"' the tlut symbol name is probably wrong for tlut_symbol node");
-                }
-                break;
-            }
-
-            if (node["tlut"]) {
-                auto tlut = GetSafeNode<uint32_t>(node,"tlut");
-                auto palette = Companion::Instance->GetParseDataByAddr(tlut);
-
-                if (palette.has_value()) {
-                    auto palTexture = std::static_pointer_cast<TextureData>(palette.value().data.value());
-                    convert_raw_to_ci8(&raw, &size, texture->mBuffer.data(), (uint8_t *)palTexture->mBuffer.data(), 0, texture->mWidth, texture->mHeight, texture->mFormat.depth, palTexture->mFormat.depth);
-                } else {
-                    auto symbol = GetSafeNode<std::string>(node, "symbol");
-                    throw std::runtime_error("Could not convert ci8 '"+symbol+"' the address is probably wrong for tlut address node");
-                }
+            if (palette != nullptr) {
+                convert_raw_to_ci8(&png, &size, const_cast<uint8_t*>(buffer.data()), palette->mBuffer.data(), 0, width, height, format.depth, palette->mFormat.depth);
                 break;
             }
         }
         case TextureType::Grayscale8bpp:
         case TextureType::Grayscale4bpp: {
-            ia* imgi = raw2i(texture->mBuffer.data(), texture->mWidth, texture->mHeight, format.depth);
-            if(ia2png(&raw, &size, imgi, texture->mWidth, texture->mHeight)) {
-                throw std::runtime_error("Failed to convert texture to PNG");
-            }
+            ia* imgi = raw2i(buffer.data(), width, height, format.depth);
+            failed = ia2png(&png, &size, imgi, width, height);
+            free(imgi);
             break;
         }
-        default: {
-            SPDLOG_ERROR("Unsupported texture format for modding: {}", ext);
-        }
+        default:
+            break;
     }
 
-    write.write(reinterpret_cast<char*>(raw), size);
-    return std::nullopt;
+    if (failed) {
+        free(png);
+        throw std::runtime_error("Failed to convert texture to PNG");
+    }
+
+    std::vector<char> result(png, png + size);
+    free(png);
+    return result;
 }
 
 
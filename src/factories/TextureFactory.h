@@ -27,6 +27,11 @@ class TextureBinaryExporter : public BaseExporter {
 
 class TextureModdingExporter : public BaseExporter {
     ExportResult Export(std::ostream& write, std::shared_ptr<IParsedData> data, std::string& entryName, YAML::Node& node, std::string* replacement) override;
+public:
+    // Palette named by the tlut or tlut_symbol node, nullptr when there is neither and CI is exported as grayscale
+    static std::shared_ptr<TextureData> FindPalette(YAML::Node& node);
+    // Only touches its arguments, runs on the modding writer threads
+    static std::vector<char> EncodePng(TextureFormat format, uint32_t width, uint32_t height, const std::vector<uint8_t>& buffer, const std::shared_ptr<TextureData>& palette);
 };
 
 class TextureFactory : public BaseFactory {
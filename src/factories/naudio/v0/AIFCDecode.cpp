@@ -1,8 +1,9 @@
 /**
- * Bruteforcing decoder for converting ADPCM-encoded AIFC into AIFF, in a way
- * that roundtrips with vadpcm_enc.
+ * Decoder for converting ADPCM-encoded AIFC into AIFF, the codebook is kept in
+ * the output so it can be encoded again with vadpcm_enc.
  */
 #include "AIFCDecode.h"
+#include <algorithm>
 #include <cassert>
 #include <cstring>
 #include <cstdio>
@@ -142,21 +143,6 @@ void fail_parse(const char *fmt, ...)
     throw std::runtime_error("Error parsing file");
 }
 
-s32 myrand()
-{
-    static u64 state = 1619236481962341ULL;
-    state *= 3123692312231ULL;
-    state++;
-    return state >> 33;
-}
-
-s16 qsample(s32 x, s32 scale)
-{
-    // Compute x / 2^scale rounded to the nearest integer, breaking ties towards zero.
-    if (scale == 0) return x;
-    return (x + (1 << (scale - 1)) - (x > 0)) >> scale;
-}
-
 s16 clamp_to_s16(s32 x)
 {
     if (x < -0x8000) return -0x8000;
@@ -170,222 +156,120 @@ s32 toi4(s32 x)
     return x;
 }
 
-s32 readaifccodebook(LUS::BinaryReader& fhandle, s32 ****table, s16 *order, s16 *npredictors)
+// Predictor taps laid out per input, entry [p][k][i] is what input k adds to output i of a half frame when using
+// predictor p. Inputs 0..order-1 are the previous outputs, order..order+7 the residuals of the half frame, which only
+// feed the outputs after them. Keeping the 8 outputs side by side lets the decode loops run as 8 lane vector math.
+struct CodeBook {
+    s16 order = -1;
+    s16 npredictors = -1;
+    std::vector<s32> taps;
+
+    const s32* Predictor(s32 p) const { return taps.data() + p * (order + 8) * 8; }
+};
+
+void readaifccodebook(LUS::BinaryReader& fhandle, CodeBook& book)
 {
-    checked_fread(order, sizeof(s16), 1, fhandle);
-    BSWAP16(*order);
-    checked_fread(npredictors, sizeof(s16), 1, fhandle);
-    BSWAP16(*npredictors);
-    *table = new s32**[*npredictors];
-    for (s32 i = 0; i < *npredictors; i++) {
-        (*table)[i] = new s32*[8];
-        for (s32 j = 0; j < 8; j++) {
-            (*table)[i][j] = new s32[*order + 8];
-        }
+    checked_fread(&book.order, sizeof(s16), 1, fhandle);
+    BSWAP16(book.order);
+    checked_fread(&book.npredictors, sizeof(s16), 1, fhandle);
+    BSWAP16(book.npredictors);
+
+    const s32 order = book.order;
+    if (order < 1 || order > 8) {
+        fail_parse("Unsupported predictor order %d", order);
+    }
+    if (book.npredictors < 1) {
+        fail_parse("Codebook has no predictors");
     }
 
-    for (s32 i = 0; i < *npredictors; i++) {
-        s32 **table_entry = (*table)[i];
-        for (s32 j = 0; j < *order; j++) {
+    book.taps.assign(book.npredictors * (order + 8) * 8, 0);
+
+    for (s32 i = 0; i < book.npredictors; i++) {
+        s32 (*taps)[8] = reinterpret_cast<s32 (*)[8]>(book.taps.data() + i * (order + 8) * 8);
+        for (s32 j = 0; j < order; j++) {
             for (s32 k = 0; k < 8; k++) {
                 s16 ts;
                 checked_fread(&ts, sizeof(s16), 1, fhandle);
                 BSWAP16(ts);
-                table_entry[k][j] = ts;
+                taps[j][k] = ts;
             }
         }
 
+        // Residual k feeds output k directly and output k + n through the impulse response of the last tap
+        s32 response[8];
+        response[0] = 1 << 11;
         for (s32 k = 1; k < 8; k++) {
-            table_entry[k][*order] = table_entry[k - 1][*order - 1];
+            response[k] = taps[order - 1][k - 1];
         }
 
-        table_entry[0][*order] = 1 << 11;
-
-        for (s32 k = 1; k < 8; k++) {
-            s32 j = 0;
-            for (; j < k; j++) {
-                table_entry[j][k + *order] = 0;
-            }
-
-            for (; j < 8; j++) {
-                table_entry[j][k + *order] = table_entry[j - k][*order];
+        for (s32 k = 0; k < 8; k++) {
+            for (s32 n = k + 1; n < 8; n++) {
+                taps[order + k][n] = response[n - k];
             }
         }
     }
-    return 0;
 }
 
-ALADPCMloop *readlooppoints(LUS::BinaryReader& reader, s16 *nloops) {
+std::vector<ALADPCMloop> readlooppoints(LUS::BinaryReader& reader, s16 *nloops) {
     checked_fread(nloops, sizeof(s16), 1, reader);
     BSWAP16(*nloops);
-    auto *al = static_cast<ALADPCMloop *>(malloc(*nloops * sizeof(ALADPCMloop)));
-    for (s32 i = 0; i < *nloops; i++) {
-        checked_fread(&al[i], sizeof(ALADPCMloop), 1, reader);
-        BSWAP32(al[i].start);
-        BSWAP32(al[i].end);
-        BSWAP32(al[i].count);
-        BSWAP16_MANY(al[i].state, 16);
+    std::vector<ALADPCMloop> al(std::max<s16>(*nloops, 0));
+    for (auto& loop : al) {
+        checked_fread(&loop, sizeof(ALADPCMloop), 1, reader);
+        BSWAP32(loop.start);
+        BSWAP32(loop.end);
+        BSWAP32(loop.count);
+        BSWAP16_MANY(loop.state, 16);
     }
     return al;
 }
 
-s32 inner_product(s32 length, s32 *v1, s32 *v2)
-{
-    s32 out = 0;
-    for (s32 i = 0; i < length; i++) {
-        out += v1[i] * v2[i];
-    }
-
-    // Compute "out / 2^11", rounded down.
-    s32 dout = out / (1 << 11);
-    s32 fiout = dout * (1 << 11);
-    return dout - (out - fiout < 0);
-}
-
-void my_decodeframe(u8 *frame, s32 *state, s32 order, s32 ***coefTable)
+void my_decodeframe(const u8 *frame, s32 *state, const CodeBook& book)
 {
     s32 ix[16];
 
     u8 header = frame[0];
     s32 scale = 1 << (header >> 4);
     s32 optimalp = header & 0xf;
+    s32 order = book.order;
+
+    if (optimalp >= book.npredictors) {
+        fail_parse("Frame uses predictor %d of %d", optimalp, book.npredictors);
+    }
 
     for (s32 i = 0; i < 16; i += 2) {
         u8 c = frame[1 + i/2];
-        ix[i] = c >> 4;
-        ix[i + 1] = c & 0xf;
+        ix[i] = toi4(c >> 4) * scale;
+        ix[i + 1] = toi4(c & 0xf) * scale;
     }
 
-    for (s32 i = 0; i < 16; i++) {
-        if (ix[i] >= 8) ix[i] -= 16;
-        ix[i] *= scale;
-    }
+    const s32 (*taps)[8] = reinterpret_cast<const s32 (*)[8]>(book.Predictor(optimalp));
 
     for (s32 j = 0; j < 2; j++) {
-        s32 in_vec[16];
-        if (j == 0) {
-            for (s32 i = 0; i < order; i++) {
-                in_vec[i] = state[16 - order + i];
-            }
-        } else {
-            for (s32 i = 0; i < order; i++) {
-                in_vec[i] = state[8 - order + i];
-            }
-        }
+        s32 prev[8];
+        s32 acc[8] = {0};
+        const s32 *residual = ix + j * 8;
 
-        for (s32 i = 0; i < 8; i++) {
-            s32 ind = j * 8 + i;
-            in_vec[order + i] = ix[ind];
-            state[ind] = inner_product(order + i, coefTable[optimalp][i], in_vec) + ix[ind];
+        for (s32 k = 0; k < order; k++) {
+            prev[k] = state[(j == 0 ? 16 : 8) - order + k];
         }
-    }
-}
-
-void my_encodeframe(u8 *out, s16 *inBuffer, s32 *state, s32 ***coefTable, s32 order, s32 npredictors)
-{
-    s16 ix[16];
-    s32 prediction[16];
-    s32 inVector[16];
-    s32 saveState[16];
-    s32 optimalp = 0;
-    s32 scale;
-    s32 ie[16];
-    s32 e[16];
-    f32 min = 1e30;
-
-    for (s32 k = 0; k < npredictors; k++) {
-        for (s32 j = 0; j < 2; j++) {
-            for (s32 i = 0; i < order; i++) {
-                inVector[i] = (j == 0 ? state[16 - order + i] : inBuffer[8 - order + i]);
-            }
 
+        for (s32 k = 0; k < order; k++) {
             for (s32 i = 0; i < 8; i++) {
-                prediction[j * 8 + i] = inner_product(order + i, coefTable[k][i], inVector);
-                e[j * 8 + i] = inVector[i + order] = inBuffer[j * 8 + i] - prediction[j * 8 + i];
+                acc[i] += prev[k] * taps[k][i];
             }
         }
 
-        f32 se = 0.0f;
-        for (s32 j = 0; j < 16; j++) {
-            se += (f32) e[j] * (f32) e[j];
-        }
-
-        if (se < min) {
-            min = se;
-            optimalp = k;
-        }
-    }
-
-    for (s32 j = 0; j < 2; j++) {
-        for (s32 i = 0; i < order; i++) {
-            inVector[i] = (j == 0 ? state[16 - order + i] : inBuffer[8 - order + i]);
-        }
-
-        for (s32 i = 0; i < 8; i++) {
-            prediction[j * 8 + i] = inner_product(order + i, coefTable[optimalp][i], inVector);
-            e[j * 8 + i] = inVector[i + order] = inBuffer[j * 8 + i] - prediction[j * 8 + i];
-        }
-    }
-
-    for (s32 i = 0; i < 16; i++) {
-        ie[i] = clamp_to_s16(e[i]);
-    }
-
-    s32 max = 0;
-    for (s32 i = 0; i < 16; i++) {
-        if (abs(ie[i]) > abs(max)) {
-            max = ie[i];
-        }
-    }
-
-    for (scale = 0; scale <= 12; scale++) {
-        if (max <= 7 && max >= -8) break;
-        max /= 2;
-    }
-
-    for (s32 i = 0; i < 16; i++) {
-        saveState[i] = state[i];
-    }
-
-    for (s32 nIter = 0, again = 1; nIter < 2 && again; nIter++) {
-        again = 0;
-        if (nIter == 1) scale++;
-        if (scale > 12) {
-            scale = 12;
-        }
-
-        for (s32 j = 0; j < 2; j++) {
-            s32 base = j * 8;
-            for (s32 i = 0; i < order; i++) {
-                inVector[i] = (j == 0 ?
-                        saveState[16 - order + i] : state[8 - order + i]);
-            }
-
+        for (s32 k = 0; k < 8; k++) {
             for (s32 i = 0; i < 8; i++) {
-                prediction[base + i] = inner_product(order + i, coefTable[optimalp][i], inVector);
-                s32 se = inBuffer[base + i] - prediction[base + i];
-                ix[base + i] = qsample(se, scale);
-                s32 cV = clamp_to_s16(ix[base + i]) - ix[base + i];
-                if (cV > 1 || cV < -1) again = 1;
-                ix[base + i] += cV;
-                inVector[i + order] = ix[base + i] * (1 << scale);
-                state[base + i] = prediction[base + i] + inVector[i + order];
+                acc[i] += residual[k] * taps[order + k][i];
             }
         }
-    }
-
-    u8 header = (scale << 4) | (optimalp & 0xf);
-    out[0] = header;
-    for (s32 i = 0; i < 16; i += 2) {
-        u8 c = ((ix[i] & 0xf) << 4) | (ix[i + 1] & 0xf);
-        out[1 + i/2] = c;
-    }
-}
 
-void permute(s16 *out, s32 *in, s32 scale)
-{
-    for (s32 i = 0; i < 16; i++) {
-        out[i] = clamp_to_s16(in[i] - scale / 2 + myrand() % (scale + 1));
+        // Arithmetic shift, the prediction is rounded down
+        for (s32 i = 0; i < 8; i++) {
+            state[j * 8 + i] = (acc[i] >> 11) + residual[i];
+        }
     }
 }
 
@@ -401,11 +285,9 @@ void write_header(LUS::BinaryWriter& writer, std::string id, s32 size) {
 }
 
 void write_aiff(std::vector<char> data, LUS::BinaryWriter& writer) {
-    s16 order = -1;
     s16 nloops = 0;
-    ALADPCMloop *aloops = nullptr;
-    s16 npredictors = -1;
-    s32 ***coefTable = nullptr;
+    std::vector<ALADPCMloop> aloops;
+    CodeBook book;
     s32 state[16] = {0};
     s32 soundPointer = -1;
     s32 currPos = 0;
@@ -496,7 +378,7 @@ void write_aiff(std::vector<char> data, LUS::BinaryWriter& writer) {
                         if (version != 1) {
                             fail_parse("Unknown codebook chunk version");
                         }
-                        readaifccodebook(reader, &coefTable, &order, &npredictors);
+                        readaifccodebook(reader, book);
                     }
                     else if (strcmp("VADPCMLOOPS", ChunkName) == 0) {
                         checked_fread(&version, sizeof(s16), 1, reader);
@@ -516,75 +398,31 @@ void write_aiff(std::vector<char> data, LUS::BinaryWriter& writer) {
         reader.Seek(offset + Header.ckSize, LUS::SeekOffsetType::Start);
     }
 
-    if (coefTable == nullptr) {
+    if (book.taps.empty()) {
         fail_parse("Codebook missing from bitstream");
     }
 
-    for (s32 i = 0; i < order; i++) {
-        state[15 - i] = 0;
-    }
+    const s16 order = book.order;
+    const s16 npredictors = book.npredictors;
 
     u32 outputBytes = nSamples * sizeof(s16);
 
     reader.Seek(soundPointer, LUS::SeekOffsetType::Start);
 
+    // The samples are the decoded frames clamped to 16 bits, nothing is re-encoded to check them against the input
     while (currPos < nSamples) {
         u8 input[9] = {0};
-        u8 encoded[9] = {0};
-        s32 lastState[16] = {0};
-        s32 decoded[16] = {0};
-        s16 guess[16] = {0};
-        s16 origGuess[16] = {0};
+        s16 decoded[16];
 
-        memcpy(lastState, state, sizeof(lastState));
         checked_fread(input, 9, 1, reader);
+        my_decodeframe(input, state, book);
 
-        // Decode for real
-        my_decodeframe(input, state, order, coefTable);
-        memcpy(decoded, state, sizeof(lastState));
-
-        // Create a guess from that, by clamping to 16 bits
         for (s32 i = 0; i < 16; i++) {
-            origGuess[i] = clamp_to_s16(state[i]);
-        }
-
-        // Encode the guess
-        memcpy(state, lastState, sizeof(lastState));
-        memcpy(guess, origGuess, sizeof(guess));
-        my_encodeframe(encoded, guess, state, coefTable, order, npredictors);
-
-        // If it doesn't match, randomly round numbers until it does.
-        if (0 && memcmp(input, encoded, 9) != 0) {
-            s32 scale = 1 << (input[0] >> 4);
-            do {
-                permute(guess, decoded, scale);
-                memcpy(state, lastState, sizeof(lastState));
-                my_encodeframe(encoded, guess, state, coefTable, order, npredictors);
-            } while (memcmp(input, encoded, 9) != 0);
-
-            // Bring the matching closer to the original decode (not strictly
-            // necessary, but it will move us closer to the target on average).
-            for (s32 failures = 0; failures < 50; failures++) {
-                s32 ind = myrand() % 16;
-                s32 old = guess[ind];
-                if (old == origGuess[ind]) continue;
-                guess[ind] = origGuess[ind];
-                if (myrand() % 2) guess[ind] += (old - origGuess[ind]) / 2;
-                memcpy(state, lastState, sizeof(lastState));
-                my_encodeframe(encoded, guess, state, coefTable, order, npredictors);
-                if (memcmp(input, encoded, 9) == 0) {
-                    failures = -1;
-                }
-                else {
-                    guess[ind] = old;
-                }
-            }
+            decoded[i] = bswap16(clamp_to_s16(state[i]));
         }
 
-        memcpy(state, decoded, sizeof(lastState));
-        BSWAP16_MANY(guess, 16);
         writer.Seek(currPos * 2, LUS::SeekOffsetType::Start);
-        writer.Write((char*) guess, sizeof(guess));
+        writer.Write((char*) decoded, sizeof(decoded));
         currPos += 16;
     }
 
@@ -649,7 +487,7 @@ void write_aiff(std::vector<char> data, LUS::BinaryWriter& writer) {
     for (s32 i = 0; i < npredictors; i++) {
         for (s32 j = 0; j < order; j++) {
             for (s32 k = 0; k < 8; k++) {
-                s16 ts = bswap16(coefTable[i][k][j]);
+                s16 ts = bswap16(book.Predictor(i)[j * 8 + k]);
                 writer.Write(ts);
             }
         }
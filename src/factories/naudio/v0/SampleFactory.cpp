@@ -12,11 +12,18 @@ ExportResult SampleModdingExporter::Export(std::ostream& writer, std::shared_ptr
 
     LUS::BinaryWriter aifc = LUS::BinaryWriter();
     AudioConverter::SampleV0ToAIFC(&sample->mSample, aifc);
-    
-    LUS::BinaryWriter aiff = LUS::BinaryWriter();
-    write_aiff(aifc.ToVector(), aiff);
+
+    auto decode = [cnv = aifc.ToVector()]() mutable {
+        LUS::BinaryWriter aiff = LUS::BinaryWriter();
+        write_aiff(std::move(cnv), aiff);
+        return aiff.ToVector();
+    };
     aifc.Close();
-    aiff.Finish(writer);
+
+    if(!Companion::Instance->DeferExport(decode)) {
+        const auto output = decode();
+        writer.write(output.data(), output.size());
+    }
     return std::nullopt;
 }
 
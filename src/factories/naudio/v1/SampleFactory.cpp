@@ -45,20 +45,21 @@ ExportResult NSampleBinaryExporter::Export(std::ostream &write, std::shared_ptr<
 }
 
 ExportResult NSampleModdingExporter::Export(std::ostream &write, std::shared_ptr<IParsedData> raw, std::string& entryName, YAML::Node &node, std::string* replacement ) {
-    auto aiff = LUS::BinaryWriter();
     auto data = std::static_pointer_cast<NSampleData>(raw);
+    std::function<std::vector<char>()> decode;
 
+    // The sample bytes are gathered here, the decode only touches its own copy and can run on the writer pool
 #ifdef SF64_SUPPORT
     if(AudioContext::driver == NAudioDrivers::SF64 && data->codec == 2) {
         *replacement += ".pcm";
         auto table = AudioContext::tables[AudioTableType::SAMPLE_TABLE];
         auto ptr = table.buffer.data() + table.info->entries[data->sampleBankId].addr + data->sampleAddr;
         auto vec = std::vector<uint8_t>(ptr, ptr + data->size);
-        auto output = new int16_t[data->size * 2];
-        SF64::DecompressAudio(vec, output);
-        auto writer = LUS::BinaryWriter();
-        writer.Write((char*) output, data->size);
-        writer.Finish(write);
+        decode = [vec = std::move(vec), size = data->size]() mutable {
+            const auto output = SF64::DecompressAudio(std::move(vec));
+            const auto bytes = reinterpret_cast<const char*>(output.data());
+            return std::vector<char>(bytes, bytes + size);
+        };
     } else {
 #endif
         *replacement += ".aiff";
@@ -66,15 +67,23 @@ ExportResult NSampleModdingExporter::Export(std::ostream &write, std::shared_ptr
         AudioConverter::SampleV1ToAIFC(data.get(), aifc);
         auto cnv = aifc.ToVector();
 
-        if(!cnv.empty()){
-            write_aiff(cnv, aiff);
-            aiff.Finish(write);
+        if(cnv.empty()){
+            return std::nullopt;
         }
+
+        decode = [cnv = std::move(cnv)]() mutable {
+            auto aiff = LUS::BinaryWriter();
+            write_aiff(std::move(cnv), aiff);
+            return aiff.ToVector();
+        };
 #ifdef SF64_SUPPORT
     }
 #endif
 
-
+    if(!Companion::Instance->DeferExport(decode)) {
+        const auto output = decode();
+        write.write(output.data(), output.size());
+    }
     return std::nullopt;
 }
 
@@ -1,3 +1,4 @@
+#include <algorithm>
 #include <cstdint>
 #include <vector>
 #include <cmath>
@@ -14,20 +15,16 @@ struct StupidDMAStruct {
     int16_t unk18;
 };
 
-int16_t DFT_8014C1B4 = 0x1000;
-float DFT_80145D48[256];
-float DFT_80146148[256];
-float DFT_80146548[515];
-float DFT_80146D54;
-float DFT_80146D58;
-float DFT_80146D5C;
-float DFT_80146D60;
-float DFT_80146D64;
-float DFT_80146D68;
-float DFT_80146D6C;
-float DFT_80146D70;
-
-void func_80009124(int16_t** arg0) {
+static const int16_t DFT_8014C1B4 = 0x1000;
+
+// The buffers the game keeps in bss, one set per decode so samples can be decoded on several threads
+struct DFTBuffers {
+    float DFT_80145D48[256] = {};
+    float DFT_80146148[256] = {};
+    float DFT_80146548[515] = {};
+};
+
+void func_80009124(int16_t** arg0, float* DFT_80145D48) {
     int16_t* var_a1;
     int32_t temp_a0;
     uint8_t temp_s0;
@@ -154,6 +151,35 @@ void func_80009124(int16_t** arg0) {
     *arg0 = var_a1;
 }
 
+// Runs count butterflies of one Hartley stage. The a quarters walk up and the b quarters walk down through disjoint
+// points, which lets the compiler run the loop as SSE or NEON lanes. Each point gets exactly what the scalar loop gave
+static void AudioSynth_HartleyButterflies(float* __restrict a0, float* __restrict a1, float* __restrict a2,
+                                          float* __restrict a3, float* __restrict b0, float* __restrict b1,
+                                          float* __restrict b2, float* __restrict b3, const float* __restrict twiddles,
+                                          int32_t stride, int32_t step, int32_t count) {
+    for (int32_t i = 0; i < count; i++) {
+        const float cos1 = twiddles[i * step];
+        const float sin1 = twiddles[i * step + stride];
+        const float cos3 = twiddles[i * step + stride * 2];
+        const float sin3 = twiddles[i * step + stride * 3];
+        const float x0 = a0[i], x1 = a1[i], x2 = a2[i], x3 = a3[i];
+        const float y0 = b0[-i], y1 = b1[-i], y2 = b2[-i], y3 = b3[-i];
+        const float sum1 = x0 - x2 + y0 - y2;
+        const float dif1 = x3 - x1 + y1 - y3;
+        const float sum3 = x0 - x2 - y0 + y2;
+        const float dif3 = x3 - x1 - y1 + y3;
+
+        a0[i] = x0 + x2;
+        a1[i] = x1 + x3;
+        a2[i] = (sum1 * cos1) + (dif1 * sin1);
+        a3[i] = (sum3 * cos3) - (dif3 * sin3);
+        b0[-i] = y0 + y2;
+        b1[-i] = y1 + y3;
+        b2[-i] = (sum1 * sin1) - (dif1 * cos1);
+        b3[-i] = (sum3 * sin3) + (dif3 * cos3);
+    }
+}
+
 void AudioSynth_HartleyTransform(float* arg0, int32_t arg1, float* arg2) {
     int32_t length;
     int32_t spD0;
@@ -170,14 +196,13 @@ void AudioSynth_HartleyTransform(float* arg0, int32_t arg1, float* arg2) {
     float var_fs0;
     float temp_fa0;
     float temp_fv1;
+    float DFT_80146D54;
+    float DFT_80146D58;
+    float DFT_80146D5C;
     float* temp_a0;
     float* temp_a1;
     float* temp_a2;
     float* temp_a3;
-    float* temp_b0;
-    float* temp_b1;
-    float* temp_b2;
-    float* temp_b3;
     float* var_s0;
     float* var_s1;
     float* var_s2;
@@ -265,48 +290,12 @@ void AudioSynth_HartleyTransform(float* arg0, int32_t arg1, float* arg2) {
                             *temp_a2 = (DFT_80146D54 - *temp_a2) * 1.414214f;
                             *temp_a3 = (DFT_80146D58 - *temp_a3) * 1.414214f;
 
-                            var_s0 = &arg2[spC0];
-                            var_s1 = &var_s0[sp58];
-                            var_s2 = &var_s1[sp58];
-                            var_s3 = &var_s2[sp58];
-                            for (spC8 = 1; spC8 < spB4; spC8++) {
-                                temp_a0 = arg0 + spCC + spC8;
-                                temp_a1 = temp_a0 + sp50;
-                                temp_a2 = temp_a1 + sp50;
-                                temp_a3 = temp_a2 + sp50;
-
-                                temp_b0 = arg0 + spCC + sp50 - spC8;
-                                temp_b1 = temp_b0 + sp50;
-                                temp_b2 = temp_b1 + sp50;
-                                temp_b3 = temp_b2 + sp50;
-
-                                DFT_80146D54 = *temp_a0;
-                                DFT_80146D58 = *temp_a1;
-                                DFT_80146D5C = *temp_a2;
-                                DFT_80146D60 = *temp_a3;
-
-                                DFT_80146D64 = *temp_b0;
-                                DFT_80146D68 = *temp_b1;
-                                DFT_80146D6C = *temp_b2;
-                                DFT_80146D70 = *temp_b3;
-
-                                *temp_a0 = DFT_80146D54 + DFT_80146D5C;
-                                *temp_a1 = DFT_80146D58 + DFT_80146D60;
-                                *temp_a2 = ((DFT_80146D54 - DFT_80146D5C + DFT_80146D64 - DFT_80146D6C) * *var_s0) +
-                                           ((DFT_80146D60 - DFT_80146D58 + DFT_80146D68 - DFT_80146D70) * *var_s1);
-                                *temp_a3 = ((DFT_80146D54 - DFT_80146D5C - DFT_80146D64 + DFT_80146D6C) * *var_s2) -
-                                           ((DFT_80146D60 - DFT_80146D58 - DFT_80146D68 + DFT_80146D70) * *var_s3);
-                                *temp_b0 = DFT_80146D64 + DFT_80146D6C;
-                                *temp_b1 = DFT_80146D68 + DFT_80146D70;
-                                *temp_b2 = ((DFT_80146D54 - DFT_80146D5C + DFT_80146D64 - DFT_80146D6C) * *var_s1) -
-                                           ((DFT_80146D60 - DFT_80146D58 + DFT_80146D68 - DFT_80146D70) * *var_s0);
-                                *temp_b3 = ((DFT_80146D54 - DFT_80146D5C - DFT_80146D64 + DFT_80146D6C) * *var_s3) +
-                                           ((DFT_80146D60 - DFT_80146D58 - DFT_80146D68 + DFT_80146D70) * *var_s2);
-                                var_s0 += spC0;
-                                var_s1 += spC0;
-                                var_s2 += spC0;
-                                var_s3 += spC0;
-                            }
+                            temp_a0 = arg0 + spCC + 1;
+                            temp_a1 = arg0 + spCC + sp50 - 1;
+                            AudioSynth_HartleyButterflies(temp_a0, temp_a0 + sp50, temp_a0 + sp50 * 2,
+                                                          temp_a0 + sp50 * 3, temp_a1, temp_a1 + sp50,
+                                                          temp_a1 + sp50 * 2, temp_a1 + sp50 * 3, &arg2[spC0], sp58,
+                                                          spC0, spB4 - 1);
                         }
                     }
                     var_a0 = ((spA8 * 2) - spBC) + 1;
@@ -358,12 +347,8 @@ void AudioSynth_HartleyTransform(float* arg0, int32_t arg1, float* arg2) {
 void AudioSynth_InverseDiscreteCosineTransform(float* buffer0, float* buffer1, int32_t length, float* buffer2) {
     float temp_ft0;
     float var_fs0;
-    float* buff0fromStart;
     float* buf2half2;
     float* buf2half3;
-    float* buff1half1;
-    float* buff0FromEnd;
-    float* buff1half2;
     int32_t half;
     int32_t i;
     int32_t size;
@@ -387,50 +372,30 @@ void AudioSynth_InverseDiscreteCosineTransform(float* buffer0, float* buffer1, i
     // reset the buffer pointers
     buf2half2 = &buffer2[half];
     buf2half3 = &buf2half2[half];
-    buff1half1 = buffer1;
-    buff0fromStart = buffer0;
 
     // handle i = 0 case
     buffer1[0] = buffer0[0];
     buffer1[half] = buffer0[half];
 
-    // advance buffer pointers
-    buf2half2++;
-    buf2half3++;
-    buff0fromStart++;
-    buff0FromEnd = &buffer0[size - 1];
-    buff1half1++;
-    buff1half2 = &buffer1[size - 1];
-
-    // convert to real amplitudes
+    // convert to real amplitudes, indexed from both ends so the loop vectorises
     for (i = 1; i < half; i++) {
-        *buff1half1++ = (*buf2half2 * *buff0fromStart) + (*buf2half3 * *buff0FromEnd);
-        *buff1half2-- = (*buf2half3 * *buff0fromStart) - (*buf2half2 * *buff0FromEnd);
-        buff0fromStart++;
-        buf2half3++;
-        buf2half2++;
-        buff0FromEnd--;
+        buffer1[i] = (buf2half2[i] * buffer0[i]) + (buf2half3[i] * buffer0[size - i]);
+        buffer1[size - i] = (buf2half3[i] * buffer0[i]) - (buf2half2[i] * buffer0[size - i]);
     }
 
     // FFT buffer 1 using buffer 2
     AudioSynth_HartleyTransform(buffer1, length, buffer2);
 
-    buff0fromStart = buffer0;
-    buff0FromEnd = &buffer0[size - 1];
-    buff1half1 = buffer1;
-    buff1half2 = &buffer1[half];
-
     // Copy even entries of buffer 0 into the first half of buffer 1. Copy odd entries into the second half in reverse
     // order
     for (i = 0; i < half; i++) {
-        *buff0fromStart = *buff1half1++;
-        *buff0FromEnd = *buff1half2++;
-        buff0fromStart += 2;
-        buff0FromEnd -= 2;
+        buffer0[i * 2] = buffer1[i];
+        buffer0[size - 1 - i * 2] = buffer1[half + i];
     }
 }
 
-void func_80009504(int16_t* arg0, StupidDMAStruct* arg1) {
+void func_80009504(int16_t* arg0, StupidDMAStruct* arg1, DFTBuffers* dft) {
+    float* DFT_80145D48 = dft->DFT_80145D48;
     int32_t i;
 
     if (arg1->unk_0 != nullptr) {
@@ -441,11 +406,11 @@ void func_80009504(int16_t* arg0, StupidDMAStruct* arg1) {
     arg1->unk18 += DFT_8014C1B4;
 
     while (arg1->unk18 > 0x1000) {
-        func_80009124(&arg1->unk_C);
+        func_80009124(&arg1->unk_C, DFT_80145D48);
         arg1->unk18 -= 0x1000;
     }
 
-    AudioSynth_InverseDiscreteCosineTransform(DFT_80145D48, DFT_80146148, 8, DFT_80146548);
+    AudioSynth_InverseDiscreteCosineTransform(DFT_80145D48, dft->DFT_80146148, 8, dft->DFT_80146548);
 
     for (i = 0; i < 256; i++) {
         if (DFT_80145D48[i] > 32767.0f) {
@@ -461,7 +426,7 @@ void func_80009504(int16_t* arg0, StupidDMAStruct* arg1) {
     }
 }
 
-int32_t func_8000967C(int32_t length, int16_t* inputAddr, int16_t* ramAddr, StupidDMAStruct* arg2) {
+int32_t func_8000967C(int32_t length, int16_t* inputAddr, int16_t* ramAddr, StupidDMAStruct* arg2, DFTBuffers* dft) {
     int32_t pad;
     int32_t temp_t0;
     int32_t i;
@@ -477,7 +442,7 @@ int32_t func_8000967C(int32_t length, int16_t* inputAddr, int16_t* ramAddr, Stup
     arg2->unk_4 = (temp_t0 * 256) + arg2->unk_4 - length;
 
     for (i = 0; i < temp_t0; i++) {
-        func_80009504(&ramAddr[var_s1], arg2);
+        func_80009504(&ramAddr[var_s1], arg2, dft);
         var_s1 += 0x100;
     }
 
@@ -487,8 +452,9 @@ int32_t func_8000967C(int32_t length, int16_t* inputAddr, int16_t* ramAddr, Stup
     return temp_t0;
 }
 
-void SF64::DecompressAudio(std::vector<uint8_t> data, int16_t* output) {
+std::vector<int16_t> SF64::DecompressAudio(std::vector<uint8_t> data) {
     StupidDMAStruct arg3 = {};
+    DFTBuffers dft;
     arg3.unk_0 = (int16_t*) data.data();
     arg3.unk_4 = 0;
     arg3.unk_8 = 0;
@@ -498,5 +464,10 @@ void SF64::DecompressAudio(std::vector<uint8_t> data, int16_t* output) {
         arg3.unk_0[i] = BSWAP16(arg3.unk_0[i]);
     }
 
-    func_8000967C((int32_t) data.size(), arg3.unk_0, (int16_t*) output, &arg3);
-}
\ No newline at end of file
+    // Whole blocks of 256 samples are decoded, so the output can be longer than twice the input size
+    const size_t blocks = (data.size() + 0xFF) / 256;
+    std::vector<int16_t> output(std::max(data.size() * 2, blocks * 256));
+
+    func_8000967C((int32_t) data.size(), arg3.unk_0, output.data(), &arg3, &dft);
+    return output;
+}
@@ -4,5 +4,6 @@
 #include <vector>
 
 namespace SF64 {
-    void DecompressAudio(std::vector<uint8_t> data, int16_t* output);
+    // Decodes the whole sample, the output holds at least data.size() * 2 samples
+    std::vector<int16_t> DecompressAudio(std::vector<uint8_t> data);
 }
\ No newline at end of file
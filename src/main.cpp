@@ -20,6 +20,9 @@ int main(int argc, char *argv[]) {
     bool otrModeSelected = false;
     bool xmlMode = false;
     bool debug = false;
+    size_t jobs = 1;
+    bool incremental = false;
+    bool manifest = false;
     std::string srcdir;
     std::string destdir;
 
@@ -32,9 +35,15 @@ int main(int argc, char *argv[]) {
     otr->add_flag("-v,--verbose", debug, "Verbose Debug Mode");
     otr->add_option("-s,--srcdir", srcdir, "Set source directory to locate config.yml and asset metadata for processing")->check(CLI::ExistingDirectory);
     otr->add_option("-d,--destdir", destdir, "Set destination directory for export");
+    otr->add_option("-j,--jobs", jobs, "Number of asset files processed in parallel, 0 uses every performance core");
+    otr->add_flag("-i,--incremental", incremental, "Reuse the entries of unchanged asset files from the previous archive");
+    otr->add_flag("-m,--manifest", manifest, "Cache compiled asset yamls in torch.manifest.bin so unchanged files are not parsed again");
 
     otr->parse_complete_callback([&] {
         const auto instance = Companion::Instance = new Companion(filename, ArchiveType::OTR, debug, srcdir, destdir);
+        instance->SetJobs(jobs);
+        instance->SetIncremental(incremental);
+        instance->SetCompiledManifest(manifest);
         instance->Init(ExportType::Binary);
     });
 
@@ -45,9 +54,15 @@ int main(int argc, char *argv[]) {
     o2r->add_flag("-v,--verbose", debug, "Verbose Debug Mode");
     o2r->add_option("-s,--srcdir", srcdir, "Set source directory to locate config.yml and asset metadata for processing")->check(CLI::ExistingDirectory);
     o2r->add_option("-d,--destdir", destdir, "Set destination directory for export");
+    o2r->add_option("-j,--jobs", jobs, "Number of asset files processed in parallel, 0 uses every performance core");
+    o2r->add_flag("-i,--incremental", incremental, "Reuse the entries of unchanged asset files from the previous archive");
+    o2r->add_flag("-m,--manifest", manifest, "Cache compiled asset yamls in torch.manifest.bin so unchanged files are not parsed again");
 
     o2r->parse_complete_callback([&] {
         const auto instance = Companion::Instance = new Companion(filename, ArchiveType::O2R, debug, srcdir, destdir);
+        instance->SetJobs(jobs);
+        instance->SetIncremental(incremental);
+        instance->SetCompiledManifest(manifest);
         instance->Init(ExportType::Binary);
     });
 
@@ -1,10 +1,15 @@
 #include "Cartridge.h"
 
 #include "lib/binarytools/BinaryReader.h"
+#include <algorithm>
 #include <Companion.h>
 
+// Header and IPL3, everything Initialize reads lives in here
+#define ROM_HEADER_SIZE 0x1000
+
 void N64::Cartridge::Initialize() {
-    LUS::BinaryReader reader((char*) this->gRomData.data(), this->gRomData.size());
+    // BinaryReader copies its input, so only hand it the header instead of the whole rom
+    LUS::BinaryReader reader((char*) this->gRomData.data(), std::min<size_t>(this->gRomData.size(), ROM_HEADER_SIZE));
     reader.SetEndianness(Torch::Endianness::Big);
     reader.Seek(0x10, LUS::SeekOffsetType::Start);
     this->gRomCRC = BSWAP32(reader.ReadUInt32());
@@ -14,7 +19,9 @@ void N64::Cartridge::Initialize() {
     reader.Seek(0x3E, LUS::SeekOffsetType::Start);
     uint8_t country = reader.ReadUByte();
     this->gVersion = reader.ReadUByte();
-    this->gHash = Companion::CalculateHash(this->gRomData);
+    if(this->gHash.empty()) {
+        this->gHash = Companion::CalculateHash(this->gRomData);
+    }
     switch (country) {
         case 'J':
             this->gCountryCode = CountryCode::Japan;
@@ -1,7 +1,9 @@
 #pragma once
 
+#include <span>
 #include <vector>
 #include <string>
+#include <utility>
 #include <cstdint>
 
 namespace N64 {
@@ -14,8 +16,10 @@ enum class CountryCode {
 
 class Cartridge {
 public:
-    explicit Cartridge(const std::vector<uint8_t>& romData)
-      : gRomData(romData), gCountryCode(CountryCode::Unknown), gVersion(0), gGameTitle("Unknown"), gRomCRC(0) {
+    // The cartridge only keeps a view of the rom, the caller must keep the buffer alive until Initialize returns
+    // hash can be passed in when the rom was already identified, so it is not hashed a second time
+    explicit Cartridge(std::span<const uint8_t> romData, std::string hash = "")
+      : gRomData(romData), gCountryCode(CountryCode::Unknown), gVersion(0), gGameTitle("Unknown"), gHash(std::move(hash)), gRomCRC(0) {
   }
   void Initialize();
     const std::string& GetGameTitle();
@@ -25,7 +29,7 @@ public:
     std::string GetHash();
     uint32_t GetCRC();
 private:
-    std::vector<uint8_t> gRomData;
+    std::span<const uint8_t> gRomData;
     CountryCode gCountryCode;
     uint8_t gVersion;
     std::string gGameTitle;
@@ -1,22 +1,62 @@
 #include "CompTool.h"
-#include "utils/Decompressor.h"
-#include "lib/binarytools/BinaryWriter.h"
-#include "lib/binarytools/BinaryReader.h"
-#include <fstream>
 #include <cstring>
+#include <stdexcept>
+#include <algorithm>
+#include <future>
+#include "utils/ThreadPool.h"
 
-uint32_t CompTool::FindFileTable(std::vector<uint8_t>& rom) {
-    uint8_t query_one[] = { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x50, 0x00, 0x00, 0x00, 0x00 };
-    uint8_t query_two[] = { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x60, 0x00, 0x00, 0x00, 0x00 };
+extern "C" {
+#include <libmio0/mio0.h>
+}
 
-    for(size_t i = 0; i < rom.size() - sizeof(query_one); i++) {
-        if(memcmp(rom.data() + i, query_one, sizeof(query_one)) == 0){
-            return i;
-        }
+struct FileEntry {
+    uint32_t entry;
+    uint32_t v_begin;
+    uint32_t p_begin;
+    uint32_t p_size;
+    uint32_t v_size;
+    CompType comp;
+};
+
+static uint32_t ReadU32(std::span<const uint8_t> buffer, size_t offset) {
+    if(offset + sizeof(uint32_t) > buffer.size()) {
+        throw std::runtime_error("Read out of bounds. There may be a problem with your ROM.");
+    }
+
+    const auto* data = buffer.data() + offset;
+    return (uint32_t) data[0] << 24 | (uint32_t) data[1] << 16 | (uint32_t) data[2] << 8 | (uint32_t) data[3];
+}
+
+static void WriteU32(std::vector<uint8_t>& buffer, size_t offset, uint32_t value) {
+    buffer[offset + 0] = (value >> 24) & 0xFF;
+    buffer[offset + 1] = (value >> 16) & 0xFF;
+    buffer[offset + 2] = (value >> 8) & 0xFF;
+    buffer[offset + 3] = value & 0xFF;
+}
+
+uint32_t CompTool::FindFileTable(std::span<const uint8_t> rom) {
+    // The table starts with 00000000 00000000 00001050 00000000, or 00001060 for some versions
+    constexpr size_t queryLength = 0x10;
+    constexpr size_t markerOffset = 10;
+    const uint8_t zeros[markerOffset] = {};
+
+    if(rom.size() <= queryLength) {
+        throw std::runtime_error("Failed to find file table");
+    }
+
+    const auto* data = rom.data();
+    const size_t end = rom.size() - queryLength;
 
-        if(memcmp(rom.data() + i, query_two, sizeof(query_two)) == 0){
+    // Jump between 0x10 bytes with memchr instead of comparing at every offset, the rom is mostly not 0x10
+    const auto* marker = data + markerOffset;
+    while((marker = static_cast<const uint8_t*>(memchr(marker, 0x10, (data + end + markerOffset) - marker))) != nullptr) {
+        const size_t i = marker - data - markerOffset;
+
+        if((marker[1] == 0x50 || marker[1] == 0x60) && memcmp(data + i, zeros, markerOffset) == 0 && memcmp(marker + 2, zeros, 4) == 0) {
             return i;
         }
+
+        marker++;
     }
 
     throw std::runtime_error("Failed to find file table");
@@ -24,21 +64,21 @@ uint32_t CompTool::FindFileTable(std::vector<uint8_t>& rom) {
 
 #define ROL(i, b) ((i << (b)) | (i >> (32 - (b))))
 
-std::pair<uint32_t, uint32_t> CompTool::CalculateCRCs(LUS::BinaryWriter& decompFile)
+std::pair<uint32_t, uint32_t> CompTool::CalculateCRCs(std::span<const uint8_t> rom)
 {
     uint32_t start = 0x1000;
     uint32_t end = 0x101000;
-    LUS::BinaryReader readFile(decompFile.GetStream());
     uint32_t t1, t2, t3, t4, t5, t6;
 
+    if(rom.size() < end) {
+        throw std::runtime_error("Decompressed ROM is too small to calculate its CRCs");
+    }
+
     // Todo: Implement other bootcodes
     t1 = t2 = t3 = t4 = t5 = t6 = sCrcSeed;
 
-    readFile.SetEndianness(Torch::Endianness::Big);
-    readFile.Seek(start, LUS::SeekOffsetType::Start);
-
     for (size_t i = start; i < end; i += sizeof(uint32_t)) {
-        uint32_t d = readFile.ReadUInt32();
+        uint32_t d = ReadU32(rom, i);
         uint32_t r = ROL(d, d & 0x1F);
 
         if ((t6 + d) < t6) {
@@ -55,69 +95,129 @@ std::pair<uint32_t, uint32_t> CompTool::CalculateCRCs(LUS::BinaryWriter& decompF
     return std::make_pair(t6 ^ t4 ^ t3, t5 ^ t2 ^ t1);
 }
 
-std::vector<uint8_t> CompTool::Decompress(std::vector<uint8_t> rom){
-    LUS::BinaryReader basefile((char*) rom.data(), rom.size());
-    basefile.SetEndianness(Torch::Endianness::Big);
-
-    LUS::BinaryWriter decompfile;
-    decompfile.SetEndianness(Torch::Endianness::Big);
-    decompfile.Write((uint8_t)0x80);
-
+std::vector<uint8_t> CompTool::Decompress(std::span<const uint8_t> rom){
     uint32_t table = CompTool::FindFileTable(rom);
-    uint32_t count = 0;
-    while (true){
-        auto entry = table + 0x10 * count;
-        basefile.Seek(entry, LUS::SeekOffsetType::Start);
+    std::vector<FileEntry> entries;
+    size_t outSize = 1;
 
-        auto v_begin = basefile.ReadInt32();
-        auto p_begin = basefile.ReadInt32();
-        auto p_end = basefile.ReadInt32();
-        auto comp_flag = basefile.ReadInt32();
+    // Scan the file table first so the output can be allocated once and every segment decoded in place
+    while (true){
+        uint32_t entry = table + 0x10 * entries.size();
 
-        auto p_size = p_end - p_begin;
-        auto v_size = (int32_t) 0;
-        DataChunk* decoded = nullptr;
+        auto v_begin = ReadU32(rom, entry);
+        auto p_begin = ReadU32(rom, entry + 4);
+        auto p_end = ReadU32(rom, entry + 8);
+        auto comp_flag = ReadU32(rom, entry + 12);
 
         if(v_begin == 0 && p_end == 0){
             break;
         }
 
-        basefile.Seek(p_begin, LUS::SeekOffsetType::Start);
+        auto p_size = p_end - p_begin;
+
+        if(p_end < p_begin || p_end > rom.size()) {
+            throw std::runtime_error("Invalid file table entry. There may be a problem with your ROM.");
+        }
 
-        auto bytes = new uint8_t[p_size];
-        basefile.Read((char*) bytes, p_size);
+        uint32_t v_size = 0;
 
         switch ((CompType) comp_flag) {
             case CompType::UNCOMPRESSED:
                 v_size = p_size;
                 break;
-            case CompType::COMPRESSED:
-                decoded = Decompressor::Decode(std::vector(bytes, bytes + p_size), 0, CompressionType::MIO0, true);
-                bytes = decoded->data;
-                v_size = decoded->size;
+            case CompType::COMPRESSED: {
+                mio0_header_t head;
+                if(p_size < MIO0_HEADER_LENGTH || !mio0_decode_header(rom.data() + p_begin, &head)){
+                    throw std::runtime_error("Failed to decode MIO0 header");
+                }
+                v_size = head.dest_size;
                 break;
+            }
             default:
                 throw std::runtime_error("Invalid compression flag. There may be a problem with your ROM.");
         }
 
-        decompfile.Seek(v_begin, LUS::SeekOffsetType::Start);
-        decompfile.Write((char*) bytes, v_size);
-        auto v_end = v_begin + v_size;
+        entries.push_back({ entry, v_begin, p_begin, p_size, v_size, (CompType) comp_flag });
+        outSize = std::max<size_t>(outSize, std::max<size_t>((size_t) v_begin + v_size, entry + 0x10));
+    }
+
+    std::vector<uint8_t> decompfile(outSize);
+    decompfile[0] = 0x80;
+
+    auto place = [&rom, &decompfile](const FileEntry& file) {
+        auto* dest = decompfile.data() + file.v_begin;
+
+        if(file.comp == CompType::COMPRESSED) {
+            mio0_decode(rom.data() + file.p_begin, dest, nullptr);
+        } else {
+            memcpy(dest, rom.data() + file.p_begin, file.v_size);
+        }
+    };
+
+    // Every segment decodes into its own slice of the output, so they can run in any order unless two of them overlap
+    std::vector<const FileEntry*> sorted;
+    for (const auto& file : entries) {
+        sorted.push_back(&file);
+    }
+    std::sort(sorted.begin(), sorted.end(), [](const FileEntry* a, const FileEntry* b) { return a->v_begin < b->v_begin; });
 
-        decompfile.Seek(entry + 4, LUS::SeekOffsetType::Start);
-        decompfile.Write(v_begin);
-        decompfile.Write(v_end);
-        decompfile.Write((uint32_t) CompType::UNCOMPRESSED);
-        count++;
+    bool overlaps = false;
+    for (size_t i = 1; i < sorted.size(); i++) {
+        if((size_t) sorted[i - 1]->v_begin + sorted[i - 1]->v_size > sorted[i]->v_begin) {
+            overlaps = true;
+            break;
+        }
     }
 
-    auto crcs = CompTool::CalculateCRCs(decompfile);
+    const auto threads = std::min(ThreadPool::GetDefaultThreadCount(), entries.size());
+
+    if(overlaps || threads <= 1) {
+        for (const auto& file : entries) {
+            place(file);
+        }
+    } else {
+        // Biggest segments first so a large one does not end up alone on the tail
+        std::sort(sorted.begin(), sorted.end(), [](const FileEntry* a, const FileEntry* b) { return a->v_size > b->v_size; });
+
+        ThreadPool pool(threads);
+        std::vector<std::future<void>> jobs;
+        jobs.reserve(sorted.size());
+
+        for (const auto* file : sorted) {
+            jobs.push_back(pool.Submit([&place, file] { place(*file); }));
+        }
+
+        for (auto& job : jobs) {
+            job.get();
+        }
+    }
+
+    // The table is rewritten after each segment is placed, segments placed later win over earlier table updates
+    for (size_t i = 0; i < entries.size(); i++) {
+        const auto& file = entries[i];
+        const size_t patchStart = file.entry + 4;
+        const size_t patchEnd = file.entry + 0x10;
+        uint8_t previous[0xC];
+
+        memcpy(previous, decompfile.data() + patchStart, sizeof(previous));
+        WriteU32(decompfile, patchStart, file.v_begin);
+        WriteU32(decompfile, patchStart + 4, file.v_begin + file.v_size);
+        WriteU32(decompfile, patchStart + 8, (uint32_t) CompType::UNCOMPRESSED);
+
+        for (size_t j = i + 1; j < entries.size(); j++) {
+            const size_t start = std::max<size_t>(entries[j].v_begin, patchStart);
+            const size_t end = std::min<size_t>((size_t) entries[j].v_begin + entries[j].v_size, patchEnd);
+
+            if(start < end) {
+                memcpy(decompfile.data() + start, previous + (start - patchStart), end - start);
+            }
+        }
+    }
 
-    decompfile.Seek(0x10, LUS::SeekOffsetType::Start);
+    auto crcs = CompTool::CalculateCRCs(decompfile);
 
-    decompfile.Write(crcs.first); // CRC1
-    decompfile.Write(crcs.second); // CRC2
+    WriteU32(decompfile, 0x10, crcs.first); // CRC1
+    WriteU32(decompfile, 0x14, crcs.second); // CRC2
 
-    auto result = decompfile.ToVector();
-    return { (uint8_t*) result.data(), (uint8_t*) result.data() + result.size() };
-}
\ No newline at end of file
+    return decompfile;
+}
@@ -1,7 +1,7 @@
 #pragma once
 
-#include "lib/binarytools/BinaryWriter.h"
 #include <cstdint>
+#include <span>
 #include <string>
 #include <vector>
 
@@ -13,9 +13,9 @@ enum class CompType {
 
 class CompTool {
 public:
-    static std::vector<uint8_t> Decompress(std::vector<uint8_t> rom);
+    static std::vector<uint8_t> Decompress(std::span<const uint8_t> rom);
 private:
-    static uint32_t FindFileTable(std::vector<uint8_t>& rom);
-    static std::pair<uint32_t, uint32_t> CalculateCRCs(LUS::BinaryWriter& decompFile);
+    static uint32_t FindFileTable(std::span<const uint8_t> rom);
+    static std::pair<uint32_t, uint32_t> CalculateCRCs(std::span<const uint8_t> rom);
     static inline const uint32_t sCrcSeed = 0xF8CA4DDC;
 };
@@ -0,0 +1,142 @@
+#include "RomCache.h"
+
+#include <algorithm>
+#include <fstream>
+#include "spdlog/spdlog.h"
+#include "utils/TorchUtils.h"
+
+namespace fs = std::filesystem;
+
+#define ROM_CACHE_EXTENSION ".z64"
+
+RomCache::RomCache(const fs::path& directory, const uintmax_t maxSize) : mDirectory(directory), mMaxSize(maxSize) {}
+
+fs::path RomCache::GetEntryPath(const std::string& sourceHash) const {
+    return this->mDirectory / (sourceHash + ROM_CACHE_EXTENSION);
+}
+
+std::optional<std::vector<uint8_t>> RomCache::Load(const std::string& sourceHash) {
+    std::error_code ec;
+    const auto path = this->GetEntryPath(sourceHash);
+
+    if(!fs::exists(path, ec)) {
+        return std::nullopt;
+    }
+
+    try {
+        auto data = Torch::readFile(path);
+        // Bump the entry so eviction treats it as recently used
+        fs::last_write_time(path, fs::file_time_type::clock::now(), ec);
+        SPDLOG_INFO("Loaded preprocessed rom for {} from cache", sourceHash);
+        return data;
+    } catch (const std::exception& e) {
+        SPDLOG_WARN("Failed to load cached rom {}: {}", path.string(), e.what());
+        this->Remove(sourceHash);
+        return std::nullopt;
+    }
+}
+
+void RomCache::Store(const std::string& sourceHash, std::span<const uint8_t> data) {
+    std::error_code ec;
+
+    if(data.size() > this->mMaxSize) {
+        SPDLOG_WARN("Preprocessed rom for {} is bigger than the cache limit, skipping", sourceHash);
+        return;
+    }
+
+    fs::create_directories(this->mDirectory, ec);
+    if(ec) {
+        SPDLOG_WARN("Failed to create rom cache directory {}: {}", this->mDirectory.string(), ec.message());
+        return;
+    }
+
+    const auto path = this->GetEntryPath(sourceHash);
+    auto temp = path;
+    temp += ".tmp";
+
+    std::ofstream output(temp, std::ios::binary);
+    output.write(reinterpret_cast<const char*>(data.data()), static_cast<std::streamsize>(data.size()));
+    output.close();
+
+    if(!output) {
+        SPDLOG_WARN("Failed to write cached rom {}", temp.string());
+        fs::remove(temp, ec);
+        return;
+    }
+
+    // Rename so a killed process never leaves a truncated entry behind
+    fs::rename(temp, path, ec);
+    if(ec) {
+        SPDLOG_WARN("Failed to store cached rom {}: {}", path.string(), ec.message());
+        fs::remove(temp, ec);
+        return;
+    }
+
+    SPDLOG_INFO("Stored preprocessed rom for {} in cache", sourceHash);
+    this->Evict();
+}
+
+void RomCache::Remove(const std::string& sourceHash) {
+    std::error_code ec;
+    fs::remove(this->GetEntryPath(sourceHash), ec);
+}
+
+uintmax_t RomCache::GetSize() const {
+    std::error_code ec;
+    uintmax_t size = 0;
+
+    if(!fs::exists(this->mDirectory, ec)) {
+        return 0;
+    }
+
+    for (const auto& entry : fs::directory_iterator(this->mDirectory, ec)) {
+        if(entry.is_regular_file(ec) && entry.path().extension() == ROM_CACHE_EXTENSION) {
+            size += entry.file_size(ec);
+        }
+    }
+
+    return size;
+}
+
+void RomCache::Clear() {
+    std::error_code ec;
+
+    if(!fs::exists(this->mDirectory, ec)) {
+        return;
+    }
+
+    for (const auto& entry : fs::directory_iterator(this->mDirectory, ec)) {
+        if(entry.is_regular_file(ec)) {
+            fs::remove(entry.path(), ec);
+        }
+    }
+}
+
+void RomCache::Evict() {
+    std::error_code ec;
+    std::vector<fs::directory_entry> entries;
+    uintmax_t size = 0;
+
+    for (const auto& entry : fs::directory_iterator(this->mDirectory, ec)) {
+        if(entry.is_regular_file(ec) && entry.path().extension() == ROM_CACHE_EXTENSION) {
+            entries.push_back(entry);
+            size += entry.file_size(ec);
+        }
+    }
+
+    // Oldest first
+    std::sort(entries.begin(), entries.end(), [](const auto& a, const auto& b) {
+        std::error_code ec;
+        return a.last_write_time(ec) < b.last_write_time(ec);
+    });
+
+    for (const auto& entry : entries) {
+        if(size <= this->mMaxSize) {
+            break;
+        }
+
+        size -= entry.file_size(ec);
+        SPDLOG_INFO("Evicting cached rom {}", entry.path().filename().string());
+        fs::remove(entry.path(), ec);
+    }
+}
@@ -0,0 +1,32 @@
+#pragma once
+
+#include <cstdint>
+#include <filesystem>
+#include <optional>
+#include <span>
+#include <string>
+#include <vector>
+
+/**
+ * Disk cache for preprocessed (decompressed) roms, entries are keyed by the sha1 of the source rom.
+ * Once the cache grows over its size limit the least recently used entries are evicted.
+ */
+class RomCache {
+public:
+    explicit RomCache(const std::filesystem::path& directory, uintmax_t maxSize = sDefaultMaxSize);
+
+    std::optional<std::vector<uint8_t>> Load(const std::string& sourceHash);
+    void Store(const std::string& sourceHash, std::span<const uint8_t> data);
+    void Remove(const std::string& sourceHash);
+
+    uintmax_t GetSize() const;
+    void Clear();
+
+    static inline const uintmax_t sDefaultMaxSize = 128 * 1024 * 1024;
+private:
+    std::filesystem::path GetEntryPath(const std::string& sourceHash) const;
+    void Evict();
+
+    std::filesystem::path mDirectory;
+    uintmax_t mMaxSize;
+};
@@ -0,0 +1,60 @@
+#include "RomIndex.h"
+
+#include <algorithm>
+#include <cctype>
+
+#define SHA1_HEX_LENGTH 40
+
+static bool IsRomHash(const std::string& key) {
+    return key.size() == SHA1_HEX_LENGTH && std::all_of(key.begin(), key.end(), [](const unsigned char c) {
+        return std::isxdigit(c);
+    });
+}
+
+static bool HasDecompressStep(const YAML::Node& rom) {
+    if(!rom["preprocess"] || !rom["preprocess"].IsMap()) {
+        return false;
+    }
+
+    for(const auto& step : rom["preprocess"]) {
+        if(!step.second.IsMap() || !step.second["type"]) {
+            continue;
+        }
+
+        auto type = step.second["type"].as<std::string>();
+        std::transform(type.begin(), type.end(), type.begin(), ::toupper);
+        if(type == "DECOMPRESS") {
+            return true;
+        }
+    }
+
+    return false;
+}
+
+void RomIndex::Add(const YAML::Node& config) {
+    if(!config.IsMap()) {
+        return;
+    }
+
+    for(const auto& entry : config) {
+        // Directory mode configs and other top level settings are not roms
+        const auto key = entry.first.as<std::string>();
+        if(!IsRomHash(key) || !entry.second.IsMap()) {
+            continue;
+        }
+
+        RomInfo info;
+        info.name = entry.second["name"] ? entry.second["name"].as<std::string>() : key;
+        info.compressed = HasDecompressStep(entry.second);
+        this->mEntries[key] = std::move(info);
+    }
+}
+
+std::optional<RomInfo> RomIndex::Find(const std::string& hash) const {
+    const auto it = this->mEntries.find(hash);
+    if(it == this->mEntries.end()) {
+        return std::nullopt;
+    }
+
+    return it->second;
+}
@@ -0,0 +1,27 @@
+#pragma once
+
+#include <optional>
+#include <string>
+#include <unordered_map>
+#include <yaml-cpp/yaml.h>
+
+struct RomInfo {
+    std::string name;
+    // The rom goes through a decompress preprocess step before it can be extracted
+    bool compressed = false;
+};
+
+/**
+ * Lookup of the roms a config.yml supports, keyed by their sha1. Used to identify a rom without running a conversion.
+ */
+class RomIndex {
+public:
+    RomIndex() = default;
+    explicit RomIndex(const YAML::Node& config) { this->Add(config); }
+
+    void Add(const YAML::Node& config);
+    std::optional<RomInfo> Find(const std::string& hash) const;
+    size_t Size() const { return this->mEntries.size(); }
+private:
+    std::unordered_map<std::string, RomInfo> mEntries;
+};
@@ -0,0 +1,96 @@
+#include "AsyncFileWriter.h"
+
+#include <algorithm>
+#include <fstream>
+#include <stdexcept>
+#include <utility>
+
+namespace fs = std::filesystem;
+
+AsyncFileWriter::AsyncFileWriter(const size_t threads, const size_t maxPending) : mMaxPending(std::max<size_t>(maxPending, 1)) {
+#if !defined(__EMSCRIPTEN__) || defined(__EMSCRIPTEN_PTHREADS__)
+    if(threads > 0) {
+        this->mPool.emplace(threads);
+    }
+#endif
+}
+
+AsyncFileWriter::~AsyncFileWriter() {
+    this->Wait();
+}
+
+void AsyncFileWriter::Write(const fs::path& path, std::vector<char> data) {
+    this->Submit(path, [data = std::move(data)]() mutable { return std::move(data); }, false);
+}
+
+void AsyncFileWriter::Encode(const fs::path& path, std::function<std::vector<char>()> encode) {
+    this->Submit(path, std::move(encode), true);
+}
+
+void AsyncFileWriter::Finish() {
+    this->Wait();
+
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    if(this->mError) {
+        std::rethrow_exception(std::exchange(this->mError, nullptr));
+    }
+}
+
+void AsyncFileWriter::Submit(const fs::path& path, std::function<std::vector<char>()> encode, const bool skipEmpty) {
+    const auto parent = path.parent_path();
+    if(!parent.empty() && this->mDirectories.insert(parent.string()).second) {
+        fs::create_directories(parent);
+    }
+
+    if(!this->mPool.has_value()) {
+        this->Run(path, encode, skipEmpty);
+        this->Finish();
+        return;
+    }
+
+    {
+        std::unique_lock<std::mutex> lock(this->mMutex);
+        this->mCondition.wait(lock, [this] { return this->mPending < this->mMaxPending || this->mError; });
+
+        // Stop feeding the pool once a file failed, Finish reports it
+        if(this->mError) {
+            std::rethrow_exception(std::exchange(this->mError, nullptr));
+        }
+        this->mPending++;
+    }
+
+    this->mPool->Submit([this, path, encode = std::move(encode), skipEmpty] {
+        this->Run(path, encode, skipEmpty);
+
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mPending--;
+        this->mCondition.notify_all();
+    });
+}
+
+void AsyncFileWriter::Run(const fs::path& path, const std::function<std::vector<char>()>& encode, const bool skipEmpty) {
+    try {
+        const auto data = encode();
+        if(skipEmpty && data.empty()) {
+            return;
+        }
+
+        std::ofstream file(path, std::ios::binary);
+        file.write(data.data(), data.size());
+
+        if(!file) {
+            throw std::runtime_error("Failed to write " + path.string());
+        }
+        this->mBytesWritten += data.size();
+    } catch (...) {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        if(!this->mError) {
+            this->mError = std::current_exception();
+        }
+    }
+}
+
+void AsyncFileWriter::Wait() {
+    std::unique_lock<std::mutex> lock(this->mMutex);
+    this->mCondition.wait(lock, [this] { return this->mPending == 0; });
+}
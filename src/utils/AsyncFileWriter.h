@@ -0,0 +1,52 @@
+#pragma once
+
+#include <atomic>
+#include <condition_variable>
+#include <cstdint>
+#include <exception>
+#include <filesystem>
+#include <functional>
+#include <mutex>
+#include <optional>
+#include <string>
+#include <unordered_set>
+#include <vector>
+#include "ThreadPool.h"
+
+/**
+ * Writes loose files from a worker pool so the caller can move on to the next asset. At most maxPending files are
+ * queued or being written, Write and Encode block once that many are in flight. Both are called from a single
+ * thread, which also creates each parent directory the first time it shows up; the workers only write files.
+ */
+class AsyncFileWriter {
+public:
+    // 0 threads, or a build without thread support, writes everything on the calling thread
+    AsyncFileWriter(size_t threads, size_t maxPending);
+    // Waits for the queued files, errors are dropped, call Finish to see them
+    ~AsyncFileWriter();
+
+    AsyncFileWriter(const AsyncFileWriter&) = delete;
+    AsyncFileWriter& operator=(const AsyncFileWriter&) = delete;
+
+    void Write(const std::filesystem::path& path, std::vector<char> data);
+    // Runs encode on the pool and writes what it returns to path, nothing is written when it returns no data
+    void Encode(const std::filesystem::path& path, std::function<std::vector<char>()> encode);
+    // Waits for every file queued so far and rethrows the first error a worker ran into
+    void Finish();
+
+    uint64_t GetBytesWritten() const { return this->mBytesWritten; }
+private:
+    void Submit(const std::filesystem::path& path, std::function<std::vector<char>()> encode, bool skipEmpty);
+    void Run(const std::filesystem::path& path, const std::function<std::vector<char>()>& encode, bool skipEmpty);
+    void Wait();
+
+    std::mutex mMutex;
+    std::condition_variable mCondition;
+    size_t mMaxPending;
+    size_t mPending = 0;
+    std::exception_ptr mError;
+    std::unordered_set<std::string> mDirectories;
+    std::atomic<uint64_t> mBytesWritten = 0;
+    // Last so the workers are joined before anything they use goes away
+    std::optional<ThreadPool> mPool;
+};
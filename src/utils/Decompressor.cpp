@@ -1,6 +1,10 @@
 #include "Decompressor.h"
 
+#include <algorithm>
+#include <cstdlib>
+#include <list>
 #include <stdexcept>
+#include <mutex>
 #include "spdlog/spdlog.h"
 #include <Companion.h>
 
@@ -11,12 +15,115 @@ extern "C" {
 #include <libmio0/tkmk00.h>
 }
 
-std::unordered_map<uint32_t, DataChunk*> gCachedChunks;
+/**
+ * Decompressed chunks keyed by their offset in the rom. Chunks are handed out as shared pointers, so evicting one
+ * only drops the cache reference and assets still reading from it keep it alive.
+ */
+class ChunkCache {
+public:
+    std::shared_ptr<DataChunk> Find(const uint32_t offset) {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        const auto entry = this->mEntries.find(offset);
+
+        if(entry == this->mEntries.end()) {
+            this->mStats.misses++;
+            return nullptr;
+        }
+
+        this->mStats.hits++;
+        this->mOrder.splice(this->mOrder.begin(), this->mOrder, entry->second.order);
+        return entry->second.chunk;
+    }
+
+    // Chunks are decoded outside the lock, if another thread stored the same offset first its chunk is kept
+    std::shared_ptr<DataChunk> Store(const uint32_t offset, std::shared_ptr<DataChunk> chunk, const bool replace) {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        const auto existing = this->mEntries.find(offset);
+
+        if(existing != this->mEntries.end()) {
+            if(!replace) {
+                this->mOrder.splice(this->mOrder.begin(), this->mOrder, existing->second.order);
+                return existing->second.chunk;
+            }
+            this->Erase(existing);
+        }
+
+        this->mOrder.push_front(offset);
+        this->mEntries[offset] = { chunk, this->mOrder.begin() };
+        this->mStats.bytes += chunk->size;
+        this->mStats.peakBytes = std::max(this->mStats.peakBytes, this->mStats.bytes);
+        this->Evict();
+        return chunk;
+    }
+
+    void SetBudget(const size_t budget) {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mBudget = budget;
+        this->Evict();
+    }
+
+    ChunkCacheStats GetStats() {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        return this->mStats;
+    }
+
+    void Clear() {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mEntries.clear();
+        this->mOrder.clear();
+        this->mStats = {};
+    }
+private:
+    struct Entry {
+        std::shared_ptr<DataChunk> chunk;
+        std::list<uint32_t>::iterator order;
+    };
+
+    void Erase(std::unordered_map<uint32_t, Entry>::iterator entry) {
+        this->mStats.bytes -= entry->second.chunk->size;
+        this->mOrder.erase(entry->second.order);
+        this->mEntries.erase(entry);
+    }
+
+    // The most recent chunk is always kept, even when it is larger than the whole budget on its own
+    void Evict() {
+        while(this->mStats.bytes > this->mBudget && this->mOrder.size() > 1) {
+            this->Erase(this->mEntries.find(this->mOrder.back()));
+            this->mStats.evictions++;
+        }
+    }
+
+    std::unordered_map<uint32_t, Entry> mEntries;
+    // Most recently used offset first
+    std::list<uint32_t> mOrder;
+    size_t mBudget = Decompressor::sDefaultCacheBudget;
+    ChunkCacheStats mStats;
+    std::mutex mMutex;
+};
 
-DataChunk* Decompressor::Decode(const std::vector<uint8_t>& buffer, const uint32_t offset, const CompressionType type, bool ignoreCache) {
+static ChunkCache gChunkCache;
+
+static void ReleaseNew(uint8_t* data) {
+    delete[] data;
+}
+
+static void ReleaseMalloc(uint8_t* data) {
+    free(data);
+}
+
+static std::shared_ptr<DataChunk> MakeChunk(uint8_t* data, const size_t size, void (*release)(uint8_t*)) {
+    return std::shared_ptr<DataChunk>(new DataChunk{ data, size }, [release](DataChunk* chunk) {
+        release(chunk->data);
+        delete chunk;
+    });
+}
 
-    if(!ignoreCache && gCachedChunks.contains(offset)){
-        return gCachedChunks[offset];
+std::shared_ptr<DataChunk> Decompressor::Decode(std::span<const uint8_t> buffer, const uint32_t offset, const CompressionType type, bool ignoreCache) {
+
+    if(!ignoreCache) {
+        if(auto chunk = gChunkCache.Find(offset)) {
+            return chunk;
+        }
     }
 
     const unsigned char* in_buf = buffer.data() + offset;
@@ -30,8 +137,7 @@ DataChunk* Decompressor::Decode(const std::vector<uint8_t>& buffer, const uint32
 
             const auto decompressed = new uint8_t[head.dest_size];
             mio0_decode(in_buf, decompressed, nullptr);
-            gCachedChunks[offset] = new DataChunk{ decompressed, head.dest_size };
-            return gCachedChunks[offset];
+            return gChunkCache.Store(offset, MakeChunk(decompressed, head.dest_size, ReleaseNew), ignoreCache);
         }
         case CompressionType::YAY0: {
             uint32_t size = 0;
@@ -41,8 +147,7 @@ DataChunk* Decompressor::Decode(const std::vector<uint8_t>& buffer, const uint32
                 throw std::runtime_error("Failed to decode YAY0");
             }
 
-            gCachedChunks[offset] = new DataChunk{ decompressed, size };
-            return gCachedChunks[offset];
+            return gChunkCache.Store(offset, MakeChunk(decompressed, size, ReleaseMalloc), ignoreCache);
         }
         case CompressionType::YAY1: {
             uint32_t size = 0;
@@ -52,26 +157,25 @@ DataChunk* Decompressor::Decode(const std::vector<uint8_t>& buffer, const uint32
                 throw std::runtime_error("Failed to decode YAY1");
             }
 
-            gCachedChunks[offset] = new DataChunk{ decompressed, size };
-            return gCachedChunks[offset];
+            return gChunkCache.Store(offset, MakeChunk(decompressed, size, ReleaseMalloc), ignoreCache);
         }
         default:
             throw std::runtime_error("Unknown compression type");
     }
 }
 
-DataChunk* Decompressor::DecodeTKMK00(const std::vector<uint8_t>& buffer, const uint32_t offset, const uint32_t size, const uint32_t alpha) {
-    if(gCachedChunks.contains(offset)){
-        return gCachedChunks[offset];
+std::shared_ptr<DataChunk> Decompressor::DecodeTKMK00(std::span<const uint8_t> buffer, const uint32_t offset, const uint32_t size, const uint32_t alpha) {
+    if(auto chunk = gChunkCache.Find(offset)) {
+        return chunk;
     }
 
     const uint8_t* in_buf = buffer.data() + offset;
 
-    const auto decompressed = new uint8_t[size];
+    // Only the rgba output is kept, the intermediate buffer is scratch space for the decoder
+    std::vector<uint8_t> decompressed(size);
     const auto rgba = new uint8_t[size];
-    tkmk00_decode(in_buf, decompressed, rgba, alpha);
-    gCachedChunks[offset] = new DataChunk{ rgba, size };
-    return gCachedChunks[offset];
+    tkmk00_decode(in_buf, decompressed.data(), rgba, alpha);
+    return gChunkCache.Store(offset, MakeChunk(rgba, size, ReleaseNew), false);
 }
 
 DecompressedData Decompressor::AutoDecode(YAML::Node& node, std::vector<uint8_t>& buffer, std::optional<size_t> manualSize) {
@@ -178,7 +282,7 @@ uint32_t Decompressor::TranslateAddr(uint32_t addr, bool baseAddress){
     return addr;
 }
 
-CompressionType Decompressor::GetCompressionType(std::vector<uint8_t>& buffer, const uint32_t offset) {
+CompressionType Decompressor::GetCompressionType(std::span<const uint8_t> buffer, const uint32_t offset) {
     if (offset) {
         LUS::BinaryReader reader((char*) buffer.data() + offset, sizeof(uint32_t));
         reader.SetEndianness(Torch::Endianness::Big);
@@ -220,9 +324,14 @@ bool Decompressor::IsSegmented(uint32_t addr) {
     return false;
 }
 
+void Decompressor::SetCacheBudget(const size_t budget) {
+    gChunkCache.SetBudget(budget);
+}
+
+ChunkCacheStats Decompressor::GetCacheStats() {
+    return gChunkCache.GetStats();
+}
+
 void Decompressor::ClearCache() {
-    for(auto& [key, value] : gCachedChunks){
-        delete value->data;
-    }
-    gCachedChunks.clear();
-}
\ No newline at end of file
+    gChunkCache.Clear();
+}
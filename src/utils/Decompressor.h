@@ -1,5 +1,7 @@
 #pragma once
 
+#include <span>
+#include <memory>
 #include <vector>
 #include <cstdint>
 #include <unordered_map>
@@ -22,8 +24,18 @@ struct DataChunk {
     size_t size;
 };
 
+struct ChunkCacheStats {
+    uint64_t hits = 0;
+    uint64_t misses = 0;
+    uint64_t evictions = 0;
+    // Size of the chunks currently cached and the most that was ever cached at once
+    size_t bytes = 0;
+    size_t peakBytes = 0;
+};
+
 struct DecompressedData {
-    DataChunk* root;
+    // Keeps the decompressed chunk alive while segment points into it, even after the cache evicted it
+    std::shared_ptr<DataChunk> root;
     DataChunk segment;
 
     LUS::BinaryReader GetReader() {
@@ -33,13 +45,19 @@ struct DecompressedData {
 
 class Decompressor {
 public:
-    static DataChunk* Decode(const std::vector<uint8_t>& buffer, uint32_t offset, CompressionType type, bool ignoreCache = false);
-    static DataChunk* DecodeTKMK00(const std::vector<uint8_t>& buffer, const uint32_t offset, const uint32_t size, const uint32_t alpha);
+    static std::shared_ptr<DataChunk> Decode(std::span<const uint8_t> buffer, uint32_t offset, CompressionType type, bool ignoreCache = false);
+    static std::shared_ptr<DataChunk> DecodeTKMK00(std::span<const uint8_t> buffer, const uint32_t offset, const uint32_t size, const uint32_t alpha);
     static DecompressedData AutoDecode(YAML::Node& node, std::vector<uint8_t>& buffer, std::optional<size_t> size = std::nullopt);
     static DecompressedData AutoDecode(uint32_t offset, std::optional<size_t> size, std::vector<uint8_t>& buffer);
-    static CompressionType GetCompressionType(std::vector<uint8_t>& buffer, const uint32_t offset);
+    static CompressionType GetCompressionType(std::span<const uint8_t> buffer, const uint32_t offset);
     static uint32_t TranslateAddr(uint32_t addr, bool baseAddress = false);
     static bool IsSegmented(uint32_t addr);
 
+    // Least recently used chunks are evicted once the cached chunks grow over budget bytes
+    static void SetCacheBudget(size_t budget);
+    static ChunkCacheStats GetCacheStats();
+    // Drops every cached chunk and resets the stats
     static void ClearCache();
+
+    static inline const size_t sDefaultCacheBudget = 256 * 1024 * 1024;
 };
\ No newline at end of file
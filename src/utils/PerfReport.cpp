@@ -0,0 +1,300 @@
+#include "PerfReport.h"
+
+#include <algorithm>
+#include <cstdio>
+#include <iomanip>
+#include <locale>
+#include <sstream>
+
+#ifdef _WIN32
+#define NOMINMAX
+#include <windows.h>
+#else
+#include <ctime>
+#include <unistd.h>
+#include <sys/resource.h>
+#endif
+
+#ifdef __ANDROID__
+#include <android/trace.h>
+#endif
+
+using namespace std::chrono;
+
+// Innermost open section of each kind on this thread, nested sections hand their time up to it
+static thread_local PerfScope* sCurrent[(size_t) PerfSection::Count] = {};
+
+static uint64_t CpuTime(const PerfClock clock) {
+#ifdef _WIN32
+    FILETIME creation, exit, kernel, user;
+    const bool read = clock == PerfClock::Thread ? GetThreadTimes(GetCurrentThread(), &creation, &exit, &kernel, &user)
+                                                 : GetProcessTimes(GetCurrentProcess(), &creation, &exit, &kernel, &user);
+    if(!read) {
+        return 0;
+    }
+
+    auto ticks = [](const FILETIME& time) { return (uint64_t) time.dwHighDateTime << 32 | time.dwLowDateTime; };
+    return (ticks(kernel) + ticks(user)) * 100;
+#else
+    timespec time {};
+    if(clock_gettime(clock == PerfClock::Thread ? CLOCK_THREAD_CPUTIME_ID : CLOCK_PROCESS_CPUTIME_ID, &time) != 0) {
+        return 0;
+    }
+
+    return (uint64_t) time.tv_sec * 1000000000ULL + time.tv_nsec;
+#endif
+}
+
+static uint64_t ResidentSize() {
+#ifdef __linux__
+    std::FILE* statm = std::fopen("/proc/self/statm", "r");
+    if(statm == nullptr) {
+        return 0;
+    }
+
+    unsigned long size = 0;
+    unsigned long resident = 0;
+    const int read = std::fscanf(statm, "%lu %lu", &size, &resident);
+    std::fclose(statm);
+
+    return read == 2 ? (uint64_t) resident * sysconf(_SC_PAGESIZE) : 0;
+#else
+    return 0;
+#endif
+}
+
+static uint64_t MaxResidentSize() {
+#if defined(__linux__) || defined(__APPLE__)
+    rusage usage {};
+    if(getrusage(RUSAGE_SELF, &usage) != 0) {
+        return 0;
+    }
+
+#ifdef __APPLE__
+    return usage.ru_maxrss;
+#else
+    return (uint64_t) usage.ru_maxrss * 1024;
+#endif
+#else
+    return 0;
+#endif
+}
+
+// Reading the resident size is a file read on Linux, it is only done for the coarse sections
+static bool SamplesMemory(const PerfSection section) {
+    return section == PerfSection::Phase || section == PerfSection::File;
+}
+
+void PerfStats::Add(const PerfStats& other) {
+    this->count += other.count;
+    this->wallNs += other.wallNs;
+    this->cpuNs += other.cpuNs;
+    this->bytesIn += other.bytesIn;
+    this->bytesOut += other.bytesOut;
+    this->peakRss = std::max(this->peakRss, other.peakRss);
+}
+
+void PerfReport::Reset() {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    this->mStart = steady_clock::now();
+    this->mStartCpu = CpuTime(PerfClock::Process);
+    this->mTotal = std::nullopt;
+    this->mPhases.clear();
+    this->mParse.clear();
+    this->mExport.clear();
+    this->mFiles.clear();
+    this->mCounters.clear();
+}
+
+void PerfReport::Finish() {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    PerfStats total;
+    total.count = 1;
+    total.wallNs = duration_cast<nanoseconds>(steady_clock::now() - this->mStart).count();
+    total.cpuNs = CpuTime(PerfClock::Process) - this->mStartCpu;
+    total.peakRss = MaxResidentSize();
+    this->mTotal = total;
+}
+
+void PerfReport::Record(const PerfSection section, const std::string& name, const PerfStats& stats) {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+
+    switch (section) {
+        case PerfSection::Phase:
+            this->mPhases[name].Add(stats);
+            break;
+        case PerfSection::Parse:
+            this->mParse[name].Add(stats);
+            this->mPhases["parse"].Add(stats);
+            break;
+        case PerfSection::Export:
+            this->mExport[name].Add(stats);
+            this->mPhases["export"].Add(stats);
+            break;
+        case PerfSection::File:
+            this->mFiles[name].Add(stats);
+            break;
+        default:
+            break;
+    }
+}
+
+void PerfReport::SetCounter(const std::string& name, const uint64_t value) {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    this->mCounters[name] = value;
+}
+
+std::map<std::string, PerfStats> PerfReport::GetPhases() {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    return this->mPhases;
+}
+
+static void WriteString(std::ostream& out, const std::string& value) {
+    out << '"';
+    for (const char c : value) {
+        switch (c) {
+            case '"':
+                out << "\\\"";
+                break;
+            case '\\':
+                out << "\\\\";
+                break;
+            default:
+                if((unsigned char) c < 0x20) {
+                    out << "\\u" << std::hex << std::setw(4) << std::setfill('0') << (int) c << std::dec << std::setfill(' ');
+                } else {
+                    out << c;
+                }
+                break;
+        }
+    }
+    out << '"';
+}
+
+static void WriteStats(std::ostream& out, const PerfStats& stats) {
+    out << "{\"count\":" << stats.count
+        << ",\"wallMs\":" << stats.wallNs / 1e6
+        << ",\"cpuMs\":" << stats.cpuNs / 1e6
+        << ",\"bytesIn\":" << stats.bytesIn
+        << ",\"bytesOut\":" << stats.bytesOut
+        << ",\"peakRssKb\":" << stats.peakRss / 1024 << "}";
+}
+
+static void WriteSection(std::ostream& out, const std::map<std::string, PerfStats>& section) {
+    out << "{";
+    for (auto entry = section.begin(); entry != section.end(); ++entry) {
+        out << (entry != section.begin() ? "," : "");
+        WriteString(out, entry->first);
+        out << ":";
+        WriteStats(out, entry->second);
+    }
+    out << "}";
+}
+
+std::string PerfReport::ToJson() {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    std::ostringstream out;
+    out.imbue(std::locale::classic());
+    out << std::fixed << std::setprecision(3);
+
+    PerfStats total;
+    if(this->mTotal.has_value()) {
+        total = this->mTotal.value();
+    } else {
+        total.count = 1;
+        total.wallNs = duration_cast<nanoseconds>(steady_clock::now() - this->mStart).count();
+        total.cpuNs = CpuTime(PerfClock::Process) - this->mStartCpu;
+        total.peakRss = MaxResidentSize();
+    }
+
+    out << "{\"version\":1,\"finished\":" << (this->mTotal.has_value() ? "true" : "false") << ",\"total\":";
+    WriteStats(out, total);
+    out << ",\"phases\":";
+    WriteSection(out, this->mPhases);
+
+    // Every factory type that parsed or exported something, with both halves
+    std::map<std::string, std::pair<PerfStats, PerfStats>> factories;
+    for (const auto& [type, stats] : this->mParse) {
+        factories[type].first = stats;
+    }
+    for (const auto& [type, stats] : this->mExport) {
+        factories[type].second = stats;
+    }
+
+    out << ",\"factories\":{";
+    for (auto entry = factories.begin(); entry != factories.end(); ++entry) {
+        out << (entry != factories.begin() ? "," : "");
+        WriteString(out, entry->first);
+        out << ":{\"parse\":";
+        WriteStats(out, entry->second.first);
+        out << ",\"export\":";
+        WriteStats(out, entry->second.second);
+        out << "}";
+    }
+    out << "},\"files\":";
+    WriteSection(out, this->mFiles);
+
+    out << ",\"counters\":{";
+    for (auto entry = this->mCounters.begin(); entry != this->mCounters.end(); ++entry) {
+        out << (entry != this->mCounters.begin() ? "," : "");
+        WriteString(out, entry->first);
+        out << ":" << entry->second;
+    }
+    out << "}}";
+
+    return out.str();
+}
+
+PerfScope::PerfScope(PerfReport& report, const PerfSection section, std::string name, const PerfClock clock) :
+    mReport(report), mSection(section), mName(std::move(name)), mClock(clock) {
+    auto& current = sCurrent[(size_t) section];
+    this->mParent = current;
+    current = this;
+
+    if(SamplesMemory(section)) {
+        this->mStats.peakRss = ResidentSize();
+    }
+
+#ifdef __ANDROID__
+    if(ATrace_isEnabled()) {
+        static const char* prefixes[] = { "torch:", "torch:parse ", "torch:export ", "torch:file " };
+        ATrace_beginSection((prefixes[(size_t) section] + this->mName).c_str());
+        this->mTraced = true;
+    }
+#endif
+
+    this->mStartCpu = CpuTime(clock);
+    this->mStart = steady_clock::now();
+}
+
+PerfScope::~PerfScope() {
+    const uint64_t wall = duration_cast<nanoseconds>(steady_clock::now() - this->mStart).count();
+    const uint64_t endCpu = CpuTime(this->mClock);
+    const uint64_t cpu = endCpu > this->mStartCpu ? endCpu - this->mStartCpu : 0;
+
+#ifdef __ANDROID__
+    if(this->mTraced) {
+        ATrace_endSection();
+    }
+#endif
+
+    sCurrent[(size_t) this->mSection] = this->mParent;
+    if(this->mParent != nullptr) {
+        this->mParent->mChildWall += wall;
+        this->mParent->mChildCpu += cpu;
+    }
+
+    this->mStats.count = 1;
+    this->mStats.wallNs = wall - std::min(wall, this->mChildWall);
+    this->mStats.cpuNs = cpu - std::min(cpu, this->mChildCpu);
+
+    if(SamplesMemory(this->mSection)) {
+        this->mStats.peakRss = std::max(this->mStats.peakRss, ResidentSize());
+    }
+
+    try {
+        this->mReport.Record(this->mSection, this->mName, this->mStats);
+    } catch (...) {
+        // Losing a measurement is better than terminating while unwinding
+    }
+}
@@ -0,0 +1,91 @@
+#pragma once
+
+#include <chrono>
+#include <cstdint>
+#include <map>
+#include <mutex>
+#include <optional>
+#include <string>
+
+enum class PerfSection {
+    // preprocess, yaml, parse, export and archive, see Companion::Process
+    Phase,
+    // One factory parse or export, also counted into the parse and export phases
+    Parse,
+    Export,
+    // One asset yaml
+    File,
+    Count
+};
+
+enum class PerfClock {
+    // The section only runs on the calling thread
+    Thread,
+    // The section hands work to other threads, their cpu time is counted too
+    Process
+};
+
+struct PerfStats {
+    uint64_t count = 0;
+    uint64_t wallNs = 0;
+    uint64_t cpuNs = 0;
+    uint64_t bytesIn = 0;
+    uint64_t bytesOut = 0;
+    // Highest resident set seen when a phase or file section started or ended, 0 where it can not be read
+    uint64_t peakRss = 0;
+
+    void Add(const PerfStats& other);
+};
+
+/**
+ * Where the time of a run went, per phase, per factory type and per asset yaml. Sections are recorded from any thread.
+ * Nested sections of the same kind are only counted once: a GFX parse that parses its VTX on the way only gets its
+ * own time, the VTX factory gets the rest. Times of sections running in parallel add up, so they can exceed the total.
+ */
+class PerfReport {
+public:
+    void Reset();
+    // Stops the total clock, ToJson reports up to now until this is called
+    void Finish();
+    void Record(PerfSection section, const std::string& name, const PerfStats& stats);
+    void SetCounter(const std::string& name, uint64_t value);
+
+    std::map<std::string, PerfStats> GetPhases();
+    std::string ToJson();
+private:
+    std::mutex mMutex;
+    std::chrono::steady_clock::time_point mStart = std::chrono::steady_clock::now();
+    uint64_t mStartCpu = 0;
+    std::optional<PerfStats> mTotal;
+    std::map<std::string, PerfStats> mPhases;
+    std::map<std::string, PerfStats> mParse;
+    std::map<std::string, PerfStats> mExport;
+    std::map<std::string, PerfStats> mFiles;
+    std::map<std::string, uint64_t> mCounters;
+};
+
+// Times the enclosing block and records it on destruction, also shows up as a trace section on Android
+class PerfScope {
+public:
+    PerfScope(PerfReport& report, PerfSection section, std::string name, PerfClock clock = PerfClock::Thread);
+    ~PerfScope();
+
+    PerfScope(const PerfScope&) = delete;
+    PerfScope& operator=(const PerfScope&) = delete;
+
+    void BytesIn(uint64_t bytes) { this->mStats.bytesIn += bytes; }
+    void BytesOut(uint64_t bytes) { this->mStats.bytesOut += bytes; }
+private:
+    PerfReport& mReport;
+    PerfSection mSection;
+    std::string mName;
+    PerfClock mClock;
+    std::chrono::steady_clock::time_point mStart;
+    uint64_t mStartCpu;
+    PerfStats mStats;
+    // Time spent in nested sections of the same kind, taken off this one
+    uint64_t mChildWall = 0;
+    uint64_t mChildCpu = 0;
+    PerfScope* mParent;
+    bool mTraced = false;
+};
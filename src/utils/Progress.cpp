@@ -0,0 +1,69 @@
+#include "Progress.h"
+
+void ProgressTracker::SetListener(Listener listener, const std::chrono::milliseconds interval) {
+    std::lock_guard<std::mutex> lock(this->mListenerMutex);
+    this->mListener = std::move(listener);
+    this->mInterval = interval;
+}
+
+void ProgressTracker::Reset() {
+    this->mPhase = ProgressPhase::Idle;
+    this->mFilesDone = 0;
+    this->mFilesTotal = 0;
+    this->mAssetsExported = 0;
+    this->mBytesWritten = 0;
+    this->mLastNotify = 0;
+}
+
+void ProgressTracker::SetPhase(const ProgressPhase phase) {
+    this->mPhase = phase;
+    this->Notify(true);
+}
+
+void ProgressTracker::SetFilesTotal(const uint32_t total) {
+    this->mFilesTotal = total;
+    this->Notify(true);
+}
+
+void ProgressTracker::FileDone() {
+    this->mFilesDone.fetch_add(1, std::memory_order_relaxed);
+    this->Notify(false);
+}
+
+void ProgressTracker::AssetExported(const uint64_t bytes) {
+    this->mAssetsExported.fetch_add(1, std::memory_order_relaxed);
+    this->mBytesWritten.fetch_add(bytes, std::memory_order_relaxed);
+    this->Notify(false);
+}
+
+ProgressSnapshot ProgressTracker::Snapshot() const {
+    return {
+        this->mPhase.load(),
+        this->mFilesDone.load(std::memory_order_relaxed),
+        this->mFilesTotal.load(std::memory_order_relaxed),
+        this->mAssetsExported.load(std::memory_order_relaxed),
+        this->mBytesWritten.load(std::memory_order_relaxed),
+    };
+}
+
+void ProgressTracker::Notify(const bool force) {
+    const int64_t now = std::chrono::steady_clock::now().time_since_epoch().count();
+    int64_t last = this->mLastNotify.load(std::memory_order_relaxed);
+
+    // Only the thread that moves the timestamp forward reports, everyone else's update is picked up by its snapshot
+    if(!force && (now - last < this->mInterval.count() || !this->mLastNotify.compare_exchange_strong(last, now))) {
+        return;
+    }
+
+    std::unique_lock<std::mutex> lock(this->mListenerMutex, std::defer_lock);
+    if(force) {
+        this->mLastNotify = now;
+        lock.lock();
+    } else if(!lock.try_lock()) {
+        return;
+    }
+
+    if(this->mListener) {
+        this->mListener(this->Snapshot());
+    }
+}
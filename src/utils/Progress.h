@@ -0,0 +1,57 @@
+#pragma once
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <functional>
+#include <mutex>
+
+enum class ProgressPhase : uint32_t {
+    Idle,
+    Preparing,
+    Decompressing,
+    Exporting,
+    Finalizing,
+    Done
+};
+
+struct ProgressSnapshot {
+    ProgressPhase phase;
+    uint32_t filesDone;
+    uint32_t filesTotal;
+    uint64_t assetsExported;
+    // Uncompressed size of every entry handed to the archive
+    uint64_t bytesWritten;
+};
+
+/**
+ * Counts the work done by a run, the counters are updated from any thread without locking.
+ * The listener is called with a snapshot at most once per interval, phase changes are always reported.
+ */
+class ProgressTracker {
+public:
+    using Listener = std::function<void(const ProgressSnapshot&)>;
+
+    void SetListener(Listener listener, std::chrono::milliseconds interval = std::chrono::milliseconds(100));
+
+    void Reset();
+    void SetPhase(ProgressPhase phase);
+    void SetFilesTotal(uint32_t total);
+    void FileDone();
+    void AssetExported(uint64_t bytes);
+
+    ProgressSnapshot Snapshot() const;
+private:
+    void Notify(bool force);
+
+    std::atomic<ProgressPhase> mPhase = ProgressPhase::Idle;
+    std::atomic<uint32_t> mFilesDone = 0;
+    std::atomic<uint32_t> mFilesTotal = 0;
+    std::atomic<uint64_t> mAssetsExported = 0;
+    std::atomic<uint64_t> mBytesWritten = 0;
+
+    Listener mListener;
+    std::chrono::steady_clock::duration mInterval = std::chrono::milliseconds(100);
+    std::atomic<int64_t> mLastNotify = 0;
+    std::mutex mListenerMutex;
+};
@@ -0,0 +1,184 @@
+#include "Sha1.h"
+
+#include <algorithm>
+#include <cstring>
+
+#if defined(__aarch64__) && (defined(__ARM_FEATURE_SHA2) || defined(__ARM_FEATURE_CRYPTO))
+#define SHA1_ARMV8
+#include <arm_neon.h>
+#if defined(__linux__)
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+#endif
+
+static constexpr uint32_t kInitialState[5] = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+static constexpr uint32_t kRoundConstants[4] = { 0x5A827999, 0x6ED9EBA1, 0x8F1BBCDC, 0xCA62C1D6 };
+
+static inline uint32_t RotateLeft(const uint32_t value, const int bits) {
+    return (value << bits) | (value >> (32 - bits));
+}
+
+static void ProcessBlocksPortable(uint32_t state[5], const uint8_t* blocks, size_t count) {
+    uint32_t w[80];
+
+    for (; count > 0; count--, blocks += 64) {
+        for (size_t i = 0; i < 16; i++) {
+            w[i] = (uint32_t) blocks[i * 4] << 24 | (uint32_t) blocks[i * 4 + 1] << 16 | (uint32_t) blocks[i * 4 + 2] << 8 | blocks[i * 4 + 3];
+        }
+
+        for (size_t i = 16; i < 80; i++) {
+            w[i] = RotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+        }
+
+        uint32_t a = state[0], b = state[1], c = state[2], d = state[3], e = state[4];
+
+        for (size_t i = 0; i < 80; i++) {
+            uint32_t f;
+            if(i < 20) {
+                f = (b & c) | (~b & d);
+            } else if(i < 40 || i >= 60) {
+                f = b ^ c ^ d;
+            } else {
+                f = (b & c) | (b & d) | (c & d);
+            }
+
+            const uint32_t temp = RotateLeft(a, 5) + f + e + kRoundConstants[i / 20] + w[i];
+            e = d;
+            d = c;
+            c = RotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+    }
+}
+
+#ifdef SHA1_ARMV8
+// Four rounds per instruction, the message schedule is expanded four words at a time with sha1su0/sha1su1
+static void ProcessBlocksArmV8(uint32_t state[5], const uint8_t* blocks, size_t count) {
+    uint32x4_t abcd = vld1q_u32(state);
+    uint32_t e = state[4];
+
+    for (; count > 0; count--, blocks += 64) {
+        const uint32x4_t abcdSaved = abcd;
+        const uint32_t eSaved = e;
+        uint32x4_t w[4];
+
+        for (size_t i = 0; i < 4; i++) {
+            w[i] = vreinterpretq_u32_u8(vrev32q_u8(vld1q_u8(blocks + i * 16)));
+        }
+
+        for (size_t i = 0; i < 20; i++) {
+            const uint32x4_t wk = vaddq_u32(w[i % 4], vdupq_n_u32(kRoundConstants[i / 5]));
+            const uint32_t next = vsha1h_u32(vgetq_lane_u32(abcd, 0));
+
+            if(i < 5) {
+                abcd = vsha1cq_u32(abcd, e, wk);
+            } else if(i < 10 || i >= 15) {
+                abcd = vsha1pq_u32(abcd, e, wk);
+            } else {
+                abcd = vsha1mq_u32(abcd, e, wk);
+            }
+            e = next;
+
+            if(i < 16) {
+                w[i % 4] = vsha1su1q_u32(vsha1su0q_u32(w[i % 4], w[(i + 1) % 4], w[(i + 2) % 4]), w[(i + 3) % 4]);
+            }
+        }
+
+        abcd = vaddq_u32(abcd, abcdSaved);
+        e += eSaved;
+    }
+
+    vst1q_u32(state, abcd);
+    state[4] = e;
+}
+#endif
+
+bool Sha1::IsAccelerated() {
+#if defined(SHA1_ARMV8) && defined(__APPLE__)
+    return true;
+#elif defined(SHA1_ARMV8) && defined(__linux__)
+    static const bool supported = (getauxval(AT_HWCAP) & HWCAP_SHA1) != 0;
+    return supported;
+#else
+    return false;
+#endif
+}
+
+Sha1::Sha1() {
+    std::copy(std::begin(kInitialState), std::end(kInitialState), this->mState.begin());
+    this->mProcess = &ProcessBlocksPortable;
+#ifdef SHA1_ARMV8
+    if(IsAccelerated()) {
+        this->mProcess = &ProcessBlocksArmV8;
+    }
+#endif
+}
+
+Sha1& Sha1::Update(std::span<const uint8_t> data) {
+    this->mLength += data.size();
+
+    if(this->mBuffered > 0) {
+        const size_t size = std::min(data.size(), this->mBuffer.size() - this->mBuffered);
+        memcpy(this->mBuffer.data() + this->mBuffered, data.data(), size);
+        this->mBuffered += size;
+        data = data.subspan(size);
+
+        if(this->mBuffered < this->mBuffer.size()) {
+            return *this;
+        }
+
+        this->mProcess(this->mState.data(), this->mBuffer.data(), 1);
+        this->mBuffered = 0;
+    }
+
+    const size_t blocks = data.size() / 64;
+    if(blocks > 0) {
+        this->mProcess(this->mState.data(), data.data(), blocks);
+        data = data.subspan(blocks * 64);
+    }
+
+    memcpy(this->mBuffer.data(), data.data(), data.size());
+    this->mBuffered = data.size();
+    return *this;
+}
+
+std::string Sha1::Finalize() {
+    const uint64_t bits = this->mLength * 8;
+
+    this->mBuffer[this->mBuffered++] = 0x80;
+    if(this->mBuffered > 56) {
+        std::fill(this->mBuffer.begin() + this->mBuffered, this->mBuffer.end(), 0);
+        this->mProcess(this->mState.data(), this->mBuffer.data(), 1);
+        this->mBuffered = 0;
+    }
+
+    std::fill(this->mBuffer.begin() + this->mBuffered, this->mBuffer.begin() + 56, 0);
+    for (size_t i = 0; i < 8; i++) {
+        this->mBuffer[56 + i] = (uint8_t) (bits >> (56 - i * 8));
+    }
+    this->mProcess(this->mState.data(), this->mBuffer.data(), 1);
+
+    static constexpr char kDigits[] = "0123456789abcdef";
+    std::string digest;
+    digest.reserve(40);
+
+    for (const auto word : this->mState) {
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            digest.push_back(kDigits[(word >> shift) & 0xF]);
+        }
+    }
+
+    return digest;
+}
+
+std::string Sha1::Hash(std::span<const uint8_t> data) {
+    return Sha1().Update(data).Finalize();
+}
@@ -0,0 +1,31 @@
+#pragma once
+
+#include <array>
+#include <cstddef>
+#include <cstdint>
+#include <span>
+#include <string>
+
+/**
+ * Streaming SHA-1, data can be fed in chunks so a rom never has to be fully in memory to be identified.
+ * Blocks are hashed with the ARMv8 crypto extensions when the cpu has them, otherwise with a portable implementation.
+ */
+class Sha1 {
+public:
+    Sha1();
+
+    Sha1& Update(std::span<const uint8_t> data);
+    // Lowercase hex digest, the hash can not be updated afterwards
+    std::string Finalize();
+
+    static std::string Hash(std::span<const uint8_t> data);
+    static bool IsAccelerated();
+
+    using BlockFunction = void (*)(uint32_t state[5], const uint8_t* blocks, size_t count);
+private:
+    std::array<uint32_t, 5> mState;
+    std::array<uint8_t, 64> mBuffer;
+    size_t mBuffered = 0;
+    uint64_t mLength = 0;
+    BlockFunction mProcess;
+};
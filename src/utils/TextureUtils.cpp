@@ -1,6 +1,5 @@
 #include "TextureUtils.h"
 #include <vector>
-#include <binarytools/endianness.h>
 
 size_t TextureUtils::CalculateTextureSize(TextureType type, uint32_t width, uint32_t height) {
     switch (type) {
@@ -30,28 +29,14 @@ size_t TextureUtils::CalculateTextureSize(TextureType type, uint32_t width, uint
 }
 
 std::vector<uint8_t> TextureUtils::alloc_ia8_text_from_i1(uint16_t *in, int16_t width, int16_t height) {
-    int32_t inPos;
-    uint16_t bitMask;
-    int16_t outPos = 0;
-    const auto out = new uint8_t[width * height];
+    // Read byte by byte, the rom is big endian and the texels go from the most significant bit down
+    const auto bits = reinterpret_cast<const uint8_t*>(in);
+    const int32_t texels = (width * height) / 16 * 16;
+    std::vector<uint8_t> result(width * height);
 
-    for (int32_t inPos = 0; inPos < (width * height) / 16; inPos++) {
-        uint16_t bitMask = 0x8000;
-
-        while (bitMask != 0) {
-            if (BSWAP16(in[inPos]) & bitMask) {
-                out[outPos] = 0xFF;
-            } else {
-                out[outPos] = 0x00;
-            }
-
-            bitMask /= 2;
-            outPos++;
-        }
+    for (int32_t i = 0; i < texels; i++) {
+        result[i] = ((bits[i / 8] << (i % 8)) & 0x80) ? 0xFF : 0x00;
     }
 
-    auto result = std::vector(out, out + width * height);
-    delete[] out;
-
     return result;
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+#include "ThreadPool.h"
+
+#include <algorithm>
+#include <fstream>
+#include <string>
+
+ThreadPool::ThreadPool(size_t threads) {
+    threads = std::max<size_t>(threads, 1);
+    this->mWorkers.reserve(threads);
+
+    for (size_t i = 0; i < threads; i++) {
+        this->mWorkers.emplace_back(&ThreadPool::WorkerLoop, this);
+    }
+}
+
+ThreadPool::~ThreadPool() {
+    {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mStopping = true;
+    }
+    this->mCondition.notify_all();
+
+    for (auto& worker : this->mWorkers) {
+        worker.join();
+    }
+}
+
+void ThreadPool::WorkerLoop() {
+    while (true) {
+        std::function<void()> task;
+        {
+            std::unique_lock<std::mutex> lock(this->mMutex);
+            this->mCondition.wait(lock, [this] { return this->mStopping || !this->mTasks.empty(); });
+
+            if(this->mStopping && this->mTasks.empty()) {
+                return;
+            }
+
+            task = std::move(this->mTasks.front());
+            this->mTasks.pop();
+        }
+        task();
+    }
+}
+
+size_t ThreadPool::GetDefaultThreadCount() {
+#if defined(__EMSCRIPTEN__) && !defined(__EMSCRIPTEN_PTHREADS__)
+    return 1;
+#endif
+    const size_t cores = std::max<unsigned int>(std::thread::hardware_concurrency(), 1);
+
+#ifdef __linux__
+    // Phones mix fast and efficiency cores, the efficiency cores only slow down evenly split work
+    std::vector<uint64_t> frequencies;
+
+    for (size_t i = 0; i < cores; i++) {
+        std::ifstream file("/sys/devices/system/cpu/cpu" + std::to_string(i) + "/cpufreq/cpuinfo_max_freq");
+        uint64_t frequency = 0;
+
+        if(!(file >> frequency)) {
+            return cores;
+        }
+
+        frequencies.push_back(frequency);
+    }
+
+    const auto slowest = *std::min_element(frequencies.begin(), frequencies.end());
+    const auto big = std::count_if(frequencies.begin(), frequencies.end(), [slowest](uint64_t f) { return f > slowest; });
+
+    if(big > 0) {
+        return static_cast<size_t>(big);
+    }
+#endif
+
+    return cores;
+}
+
+void ConcurrencyLimit::Set(const size_t limit) {
+    {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mLimit = limit;
+    }
+    this->mCondition.notify_all();
+}
+
+void ConcurrencyLimit::Acquire() {
+    std::unique_lock<std::mutex> lock(this->mMutex);
+    this->mCondition.wait(lock, [this] { return this->mLimit == 0 || this->mActive < this->mLimit; });
+    this->mActive++;
+}
+
+void ConcurrencyLimit::Release() {
+    {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mActive--;
+    }
+    this->mCondition.notify_one();
+}
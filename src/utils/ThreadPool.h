@@ -0,0 +1,79 @@
+#pragma once
+
+#include <condition_variable>
+#include <cstddef>
+#include <functional>
+#include <future>
+#include <memory>
+#include <mutex>
+#include <queue>
+#include <thread>
+#include <type_traits>
+#include <vector>
+
+/**
+ * Fixed size worker pool, tasks are run in submission order by whichever worker is free.
+ * By default the pool is sized to the performance cores of the device, see GetDefaultThreadCount.
+ */
+class ThreadPool {
+public:
+    explicit ThreadPool(size_t threads = GetDefaultThreadCount());
+    ~ThreadPool();
+
+    ThreadPool(const ThreadPool&) = delete;
+    ThreadPool& operator=(const ThreadPool&) = delete;
+
+    template<typename F>
+    auto Submit(F&& task) -> std::future<std::invoke_result_t<F>> {
+        using R = std::invoke_result_t<F>;
+        auto packaged = std::make_shared<std::packaged_task<R()>>(std::forward<F>(task));
+        auto future = packaged->get_future();
+        {
+            std::lock_guard<std::mutex> lock(this->mMutex);
+            this->mTasks.emplace([packaged] { (*packaged)(); });
+        }
+        this->mCondition.notify_one();
+        return future;
+    }
+
+    size_t GetThreadCount() const { return this->mWorkers.size(); }
+
+    // Number of big cores on heterogeneous (big.LITTLE) cpus, otherwise the hardware concurrency
+    static size_t GetDefaultThreadCount();
+private:
+    void WorkerLoop();
+
+    std::vector<std::thread> mWorkers;
+    std::queue<std::function<void()>> mTasks;
+    std::mutex mMutex;
+    std::condition_variable mCondition;
+    bool mStopping = false;
+};
+
+/**
+ * Caps how many tasks run at once, below the size of the pool they run on. The cap can be lowered or raised while
+ * tasks are running, tasks that already started are not interrupted.
+ */
+class ConcurrencyLimit {
+public:
+    // Holds one of the running slots for its lifetime
+    class Slot {
+    public:
+        explicit Slot(ConcurrencyLimit& limit) : mLimit(limit) { limit.Acquire(); }
+        ~Slot() { this->mLimit.Release(); }
+        Slot(const Slot&) = delete;
+        Slot& operator=(const Slot&) = delete;
+    private:
+        ConcurrencyLimit& mLimit;
+    };
+
+    // 0 removes the cap
+    void Set(size_t limit);
+    void Acquire();
+    void Release();
+private:
+    size_t mLimit = 0;
+    size_t mActive = 0;
+    std::mutex mMutex;
+    std::condition_variable mCondition;
+};
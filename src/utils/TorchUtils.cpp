@@ -35,4 +35,24 @@ std::vector<fs::directory_entry> Torch::getRecursiveEntries(const fs::path baseD
 
     std::vector<fs::directory_entry> sortedEntries(result.begin(), result.end());
     return sortedEntries;
+}
+
+std::vector<uint8_t> Torch::readFile(const fs::path& path) {
+    std::ifstream input(path, std::ios::binary | std::ios::ate);
+
+    if(!input.is_open()) {
+        throw std::runtime_error("Failed to open " + path.string());
+    }
+
+    // Size the buffer up front so the file is only held once in memory
+    const auto size = static_cast<size_t>(input.tellg());
+    std::vector<uint8_t> data(size);
+    input.seekg(0, std::ios::beg);
+    input.read(reinterpret_cast<char*>(data.data()), static_cast<std::streamsize>(size));
+
+    if(static_cast<size_t>(input.gcount()) != size) {
+        throw std::runtime_error("Failed to read " + path.string());
+    }
+
+    return data;
 }
\ No newline at end of file
@@ -26,5 +26,6 @@ std::string to_hex(T number, const bool append0x = true) {
 
 uint32_t translate(uint32_t offset);
 std::vector<std::filesystem::directory_entry> getRecursiveEntries(const std::filesystem::path baseDir);
+std::vector<uint8_t> readFile(const std::filesystem::path& path);
 
 };
\ No newline at end of file
@@ -0,0 +1,239 @@
+#include "YamlManifest.h"
+
+#include <fstream>
+#include <stdexcept>
+#include "spdlog/spdlog.h"
+#include "utils/TorchUtils.h"
+
+namespace fs = std::filesystem;
+
+#define MANIFEST_MAGIC "TMAN"
+#define MANIFEST_VERSION 1
+#define SHA1_HEX_LENGTH 40
+
+enum class EncodedType : uint8_t {
+    Null,
+    Scalar,
+    Sequence,
+    Map,
+};
+
+static void WriteVarint(std::string& out, uint64_t value) {
+    while(value >= 0x80) {
+        out.push_back(static_cast<char>((value & 0x7F) | 0x80));
+        value >>= 7;
+    }
+    out.push_back(static_cast<char>(value));
+}
+
+static void WriteString(std::string& out, const std::string_view value) {
+    WriteVarint(out, value.size());
+    out.append(value);
+}
+
+static void EncodeNode(std::string& out, const YAML::Node& node) {
+    switch (node.Type()) {
+        case YAML::NodeType::Scalar:
+            out.push_back(static_cast<char>(EncodedType::Scalar));
+            WriteString(out, node.Tag());
+            WriteString(out, node.Scalar());
+            break;
+        case YAML::NodeType::Sequence:
+            out.push_back(static_cast<char>(EncodedType::Sequence));
+            WriteString(out, node.Tag());
+            WriteVarint(out, node.size());
+            for(const auto& child : node) {
+                EncodeNode(out, child);
+            }
+            break;
+        case YAML::NodeType::Map:
+            out.push_back(static_cast<char>(EncodedType::Map));
+            WriteString(out, node.Tag());
+            WriteVarint(out, node.size());
+            for(const auto& entry : node) {
+                EncodeNode(out, entry.first);
+                EncodeNode(out, entry.second);
+            }
+            break;
+        default:
+            out.push_back(static_cast<char>(EncodedType::Null));
+            break;
+    }
+}
+
+class ManifestReader {
+public:
+    explicit ManifestReader(const std::string_view data) : mData(data) {}
+
+    uint64_t ReadVarint() {
+        uint64_t value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            const auto byte = static_cast<uint8_t>(this->Read(1)[0]);
+            value |= static_cast<uint64_t>(byte & 0x7F) << shift;
+            if(!(byte & 0x80)) {
+                return value;
+            }
+        }
+        throw std::runtime_error("Invalid varint in yaml manifest");
+    }
+
+    std::string_view ReadString() {
+        return this->Read(this->ReadVarint());
+    }
+
+    std::string_view Read(const size_t size) {
+        if(size > this->mData.size() - this->mOffset) {
+            throw std::runtime_error("Truncated yaml manifest");
+        }
+        const auto value = this->mData.substr(this->mOffset, size);
+        this->mOffset += size;
+        return value;
+    }
+
+    YAML::Node ReadNode() {
+        const auto type = static_cast<EncodedType>(this->Read(1)[0]);
+
+        switch (type) {
+            case EncodedType::Null:
+                return YAML::Node(YAML::NodeType::Null);
+            case EncodedType::Scalar: {
+                const auto tag = this->ReadString();
+                YAML::Node node(std::string(this->ReadString()));
+                node.SetTag(std::string(tag));
+                return node;
+            }
+            case EncodedType::Sequence: {
+                YAML::Node node(YAML::NodeType::Sequence);
+                node.SetTag(std::string(this->ReadString()));
+                for(auto count = this->ReadVarint(); count > 0; count--) {
+                    node.push_back(this->ReadNode());
+                }
+                return node;
+            }
+            case EncodedType::Map: {
+                YAML::Node node(YAML::NodeType::Map);
+                node.SetTag(std::string(this->ReadString()));
+                for(auto count = this->ReadVarint(); count > 0; count--) {
+                    auto key = this->ReadNode();
+                    auto value = this->ReadNode();
+                    // Keys are unique already, skips the lookup operator[] does on every insert
+                    node.force_insert(key, value);
+                }
+                return node;
+            }
+            default:
+                throw std::runtime_error("Invalid node type in yaml manifest");
+        }
+    }
+
+    bool AtEnd() const {
+        return this->mOffset == this->mData.size();
+    }
+private:
+    std::string_view mData;
+    size_t mOffset = 0;
+};
+
+YamlManifest::YamlManifest(fs::path path) : mPath(std::move(path)) {
+    std::error_code ec;
+    if(!fs::exists(this->mPath, ec)) {
+        return;
+    }
+
+    try {
+        const auto bytes = Torch::readFile(this->mPath);
+        ManifestReader reader(std::string_view(reinterpret_cast<const char*>(bytes.data()), bytes.size()));
+
+        if(reader.Read(4) != MANIFEST_MAGIC || reader.ReadVarint() != MANIFEST_VERSION) {
+            SPDLOG_INFO("Ignoring yaml manifest {} from another version", this->mPath.string());
+            return;
+        }
+
+        for(auto count = reader.ReadVarint(); count > 0; count--) {
+            const auto hash = reader.Read(SHA1_HEX_LENGTH);
+            this->mPrevious.emplace(hash, reader.ReadString());
+        }
+    } catch (const std::exception& e) {
+        SPDLOG_WARN("Ignoring unreadable yaml manifest {}: {}", this->mPath.string(), e.what());
+        this->mPrevious.clear();
+    }
+}
+
+std::optional<YAML::Node> YamlManifest::Find(const std::string& hash) {
+    std::string encoded;
+    {
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        const auto entry = this->mPrevious.find(hash);
+        if(entry == this->mPrevious.end()) {
+            return std::nullopt;
+        }
+        encoded = entry->second;
+        this->mUsed.emplace(hash, encoded);
+    }
+
+    try {
+        return Decode(encoded);
+    } catch (const std::exception& e) {
+        SPDLOG_WARN("Discarding broken manifest entry {}: {}", hash, e.what());
+        std::lock_guard<std::mutex> lock(this->mMutex);
+        this->mUsed.erase(hash);
+        this->mChanged = true;
+        return std::nullopt;
+    }
+}
+
+void YamlManifest::Add(const std::string& hash, const YAML::Node& root) {
+    auto encoded = Encode(root);
+    std::lock_guard<std::mutex> lock(this->mMutex);
+    this->mUsed[hash] = std::move(encoded);
+    this->mChanged = true;
+}
+
+void YamlManifest::Save() {
+    std::lock_guard<std::mutex> lock(this->mMutex);
+
+    if(!this->mChanged && this->mUsed.size() == this->mPrevious.size()) {
+        return;
+    }
+
+    std::string out = MANIFEST_MAGIC;
+    WriteVarint(out, MANIFEST_VERSION);
+    WriteVarint(out, this->mUsed.size());
+    for(const auto& [hash, encoded] : this->mUsed) {
+        out.append(hash);
+        WriteString(out, encoded);
+    }
+
+    const auto temp = fs::path(this->mPath.string() + ".tmp");
+    {
+        std::ofstream file(temp, std::ios::binary);
+        file.write(out.data(), static_cast<std::streamsize>(out.size()));
+        if(!file) {
+            SPDLOG_WARN("Failed to write yaml manifest {}", temp.string());
+            return;
+        }
+    }
+
+    std::error_code ec;
+    fs::rename(temp, this->mPath, ec);
+    if(ec) {
+        SPDLOG_WARN("Failed to replace yaml manifest {}: {}", this->mPath.string(), ec.message());
+    }
+}
+
+std::string YamlManifest::Encode(const YAML::Node& node) {
+    std::string out;
+    EncodeNode(out, node);
+    return out;
+}
+
+YAML::Node YamlManifest::Decode(const std::string_view data) {
+    ManifestReader reader(data);
+    auto node = reader.ReadNode();
+
+    if(!reader.AtEnd()) {
+        throw std::runtime_error("Trailing data in yaml manifest entry");
+    }
+
+    return node;
+}
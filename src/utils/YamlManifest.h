@@ -0,0 +1,33 @@
+#pragma once
+
+#include <filesystem>
+#include <mutex>
+#include <optional>
+#include <string>
+#include <string_view>
+#include <unordered_map>
+#include <yaml-cpp/yaml.h>
+
+/**
+ * Compiled asset yaml files, a binary snapshot of each parsed tree keyed by the sha1 of the yaml it came from.
+ * Decoding a snapshot skips the yaml-cpp scanner and parser, which are most of the startup cost on slower cpus.
+ */
+class YamlManifest {
+public:
+    explicit YamlManifest(std::filesystem::path path);
+
+    // Tree compiled from the yaml with this hash during a previous run, if there is one
+    std::optional<YAML::Node> Find(const std::string& hash);
+    void Add(const std::string& hash, const YAML::Node& root);
+    // Only keeps the snapshots used since the manifest was loaded, the ones of changed or deleted files are dropped
+    void Save();
+
+    static std::string Encode(const YAML::Node& node);
+    static YAML::Node Decode(std::string_view data);
+private:
+    std::filesystem::path mPath;
+    std::unordered_map<std::string, std::string> mPrevious;
+    std::unordered_map<std::string, std::string> mUsed;
+    bool mChanged = false;
+    std::mutex mMutex;
+};